@@ -1,6 +1,7 @@
 package org.poc.ar;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.opengl.GLES11Ext;
@@ -70,6 +71,11 @@ public class Renderer extends ViewRenderer {
     private float[] mModelViewProjectionWall;
     private float[] mModelView;
     private float[] mModelViewWall;
+    private final float[] mWallCorner = new float[4];
+    private final float[] mWallCornerClip = new float[4];
+
+    // Width of one eye's viewport in pixels
+    private int mEyeWidth;
 
     private int[] mTextures;
 
@@ -88,6 +94,35 @@ public class Renderer extends ViewRenderer {
     private FloatBuffer pVertex;
     private FloatBuffer pTexCoord;
 
+    // Extent of the wall, which the desktop covers, and texture coordinates of a quad
+    // drawn over part of it from the top left corner
+    private float mWallLeft, mWallTop, mWallRight, mWallBottom;
+    private FloatBuffer mQuadTexCoords;
+
+    // Desktop drawn from 8-bit palette indices, just in front of the wall
+    private static final float INDEXED_DESKTOP_Z = 0.05f;
+    private int mPaletteProgram;
+    private int mIndexTexture;
+    private int mPaletteTexture;
+    private boolean mHasIndexedDesktop;
+    private FloatBuffer mIndexedDesktopVertices;
+    private final int[] mIndexedUpdate = new int[5];
+
+    // Desktop drawn from the colours the VNC client copies off the heap, in the same place
+    private int mDirectProgram;
+    private int mDirectTexture;
+    private boolean mHasDirectDesktop;
+    private final int[] mDirectUpdate = new int[5];
+
+    // Remote cursor, drawn as a quad in front of the desktop
+    private static final float CURSOR_Z = 0.1f;
+    private int mCursorProgram;
+    private int mCursorTexture;
+    private boolean mHasCursorTexture;
+    private FloatBuffer mCursorVertices;
+    private final float[] mCursorBounds = new float[4];
+    private final int[] mCursorSize = new int[2];
+
     private Camera mRealCamera;
     private SurfaceTexture mRealCameraTexture;
 
@@ -135,6 +170,10 @@ public class Renderer extends ViewRenderer {
 
         mRealCameraTexture.updateTexImage();
 
+        updateIndexedDesktopTextures();
+        updateDirectDesktopTexture();
+        updateCursorTexture();
+
         GLUtils.checkGLError("onReadyToDraw");
     }
 
@@ -203,7 +242,11 @@ public class Renderer extends ViewRenderer {
         Matrix.translateM(mModelViewWall, 0, 0, -5f, -78f);
         Matrix.multiplyMM(mModelViewProjectionWall, 0, eyeTransform.getPerspective(), 0,
                 mModelViewWall, 0);
+        updatePanelScreenWidth();
         drawWall();
+        drawIndexedDesktop();
+        drawDirectDesktop();
+        drawCursor();
 
         // Set mModelView for the floor, so we draw floor in the correct location
         Matrix.multiplyMM(mModelView, 0, mView, 0, mModelFloor, 0);
@@ -279,6 +322,131 @@ public class Renderer extends ViewRenderer {
         GLUtils.checkGLError("drawing wall");
     }
 
+    /**
+     * Draw the desktop over the wall from its palette indices, if the VNC client is sending
+     * them, looking each one up in the palette texture.
+     */
+    public void drawIndexedDesktop() {
+        if (!mHasIndexedDesktop)
+            return;
+
+        GLES20.glUseProgram(mPaletteProgram);
+        int positionParam = GLES20.glGetAttribLocation(mPaletteProgram, "a_Position");
+        int texCoordParam = GLES20.glGetAttribLocation(mPaletteProgram, "a_TexCoord");
+        int mvpParam = GLES20.glGetUniformLocation(mPaletteProgram, "u_MVP");
+        int indicesParam = GLES20.glGetUniformLocation(mPaletteProgram, "u_Indices");
+        int paletteParam = GLES20.glGetUniformLocation(mPaletteProgram, "u_Palette");
+
+        GLES20.glUniformMatrix4fv(mvpParam, 1, false, mModelViewProjectionWall, 0);
+        GLES20.glVertexAttribPointer(positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
+                false, 0, mIndexedDesktopVertices);
+        GLES20.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false, 0, mQuadTexCoords);
+        GLES20.glEnableVertexAttribArray(positionParam);
+        GLES20.glEnableVertexAttribArray(texCoordParam);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mIndexTexture);
+        GLES20.glUniform1i(indicesParam, 1);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPaletteTexture);
+        GLES20.glUniform1i(paletteParam, 2);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(positionParam);
+        GLES20.glDisableVertexAttribArray(texCoordParam);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUseProgram(mGlPrograms[1]);
+
+        GLUtils.checkGLError("drawing indexed desktop");
+    }
+
+    /**
+     * Draw the desktop over the wall from the colours the VNC client keeps for it, if it is
+     * keeping them, instead of from the view drawn into the wall's texture.
+     */
+    public void drawDirectDesktop() {
+        if (!mHasDirectDesktop)
+            return;
+
+        GLES20.glUseProgram(mDirectProgram);
+        int positionParam = GLES20.glGetAttribLocation(mDirectProgram, "a_Position");
+        int texCoordParam = GLES20.glGetAttribLocation(mDirectProgram, "a_TexCoord");
+        int mvpParam = GLES20.glGetUniformLocation(mDirectProgram, "u_MVP");
+        int pixelsParam = GLES20.glGetUniformLocation(mDirectProgram, "u_Pixels");
+
+        GLES20.glUniformMatrix4fv(mvpParam, 1, false, mModelViewProjectionWall, 0);
+        GLES20.glVertexAttribPointer(positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
+                false, 0, mIndexedDesktopVertices);
+        GLES20.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false, 0, mQuadTexCoords);
+        GLES20.glEnableVertexAttribArray(positionParam);
+        GLES20.glEnableVertexAttribArray(texCoordParam);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mDirectTexture);
+        GLES20.glUniform1i(pixelsParam, 1);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(positionParam);
+        GLES20.glDisableVertexAttribArray(texCoordParam);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUseProgram(mGlPrograms[1]);
+
+        GLUtils.checkGLError("drawing direct desktop");
+    }
+
+    /**
+     * Draw the remote cursor over the wall where the desktop has it, blending its transparent
+     * pixels, so that moving it doesn't need the desktop redrawn.
+     */
+    public void drawCursor() {
+        if (!mHasCursorTexture || !getCursorBounds(mCursorBounds))
+            return;
+
+        // Desktop fractions to wall coordinates; the desktop's top is the wall's top
+        float width = mWallRight - mWallLeft;
+        float height = mWallTop - mWallBottom;
+        float left = mWallLeft + mCursorBounds[0] * width;
+        float top = mWallTop - mCursorBounds[1] * height;
+        float right = mWallLeft + mCursorBounds[2] * width;
+        float bottom = mWallTop - mCursorBounds[3] * height;
+        mCursorVertices.put(0, left).put(1, top).put(2, CURSOR_Z);
+        mCursorVertices.put(3, left).put(4, bottom).put(5, CURSOR_Z);
+        mCursorVertices.put(6, right).put(7, top).put(8, CURSOR_Z);
+        mCursorVertices.put(9, right).put(10, bottom).put(11, CURSOR_Z);
+
+        GLES20.glUseProgram(mCursorProgram);
+        int positionParam = GLES20.glGetAttribLocation(mCursorProgram, "a_Position");
+        int texCoordParam = GLES20.glGetAttribLocation(mCursorProgram, "a_TexCoord");
+        int mvpParam = GLES20.glGetUniformLocation(mCursorProgram, "u_MVP");
+        int textureParam = GLES20.glGetUniformLocation(mCursorProgram, "u_Texture");
+
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+        GLES20.glUniformMatrix4fv(mvpParam, 1, false, mModelViewProjectionWall, 0);
+        GLES20.glVertexAttribPointer(positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
+                false, 0, mCursorVertices);
+        GLES20.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false, 0, mQuadTexCoords);
+        GLES20.glEnableVertexAttribArray(positionParam);
+        GLES20.glEnableVertexAttribArray(texCoordParam);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCursorTexture);
+        GLES20.glUniform1i(textureParam, 1);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(positionParam);
+        GLES20.glDisableVertexAttribArray(texCoordParam);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUseProgram(mGlPrograms[1]);
+
+        GLUtils.checkGLError("drawing cursor");
+    }
+
     public void drawFloor(float[] perspective) {
 
         GLES20.glEnable(GLES20.GL_BLEND);
@@ -311,6 +479,35 @@ public class Renderer extends ViewRenderer {
     @Override
     public void onSurfaceChanged(int width, int height) {
         Timber.e("onSurfaceChanged(%d, %d)", width, height);
+        // The eyes are drawn side by side
+        mEyeWidth = width / 2;
+    }
+
+    /**
+     * Project the corners of the wall to find how many pixels wide it is on screen.
+     */
+    private void updatePanelScreenWidth() {
+        float[] coords = DATA.WALL_COORDS;
+        float minX = 0, maxX = 0;
+        for (int i = 0; i < coords.length; i += COORDS_PER_VERTEX) {
+            mWallCorner[0] = coords[i];
+            mWallCorner[1] = coords[i + 1];
+            mWallCorner[2] = coords[i + 2];
+            mWallCorner[3] = 1;
+            Matrix.multiplyMV(mWallCornerClip, 0, mModelViewProjectionWall, 0, mWallCorner, 0);
+            if (mWallCornerClip[3] <= 0) {
+                // Partly behind the eye; size unknown
+                setPanelScreenWidth(0);
+                return;
+            }
+            float x = mWallCornerClip[0] / mWallCornerClip[3];
+            if (i == 0 || x < minX)
+                minX = x;
+            if (i == 0 || x > maxX)
+                maxX = x;
+        }
+        // Normalised device coordinates span 2 units across the viewport
+        setPanelScreenWidth((int) ((maxX - minX) * 0.5f * mEyeWidth));
     }
 
     @Override
@@ -328,6 +525,12 @@ public class Renderer extends ViewRenderer {
 
         initWorldShader();
 
+        initIndexedDesktop();
+
+        initDirectDesktop();
+
+        initCursor();
+
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
 
         // Object first appears directly in front of user
@@ -500,6 +703,23 @@ public class Renderer extends ViewRenderer {
         mWallColors = bbWallColors.asFloatBuffer();
         mWallColors.put(DATA.WALL_COLORS);
         mWallColors.position(0);
+
+        // The desktop is textured across the wall's whole extent
+        float[] coords = DATA.WALL_COORDS;
+        mWallLeft = mWallRight = coords[0];
+        mWallBottom = mWallTop = coords[1];
+        for (int i = COORDS_PER_VERTEX; i < coords.length; i += COORDS_PER_VERTEX) {
+            mWallLeft = Math.min(mWallLeft, coords[i]);
+            mWallRight = Math.max(mWallRight, coords[i]);
+            mWallBottom = Math.min(mWallBottom, coords[i + 1]);
+            mWallTop = Math.max(mWallTop, coords[i + 1]);
+        }
+
+        float[] texCoords = { 0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 0.0f, 1.0f, 1.0f };
+        mQuadTexCoords = ByteBuffer.allocateDirect(texCoords.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mQuadTexCoords.put(texCoords);
+        mQuadTexCoords.position(0);
     }
 
     private int initWorldShader() {
@@ -514,11 +734,182 @@ public class Renderer extends ViewRenderer {
         return mGlPrograms[1];
     }
 
+    private void initCursor() {
+        int vertexShader = GLUtils.loadGLShader(mContext, GLES20.GL_VERTEX_SHADER, R.raw.textured_vertex);
+        int fragmentShader = GLUtils.loadGLShader(mContext, GLES20.GL_FRAGMENT_SHADER, R.raw.cursor_fragment);
+
+        mCursorProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mCursorProgram, vertexShader);
+        GLES20.glAttachShader(mCursorProgram, fragmentShader);
+        GLES20.glLinkProgram(mCursorProgram);
+
+        int[] texture = new int[1];
+        GLES20.glGenTextures(1, texture, 0);
+        mCursorTexture = texture[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCursorTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        // A shape may have been set before this surface existed
+        mHasCursorTexture = false;
+        setCursorShapeChanged();
+
+        mCursorVertices = ByteBuffer.allocateDirect(4 * COORDS_PER_VERTEX * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private void initIndexedDesktop() {
+        int vertexShader = GLUtils.loadGLShader(mContext, GLES20.GL_VERTEX_SHADER, R.raw.textured_vertex);
+        int fragmentShader = GLUtils.loadGLShader(mContext, GLES20.GL_FRAGMENT_SHADER, R.raw.palette_fragment);
+
+        mPaletteProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mPaletteProgram, vertexShader);
+        GLES20.glAttachShader(mPaletteProgram, fragmentShader);
+        GLES20.glLinkProgram(mPaletteProgram);
+
+        // Indices and palette entries must be looked up exactly, never blended
+        int[] textures = new int[2];
+        GLES20.glGenTextures(2, textures, 0);
+        mIndexTexture = textures[0];
+        mPaletteTexture = textures[1];
+        for (int texture : textures) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        }
+        // The client may have started sending indices before this surface existed
+        mHasIndexedDesktop = false;
+        setIndexedFramebufferLost();
+
+        float[] vertices = {
+                mWallLeft, mWallTop, INDEXED_DESKTOP_Z,
+                mWallLeft, mWallBottom, INDEXED_DESKTOP_Z,
+                mWallRight, mWallTop, INDEXED_DESKTOP_Z,
+                mWallRight, mWallBottom, INDEXED_DESKTOP_Z
+        };
+        mIndexedDesktopVertices = ByteBuffer.allocateDirect(vertices.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mIndexedDesktopVertices.put(vertices);
+        mIndexedDesktopVertices.position(0);
+    }
+
+    private void initDirectDesktop() {
+        int vertexShader = GLUtils.loadGLShader(mContext, GLES20.GL_VERTEX_SHADER, R.raw.textured_vertex);
+        int fragmentShader = GLUtils.loadGLShader(mContext, GLES20.GL_FRAGMENT_SHADER, R.raw.direct_fragment);
+
+        mDirectProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mDirectProgram, vertexShader);
+        GLES20.glAttachShader(mDirectProgram, fragmentShader);
+        GLES20.glLinkProgram(mDirectProgram);
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mDirectTexture = textures[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mDirectTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        // The client may have started copying colours before this surface existed
+        mHasDirectDesktop = false;
+        setDirectFramebufferLost();
+    }
+
+    /**
+     * Upload the rows of colours changed since the last frame straight from the VNC client's
+     * buffer, if it keeps one.
+     * <p>
+     * 16-bit sessions upload RGBA too, not GL_UNSIGNED_SHORT_5_6_5.  The buffer is the
+     * framebuffer the decoders write, and they write 32-bit colours: a 16-bit pixel is looked
+     * up in the colour model's palette as it is decoded.  Uploading 565 would mean either
+     * converting the changed rows into a second buffer each frame, reading four bytes and
+     * writing two a pixel to save two in the upload, or keeping 16-bit pixels in the
+     * framebuffer, which every decoder, the tile cache and CopyRect would have to learn.
+     * 15-bit colour has no matching GL ES 2 type without an alpha bit either.
+     */
+    private void updateDirectDesktopTexture() {
+        int[] update = mDirectUpdate;
+        ByteBuffer pixels = takeDirectUpdate(update);
+        mHasDirectDesktop = pixels != null;
+        if (pixels == null)
+            return;
+        int width = update[0];
+        int height = update[1];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mDirectTexture);
+        if (update[4] != 0) {
+            pixels.position(0);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        } else if (update[2] < update[3]) {
+            pixels.position(update[2] * width * 4);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, update[2], width, update[3] - update[2],
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        }
+        GLUtils.checkGLError("uploading direct desktop");
+    }
+
+    /**
+     * Upload the palette and the rows of indices changed since the last frame, a byte per
+     * pixel, if the desktop is drawn from indices
+     */
+    private void updateIndexedDesktopTextures() {
+        int[] palette = takePalette();
+        if (palette != null) {
+            Bitmap bitmap = Bitmap.createBitmap(palette, palette.length, 1, Bitmap.Config.ARGB_8888);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPaletteTexture);
+            android.opengl.GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            bitmap.recycle();
+        }
+
+        int[] update = mIndexedUpdate;
+        ByteBuffer indices = takeIndexedUpdate(update);
+        mHasIndexedDesktop = indices != null;
+        if (indices == null)
+            return;
+        int width = update[0];
+        int height = update[1];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mIndexTexture);
+        // Rows of indices aren't padded to four bytes
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (update[4] != 0) {
+            indices.position(0);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, width, height, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, indices);
+        } else if (update[2] < update[3]) {
+            // Whole rows are contiguous in the buffer
+            indices.position(update[2] * width);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, update[2], width, update[3] - update[2],
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, indices);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLUtils.checkGLError("uploading indexed desktop");
+    }
+
+    /**
+     * Upload the cursor's image if the server has sent a new one
+     */
+    private void updateCursorTexture() {
+        int[] pixels = takeCursorShape(mCursorSize);
+        if (pixels == null)
+            return;
+        Bitmap bitmap = Bitmap.createBitmap(pixels, mCursorSize[0], mCursorSize[1],
+                Bitmap.Config.ARGB_8888);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCursorTexture);
+        android.opengl.GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        bitmap.recycle();
+        mHasCursorTexture = true;
+        GLUtils.checkGLError("uploading cursor");
+    }
+
     @Override
     public void onRendererShutdown() {
         Timber.e("onRendererShutdown");
 
         GLES20.glDeleteTextures(1, mTextures, 0);
+        GLES20.glDeleteTextures(4, new int[] { mCursorTexture, mIndexTexture, mPaletteTexture, mDirectTexture }, 0);
 
         mRealCamera.stopPreview();
         mRealCamera.setPreviewCallbackWithBuffer(null);
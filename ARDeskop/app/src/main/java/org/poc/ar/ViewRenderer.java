@@ -1,12 +1,17 @@
 package org.poc.ar;
 
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.util.Log;
 import android.view.Surface;
 import com.google.vrtoolkit.cardboard.CardboardView;
 
 import org.poc.common.IViewRenderer;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
 /**
  * Created by joel on 4/19/15.
  */
@@ -15,13 +20,47 @@ public abstract class ViewRenderer implements CardboardView.StereoRenderer, IVie
     private static final String TAG = ViewRenderer.class.getSimpleName();
     private Surface mSurface;
     private Canvas mSurfaceCanvas;
+    private volatile int mPanelScreenWidth;
+
+    // Remote cursor, set from the network thread and drawn on the GL thread
+    private int[] mCursorPixels;
+    private int mCursorWidth;
+    private int mCursorHeight;
+    private int mCursorHotX;
+    private int mCursorHotY;
+    private boolean mCursorShapeChanged;
+    private int mCursorX;
+    private int mCursorY;
+    private int mFramebufferWidth;
+    private int mFramebufferHeight;
+
+    // Desktop as palette indices, a byte per pixel, packed on the network thread
+    private ByteBuffer mIndexedPixels;
+    private int mIndexedWidth;
+    private int mIndexedHeight;
+    private int[] mPalette;
+    private boolean mPaletteChanged;
+    private boolean mIndexedSizeChanged;
+    // Rows changed since the GL thread last uploaded, top inclusive, bottom exclusive
+    private int mDirtyTop;
+    private int mDirtyBottom;
+
+    // Desktop as colours, four bytes per pixel in native order, which the network thread's
+    // decoders write straight into
+    private ByteBuffer mDirectPixels;
+    private IntBuffer mDirectInts;
+    private int mDirectWidth;
+    private int mDirectHeight;
+    private boolean mDirectSizeChanged;
+    private int mDirectDirtyTop;
+    private int mDirectDirtyBottom;
 
     @Override
-    public Canvas onDrawViewBegin() {
+    public Canvas onDrawViewBegin(Rect dirty) {
         mSurfaceCanvas = null;
         if (mSurface != null) {
             try {
-                mSurfaceCanvas = mSurface.lockCanvas(null);
+                mSurfaceCanvas = mSurface.lockCanvas(dirty);
             }catch (Exception e){
                 Log.e(TAG, "error while rendering view to gl: " + e);
             }
@@ -37,4 +76,211 @@ public abstract class ViewRenderer implements CardboardView.StereoRenderer, IVie
         }
         mSurfaceCanvas = null;
     }
+
+    @Override
+    public int getPanelScreenWidth() {
+        return mPanelScreenWidth;
+    }
+
+    /**
+     * Record how wide the panel was drawn, for {@link #getPanelScreenWidth()}
+     */
+    protected void setPanelScreenWidth(int width) {
+        mPanelScreenWidth = width;
+    }
+
+    @Override
+    public synchronized void setCursorShape(int[] pixels, int width, int height, int hotX, int hotY) {
+        mCursorPixels = pixels;
+        mCursorWidth = width;
+        mCursorHeight = height;
+        mCursorHotX = hotX;
+        mCursorHotY = hotY;
+        mCursorShapeChanged = true;
+    }
+
+    @Override
+    public synchronized void setCursorPosition(int x, int y, int framebufferWidth, int framebufferHeight) {
+        mCursorX = x;
+        mCursorY = y;
+        mFramebufferWidth = framebufferWidth;
+        mFramebufferHeight = framebufferHeight;
+    }
+
+    /**
+     * Take a cursor shape set since the last call, for uploading as a texture
+     * @param size Receives width and height
+     * @return Pixels of the new shape, or null if it hasn't changed or the cursor is hidden
+     */
+    protected synchronized int[] takeCursorShape(int[] size) {
+        if (!mCursorShapeChanged)
+            return null;
+        mCursorShapeChanged = false;
+        size[0] = mCursorWidth;
+        size[1] = mCursorHeight;
+        return mCursorPixels;
+    }
+
+    @Override
+    public synchronized boolean setFramebufferPalette(int[] palette, int framebufferWidth, int framebufferHeight) {
+        mPalette = palette;
+        mPaletteChanged = true;
+        if (palette == null) {
+            mIndexedPixels = null;
+            mIndexedWidth = mIndexedHeight = 0;
+            return true;
+        }
+        if (mIndexedPixels == null || framebufferWidth != mIndexedWidth || framebufferHeight != mIndexedHeight) {
+            mIndexedPixels = ByteBuffer.allocateDirect(framebufferWidth * framebufferHeight);
+            mIndexedWidth = framebufferWidth;
+            mIndexedHeight = framebufferHeight;
+            mIndexedSizeChanged = true;
+        }
+        mDirtyTop = 0;
+        mDirtyBottom = mIndexedHeight;
+        return true;
+    }
+
+    @Override
+    public synchronized void updateIndexedFramebuffer(int[] indices, int offset, int stride, int x, int y, int w, int h) {
+        ByteBuffer pixels = mIndexedPixels;
+        if (pixels == null)
+            return;
+        for (int j = 0; j < h; j++, offset += stride) {
+            int p = (y + j) * mIndexedWidth + x;
+            for (int i = 0; i < w; i++)
+                pixels.put(p + i, (byte) indices[offset + i]);
+        }
+        if (mDirtyTop == mDirtyBottom) {
+            mDirtyTop = y;
+            mDirtyBottom = y + h;
+        } else {
+            mDirtyTop = Math.min(mDirtyTop, y);
+            mDirtyBottom = Math.max(mDirtyBottom, y + h);
+        }
+    }
+
+    /**
+     * @return The palette if it has changed since the last call, otherwise null
+     */
+    protected synchronized int[] takePalette() {
+        if (!mPaletteChanged)
+            return null;
+        mPaletteChanged = false;
+        return mPalette;
+    }
+
+    /**
+     * Take the rows of indices changed since the last call, for uploading.  Rows changed
+     * while they are uploaded are taken again by the next call.
+     * @param update Receives width, height, the top changed row, the row after the bottom
+     * one, and 1 if the whole buffer must be uploaded because it is new or 0 if not
+     * @return The desktop's palette indices, width per row, or null if the desktop isn't
+     * drawn from indices
+     */
+    protected synchronized ByteBuffer takeIndexedUpdate(int[] update) {
+        update[0] = mIndexedWidth;
+        update[1] = mIndexedHeight;
+        update[2] = mDirtyTop;
+        update[3] = mDirtyBottom;
+        update[4] = mIndexedSizeChanged ? 1 : 0;
+        mIndexedSizeChanged = false;
+        mDirtyTop = mDirtyBottom = 0;
+        return mIndexedPixels;
+    }
+
+    @Override
+    public synchronized IntBuffer setDirectFramebuffer(int framebufferWidth, int framebufferHeight) {
+        if (framebufferWidth <= 0 || framebufferHeight <= 0) {
+            mDirectPixels = null;
+            mDirectInts = null;
+            mDirectWidth = mDirectHeight = 0;
+            return null;
+        }
+        if (mDirectPixels == null || framebufferWidth != mDirectWidth || framebufferHeight != mDirectHeight) {
+            mDirectPixels = ByteBuffer.allocateDirect(framebufferWidth * framebufferHeight * 4)
+                    .order(ByteOrder.nativeOrder());
+            mDirectInts = mDirectPixels.asIntBuffer();
+            mDirectWidth = framebufferWidth;
+            mDirectHeight = framebufferHeight;
+            mDirectSizeChanged = true;
+        }
+        mDirectDirtyTop = 0;
+        mDirectDirtyBottom = mDirectHeight;
+        return mDirectInts;
+    }
+
+    @Override
+    public synchronized void directFramebufferChanged(int x, int y, int w, int h) {
+        if (mDirectInts == null)
+            return;
+        if (mDirectDirtyTop == mDirectDirtyBottom) {
+            mDirectDirtyTop = y;
+            mDirectDirtyBottom = y + h;
+        } else {
+            mDirectDirtyTop = Math.min(mDirectDirtyTop, y);
+            mDirectDirtyBottom = Math.max(mDirectDirtyBottom, y + h);
+        }
+    }
+
+    /**
+     * Take the rows of colours changed since the last call, for uploading, as
+     * {@link #takeIndexedUpdate} does for indices.  Decoders may be writing the buffer while
+     * it is uploaded; what they change is reported after it is written, so a row caught half
+     * written is uploaded again on the next frame.
+     * @param update Receives width, height, the top changed row, the row after the bottom
+     * one, and 1 if the whole buffer must be uploaded or 0 if not
+     * @return The desktop's colours, four bytes per pixel with the int 0xRRGGBB in native
+     * order, or null if the renderer isn't keeping them
+     */
+    protected synchronized ByteBuffer takeDirectUpdate(int[] update) {
+        update[0] = mDirectWidth;
+        update[1] = mDirectHeight;
+        update[2] = mDirectDirtyTop;
+        update[3] = mDirectDirtyBottom;
+        update[4] = mDirectSizeChanged ? 1 : 0;
+        mDirectSizeChanged = false;
+        mDirectDirtyTop = mDirectDirtyBottom = 0;
+        return mDirectPixels;
+    }
+
+    /**
+     * Have the colours taken whole again, after the texture holding them was lost
+     */
+    protected synchronized void setDirectFramebufferLost() {
+        mDirectSizeChanged = mDirectPixels != null;
+    }
+
+    /**
+     * Have the palette and indices taken whole again, after the textures holding them were lost
+     */
+    protected synchronized void setIndexedFramebufferLost() {
+        mPaletteChanged = true;
+        mIndexedSizeChanged = mIndexedPixels != null;
+    }
+
+    /**
+     * Have {@link #takeCursorShape} return the current shape again, after the texture
+     * holding it was lost
+     */
+    protected synchronized void setCursorShapeChanged() {
+        mCursorShapeChanged = true;
+    }
+
+    /**
+     * Where the cursor image is on the desktop
+     * @param bounds Receives left, top, right and bottom as fractions of the desktop's size
+     * @return False if there is no cursor to draw
+     */
+    protected synchronized boolean getCursorBounds(float[] bounds) {
+        if (mCursorPixels == null || mFramebufferWidth <= 0 || mFramebufferHeight <= 0)
+            return false;
+        int left = mCursorX - mCursorHotX;
+        int top = mCursorY - mCursorHotY;
+        bounds[0] = (float) left / mFramebufferWidth;
+        bounds[1] = (float) top / mFramebufferHeight;
+        bounds[2] = (float) (left + mCursorWidth) / mFramebufferWidth;
+        bounds[3] = (float) (top + mCursorHeight) / mFramebufferHeight;
+        return true;
+    }
 }
@@ -0,0 +1,8 @@
+precision mediump float;
+uniform sampler2D u_Pixels;
+varying vec2 v_TexCoord;
+
+void main() {
+    // Each pixel was uploaded as the bytes of a little-endian 0xRRGGBB int, so red is in b
+    gl_FragColor = vec4(texture2D(u_Pixels, v_TexCoord).bgr, 1.0);
+}
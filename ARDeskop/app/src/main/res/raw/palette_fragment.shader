@@ -0,0 +1,10 @@
+precision mediump float;
+uniform sampler2D u_Indices;
+uniform sampler2D u_Palette;
+varying vec2 v_TexCoord;
+
+void main() {
+    // Indices are stored as index / 255; palette entry i is centred on (i + 0.5) / 256
+    float index = texture2D(u_Indices, v_TexCoord).r * 255.0;
+    gl_FragColor = texture2D(u_Palette, vec2((index + 0.5) / 256.0, 0.5));
+}
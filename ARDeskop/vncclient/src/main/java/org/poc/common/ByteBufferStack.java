@@ -13,6 +13,8 @@ public class ByteBufferStack {
 	private int m_depth;
 	private int m_max_depth;
 	private int m_max_size;
+	private int m_top;
+	private int m_high_water;
 	
 	public static final int MAX_DEPTH = 20;
 	public static final int MAX_SIZE = 1048;
@@ -44,12 +46,20 @@ public class ByteBufferStack {
 	 */
 	public int getOffset()
 	{
-		return m_offsets[m_depth];
+		if (m_depth<1)
+		{
+			throw new IllegalStateException("getOffset() without reserve()");
+		}
+		return m_offsets[m_depth - 1];
 	}
 	
+	/**
+	 * Reserve count bytes above the regions already reserved
+	 * @return Offset in getBuffer() of the new region
+	 */
 	public int reserve(int count)
 	{
-		if (count < 0 || (count + m_max_size < 0))
+		if (count < 0 || (count + m_top < 0))
 			throw new IllegalArgumentException("Count must by greater than 0");
 		if (m_depth == m_max_depth)
 		{
@@ -58,9 +68,12 @@ public class ByteBufferStack {
 			System.arraycopy(m_offsets, 0, new_offsets, 0, m_depth);
 			m_offsets = new_offsets;
 		}
-		int result = m_offsets[m_depth];
+		int result = m_top;
 		int new_size = result + count;
-		m_offsets[m_depth++] = new_size;
+		m_offsets[m_depth++] = result;
+		m_top = new_size;
+		if (new_size > m_high_water)
+			m_high_water = new_size;
 		if (new_size > m_max_size)
 		{
 			m_max_size = Math.max(2 * m_max_size, new_size);
@@ -72,12 +85,60 @@ public class ByteBufferStack {
 		return result;
 	}
 	
+	/**
+	 * Release the last reserved region
+	 */
 	public void release()
 	{
 		if (m_depth<1)
 		{
 			throw new IllegalStateException("release() without reserve()");
 		}
-		m_depth--;
+		m_top = m_offsets[--m_depth];
+	}
+	
+	/**
+	 * 
+	 * @return Number of regions reserved and not yet released
+	 */
+	public int getDepth()
+	{
+		return m_depth;
+	}
+	
+	/**
+	 * 
+	 * @return Current size of the buffer
+	 */
+	public int getCapacity()
+	{
+		return m_max_size;
+	}
+	
+	/**
+	 * 
+	 * @return Most bytes reserved at once since the stack was made or resetHighWater() was called
+	 */
+	public int getHighWater()
+	{
+		return m_high_water;
+	}
+	
+	public void resetHighWater()
+	{
+		m_high_water = m_top;
+	}
+	
+	/**
+	 * Replace the buffer with one of size bytes, if it is bigger than that and nothing is reserved
+	 * @return True if the buffer was replaced
+	 */
+	public boolean trim(int size)
+	{
+		if (m_depth > 0 || m_max_size <= size)
+			return false;
+		m_max_size = size;
+		m_buffer = new byte[size];
+		return true;
 	}
 }
@@ -1,12 +1,72 @@
 package org.poc.common;
 
 import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.nio.IntBuffer;
 
 /**
  * Created by joel on 4/20/15.
  */
 public interface IViewRenderer {
-    Canvas onDrawViewBegin();
+    /**
+     * @param dirty The part of the view that changed, in view coordinates, or null for all of
+     * it; may be made bigger, and all of what it holds on return must be drawn
+     * @return Canvas to draw the view into, clipped to dirty, or null
+     */
+    Canvas onDrawViewBegin(Rect dirty);
     void onDrawViewEnd();
+
+    /**
+     * @return Width in screen pixels the desktop panel currently covers in one eye, or 0 if
+     * not known yet; decoders use it to avoid producing detail that can't be seen
+     */
+    int getPanelScreenWidth();
+
+    /**
+     * Draw the remote cursor over the desktop panel, separately from the desktop itself, or
+     * stop drawing it if pixels is null
+     * @param pixels 0xAARRGGBB, width per row; not changed after the call
+     * @param hotX Where in the image the pointer position is
+     */
+    void setCursorShape(int[] pixels, int width, int height, int hotX, int hotY);
+
+    /**
+     * Move the remote cursor
+     * @param x Pointer position in framebuffer pixels
+     * @param framebufferWidth Size of the desktop the position is in
+     */
+    void setCursorPosition(int x, int y, int framebufferWidth, int framebufferHeight);
+
+    /**
+     * Offer to draw the desktop from 8-bit palette indices, colouring them with palette
+     * @param palette 256 colours, 0xAARRGGBB, or null to stop drawing from indices
+     * @return False if the renderer can't, in which case the desktop is drawn as colours
+     */
+    boolean setFramebufferPalette(int[] palette, int framebufferWidth, int framebufferHeight);
+
+    /**
+     * Take changed palette indices while drawing from them; called on the network thread
+     * @param indices One index in the low byte of each int, stride per row, starting at offset
+     * @param x Where the rectangle is in the framebuffer
+     */
+    void updateIndexedFramebuffer(int[] indices, int offset, int stride, int x, int y, int w, int h);
+
+    /**
+     * Offer to draw the desktop from a buffer of its colours off the heap, which the client
+     * writes and the renderer uploads as it is, instead of having the view draw it
+     * @param framebufferWidth Size of the desktop, or 0 to stop
+     * @return A direct buffer of framebufferWidth * framebufferHeight ints, 0xRRGGBB in the
+     * low bytes, in rows from the top, or null if the renderer can't, in which case the view
+     * draws the desktop
+     */
+    IntBuffer setDirectFramebuffer(int framebufferWidth, int framebufferHeight);
+
+    /**
+     * Take note of colours changed in the direct framebuffer; called on the network thread
+     * after they are written
+     * @param x Where the rectangle is in the framebuffer
+     */
+    void directFramebufferChanged(int x, int y, int w, int h);
 }
 
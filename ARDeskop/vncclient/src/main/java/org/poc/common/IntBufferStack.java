@@ -0,0 +1,144 @@
+/**
+ * 
+ */
+package org.poc.common;
+
+/**
+ * @author Michael A. MacDonald
+ *
+ */
+public class IntBufferStack {
+	private int[] m_buffer;
+	private int[] m_offsets;
+	private int m_depth;
+	private int m_max_depth;
+	private int m_max_size;
+	private int m_top;
+	private int m_high_water;
+	
+	public static final int MAX_DEPTH = 20;
+	public static final int MAX_SIZE = 1048;
+	public IntBufferStack(int maxDepth, int maxSize)
+	{
+		m_depth = 0;
+		m_max_depth = maxDepth;
+		m_max_size = maxSize;
+		m_offsets= new int[maxDepth];
+		m_buffer = new int[maxSize];
+	}
+	
+	public IntBufferStack()
+	{
+		this(MAX_DEPTH, MAX_SIZE);
+	}
+	
+	/**
+	 * 
+	 * @return Start of the buffer; this value is valid at least until the next call of reserve()
+	 */
+	public int[] getBuffer()
+	{
+		return m_buffer;
+	}
+	/**
+	 * 
+	 * @return Offset in getBuffer() of last reserved region
+	 */
+	public int getOffset()
+	{
+		if (m_depth<1)
+		{
+			throw new IllegalStateException("getOffset() without reserve()");
+		}
+		return m_offsets[m_depth - 1];
+	}
+	
+	/**
+	 * Reserve count ints above the regions already reserved
+	 * @return Offset in getBuffer() of the new region
+	 */
+	public int reserve(int count)
+	{
+		if (count < 0 || (count + m_top < 0))
+			throw new IllegalArgumentException("Count must by greater than 0");
+		if (m_depth == m_max_depth)
+		{
+			m_max_depth *= 2;
+			int[] new_offsets = new int[m_max_depth];
+			System.arraycopy(m_offsets, 0, new_offsets, 0, m_depth);
+			m_offsets = new_offsets;
+		}
+		int result = m_top;
+		int new_size = result + count;
+		m_offsets[m_depth++] = result;
+		m_top = new_size;
+		if (new_size > m_high_water)
+			m_high_water = new_size;
+		if (new_size > m_max_size)
+		{
+			m_max_size = Math.max(2 * m_max_size, new_size);
+			int[] new_buffer = new int[m_max_size];
+			System.arraycopy(m_buffer, 0, new_buffer, 0, result);
+			m_buffer = new_buffer;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Release the last reserved region
+	 */
+	public void release()
+	{
+		if (m_depth<1)
+		{
+			throw new IllegalStateException("release() without reserve()");
+		}
+		m_top = m_offsets[--m_depth];
+	}
+	
+	/**
+	 * 
+	 * @return Number of regions reserved and not yet released
+	 */
+	public int getDepth()
+	{
+		return m_depth;
+	}
+	
+	/**
+	 * 
+	 * @return Current size of the buffer
+	 */
+	public int getCapacity()
+	{
+		return m_max_size;
+	}
+	
+	/**
+	 * 
+	 * @return Most ints reserved at once since the stack was made or resetHighWater() was called
+	 */
+	public int getHighWater()
+	{
+		return m_high_water;
+	}
+	
+	public void resetHighWater()
+	{
+		m_high_water = m_top;
+	}
+	
+	/**
+	 * Replace the buffer with one of size ints, if it is bigger than that and nothing is reserved
+	 * @return True if the buffer was replaced
+	 */
+	public boolean trim(int size)
+	{
+		if (m_depth > 0 || m_max_size <= size)
+			return false;
+		m_max_size = size;
+		m_buffer = new int[size];
+		return true;
+	}
+}
@@ -0,0 +1,168 @@
+package org.poc.common;
+
+/**
+ * Scratch buffers for one connection's decoders, handed out as slices of a byte stack and an
+ * int stack.  A slice is reserved for as long as a rectangle is being decoded and released
+ * afterwards, so the stacks only hold as much as the largest single rectangle needed.
+ * <p>
+ * The stacks grow as needed and are not shrunk while in use.  Instead, every
+ * {@link #TRIM_PERIOD} updates each stack is cut back to what was actually used in that period,
+ * if it is more than twice that, and a trim requested because memory is short cuts it back to
+ * the minimum.  Trims only happen in {@link #updateFinished()}, between updates, so the
+ * decoders never see a buffer replaced under them.
+ * <p>
+ * Everything except {@link #requestTrim} must be called on the thread decoding updates.
+ */
+public class ScratchArena {
+
+    /** Updates between checks of how much of each stack was used */
+    public static final int TRIM_PERIOD = 256;
+
+    private final ByteBufferStack bytes;
+    private final IntBufferStack ints;
+    private final int minBytes;
+    private final int minInts;
+
+    private int updates;
+    private int trims;
+    private int pressureTrims;
+    // 0 for none, 1 for a trim to what was used, 2 for a trim to the minimum
+    private volatile int trimRequested;
+
+    /**
+     * @param minBytes Size the byte stack starts at and is never trimmed below
+     * @param minInts Size the int stack starts at and is never trimmed below
+     */
+    public ScratchArena(int minBytes, int minInts) {
+        this.minBytes = minBytes;
+        this.minInts = minInts;
+        bytes = new ByteBufferStack(ByteBufferStack.MAX_DEPTH, minBytes);
+        ints = new IntBufferStack(IntBufferStack.MAX_DEPTH, minInts);
+    }
+
+    /**
+     * Reserve n bytes, released with {@link #releaseBytes()}
+     * @return Offset of the slice in {@link #bytes()}
+     */
+    public int reserveBytes(int n) {
+        return bytes.reserve(n);
+    }
+
+    /**
+     * @return The array byte slices are in; it may change when a slice is reserved
+     */
+    public byte[] bytes() {
+        return bytes.getBuffer();
+    }
+
+    /**
+     * Release the last byte slice reserved
+     */
+    public void releaseBytes() {
+        bytes.release();
+    }
+
+    /**
+     * Reserve n ints, released with {@link #releaseInts()}
+     * @return Offset of the slice in {@link #ints()}
+     */
+    public int reserveInts(int n) {
+        return ints.reserve(n);
+    }
+
+    /**
+     * @return The array int slices are in; it may change when a slice is reserved
+     */
+    public int[] ints() {
+        return ints.getBuffer();
+    }
+
+    /**
+     * Release the last int slice reserved
+     */
+    public void releaseInts() {
+        ints.release();
+    }
+
+    /**
+     * Have the next {@link #updateFinished()} give memory back; may be called on any thread
+     * @param all True to cut the stacks back to their minimum, as when the system is short of
+     * memory, false to cut them back to what has been used lately
+     */
+    public void requestTrim(boolean all) {
+        int level = all ? 2 : 1;
+        if (level > trimRequested)
+            trimRequested = level;
+    }
+
+    /**
+     * Call between updates, when no slices are reserved
+     * @return True if a trim to the minimum was requested and done, so other buffers kept for
+     * the session should be given back as well
+     */
+    public boolean updateFinished() {
+        int requested = trimRequested;
+        if (requested != 0)
+            trimRequested = 0;
+        if (requested == 2) {
+            trim(minBytes, minInts, 1);
+            pressureTrims++;
+            return true;
+        }
+        if (requested == 1 || ++updates >= TRIM_PERIOD) {
+            trim(Math.max(bytes.getHighWater(), minBytes), Math.max(ints.getHighWater(), minInts), 2);
+        }
+        return false;
+    }
+
+    /**
+     * Cut each stack back to the given size if it is more than slack times that
+     */
+    private void trim(int byteSize, int intSize, int slack) {
+        boolean trimmed = false;
+        if (bytes.getCapacity() > (long) slack * byteSize)
+            trimmed |= bytes.trim(byteSize);
+        if (ints.getCapacity() > (long) slack * intSize)
+            trimmed |= ints.trim(intSize);
+        if (trimmed)
+            trims++;
+        bytes.resetHighWater();
+        ints.resetHighWater();
+        updates = 0;
+    }
+
+    /**
+     * @return Bytes currently held by both stacks
+     */
+    public long getCapacityBytes() {
+        return bytes.getCapacity() + 4L * ints.getCapacity();
+    }
+
+    /**
+     * @return Most bytes reserved at once since the last check
+     */
+    public int getByteHighWater() {
+        return bytes.getHighWater();
+    }
+
+    /**
+     * @return Most ints reserved at once since the last check
+     */
+    public int getIntHighWater() {
+        return ints.getHighWater();
+    }
+
+    /**
+     * @return Number of times a stack was made smaller
+     */
+    public int getTrimCount() {
+        return trims;
+    }
+
+    /**
+     * @return Number of trims done because memory was short
+     */
+    public int getPressureTrimCount() {
+        return pressureTrims;
+    }
+}
@@ -1,12 +1,17 @@
 package org.poc.vnc;
 
 import android.app.ProgressDialog;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
@@ -17,11 +22,19 @@ import android.widget.ImageView;
 import android.widget.Toast;
 
 import org.poc.android.bc.BCFactory;
+import org.poc.android.drawing.RectList;
 import org.poc.common.IViewRenderer;
+import org.poc.common.ObjectPool;
+import org.poc.common.ScratchArena;
 import org.poc.common.Utils;
 import org.poc.vnc.domain.*;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.zip.Inflater;
 
 /**
@@ -33,6 +46,83 @@ public class VncCanvas extends ImageView {
 
     public void setViewRenderer(IViewRenderer viewRenderer) {
         this.m_ViewRenderer = viewRenderer;
+        // Whether the cursor is asked for depends on there being a renderer to draw it
+        encodingsChanged = true;
+    }
+
+    /**
+     * Choose the transport used by the next connection; defaults to {@link NioTransport}.
+     * {@link SocketTransport#FACTORY} gives the original blocking socket.
+     */
+    public void setTransportFactory(IRfbTransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Use the resumable {@link RfbMessageParser} dispatch loop on the next connection; only
+     * takes effect with {@link NioTransport}.
+     */
+    public void setUseIncrementalParser(boolean useIncrementalParser) {
+        this.useIncrementalParser = useIncrementalParser;
+    }
+
+    /**
+     * Offer the server a {@link TileCache} on the next connection
+     */
+    public void setUseTileCache(boolean useTileCache) {
+        this.useTileCache = useTileCache;
+    }
+
+    /**
+     * Decode Tight JPEG rectangles with {@link JpegDecoder} instead of BitmapFactory
+     */
+    public void setUseJavaJpegDecoder(boolean useJavaJpegDecoder) {
+        this.useJavaJpegDecoder = useJavaJpegDecoder;
+    }
+
+    /**
+     * Ask the server for this encoding first, e.g. {@link RfbProto#EncodingZYWRLE} for lossy
+     * wavelet compression of photographic content; the others stay available as fallbacks
+     */
+    public void setPreferredEncoding(int encoding) {
+        preferredEncoding = encoding;
+        encodingsChanged = true;
+    }
+
+    /**
+     * Set the JPEG quality, 0-9, requested for Tight JPEG and used to pick the ZYWRLE
+     * wavelet level; -1 leaves the choice to the server
+     */
+    public void setJpegQuality(int jpegQuality) {
+        this.jpegQuality = jpegQuality;
+        encodingsChanged = true;
+    }
+
+    /**
+     * Pixel format to ask the server for, e.g. {@link ColorModel#C16} for half the bytes of
+     * 24-bit colour; when connected it takes effect after the current update
+     */
+    public void setColorModel(ColorModel colorModel) {
+        preferredColorModel = colorModel;
+        if (this.colorModel != null && colorModel != this.colorModel)
+            pendingColorModel = colorModel;
+    }
+
+    /**
+     * Expand the tiles of ZRLE rectangles on this many threads while the network thread
+     * inflates; 1, the default, decodes everything on the network thread.  Set before
+     * connecting.
+     */
+    public void setZrleWorkers(int zrleWorkers) {
+        this.zrleWorkers = Math.max(1, zrleWorkers);
+    }
+
+    /**
+     * Number of threads painting stateless rectangles; 1 paints them one after another on
+     * the network thread.  Set before connecting.
+     */
+    public void setRectWorkers(int rectWorkers) {
+        this.rectWorkers = rectWorkers;
     }
 
     private IViewRenderer m_ViewRenderer;
@@ -43,10 +133,36 @@ public class VncCanvas extends ImageView {
     private int mouseX, mouseY;
 
     private IConnection m_Connection;
-    private ColorModel pendingColorModel = ColorModel.C24bit;
+    // Set from the UI thread; the network thread starts switching to it after the next update
+    private volatile ColorModel pendingColorModel;
+    // The pixel format being switched to, and what the network thread waits for before
+    // updates can only come in it; no update requests are sent meanwhile
+    private ColorModel switchingColorModel;
+    private int switchWait;
+    private boolean switchPausedContinuousUpdates;
+    static final int SWITCH_WAIT_END_OF_CU = 1;
+    static final int SWITCH_WAIT_FENCE = 2;
+    static final int SWITCH_WAIT_REQUESTS = 3;
+    // Payload of the fence sent ahead of SetPixelFormat; no round trip probe is this long
+    private static final byte[] PIXEL_FORMAT_FENCE = { 'P', 'F', 'M', 'T' };
+    // How often to let the ledger expire merged requests while waiting for it to empty
+    static final int SWITCH_POLL_MS = 20;
+    private ColorModel preferredColorModel = ColorModel.C24bit;
     private ColorModel colorModel = null;
     private int bytesPerPixel = 0;
     private int[] colorPalette = null;
+    // True while 8-bit pixels are kept as palette indices for the view renderer to colour
+    private volatile boolean indexedFramebuffer;
+    // True while other pixels are written into the view renderer's buffer, which it uploads
+    // itself
+    private volatile boolean directFramebuffer;
+
+    // Palette that leaves each 8-bit pixel as its own index
+    private static final int[] PALETTE_INDICES = new int[256];
+    static {
+        for (int i = 0; i < PALETTE_INDICES.length; i++)
+            PALETTE_INDICES[i] = i;
+    }
 
     // VNC protocol connection
     public RfbProto rfb;
@@ -56,16 +172,87 @@ public class VncCanvas extends ImageView {
     public Handler handler = new Handler();
 
     // ZRLE encoder's data.
-    private byte[] zrleBuf;
-    private int[] zrleTilePixels;
     private ZlibInStream zrleInStream;
+    private RleTileDecoder rleTileDecoder;
+
+    // ZRLE and TRLE data is read straight from the socket, and decoded as it arrives
+    private JavaInStream rleSocketStream;
+
+    // With more than one worker, ZRLE tiles are expanded in parallel once inflated
+    private int zrleWorkers = 1;
+    private ParallelTileDecoder parallelTileDecoder;
+
+    // With more than one worker, Raw, RRE, CoRRE and Hextile rectangles are queued as they
+    // arrive and painted in parallel when a rectangle of another kind or the update's end
+    // comes along
+    private int rectWorkers = 1;
+    private ParallelRectDecoder parallelRectDecoder;
+
+    // Raw and Zlib pixels are staged here a batch of rows at a time.  The buffer is
+    // little-endian, as the negotiated 24-bit format is, so 32-bit pixels come out of its
+    // int view as framebuffer pixels.
+    static final int PIXEL_BATCH_BYTES = 64 * 1024;
+    private ByteBuffer pixelBatch;
+    private IntBuffer pixelBatchInts;
+    // Rows of pixels made one by one pass through here while the framebuffer's pixels are
+    // in a buffer rather than an array
+    private int[] pixelRow = new int[0];
+
+    // RRE, cursor and Tight data, and decoded JPEG pixels, are read into slices of this for
+    // the length of one rectangle.  It is made for each connection and gives back what a big
+    // update took once updates are small again, or at once when the system is short of memory.
+    static final int SCRATCH_MIN_BYTES = 16 * 1024;
+    static final int SCRATCH_MIN_INTS = 4 * 1024;
+    private ScratchArena scratch;
+
+    private final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            ScratchArena arena = scratch;
+            if (arena != null)
+                arena.requestTrim(level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onLowMemory() {
+            ScratchArena arena = scratch;
+            if (arena != null)
+                arena.requestTrim(true);
+        }
 
-    // Zlib encoder's data.
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    // Zlib encoder's data: compressed data is read a chunk at a time.
+    static final int ZLIB_INPUT_CHUNK = 16 * 1024;
     private byte[] zlibBuf;
+    private int zlibInputLeft;
     private Inflater zlibInflater;
 
-    private Paint handleRREPaint;
-
+    // Tight encoder's data: four persistent zlib streams.
+    private Inflater[] tightInflaters = new Inflater[4];
+
+    // Tight JPEG rectangles, decoded at reduced scale when the panel is small on screen;
+    // the options and bitmap are kept for the next rectangle.
+    private BitmapFactory.Options jpegOptions;
+    private Bitmap jpegBitmap;
+    private JpegDecoder javaJpegDecoder;
+    private boolean useJavaJpegDecoder = false;
+
+    // Where the last JPEG painted was decoded at 1/2, 1/4 and 1/8 scale, one list per scale,
+    // so those areas can be asked for again at full detail when the panel grows on screen.
+    private static final int[] REDUCED_JPEG_SCALES = { 2, 4, 8 };
+    private final ObjectPool<Rect> rectPool = new ObjectPool<Rect>() {
+        @Override
+        protected Rect itemForPool() {
+            return new Rect();
+        }
+    };
+    private final RectList[] reducedJpegAreas = {
+            new RectList(rectPool), new RectList(rectPool), new RectList(rectPool)
+    };
 
     // Useful shortcuts for modifier masks.
 
@@ -86,35 +273,62 @@ public class VncCanvas extends ImageView {
     private ProgressDialog mProgressDialog;
     private boolean maintainConnection = true;
 
+    // How the RFB connection is carried
+    private IRfbTransportFactory transportFactory = NioTransport.FACTORY;
+
+    // Frame server messages with RfbMessageParser as they arrive, instead of blocking
+    // reads inside the decoders. Needs NioTransport; off until proven on more servers.
+    private boolean useIncrementalParser = false;
+    private RfbMessageParser messageParser;
+
+    // Let the server push updates if it supports ContinuousUpdates
+    private boolean useContinuousUpdates = true;
+    private boolean continuousUpdatesSupported = false;
+
+    // Bounds on the number of FramebufferUpdateRequests kept in flight
+    private int minUpdateRequests = 1;
+    private int maxUpdateRequests = 4;
+
     // VNC Encoding parameters
-    private boolean useCopyRect = false; // TODO CopyRect is not working
+    private boolean useCopyRect = true;
+
+    // Let the server redraw rectangles it sent before from a client-side cache, which spills
+    // to a file per host in the app's cache directory and so outlives the connection.  Off
+    // unless asked for, as few servers send it
+    private boolean useTileCache = false;
+    static final int TILE_CACHE_MEMORY_BYTES = 8 * 1024 * 1024;
+    static final int TILE_CACHE_SPILL_BYTES = 32 * 1024 * 1024;
+    private TileCache tileCache;
     private int preferredEncoding = -1;
 
-    // Unimplemented VNC encoding parameters
-    private boolean requestCursorUpdates = false;
-    private boolean ignoreCursorUpdates = true;
+    // The server sends the cursor's shape and position rather than drawing it into the
+    // framebuffer, so pointer movement costs no framebuffer updates.  Only asked for while a
+    // view renderer can draw the cursor, as the server stops drawing it once asked
+    private boolean requestCursorUpdates = true;
+    private boolean ignoreCursorUpdates = false;
 
-    // Unimplemented TIGHT encoding parameters
+    // TIGHT encoding parameters; -1 leaves the choice to the server
     private int compressLevel = -1;
     private int jpegQuality = -1;
 
+    // Set from the UI thread; the network thread sends SetEncodings after the next update
+    private volatile boolean encodingsChanged = false;
+
     // Used to determine if encoding update is necessary
-    private int[] encodingsSaved = new int[20];
+    private int[] encodings = new int[24];
+    private int[] encodingsSaved = new int[24];
     private int nEncodingsSaved = 0;
 
     public VncCanvas(final Context context, AttributeSet attrs)
     {
         super(context, attrs);
         //scrollRunnable = new MouseScrollRunnable();
-        handleRREPaint = new Paint();
-        handleRREPaint.setStyle(Paint.Style.FILL);
     }
 
 
     void initializeVncCanvas(Connection bean, final Runnable setModes)
     {
         this.connection = bean;
-        this.pendingColorModel = ColorModel.C24bit;
 
 
         // Startup the RFB thread with a nifty progess dialog
@@ -146,7 +360,12 @@ public class VncCanvas extends ImageView {
                             mProgressDialog.setMessage("Downloading first frame.\nPlease wait...");
                         }
                     });
-                    processNormalProtocol(getContext(), mProgressDialog, setModes);
+                    getContext().registerComponentCallbacks(trimCallbacks);
+                    try {
+                        processNormalProtocol(getContext(), mProgressDialog, setModes);
+                    } finally {
+                        getContext().unregisterComponentCallbacks(trimCallbacks);
+                    }
                 } catch (Throwable e) {
                     if (maintainConnection) {
                         Log.e(TAG, e.toString());
@@ -182,7 +401,7 @@ public class VncCanvas extends ImageView {
     void connectAndAuthenticate(String us,String pw) throws Exception {
         Log.i(TAG, "Connecting to " + connection.getAddress() + ", port " + connection.getPort() + "...");
 
-        rfb = new RfbProto(connection.getAddress(), Integer.parseInt(connection.getPort()));
+        rfb = new RfbProto(connection.getAddress(), Integer.parseInt(connection.getPort()), transportFactory);
         if (LOCAL_LOGV) Log.v(TAG, "Connected to server");
 
         // <RepeaterMagic>
@@ -273,198 +492,524 @@ public class VncCanvas extends ImageView {
             bitmapData=new LargeBitmapData(rfb,this,dx,dy,capacity);
         else
             bitmapData=new FullBufferBitmapData(rfb,this, capacity);
+        startSession();
+    }
+
+    /**
+     * Set up the decoders for the connection rfb has just initialised, which draws into
+     * bitmapData, and send the pixel format
+     */
+    void startSession() throws IOException {
+        pendingColorModel = null;
+        bitmapData.getRequestPipeline().setDepthRange(minUpdateRequests, maxUpdateRequests);
+        if (zrleWorkers > 1 && parallelTileDecoder == null)
+            parallelTileDecoder = new ParallelTileDecoder(zrleWorkers);
+        if (rectWorkers > 1 && parallelRectDecoder == null)
+            parallelRectDecoder = new ParallelRectDecoder(rectWorkers);
+        scratch = new ScratchArena(SCRATCH_MIN_BYTES, SCRATCH_MIN_INTS);
+        if (useTileCache)
+            tileCache = TileCache.open(getContext().getCacheDir(), connection.getAddress(),
+                    Integer.parseInt(connection.getPort()), TILE_CACHE_MEMORY_BYTES, TILE_CACHE_SPILL_BYTES);
         mouseX=rfb.framebufferWidth/2;
         mouseY=rfb.framebufferHeight/2;
 
-        setPixelFormat();
+        preferredColorModel.setPixelFormat(rfb);
+        usePixelFormat(preferredColorModel);
+    }
+
+    /**
+     * Decode what follows in the given pixel format, which the server has been asked for
+     */
+    private void usePixelFormat(ColorModel model) {
+        bytesPerPixel = model.bpp();
+        colorPalette = model.palette();
+        colorModel = model;
+        setIndexedFramebuffer();
     }
 
-    private void setPixelFormat() throws IOException {
-        pendingColorModel.setPixelFormat(rfb);
-        bytesPerPixel = pendingColorModel.bpp();
-        colorPalette = pendingColorModel.palette();
-        colorModel = pendingColorModel;
+    /**
+     * Start switching to the pending pixel format.  The server answers requests it already
+     * has in the format they were asked in, so the decoders may only switch once no update
+     * in the old format can arrive: continuous updates are paused first, then either the
+     * answer to a fence sent just ahead of SetPixelFormat marks the switch or, without fences,
+     * SetPixelFormat waits until every request in flight has been answered.
+     */
+    private void beginPixelFormatChange() throws IOException {
+        switchingColorModel = pendingColorModel;
         pendingColorModel = null;
+        switchPausedContinuousUpdates = bitmapData.isContinuousUpdates();
+        if (switchPausedContinuousUpdates) {
+            switchWait = SWITCH_WAIT_END_OF_CU;
+            bitmapData.setContinuousUpdates(false);
+        } else {
+            continuePixelFormatChange();
+        }
+    }
+
+    /**
+     * Nothing more comes unasked: fence off SetPixelFormat, or wait for the ledger to empty
+     */
+    private void continuePixelFormatChange() throws IOException {
+        if (rfb.getLatencyMonitor().isFencesSupported()) {
+            // With SyncNext the server answers the fence before it applies SetPixelFormat, so
+            // every update before the answer is in the old format and every one after in the new
+            switchWait = SWITCH_WAIT_FENCE;
+            rfb.writeFence(RfbProto.FenceFlagRequest | RfbProto.FenceFlagSyncNext,
+                    PIXEL_FORMAT_FENCE, PIXEL_FORMAT_FENCE.length);
+            switchingColorModel.setPixelFormat(rfb);
+        } else {
+            switchWait = SWITCH_WAIT_REQUESTS;
+            if (bitmapData.getRequestPipeline().expireStale() == 0)
+                finishPixelFormatChange();
+        }
+    }
+
+    /**
+     * No more updates in the old pixel format can come: decode in the new one, and ask for
+     * the whole framebuffer in it
+     */
+    private void finishPixelFormatChange() throws IOException {
+        ColorModel model = switchingColorModel;
+        if (switchWait == SWITCH_WAIT_REQUESTS)
+            model.setPixelFormat(rfb);
+        switchingColorModel = null;
+        switchWait = 0;
+        usePixelFormat(model);
+        if (messageParser != null)
+            messageParser.setBytesPerPixel(bytesPerPixel);
+
+        forgetReducedJpegAreas();
+        encodingsChanged = false;
+        setEncodings(false);
+        if (switchPausedContinuousUpdates) {
+            bitmapData.setContinuousUpdates(true);
+            bitmapData.writeFullUpdateRequest(false);
+        } else {
+            bitmapData.requestUpdates(false);
+        }
+    }
+
+    /**
+     * While a pixel format change waits for the ledger to empty, wake up now and then to let
+     * it expire requests the server merged, rather than block on a server with nothing left
+     * to send
+     */
+    private void awaitRequestsAnswered() throws Exception {
+        while (switchWait == SWITCH_WAIT_REQUESTS && !serverDataWaiting()) {
+            if (bitmapData.getRequestPipeline().expireStale() == 0) {
+                finishPixelFormatChange();
+                return;
+            }
+            Thread.sleep(SWITCH_POLL_MS);
+        }
+    }
+
+    /**
+     * @return True if a read would not block, including at the end of the stream
+     */
+    private boolean serverDataWaiting() throws IOException {
+        IRfbTransport transport = rfb.getTransport();
+        if (transport instanceof NioTransport) {
+            NioTransport nio = (NioTransport) transport;
+            return nio.getWindow().hasRemaining() || nio.readAvailable() != 0;
+        }
+        return rfb.is.available() > 0;
+    }
+
+    /**
+     * With an 8-bit colour model, let the view renderer look pixels up in the palette if it
+     * can, so the framebuffer only holds indices and the renderer uploads a byte per pixel.
+     * Otherwise have the decoders write the colours into a buffer the renderer uploads as it
+     * is, so they skip the ImageView and its surface and stay off the heap, or failing that
+     * expand pixels here for the ImageView as before.
+     */
+    private void setIndexedFramebuffer() {
+        boolean indexed = false;
+        IntBuffer direct = null;
+        if (m_ViewRenderer != null) {
+            if (bytesPerPixel == 1)
+                indexed = m_ViewRenderer.setFramebufferPalette(colorPalette, rfb.framebufferWidth, rfb.framebufferHeight);
+            else if (indexedFramebuffer)
+                m_ViewRenderer.setFramebufferPalette(null, 0, 0);
+            if (!indexed)
+                direct = m_ViewRenderer.setDirectFramebuffer(rfb.framebufferWidth, rfb.framebufferHeight);
+            else if (directFramebuffer)
+                m_ViewRenderer.setDirectFramebuffer(0, 0);
+        }
+        indexedFramebuffer = indexed;
+        directFramebuffer = direct != null;
+        if (indexed)
+            colorPalette = PALETTE_INDICES;
+        bitmapData.setIndexedRenderer(indexed ? m_ViewRenderer : null);
+        // Either way a full update follows, which fills the renderer's buffer
+        bitmapData.setDirectRenderer(direct != null ? m_ViewRenderer : null, direct);
     }
 
     public void processNormalProtocol(final Context context, ProgressDialog pd, final Runnable setModes) throws Exception {
         try {
-            bitmapData.writeFullUpdateRequest(false);
+            bitmapData.requestUpdates(false);
 
             handler.post(setModes);
+            if (useIncrementalParser && rfb.getTransport() instanceof NioTransport) {
+                processIncrementalProtocol(context, pd, (NioTransport) rfb.getTransport());
+                return;
+            }
             //
             // main dispatch loop
             //
             while (maintainConnection) {
                 bitmapData.syncScroll();
+                awaitRequestsAnswered();
                 // Read message type from the server.
                 int msgType = rfb.readServerMessageType();
                 bitmapData.doneWaiting();
                 // Process the message depending on its type.
-                switch (msgType) {
-                    case RfbProto.FramebufferUpdate:
-                        rfb.readFramebufferUpdate();
-
-                        for (int i = 0; i < rfb.updateNRects; i++) {
-                            rfb.readFramebufferUpdateRectHdr();
-                            int rx = rfb.updateRectX, ry = rfb.updateRectY;
-                            int rw = rfb.updateRectW, rh = rfb.updateRectH;
-
-                            if (rfb.updateRectEncoding == RfbProto.EncodingLastRect) {
-                                Log.v(TAG, "rfb.EncodingLastRect");
-                                break;
-                            }
+                if (msgType == RfbProto.FramebufferUpdate) {
+                    rfb.readFramebufferUpdate();
+                    bitmapData.getRequestPipeline().updateBegun();
+
+                    for (int i = 0; i < rfb.updateNRects; i++) {
+                        rfb.readFramebufferUpdateRectHdr();
+                        if (!processRect(pd, rfb.updateRectX, rfb.updateRectY, rfb.updateRectW, rfb.updateRectH, rfb.updateRectEncoding))
+                            break;
+                    }
 
-                            if (rfb.updateRectEncoding == RfbProto.EncodingNewFBSize) {
-                                rfb.setFramebufferSize(rw, rh);
-                                // - updateFramebufferSize();
-                                Log.v(TAG, "rfb.EncodingNewFBSize");
-                                break;
-                            }
+                    finishFramebufferUpdate();
+                } else {
+                    handleServerMessage(context, msgType);
+                }
+            }
+        } catch (Exception e) {
+            throw e;
+        } finally {
+            Log.v(TAG, "Closing VNC Connection");
+            rfb.close();
+            if (parallelTileDecoder != null) {
+                parallelTileDecoder.shutdown();
+                parallelTileDecoder = null;
+            }
+            if (parallelRectDecoder != null) {
+                parallelRectDecoder.shutdown();
+                parallelRectDecoder = null;
+            }
+            if (tileCache != null) {
+                tileCache.close();
+                tileCache = null;
+            }
+        }
+    }
 
-                            if (rfb.updateRectEncoding == RfbProto.EncodingXCursor || rfb.updateRectEncoding == RfbProto.EncodingRichCursor) {
-                                // - handleCursorShapeUpdate(rfb.updateRectEncoding,
-                                // rx,
-                                // ry, rw, rh);
-                                Log.v(TAG, "rfb.EncodingCursor");
-                                continue;
+    /**
+     * Dispatch loop for {@link #useIncrementalParser}: take whatever the transport has received,
+     * frame it with an {@link RfbMessageParser}, and replay each complete rectangle or message
+     * through the same handlers the blocking loop uses.  Decoders therefore never stall halfway
+     * through a rectangle waiting for the network.
+     */
+    private void processIncrementalProtocol(final Context context, final ProgressDialog pd, NioTransport transport) throws Exception {
+        messageParser = new RfbMessageParser(new IRfbMessageListener() {
+            @Override
+            public void onFramebufferUpdateBegin(int nRects) {
+                bitmapData.getRequestPipeline().updateBegun();
+            }
 
-                            }
+            @Override
+            public void onRect(int x, int y, int w, int h, int encoding, byte[] data, int offset, int length) throws Exception {
+                rfb.beginReplay(data, offset, length);
+                try {
+                    processRect(pd, x, y, w, h, encoding);
+                } finally {
+                    rfb.endReplay();
+                }
+            }
 
-                            if (rfb.updateRectEncoding == RfbProto.EncodingPointerPos) {
-                                // This never actually happens
-                                mouseX=rx;
-                                mouseY=ry;
-                                Log.v(TAG, "rfb.EncodingPointerPos");
-                                continue;
-                            }
+            @Override
+            public void onFramebufferUpdateEnd() throws Exception {
+                finishFramebufferUpdate();
+            }
 
-                            rfb.startTiming();
-
-                            switch (rfb.updateRectEncoding) {
-                                case RfbProto.EncodingRaw:
-                                    handleRawRect(rx, ry, rw, rh);
-                                    break;
-                                case RfbProto.EncodingCopyRect:
-                                    handleCopyRect(rx, ry, rw, rh);
-                                    Log.v(TAG, "CopyRect is Buggy!");
-                                    break;
-                                case RfbProto.EncodingRRE:
-                                    handleRRERect(rx, ry, rw, rh);
-                                    break;
-                                case RfbProto.EncodingCoRRE:
-                                    handleCoRRERect(rx, ry, rw, rh);
-                                    break;
-                                case RfbProto.EncodingHextile:
-                                    handleHextileRect(rx, ry, rw, rh);
-                                    break;
-                                case RfbProto.EncodingZRLE:
-                                    handleZRLERect(rx, ry, rw, rh);
-                                    break;
-                                case RfbProto.EncodingZlib:
-                                    handleZlibRect(rx, ry, rw, rh);
-                                    break;
-                                default:
-                                    Log.e(TAG, "Unknown RFB rectangle encoding " + rfb.updateRectEncoding + " (0x" + Integer.toHexString(rfb.updateRectEncoding) + ")");
-                            }
+            @Override
+            public void onMessage(int msgType, byte[] data, int offset, int length) throws Exception {
+                rfb.beginReplay(data, offset, length);
+                try {
+                    handleServerMessage(context, msgType);
+                } finally {
+                    rfb.endReplay();
+                }
+            }
+        }, bytesPerPixel, rfb.framebufferWidth, rfb.framebufferHeight);
+
+        ByteBuffer window = transport.getWindow();
+        while (maintainConnection) {
+            bitmapData.syncScroll();
+            awaitRequestsAnswered();
+            if (!window.hasRemaining() && !transport.fill())
+                throw new EOFException("RFB connection closed by server");
+            bitmapData.doneWaiting();
+            messageParser.feed(window);
+        }
+    }
 
-                            rfb.stopTiming();
+    /**
+     * Decode one rectangle of a FramebufferUpdate, reading its payload from rfb
+     * @return false if the rectangle ends the update (LastRect or a new framebuffer size)
+     */
+    private boolean processRect(ProgressDialog pd, int rx, int ry, int rw, int rh, int encoding) throws Exception {
+        boolean queue = parallelRectDecoder != null && ParallelRectDecoder.isStateless(encoding);
+        if (!queue)
+            paintQueuedRects();
+
+        if (encoding == RfbProto.EncodingLastRect) {
+            Log.v(TAG, "rfb.EncodingLastRect");
+            return false;
+        }
 
-                            // Hide progress dialog
-                            if (pd.isShowing())
-                                pd.dismiss();
-                        }
+        if (encoding == RfbProto.EncodingNewFBSize) {
+            rfb.setFramebufferSize(rw, rh);
+            // - updateFramebufferSize();
+            Log.v(TAG, "rfb.EncodingNewFBSize");
+            return false;
+        }
 
-                        boolean fullUpdateNeeded = false;
+        if (encoding == RfbProto.EncodingXCursor || encoding == RfbProto.EncodingRichCursor) {
+            handleCursorShapeUpdate(encoding, rx, ry, rw, rh);
+            return true;
+        }
 
-                        if (pendingColorModel != null) {
-                            setPixelFormat();
-                            fullUpdateNeeded = true;
-                        }
+        if (encoding == RfbProto.EncodingPointerPos) {
+            mouseX=rx;
+            mouseY=ry;
+            if (m_ViewRenderer != null)
+                m_ViewRenderer.setCursorPosition(mouseX, mouseY, rfb.framebufferWidth, rfb.framebufferHeight);
+            return true;
+        }
 
-                        setEncodings(true);
-                        bitmapData.writeFullUpdateRequest(!fullUpdateNeeded);
+        rfb.startTiming();
 
-                        break;
+        if (queue) {
+            queueRect(rx, ry, rw, rh, encoding);
+        } else {
+            switch (encoding) {
+                case RfbProto.EncodingRaw:
+                    handleRawRect(rx, ry, rw, rh);
+                    break;
+                case RfbProto.EncodingCopyRect:
+                    handleCopyRect(rx, ry, rw, rh);
+                    break;
+                case RfbProto.EncodingRRE:
+                    handleRRERect(rx, ry, rw, rh, false);
+                    break;
+                case RfbProto.EncodingCoRRE:
+                    handleRRERect(rx, ry, rw, rh, true);
+                    break;
+                case RfbProto.EncodingHextile:
+                    handleHextileRect(rx, ry, rw, rh);
+                    break;
+                case RfbProto.EncodingZRLE:
+                    handleZRLERect(rx, ry, rw, rh, 0);
+                    break;
+                case RfbProto.EncodingZYWRLE:
+                    handleZRLERect(rx, ry, rw, rh, zywrleLevel());
+                    break;
+                case RfbProto.EncodingTRLE:
+                    handleTRLERect(rx, ry, rw, rh);
+                    break;
+                case RfbProto.EncodingZlib:
+                    handleZlibRect(rx, ry, rw, rh);
+                    break;
+                case RfbProto.EncodingTight:
+                    handleTightRect(rx, ry, rw, rh);
+                    break;
+                case RfbProto.EncodingTileCache:
+                    handleTileCacheRect(rx, ry, rw, rh);
+                    break;
+                default:
+                    Log.e(TAG, "Unknown RFB rectangle encoding " + encoding + " (0x" + Integer.toHexString(encoding) + ")");
+            }
+        }
 
-                    case RfbProto.SetColourMapEntries:
-                        throw new Exception("Can't handle SetColourMapEntries message");
+        rfb.stopTiming();
 
-                    case RfbProto.Bell:
-                        handler.post( new Runnable() {
-                            public void run() { Toast.makeText(context, "VNC Beep", Toast.LENGTH_SHORT); }
-                        });
-                        break;
+        // Hide progress dialog
+        if (pd.isShowing())
+            pd.dismiss();
+        return true;
+    }
 
-                    case RfbProto.ServerCutText:
-                        String s = rfb.readServerCutText();
-                        if (s != null && s.length() > 0) {
-                            // TODO implement cut & paste
-                        }
-                        break;
+    /**
+     * All rectangles of an update are in: ask for more updates, or start or carry on switching
+     * to a pending pixel format
+     */
+    private void finishFramebufferUpdate() throws Exception {
+        paintQueuedRects();
+        if (scratch.updateFinished()) {
+            if (parallelRectDecoder != null)
+                parallelRectDecoder.trim();
+            if (parallelTileDecoder != null)
+                parallelTileDecoder.trim();
+            if (tileCache != null)
+                tileCache.spillAll();
+        }
 
-                    case RfbProto.TextChat:
-                        // UltraVNC extension
-                        String msg = rfb.readTextChatMsg();
-                        if (msg != null && msg.length() > 0) {
-                            // TODO implement chat interface
-                        }
-                        break;
+        UpdateRequestPipeline pipeline = bitmapData.getRequestPipeline();
+        pipeline.updateFinished();
+        LatencyMonitor latency = rfb.getLatencyMonitor();
+        latency.updateCompleted(pipeline.getLastUpdateLatency(), pipeline.getLastDecodeTime());
+        latency.probe(rfb);
+
+        if (switchingColorModel == null && pendingColorModel != null) {
+            beginPixelFormatChange();
+            return;
+        }
+        if (switchingColorModel != null) {
+            // Updates may still come in the old format; ask for nothing until they stop
+            if (switchWait == SWITCH_WAIT_REQUESTS && pipeline.expireStale() == 0)
+                finishPixelFormatChange();
+            return;
+        }
+
+        requestReducedJpegAreas();
+
+        boolean changed = encodingsChanged;
+        encodingsChanged = false;
+        setEncodings(!changed);
+        // With continuous updates the server sends changes unasked
+        if (!bitmapData.isContinuousUpdates())
+            bitmapData.requestUpdates(true);
+    }
+
+    /**
+     * Read a stateless rectangle and queue it on {@link #parallelRectDecoder}
+     */
+    private void queueRect(int x, int y, int w, int h, int encoding) throws Exception {
+        if (parallelRectDecoder.mustPaintBefore(x, y, w, h))
+            paintQueuedRects();
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        parallelRectDecoder.add(rfb.is, x, y, w, h, encoding, bytesPerPixel, colorPalette, valid);
+    }
+
+    /**
+     * Paint the rectangles {@link #parallelRectDecoder} has queued, if any
+     */
+    private void paintQueuedRects() throws Exception {
+        if (parallelRectDecoder == null || parallelRectDecoder.isEmpty())
+            return;
+        parallelRectDecoder.paint(bitmapData);
+        reDraw();
+    }
+
+    /**
+     * Whether to enable continuous updates on servers that support them; set before connecting
+     */
+    public void setUseContinuousUpdates(boolean useContinuousUpdates) {
+        this.useContinuousUpdates = useContinuousUpdates;
+    }
+
+    /**
+     * Set the range the number of update requests kept in flight may adapt within; equal
+     * bounds fix it.  1 waits for each update before requesting the next.
+     */
+    public void setUpdateRequestDepth(int minDepth, int maxDepth) {
+        minUpdateRequests = minDepth;
+        maxUpdateRequests = maxDepth;
+        if (bitmapData != null)
+            bitmapData.getRequestPipeline().setDepthRange(minDepth, maxDepth);
+    }
+
+    /**
+     * Handle any server message other than FramebufferUpdate, reading its body from rfb
+     */
+    private void handleServerMessage(final Context context, int msgType) throws Exception {
+        switch (msgType) {
+            case RfbProto.SetColourMapEntries:
+                throw new Exception("Can't handle SetColourMapEntries message");
+
+            case RfbProto.Bell:
+                handler.post( new Runnable() {
+                    public void run() { Toast.makeText(context, "VNC Beep", Toast.LENGTH_SHORT); }
+                });
+                break;
 
-                    default:
-                        throw new Exception("Unknown RFB message type " + msgType);
+            case RfbProto.ServerCutText:
+                String s = rfb.readServerCutText();
+                if (s != null && s.length() > 0) {
+                    // TODO implement cut & paste
                 }
-            }
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            Log.v(TAG, "Closing VNC Connection");
-            rfb.close();
+                break;
+
+            case RfbProto.TextChat:
+                // UltraVNC extension
+                String msg = rfb.readTextChatMsg();
+                if (msg != null && msg.length() > 0) {
+                    // TODO implement chat interface
+                }
+                break;
+
+            case RfbProto.ServerFence:
+                rfb.readFence();
+                LatencyMonitor latency = rfb.getLatencyMonitor();
+                latency.setFencesSupported();
+                if ((rfb.fenceFlags & RfbProto.FenceFlagRequest) != 0) {
+                    // Messages are handled strictly in order on this thread, so every
+                    // synchronisation flag is already honoured; echo the ones we know
+                    rfb.writeFence(rfb.fenceFlags & RfbProto.FenceFlagsSupported & ~RfbProto.FenceFlagRequest,
+                            rfb.fencePayload, rfb.fenceLength);
+                } else if (switchWait == SWITCH_WAIT_FENCE && isPixelFormatFence()) {
+                    if ((rfb.fenceFlags & RfbProto.FenceFlagSyncNext) == 0)
+                        Log.w(TAG, "Server ignored SyncNext; updates may still come in the old pixel format");
+                    finishPixelFormatChange();
+                } else if (latency.fenceReply(rfb.fencePayload, rfb.fenceLength)) {
+                    bitmapData.getRequestPipeline().setRoundTripTime(latency.getRoundTripTime());
+                }
+                break;
+
+            case RfbProto.EndOfContinuousUpdates:
+                if (!continuousUpdatesSupported) {
+                    // The first one is the server's answer to the pseudo-encoding
+                    Log.v(TAG, "Server supports ContinuousUpdates");
+                    continuousUpdatesSupported = true;
+                    if (useContinuousUpdates)
+                        bitmapData.setContinuousUpdates(true);
+                } else if (switchWait == SWITCH_WAIT_END_OF_CU) {
+                    // Paused for a pixel format change
+                    continuePixelFormatChange();
+                } else if (bitmapData.isContinuousUpdates()) {
+                    // The server stopped pushing updates; go back to asking for them
+                    bitmapData.continuousUpdatesEnded();
+                    bitmapData.requestUpdates(true);
+                }
+                break;
+
+            default:
+                throw new Exception("Unknown RFB message type " + msgType);
         }
     }
 
+    /**
+     * @return True if the fence just read answers the one sent ahead of SetPixelFormat
+     */
+    private boolean isPixelFormatFence() {
+        if (rfb.fenceLength != PIXEL_FORMAT_FENCE.length)
+            return false;
+        for (int i = 0; i < PIXEL_FORMAT_FENCE.length; i++)
+            if (rfb.fencePayload[i] != PIXEL_FORMAT_FENCE[i])
+                return false;
+        return true;
+    }
+
     void handleRawRect(int x, int y, int w, int h) throws IOException {
         handleRawRect(x, y, w, h, true);
     }
 
-    byte[] handleRawRectBuffer = new byte[128];
     void handleRawRect(int x, int y, int w, int h, boolean paint) throws IOException {
         boolean valid=bitmapData.validDraw(x, y, w, h);
-        int[] pixels=bitmapData.bitmapPixels;
-        if (bytesPerPixel == 1) {
-            // 1 byte per pixel. Use palette lookup table.
-            if (w > handleRawRectBuffer.length) {
-                handleRawRectBuffer = new byte[w];
-            }
-            int i, offset;
-            for (int dy = y; dy < y + h; dy++) {
-                rfb.readFully(handleRawRectBuffer, 0, w);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    pixels[offset + i] = colorPalette[0xFF & handleRawRectBuffer[i]];
-                }
-            }
-        } else {
-            // 4 bytes per pixel (argb) 24-bit color
-
-            final int l = w * 4;
-            if (l>handleRawRectBuffer.length) {
-                handleRawRectBuffer = new byte[l];
-            }
-            int i, offset;
-            for (int dy = y; dy < y + h; dy++) {
-                rfb.readFully(handleRawRectBuffer, 0, l);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    final int idx = i*4;
-                    pixels[offset + i] = // 0xFF << 24 |
-                            (handleRawRectBuffer[idx + 2] & 0xff) << 16 | (handleRawRectBuffer[idx + 1] & 0xff) << 8 | (handleRawRectBuffer[idx] & 0xff);
-                }
-            }
+        int rowBytes = w * bytesPerPixel;
+        int batchRows = pixelBatchRows(rowBytes);
+        byte[] buf = pixelBatch.array();
+        for (int by = y; by < y + h; by += batchRows) {
+            int rows = Math.min(y + h - by, batchRows);
+            rfb.readFully(buf, 0, rows * rowBytes);
+            if (valid)
+                putPixelBatch(x, by, w, rows);
         }
 
         if ( ! valid)
@@ -478,6 +1023,43 @@ public class VncCanvas extends ImageView {
 
     private boolean showDesktopInfo = true;
     private boolean repaintsEnabled = true;
+
+    // Where the view was last drawn from, so that only the framebuffer tiles changed since
+    // are drawn again while neither scroll nor zoom changes
+    private final float[] drawnMatrix = new float[9];
+    private final float[] imageMatrix = new float[9];
+    private int drawnScrollX;
+    private int drawnScrollY;
+    private AbstractBitmapData drawnData;
+    private final Rect dirtyRect = new Rect();
+    private final RectF dirtyRectF = new RectF();
+
+    /**
+     * @return The part of the view to draw again, empty if none, or null for all of it
+     */
+    private Rect dirtyViewRect() {
+        AbstractBitmapData data = bitmapData;
+        boolean changed = data != null && data.takeDirty(dirtyRect);
+        Matrix matrix = getImageMatrix();
+        matrix.getValues(imageMatrix);
+        if (data != drawnData || getScrollX() != drawnScrollX || getScrollY() != drawnScrollY
+                || !Arrays.equals(imageMatrix, drawnMatrix)) {
+            drawnData = data;
+            drawnScrollX = getScrollX();
+            drawnScrollY = getScrollY();
+            System.arraycopy(imageMatrix, 0, drawnMatrix, 0, imageMatrix.length);
+            return null;
+        }
+        if (!changed) {
+            dirtyRect.setEmpty();
+            return dirtyRect;
+        }
+        dirtyRectF.set(dirtyRect);
+        matrix.mapRect(dirtyRectF);
+        dirtyRectF.offset(-drawnScrollX, -drawnScrollY);
+        dirtyRectF.roundOut(dirtyRect);
+        return dirtyRect;
+    }
     private Runnable reDraw = new Runnable() {
         public void run() {
             if (showDesktopInfo) {
@@ -526,6 +1108,10 @@ public class VncCanvas extends ImageView {
                 return "ZLIB";
             case RfbProto.EncodingZRLE:
                 return "ZRLE";
+            case RfbProto.EncodingTRLE:
+                return "TRLE";
+            case RfbProto.EncodingZYWRLE:
+                return "ZYWRLE";
         }
         return "";
     }
@@ -536,555 +1122,778 @@ public class VncCanvas extends ImageView {
     }
 
     final Paint handleCopyRectPaint = new Paint();
+    private final Rect handleCopyRectSrc = new Rect();
+    private final Rect handleCopyRectDest = new Rect();
     private void handleCopyRect(int x, int y, int w, int h) throws IOException {
-
-        /**
-         * This does not work properly yet.
-         */
-
         rfb.readCopyRect();
-        if ( ! bitmapData.validDraw(x, y, w, h))
-            return;
-        // Source Coordinates
-        int leftSrc = rfb.copyRectSrcX;
-        int topSrc = rfb.copyRectSrcY;
-        int rightSrc = topSrc + w;
-        int bottomSrc = topSrc + h;
+        int srcX = rfb.copyRectSrcX;
+        int srcY = rfb.copyRectSrcY;
+        if (srcX < 0 || srcY < 0 || srcX + w > rfb.framebufferWidth || srcY + h > rfb.framebufferHeight)
+            throw new IOException("CopyRect source outside the framebuffer: " + srcX + "," + srcY + " " + w + "x" + h);
 
-        // Change
-        int dx = x - rfb.copyRectSrcX;
-        int dy = y - rfb.copyRectSrcY;
+        handleCopyRectSrc.set(srcX, srcY, srcX + w, srcY + h);
+        handleCopyRectDest.set(x, y, x + w, y + h);
+        bitmapData.copyRect(handleCopyRectSrc, handleCopyRectDest, handleCopyRectPaint);
 
-        // Destination Coordinates
-        int leftDest = leftSrc + dx;
-        int topDest = topSrc + dy;
-        int rightDest = rightSrc + dx;
-        int bottomDest = bottomSrc + dy;
+        reDraw();
+    }
 
-        bitmapData.copyRect(new Rect(leftSrc, topSrc, rightSrc, bottomSrc), new Rect(leftDest, topDest, rightDest, bottomDest), handleCopyRectPaint);
+    //
+    // Handle a TileCache rectangle: keep what the rectangle already holds under the key, or
+    // draw what is kept under it.  A tile that isn't there, because it was forgotten or the
+    // cache was cleared since the server stored it, is asked for again as pixels.
+    //
 
-        reDraw();
+    private void handleTileCacheRect(int x, int y, int w, int h) throws IOException {
+        int op = rfb.is.readUnsignedByte();
+        long key = rfb.is.readLong();
+        if (tileCache == null || ! bitmapData.validDraw(x, y, w, h))
+            return;
+        int format = TileCache.format(colorModel, indexedFramebuffer);
+        if (op == RfbProto.TileCacheStore) {
+            tileCache.store(key, format, bitmapData, x, y, w, h);
+        } else if (op == RfbProto.TileCacheRestore) {
+            if (tileCache.restore(key, format, bitmapData, x, y, w, h)) {
+                bitmapData.updateBitmap(x, y, w, h);
+                reDraw();
+            } else {
+                bitmapData.writeRectUpdateRequest(x, y, w, h);
+            }
+        } else {
+            throw new IOException("TileCache: unknown operation " + op);
+        }
     }
 
     byte[] bg_buf = new byte[4];
-    byte[] rre_buf = new byte[128];
+    private final RreDecoder rreDecoder = new RreDecoder();
+
     //
-    // Handle an RRE-encoded rectangle.
+    // Handle an RRE or CoRRE-encoded rectangle.
     //
-    private void handleRRERect(int x, int y, int w, int h) throws IOException {
+    private void handleRRERect(int x, int y, int w, int h, boolean compact) throws IOException {
         boolean valid=bitmapData.validDraw(x, y, w, h);
         int nSubrects = rfb.is.readInt();
+        if (nSubrects < 0)
+            throw new IOException("RRE decoder: bad number of subrectangles " + nSubrects);
 
-        rfb.readFully(bg_buf, 0, bytesPerPixel);
-        int pixel;
-        if (bytesPerPixel == 1) {
-            pixel = colorPalette[0xFF & bg_buf[0]];
-        } else {
-            pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
+        int len = RreDecoder.dataLength(nSubrects, compact, bytesPerPixel);
+        int start = scratch.reserveBytes(len);
+        try {
+            byte[] buf = scratch.bytes();
+            rfb.readFully(buf, start, len);
+            if ( ! valid)
+                return;
+
+            rreDecoder.setPixelFormat(bytesPerPixel, colorPalette);
+            rreDecoder.paint(bitmapData, buf, start, nSubrects, x, y, w, h, compact);
+        } finally {
+            scratch.releaseBytes();
         }
-        handleRREPaint.setColor(pixel);
-        if ( valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
+        bitmapData.updateBitmap(x, y, w, h);
+        reDraw();
+    }
+
+    //
+    // Handle a cursor shape update.  The cursor is drawn by the view renderer over the
+    // desktop, so neither a new shape nor a move touches the framebuffer.
+    //
 
-        int len = nSubrects * (bytesPerPixel + 8);
-        if (len > rre_buf.length)
-            rre_buf = new byte[len];
+    private void handleCursorShapeUpdate(int encoding, int hotX, int hotY, int w, int h) throws IOException {
+        int len = CursorShape.dataLength(encoding, w, h, bytesPerPixel);
+        int start = scratch.reserveBytes(len);
+        CursorShape cursor;
+        try {
+            byte[] buf = scratch.bytes();
+            rfb.readFully(buf, start, len);
+            if (encoding == RfbProto.EncodingXCursor)
+                cursor = CursorShape.decodeXCursor(buf, start, w, h, hotX, hotY);
+            else
+                cursor = CursorShape.decodeRichCursor(buf, start, w, h, hotX, hotY, bytesPerPixel, colorModel.palette());
+        } finally {
+            scratch.releaseBytes();
+        }
 
-        rfb.readFully(rre_buf, 0, len);
-        if ( ! valid)
+        if (m_ViewRenderer == null)
             return;
+        if (cursor.isEmpty()) {
+            m_ViewRenderer.setCursorShape(null, 0, 0, 0, 0);
+        } else {
+            m_ViewRenderer.setCursorShape(cursor.pixels, cursor.width, cursor.height, cursor.hotX, cursor.hotY);
+            m_ViewRenderer.setCursorPosition(mouseX, mouseY, rfb.framebufferWidth, rfb.framebufferHeight);
+        }
+    }
 
-        int sx, sy, sw, sh;
+    //
+    // Handle a Hextile-encoded rectangle.  Each tile is expanded into the decoder's scratch
+    // tile and copied into the framebuffer once; the bitmap is checked and updated once for
+    // the whole rectangle.
+    //
 
-        int i = 0;
-        for (int j = 0; j < nSubrects; j++) {
-            if (bytesPerPixel == 1) {
-                pixel = colorPalette[0xFF & rre_buf[i++]];
-            } else {
-                pixel = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-            }
-            sx = x + ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
-            sy = y + ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
-            sw = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
-            sh = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
+    private final HextileDecoder hextileDecoder = new HextileDecoder();
+    private final byte[] hextileTileBuf = new byte[HextileDecoder.MAX_TILE_BYTES];
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+    private void handleHextileRect(int x, int y, int w, int h) throws IOException {
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        hextileDecoder.setPixelFormat(bytesPerPixel, colorPalette);
+        hextileDecoder.startRect();
+
+        for (int ty = y; ty < y + h; ty += HextileDecoder.TILE_SIZE) {
+            int th = Math.min(y + h - ty, HextileDecoder.TILE_SIZE);
+            for (int tx = x; tx < x + w; tx += HextileDecoder.TILE_SIZE) {
+                int tw = Math.min(x + w - tx, HextileDecoder.TILE_SIZE);
+                HextileDecoder.readTile(rfb.is, hextileTileBuf, 0, tw, th, bytesPerPixel);
+                if (valid)
+                    hextileDecoder.putTile(bitmapData, tx, ty, tw, th, hextileDecoder.decodeTile(hextileTileBuf, 0, tw, th));
+            }
         }
 
+        if ( ! valid)
+            return;
+
+        bitmapData.updateBitmap(x, y, w, h);
         reDraw();
     }
 
-    private void handleCoRRERect(int x, int y, int w, int h) throws IOException {
-        boolean valid=bitmapData.validDraw(x, y, w, h);
-        int nSubrects = rfb.is.readInt();
+    //
+    // Handle a ZRLE-encoded rectangle.
+    //
 
-        rfb.readFully(bg_buf, 0, bytesPerPixel);
-        int pixel;
-        if (bytesPerPixel == 1) {
-            pixel = colorPalette[0xFF & bg_buf[0]];
+    private void handleZRLERect(int x, int y, int w, int h, int zywrleLevel) throws Exception {
+
+        if (zrleInStream == null)
+            zrleInStream = new ZlibInStream();
+
+        int nBytes = rfb.is.readInt();
+        if (nBytes > 64 * 1024 * 1024)
+            throw new Exception("ZRLE decoder: illegal compressed data size");
+
+        // Inflate as the compressed data arrives rather than waiting for all of it
+        if (rleSocketStream == null)
+            rleSocketStream = new JavaInStream();
+        rleSocketStream.setUnderlying(rfb.is, nBytes);
+        zrleInStream.setUnderlying(rleSocketStream, nBytes);
+
+        if (parallelTileDecoder != null && (w > 64 || h > 64)) {
+            boolean valid = bitmapData.validDraw(x, y, w, h);
+            parallelTileDecoder.decode(zrleInStream, x, y, w, h, zywrleLevel, bytesPerPixel, colorPalette, bitmapData, valid);
+            if (valid)
+                bitmapData.updateBitmap(x, y, w, h);
         } else {
-            pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
+            handleRleTiles(zrleInStream, x, y, w, h, 64, false, zywrleLevel);
         }
-        handleRREPaint.setColor(pixel);
-        if ( valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
 
-        int len = nSubrects * (bytesPerPixel + 8);
-        if (len > rre_buf.length)
-            rre_buf = new byte[len];
+        // Consume what the tiles didn't need, such as the end of a zlib flush
+        zrleInStream.reset();
 
-        rfb.readFully(rre_buf, 0, len);
-        if ( ! valid)
-            return;
+        reDraw();
+    }
 
-        int sx, sy, sw, sh;
-        int i = 0;
+    //
+    // Handle a TRLE-encoded rectangle: ZRLE's tiles at 16x16, uncompressed.
+    //
 
-        for (int j = 0; j < nSubrects; j++) {
-            if (bytesPerPixel == 1) {
-                pixel = colorPalette[0xFF & rre_buf[i++]];
-            } else {
-                pixel = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-            }
-            sx = x + (rre_buf[i++] & 0xFF);
-            sy = y + (rre_buf[i++] & 0xFF);
-            sw = rre_buf[i++] & 0xFF;
-            sh = rre_buf[i++] & 0xFF;
+    private void handleTRLERect(int x, int y, int w, int h) throws Exception {
+        if (rleSocketStream == null)
+            rleSocketStream = new JavaInStream();
+        rleSocketStream.setUnderlying(rfb.is);
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
-        }
+        handleRleTiles(rleSocketStream, x, y, w, h, 16, true, 0);
 
         reDraw();
     }
 
     //
-    // Handle a Hextile-encoded rectangle.
+    // Wavelet level of ZYWRLE rectangles; the server derives it from the quality setting.
+    // There is no 8-bit variant, and ZYWRLE isn't asked for in 16-bit colour.
     //
+    private int zywrleLevel() {
+        return bytesPerPixel != 4 ? 0 : Zywrle.levelForQuality(jpegQuality);
+    }
 
-    // These colors should be kept between handleHextileSubrect() calls.
-    private int hextile_bg, hextile_fg;
+    //
+    // Decode the tiles shared by ZRLE, TRLE and ZYWRLE, one after another.
+    //
+    private void handleRleTiles(InStream is, int x, int y, int w, int h, int tileSize,
+                                boolean trle, int zywrleLevel) throws Exception {
 
-    private void handleHextileRect(int x, int y, int w, int h) throws IOException {
+        boolean valid=bitmapData.validDraw(x, y, w, h);
 
-        hextile_bg = Color.BLACK;
-        hextile_fg = Color.BLACK;
+        if (rleTileDecoder == null)
+            rleTileDecoder = new RleTileDecoder();
+        rleTileDecoder.setPixelFormat(bytesPerPixel, colorPalette);
 
-        for (int ty = y; ty < y + h; ty += 16) {
-            int th = 16;
-            if (y + h - ty < 16)
-                th = y + h - ty;
+        for (int ty = y; ty < y + h; ty += tileSize) {
 
-            for (int tx = x; tx < x + w; tx += 16) {
-                int tw = 16;
-                if (x + w - tx < 16)
-                    tw = x + w - tx;
+            int th = Math.min(y + h - ty, tileSize);
 
-                handleHextileSubrect(tx, ty, tw, th);
-            }
+            for (int tx = x; tx < x + w; tx += tileSize) {
 
-            // Finished with a row of tiles, now let's show it.
-            reDraw();
+                int tw = Math.min(x + w - tx, tileSize);
+
+                int pix = rleTileDecoder.decodeTile(is, tw, th, trle, zywrleLevel);
+                if ( ! valid)
+                    continue;
+                if (pix != RleTileDecoder.EXPANDED) {
+                    bitmapData.fillRect(tx, ty, tw, th, 0xFF000000 | pix);
+                    bitmapData.updateBitmap(tx, ty, tw, th);
+                } else {
+                    handleUpdatedZrleTile(tx, ty, tw, th);
+                }
+            }
         }
     }
 
     //
-    // Handle one tile in the Hextile-encoded data.
+    // Handle a Zlib-encoded rectangle.
     //
 
-    Paint handleHextileSubrectPaint = new Paint();
-    byte[] backgroundColorBuffer = new byte[4];
-    private void handleHextileSubrect(int tx, int ty, int tw, int th) throws IOException {
-
-        int subencoding = rfb.is.readUnsignedByte();
+    private void handleZlibRect(int x, int y, int w, int h) throws Exception {
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        zlibInputLeft = rfb.is.readInt();
 
-        // Is it a raw-encoded sub-rectangle?
-        if ((subencoding & RfbProto.HextileRaw) != 0) {
-            handleRawRect(tx, ty, tw, th, false);
-            return;
+        if (zlibBuf == null)
+            zlibBuf = new byte[ZLIB_INPUT_CHUNK];
+        if (zlibInflater == null) {
+            zlibInflater = new Inflater();
         }
 
-        boolean valid=bitmapData.validDraw(tx, ty, tw, th);
-        // Read and draw the background if specified.
-        if (bytesPerPixel > backgroundColorBuffer.length) {
-            throw new RuntimeException("impossible colordepth");
+        int rowBytes = w * bytesPerPixel;
+        int batchRows = pixelBatchRows(rowBytes);
+        byte[] inflated = pixelBatch.array();
+        for (int by = y; by < y + h; by += batchRows) {
+            int rows = Math.min(y + h - by, batchRows);
+            inflateZlib(inflated, rows * rowBytes);
+            if (valid)
+                putPixelBatch(x, by, w, rows);
         }
-        if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
-            rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-            if (bytesPerPixel == 1) {
-                hextile_bg = colorPalette[0xFF & backgroundColorBuffer[0]];
-            } else {
-                hextile_bg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-            }
-        }
-        handleHextileSubrectPaint.setColor(hextile_bg);
-        handleHextileSubrectPaint.setStyle(Paint.Style.FILL);
-        if ( valid )
-            bitmapData.drawRect(tx, ty, tw, th, handleHextileSubrectPaint);
 
-        // Read the foreground color if specified.
-        if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
-            rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-            if (bytesPerPixel == 1) {
-                hextile_fg = colorPalette[0xFF & backgroundColorBuffer[0]];
-            } else {
-                hextile_fg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-            }
-        }
+        // Consume what the pixels didn't need, such as the end of a zlib flush
+        finishZlibInput(inflated);
 
-        // Done with this tile if there is no sub-rectangles.
-        if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+        if ( ! valid)
             return;
+        bitmapData.updateBitmap(x, y, w, h);
 
-        int nSubrects = rfb.is.readUnsignedByte();
-        int bufsize = nSubrects * 2;
-        if ((subencoding & RfbProto.HextileSubrectsColoured) != 0) {
-            bufsize += nSubrects * bytesPerPixel;
-        }
-        if (rre_buf.length < bufsize)
-            rre_buf = new byte[bufsize];
-        rfb.readFully(rre_buf, 0, bufsize);
-
-        int b1, b2, sx, sy, sw, sh;
-        int i = 0;
-        if ((subencoding & RfbProto.HextileSubrectsColoured) == 0) {
-
-            // Sub-rectangles are all of the same color.
-            handleHextileSubrectPaint.setColor(hextile_fg);
-            for (int j = 0; j < nSubrects; j++) {
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                if ( valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
-            }
-        } else if (bytesPerPixel == 1) {
-
-            // BGR233 (8-bit color) version for colored sub-rectangles.
-            for (int j = 0; j < nSubrects; j++) {
-                hextile_fg = colorPalette[0xFF & rre_buf[i++]];
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
-                if ( valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
-            }
+        reDraw();
+    }
 
-        } else {
+    //
+    // Rows per batch of rowBytes each, making sure pixelBatch holds at least one row
+    //
+    private int pixelBatchRows(int rowBytes) {
+        int batchRows = Math.max(1, PIXEL_BATCH_BYTES / Math.max(rowBytes, 1));
+        if (pixelBatch == null || pixelBatch.capacity() < batchRows * rowBytes) {
+            pixelBatch = ByteBuffer.allocate(Math.max(batchRows * rowBytes, PIXEL_BATCH_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            pixelBatchInts = pixelBatch.asIntBuffer();
+        }
+        return batchRows;
+    }
 
-            // Full-color (24-bit) version for colored sub-rectangles.
-            for (int j = 0; j < nSubrects; j++) {
-                hextile_fg = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
-                if ( valid )
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+    //
+    // Copy rows of pixels staged in pixelBatch into the framebuffer
+    //
+    private void putPixelBatch(int x, int y, int w, int rows) {
+        if (bytesPerPixel == 1) {
+            // 1 byte per pixel. Use palette lookup table.
+            byte[] buf = pixelBatch.array();
+            int[] pixels = rowArray(w);
+            int p = 0;
+            for (int dy = y; dy < y + rows; dy++) {
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int i = 0; i < w; i++) {
+                    pixels[offset + i] = colorPalette[0xFF & buf[p++]];
+                }
+                bitmapData.rowWritten(pixels, x, dy, w);
             }
-
+        } else if (bytesPerPixel == 2) {
+            // 2 bytes per pixel, looked up as a little-endian short
+            byte[] buf = pixelBatch.array();
+            int[] pixels = rowArray(w);
+            int p = 0;
+            for (int dy = y; dy < y + rows; dy++) {
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int i = 0; i < w; i++, p += 2) {
+                    pixels[offset + i] = colorPalette[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+                }
+                bitmapData.rowWritten(pixels, x, dy, w);
+            }
+        } else {
+            // The pixels are already the framebuffer's ints, apart from the padding byte,
+            // which is drawn without alpha
+            pixelBatchInts.clear();
+            bitmapData.putRect(pixelBatchInts, x, y, w, rows);
         }
     }
 
     //
-    // Handle a ZRLE-encoded rectangle.
+    // Array to write rows of w pixels into one pixel at a time, for AbstractBitmapData's
+    // rowOffset and rowWritten
     //
+    private int[] rowArray(int w) {
+        if (bitmapData.bitmapPixels == null && pixelRow.length < w)
+            pixelRow = new int[w];
+        return bitmapData.rowArray(pixelRow);
+    }
 
-    Paint handleZRLERectPaint = new Paint();
-    int[] handleZRLERectPalette = new int[128];
-    private void handleZRLERect(int x, int y, int w, int h) throws Exception {
-
-        if (zrleInStream == null)
-            zrleInStream = new ZlibInStream();
-
-        int nBytes = rfb.is.readInt();
-        if (nBytes > 64 * 1024 * 1024)
-            throw new Exception("ZRLE decoder: illegal compressed data size");
-
-        if (zrleBuf == null || zrleBuf.length < nBytes) {
-            zrleBuf = new byte[nBytes+4096];
+    // Inflate exactly len bytes of the current Zlib rectangle, reading its data as needed
+    private void inflateZlib(byte[] dst, int len) throws Exception {
+        int off = 0;
+        while (off < len) {
+            int n = zlibInflater.inflate(dst, off, len - off);
+            off += n;
+            if (n > 0)
+                continue;
+            if (!zlibInflater.needsInput())
+                throw new Exception("Zlib decoder: unexpected end of stream");
+            if (zlibInputLeft == 0)
+                throw new Exception("Zlib decoder: rectangle data too short");
+            readZlibInput();
         }
+    }
 
-        rfb.readFully(zrleBuf, 0, nBytes);
+    private void readZlibInput() throws IOException {
+        int n = Math.min(zlibInputLeft, zlibBuf.length);
+        rfb.readFully(zlibBuf, 0, n);
+        zlibInputLeft -= n;
+        zlibInflater.setInput(zlibBuf, 0, n);
+    }
 
-        zrleInStream.setUnderlying(new MemInStream(zrleBuf, 0, nBytes), nBytes);
+    private void finishZlibInput(byte[] scratch) throws Exception {
+        for (;;) {
+            while (zlibInflater.getRemaining() > 0 && zlibInflater.inflate(scratch) > 0) {
+            }
+            if (zlibInputLeft == 0)
+                return;
+            readZlibInput();
+        }
+    }
 
-        boolean valid=bitmapData.validDraw(x, y, w, h);
+    //
+    // Handle a Tight-encoded rectangle.
+    //
 
-        for (int ty = y; ty < y + h; ty += 64) {
+    int[] handleTightRectPalette = new int[256];
+    byte[] handleTightRectPaletteBuffer = new byte[256 * 3];
+    private void handleTightRect(int x, int y, int w, int h) throws Exception {
 
-            int th = Math.min(y + h - ty, 64);
+        int comp_ctl = rfb.is.readUnsignedByte();
 
-            for (int tx = x; tx < x + w; tx += 64) {
+        // Flush zlib streams if we are told by the server to do so.
+        for (int stream_id = 0; stream_id < 4; stream_id++) {
+            if ((comp_ctl & 1) != 0 && tightInflaters[stream_id] != null) {
+                tightInflaters[stream_id].reset();
+            }
+            comp_ctl >>= 1;
+        }
 
-                int tw = Math.min(x + w - tx, 64);
+        // Check correctness of subencoding value.
+        if (comp_ctl > RfbProto.TightMaxSubencoding) {
+            throw new Exception("Incorrect tight subencoding: " + comp_ctl);
+        }
 
-                int mode = zrleInStream.readU8();
-                boolean rle = (mode & 128) != 0;
-                int palSize = mode & 127;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        // In 24-bit colour a Tight pixel is 3 bytes: red, green, blue
+        int tpixelSize = (bytesPerPixel == 4) ? 3 : bytesPerPixel;
+
+        // Handle solid-color rectangles.
+        if (comp_ctl == RfbProto.TightFill) {
+            rfb.readFully(bg_buf, 0, tpixelSize);
+            if ( valid ) {
+                bitmapData.fillRect(x, y, w, h, 0xFF000000 | tightPixel(bg_buf, 0));
+                bitmapData.updateBitmap(x, y, w, h);
+                reDraw();
+            }
+            return;
+        }
 
-                readZrlePalette(handleZRLERectPalette, palSize);
+        if (comp_ctl == RfbProto.TightJpeg) {
+            int jpegDataLen = rfb.readCompactLen();
+            int start = scratch.reserveBytes(jpegDataLen);
+            try {
+                byte[] data = scratch.bytes();
+                rfb.readFully(data, start, jpegDataLen);
+                if (valid)
+                    handleTightJpeg(x, y, w, h, data, start, jpegDataLen);
+            } finally {
+                scratch.releaseBytes();
+            }
+            return;
+        }
 
-                if (palSize == 1) {
-                    int pix = handleZRLERectPalette[0];
-                    int c = (bytesPerPixel == 1) ? colorPalette[0xFF & pix] : (0xFF000000 | pix);
-                    handleZRLERectPaint.setColor(c);
-                    handleZRLERectPaint.setStyle(Paint.Style.FILL);
-                    if ( valid)
-                        bitmapData.drawRect(tx, ty, tw, th, handleZRLERectPaint);
-                    continue;
+        // Read filter id and parameters.
+        int numColors = 0, rowSize = w * tpixelSize;
+        boolean useGradient = false;
+        if ((comp_ctl & RfbProto.TightExplicitFilter) != 0) {
+            int filter_id = rfb.is.readUnsignedByte();
+            if (filter_id == RfbProto.TightFilterPalette) {
+                numColors = rfb.is.readUnsignedByte() + 1;
+                rfb.readFully(handleTightRectPaletteBuffer, 0, numColors * tpixelSize);
+                for (int i = 0; i < numColors; i++) {
+                    handleTightRectPalette[i] = tightPixel(handleTightRectPaletteBuffer, i * tpixelSize);
                 }
-
-                if (!rle) {
-                    if (palSize == 0) {
-                        readZrleRawPixels(tw, th);
-                    } else {
-                        readZrlePackedPixels(tw, th, handleZRLERectPalette, palSize);
-                    }
-                } else {
-                    if (palSize == 0) {
-                        readZrlePlainRLEPixels(tw, th);
-                    } else {
-                        readZrlePackedRLEPixels(tw, th, handleZRLERectPalette);
-                    }
+                rowSize = (numColors == 2) ? (w + 7) / 8 : w;
+            } else if (filter_id == RfbProto.TightFilterGradient) {
+                if (bytesPerPixel == 1) {
+                    throw new Exception("Tight gradient filter needs 16-bit or 24-bit colour");
                 }
-                if ( valid )
-                    handleUpdatedZrleTile(tx, ty, tw, th);
+                useGradient = true;
+            } else if (filter_id != RfbProto.TightFilterCopy) {
+                throw new Exception("Incorrect tight filter id: " + filter_id);
             }
         }
 
-        zrleInStream.reset();
+        int dataSize = h * rowSize;
+        int start = scratch.reserveBytes(dataSize);
+        try {
+            readTightData(comp_ctl & 0x03, start, dataSize);
+            if (valid)
+                paintTightData(x, y, w, h, scratch.bytes(), start, numColors, rowSize, useGradient);
+        } finally {
+            scratch.releaseBytes();
+        }
+        if ( ! valid)
+            return;
+
+        bitmapData.updateBitmap(x, y, w, h);
 
         reDraw();
     }
 
     //
-    // Handle a Zlib-encoded rectangle.
+    // Expand the pixel data of a Tight rectangle, read from buf at start, into the framebuffer.
     //
 
-    byte[] handleZlibRectBuffer = new byte[128];
-    private void handleZlibRect(int x, int y, int w, int h) throws Exception {
-        boolean valid = bitmapData.validDraw(x, y, w, h);
-        int nBytes = rfb.is.readInt();
-
-        if (zlibBuf == null || zlibBuf.length < nBytes) {
-            zlibBuf = new byte[nBytes*2];
-        }
-
-        rfb.readFully(zlibBuf, 0, nBytes);
-
-        if (zlibInflater == null) {
-            zlibInflater = new Inflater();
-        }
-        zlibInflater.setInput(zlibBuf, 0, nBytes);
-
-        int[] pixels=bitmapData.bitmapPixels;
-
-        if (bytesPerPixel == 1) {
-            // 1 byte per pixel. Use palette lookup table.
-            if (w > handleZlibRectBuffer.length) {
-                handleZlibRectBuffer = new byte[w];
+    private void paintTightData(int x, int y, int w, int h, byte[] buf, int start, int numColors, int rowSize, boolean useGradient) {
+        int[] pixels = rowArray(w);
+        int i = start;
+        if (numColors == 2) {
+            // Two colours, one bit per pixel, rows padded to whole bytes
+            int fg = handleTightRectPalette[1], bg = handleTightRectPalette[0];
+            for (int dy = y; dy < y + h; dy++) {
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int dx = 0; dx < w; dx++) {
+                    pixels[offset + dx] = ((buf[i + (dx >> 3)] >> (7 - (dx & 7))) & 1) != 0 ? fg : bg;
+                }
+                bitmapData.rowWritten(pixels, x, dy, w);
+                i += rowSize;
             }
-            int i, offset;
+        } else if (numColors != 0) {
             for (int dy = y; dy < y + h; dy++) {
-                zlibInflater.inflate(handleZlibRectBuffer,  0, w);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    pixels[offset + i] = colorPalette[0xFF & handleZlibRectBuffer[i]];
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int dx = 0; dx < w; dx++) {
+                    pixels[offset + dx] = handleTightRectPalette[buf[i++] & 0xFF];
                 }
+                bitmapData.rowWritten(pixels, x, dy, w);
             }
-        } else {
-            // 24-bit color (ARGB) 4 bytes per pixel.
-            final int l = w*4;
-            if (l > handleZlibRectBuffer.length) {
-                handleZlibRectBuffer = new byte[l];
+        } else if (useGradient) {
+            if (bytesPerPixel == 2)
+                decodeTightGradient16(x, y, w, h, buf, start);
+            else
+                decodeTightGradient(x, y, w, h, buf, start);
+        } else if (bytesPerPixel == 1) {
+            for (int dy = y; dy < y + h; dy++) {
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int dx = 0; dx < w; dx++) {
+                    pixels[offset + dx] = colorPalette[buf[i++] & 0xFF];
+                }
+                bitmapData.rowWritten(pixels, x, dy, w);
             }
-            int i, offset;
+        } else if (bytesPerPixel == 2) {
             for (int dy = y; dy < y + h; dy++) {
-                zlibInflater.inflate(handleZlibRectBuffer, 0, l);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    final int idx = i*4;
-                    pixels[offset + i] = (handleZlibRectBuffer[idx + 2] & 0xFF) << 16 | (handleZlibRectBuffer[idx + 1] & 0xFF) << 8 | (handleZlibRectBuffer[idx] & 0xFF);
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int dx = 0; dx < w; dx++, i += 2) {
+                    pixels[offset + dx] = colorPalette[(buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8];
+                }
+                bitmapData.rowWritten(pixels, x, dy, w);
+            }
+        } else {
+            for (int dy = y; dy < y + h; dy++) {
+                int offset = bitmapData.rowOffset(pixels, x, dy);
+                for (int dx = 0; dx < w; dx++, i += 3) {
+                    pixels[offset + dx] = (buf[i] & 0xFF) << 16 | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF);
                 }
+                bitmapData.rowWritten(pixels, x, dy, w);
             }
         }
-        if ( ! valid)
+    }
+
+    //
+    // Read the pixel data of a Tight rectangle into the scratch slice at start: sent as is
+    // when shorter than TightMinToCompress, otherwise compressed on one of the four zlib
+    // streams.
+    //
+
+    private void readTightData(int streamId, int start, int dataSize) throws Exception {
+        if (dataSize < RfbProto.TightMinToCompress) {
+            rfb.readFully(scratch.bytes(), start, dataSize);
             return;
-        bitmapData.updateBitmap(x, y, w, h);
+        }
 
-        reDraw();
-    }
+        int zlibDataLen = rfb.readCompactLen();
+        int zlibStart = scratch.reserveBytes(zlibDataLen);
+        try {
+            byte[] buf = scratch.bytes();
+            rfb.readFully(buf, zlibStart, zlibDataLen);
 
-    private void readZrlePalette(int[] palette, int palSize) throws Exception {
-        readPixels(zrleInStream, palette, palSize);
+            if (tightInflaters[streamId] == null) {
+                tightInflaters[streamId] = new Inflater();
+            }
+            Inflater inflater = tightInflaters[streamId];
+            inflater.setInput(buf, zlibStart, zlibDataLen);
+            int n = 0;
+            while (n < dataSize) {
+                int r = inflater.inflate(buf, start + n, dataSize - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished()))
+                    throw new Exception("Tight decoder: compressed data ended early");
+                n += r;
+            }
+        } finally {
+            scratch.releaseBytes();
+        }
     }
 
-    private void readZrleRawPixels(int tw, int th) throws Exception {
-        int len = tw * th;
-        if (zrleTilePixels == null || len > zrleTilePixels.length)
-            zrleTilePixels = new int[len];
-        readPixels(zrleInStream, zrleTilePixels, tw * th); // /
+    private int tightPixel(byte[] buf, int i) {
+        if (bytesPerPixel == 1)
+            return colorPalette[0xFF & buf[i]];
+        if (bytesPerPixel == 2)
+            return colorPalette[(buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8];
+        return (buf[i] & 0xFF) << 16 | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF);
     }
 
-    private void readZrlePackedPixels(int tw, int th, int[] palette, int palSize) throws Exception {
-
-        int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
-        int ptr = 0;
-        int len = tw * th;
-        if (zrleTilePixels == null || len > zrleTilePixels.length)
-            zrleTilePixels = new int[len];
-
-        for (int i = 0; i < th; i++) {
-            int eol = ptr + tw;
-            int b = 0;
-            int nbits = 0;
+    //
+    // Undo the gradient filter: each byte is the difference from the
+    // estimate up + left - upper left, per colour component, clamped to
+    // 0..255. The row above is kept as decoded.
+    //
 
-            while (ptr < eol) {
-                if (nbits == 0) {
-                    b = zrleInStream.readU8();
-                    nbits = 8;
-                }
-                nbits -= bppp;
-                int index = (b >> nbits) & ((1 << bppp) - 1) & 127;
-                if (bytesPerPixel == 1) {
-                    if (index >= colorPalette.length)
-                        Log.e(TAG, "zrlePlainRLEPixels palette lookup out of bounds " + index + " (0x" + Integer.toHexString(index) + ")");
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & palette[index]];
-                } else {
-                    zrleTilePixels[ptr++] = palette[index];
+    private int[] tightGradientRow = new int[0];
+    private void decodeTightGradient(int x, int y, int w, int h, byte[] buf, int start) {
+        if (tightGradientRow.length < w)
+            tightGradientRow = new int[w];
+        int[] row = tightGradientRow;
+        Arrays.fill(row, 0, w, 0);
+
+        int[] pixels = rowArray(w);
+        int i = start;
+        for (int dy = 0; dy < h; dy++) {
+            int offset = bitmapData.rowOffset(pixels, x, y + dy);
+            int left = 0, upperLeft = 0;
+            for (int dx = 0; dx < w; dx++, i += 3) {
+                int up = row[dx];
+                int pix = 0;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int est = ((up >> shift) & 0xFF) + ((left >> shift) & 0xFF) - ((upperLeft >> shift) & 0xFF);
+                    if (est > 0xFF)
+                        est = 0xFF;
+                    else if (est < 0)
+                        est = 0;
+                    pix |= ((est + buf[i + 2 - (shift >> 3)]) & 0xFF) << shift;
                 }
+                pixels[offset + dx] = pix;
+                row[dx] = pix;
+                left = pix;
+                upperLeft = up;
             }
+            bitmapData.rowWritten(pixels, x, y + dy, w);
         }
     }
 
-    private void readZrlePlainRLEPixels(int tw, int th) throws Exception {
-        int ptr = 0;
-        int end = ptr + tw * th;
-        if (zrleTilePixels == null || end > zrleTilePixels.length)
-            zrleTilePixels = new int[end];
-        while (ptr < end) {
-            int pix = readPixel(zrleInStream);
-            int len = 1;
-            int b;
-            do {
-                b = zrleInStream.readU8();
-                len += b;
-            } while (b == 255);
-
-            if (!(len <= end - ptr))
-                throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+    //
+    // The gradient filter in 16-bit colour works the same way on the pixel's own
+    // components, which wrap at their maximum.  The row above is kept as sent.
+    //
 
-            if (bytesPerPixel == 1) {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-            } else {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = pix;
+    private void decodeTightGradient16(int x, int y, int w, int h, byte[] buf, int start) {
+        int redShift = colorModel == ColorModel.C15 ? 10 : 11;
+        int greenMax = colorModel == ColorModel.C15 ? 31 : 63;
+        if (tightGradientRow.length < w)
+            tightGradientRow = new int[w];
+        int[] row = tightGradientRow;
+        Arrays.fill(row, 0, w, 0);
+
+        int[] pixels = rowArray(w);
+        int i = start;
+        for (int dy = 0; dy < h; dy++) {
+            int offset = bitmapData.rowOffset(pixels, x, y + dy);
+            int left = 0, upperLeft = 0;
+            for (int dx = 0; dx < w; dx++, i += 2) {
+                int up = row[dx];
+                int diff = (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8;
+                int pix = gradientComponent(up, left, upperLeft, diff, redShift, 31)
+                        | gradientComponent(up, left, upperLeft, diff, 5, greenMax)
+                        | gradientComponent(up, left, upperLeft, diff, 0, 31);
+                pixels[offset + dx] = colorPalette[pix];
+                row[dx] = pix;
+                left = pix;
+                upperLeft = up;
             }
+            bitmapData.rowWritten(pixels, x, y + dy, w);
         }
     }
 
-    private void readZrlePackedRLEPixels(int tw, int th, int[] palette) throws Exception {
+    private static int gradientComponent(int up, int left, int upperLeft, int diff, int shift, int max) {
+        int est = ((up >> shift) & max) + ((left >> shift) & max) - ((upperLeft >> shift) & max);
+        if (est > max)
+            est = max;
+        else if (est < 0)
+            est = 0;
+        return ((est + ((diff >> shift) & max)) & max) << shift;
+    }
 
-        int ptr = 0;
-        int end = ptr + tw * th;
-        if (zrleTilePixels == null || end > zrleTilePixels.length)
-            zrleTilePixels = new int[end];
-        while (ptr < end) {
-            int index = zrleInStream.readU8();
-            int len = 1;
-            if ((index & 128) != 0) {
-                int b;
-                do {
-                    b = zrleInStream.readU8();
-                    len += b;
-                } while (b == 255);
+    //
+    // Decode a Tight JPEG rectangle into the framebuffer.
+    //
 
-                if (!(len <= end - ptr))
-                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+    //
+    // Decode a Tight JPEG rectangle. When the panel covers only a fraction of the desktop's
+    // width on screen, the image is decoded at 1/2, 1/4 or 1/8 scale, which skips most of
+    // the IDCT work, and each decoded pixel is repeated to fill the rectangle.
+    //
+    private void handleTightJpeg(int x, int y, int w, int h, byte[] data, int start, int len) throws Exception {
+        int scale = jpegScaleDenominator();
+        if (useJavaJpegDecoder) {
+            if (javaJpegDecoder == null)
+                javaJpegDecoder = new JpegDecoder();
+            javaJpegDecoder.decode(data, start, len, scale);
+            paintTightJpeg(x, y, w, h, javaJpegDecoder.getPixels(), 0,
+                    javaJpegDecoder.getWidth(), javaJpegDecoder.getHeight(), scale);
+        } else {
+            Bitmap jpeg = decodeJpegBitmap(data, start, len, scale);
+            int sw = jpeg.getWidth();
+            int sh = jpeg.getHeight();
+            int srcStart = scratch.reserveInts(sw * sh);
+            try {
+                int[] src = scratch.ints();
+                jpeg.getPixels(src, srcStart, sw, 0, 0, sw, sh);
+                paintTightJpeg(x, y, w, h, src, srcStart, sw, sh, scale);
+            } finally {
+                scratch.releaseInts();
             }
+        }
 
-            index &= 127;
-            int pix = palette[index];
+        noteJpegScale(x, y, w, h, scale);
+        bitmapData.updateBitmap(x, y, w, h);
 
-            if (bytesPerPixel == 1) {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-            } else {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = pix;
-            }
+        reDraw();
+    }
+
+    //
+    // Record the scale the JPEG rectangle at x, y was decoded at: a reduced scale leaves it
+    // blurred until the same area arrives again at full scale.
+    //
+
+    private void noteJpegScale(int x, int y, int w, int h, int scale) {
+        if (scale == 1 && reducedJpegAreas[0].getSize() == 0 && reducedJpegAreas[1].getSize() == 0
+                && reducedJpegAreas[2].getSize() == 0)
+            return;
+        ObjectPool.Entry<Rect> entry = rectPool.reserve();
+        Rect r = entry.get();
+        r.set(x, y, x + w, y + h);
+        for (int i = 0; i < REDUCED_JPEG_SCALES.length; i++) {
+            if (REDUCED_JPEG_SCALES[i] == scale)
+                reducedJpegAreas[i].add(r);
+            else
+                reducedJpegAreas[i].subtract(r);
         }
+        rectPool.release(entry);
     }
 
     //
-    // Copy pixels from zrleTilePixels8 or zrleTilePixels24, then update.
+    // Ask again for the areas whose JPEG was decoded at a coarser scale than the panel's
+    // current size on screen calls for.  The server answers with the whole area, which is
+    // then decoded at the current scale.
     //
 
-    private void handleUpdatedZrleTile(int x, int y, int w, int h) {
-        int offsetSrc = 0;
-        int[] destPixels=bitmapData.bitmapPixels;
-        for (int j = 0; j < h; j++) {
-            System.arraycopy(zrleTilePixels, offsetSrc, destPixels, bitmapData.offset(x, y + j), w);
-            offsetSrc += w;
+    private void requestReducedJpegAreas() throws IOException {
+        int scale = jpegScaleDenominator();
+        for (int i = REDUCED_JPEG_SCALES.length - 1; i >= 0 && REDUCED_JPEG_SCALES[i] > scale; i--) {
+            RectList areas = reducedJpegAreas[i];
+            int size = areas.getSize();
+            for (int j = 0; j < size; j++) {
+                Rect r = areas.get(j);
+                bitmapData.writeRectUpdateRequest(r.left, r.top, r.right - r.left, r.bottom - r.top);
+            }
+            areas.clear();
         }
+    }
 
-        bitmapData.updateBitmap(x, y, w, h);
+    private void forgetReducedJpegAreas() {
+        for (RectList areas : reducedJpegAreas)
+            areas.clear();
     }
 
-    byte[] readPixelsBuffer = new byte[128];
-    private void readPixels(InStream is, int[] dst, int count) throws Exception {
-        if (bytesPerPixel == 1) {
-            if (count > readPixelsBuffer.length) {
-                readPixelsBuffer = new byte[count];
-            }
-            is.readBytes(readPixelsBuffer, 0, count);
-            for (int i = 0; i < count; i++) {
-                dst[i] = (int) readPixelsBuffer[i] & 0xFF;
-            }
-        } else {
-            final int l = count * 3;
-            if (l > readPixelsBuffer.length) {
-                readPixelsBuffer = new byte[l];
-            }
-            is.readBytes(readPixelsBuffer, 0, l);
-            for (int i = 0; i < count; i++) {
-                final int idx = i*3;
-                dst[i] = ((readPixelsBuffer[idx + 2] & 0xFF) << 16 | (readPixelsBuffer[idx + 1] & 0xFF) << 8 | (readPixelsBuffer[idx] & 0xFF));
+    //
+    // Fill the rectangle from a decoded sw x sh image starting at srcStart in src, each
+    // image pixel covering scale x scale framebuffer pixels.
+    //
+
+    private void paintTightJpeg(int x, int y, int w, int h, int[] src, int srcStart, int sw, int sh, int scale) throws Exception {
+        if (sw <= 0 || sh <= 0)
+            throw new Exception("Tight decoder: bad JPEG data");
+
+        int[] pixels = rowArray(w);
+        for (int j = 0; j < h; j++) {
+            int offset = bitmapData.rowOffset(pixels, x, y + j);
+            int row = srcStart + Math.min(j / scale, sh - 1) * sw;
+            if (scale == 1 && sw >= w) {
+                // Framebuffer pixels carry no alpha
+                for (int i = 0; i < w; i++)
+                    pixels[offset + i] = src[row + i] & 0xFFFFFF;
+            } else {
+                for (int i = 0; i < w; i++)
+                    pixels[offset + i] = src[row + Math.min(i / scale, sw - 1)] & 0xFFFFFF;
             }
+            bitmapData.rowWritten(pixels, x, y + j, w);
         }
     }
 
-    private int readPixel(InStream is) throws Exception {
-        int pix;
-        if (bytesPerPixel == 1) {
-            pix = is.readU8();
-        } else {
-            int p1 = is.readU8();
-            int p2 = is.readU8();
-            int p3 = is.readU8();
-            pix = (p3 & 0xFF) << 16 | (p2 & 0xFF) << 8 | (p1 & 0xFF);
+    private Bitmap decodeJpegBitmap(byte[] data, int start, int len, int scale) throws Exception {
+        if (jpegOptions == null) {
+            jpegOptions = new BitmapFactory.Options();
+            jpegOptions.inMutable = true;
+            jpegOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            jpegOptions.inTempStorage = new byte[16 * 1024];
         }
-        return pix;
+        jpegOptions.inSampleSize = scale;
+        jpegOptions.inBitmap = jpegBitmap;
+        Bitmap jpeg;
+        try {
+            jpeg = BitmapFactory.decodeByteArray(data, start, len, jpegOptions);
+        } catch (IllegalArgumentException e) {
+            // The kept bitmap can't take this image; decode into a new one
+            jpegOptions.inBitmap = null;
+            jpeg = BitmapFactory.decodeByteArray(data, start, len, jpegOptions);
+        }
+        if (jpeg == null)
+            throw new Exception("Tight decoder: bad JPEG data");
+        if (jpeg != jpegBitmap && jpegBitmap != null)
+            jpegBitmap.recycle();
+        jpegBitmap = jpeg;
+        return jpeg;
+    }
+
+    //
+    // Largest power of two up to 8 by which JPEG rectangles can be reduced and still give
+    // at least two framebuffer pixels per screen pixel across the panel.
+    //
+    private int jpegScaleDenominator() {
+        int panelWidth = m_ViewRenderer != null ? m_ViewRenderer.getPanelScreenWidth() : 0;
+        if (panelWidth <= 0)
+            return 1;
+        int scale = 1;
+        while (scale < 8 && rfb.framebufferWidth >= panelWidth * scale * 4)
+            scale *= 2;
+        return scale;
+    }
+
+    //
+    // Copy pixels from the tile decoder, then update.
+    //
+
+    private void handleUpdatedZrleTile(int x, int y, int w, int h) {
+        bitmapData.putRect(rleTileDecoder.getPixels(), 0, w, x, y, w, h);
+
+        bitmapData.updateBitmap(x, y, w, h);
     }
 
     /**
@@ -1105,23 +1914,32 @@ public class VncCanvas extends ImageView {
                 return;
         }
 
-        int[] encodings = new int[20];
+        // Only the 24-bit wavelet transform is implemented
+        int first = preferredEncoding;
+        boolean useZywrle = bytesPerPixel != 2;
+        if (!useZywrle && first == RfbProto.EncodingZYWRLE)
+            first = RfbProto.EncodingZRLE;
+
         int nEncodings = 0;
 
-        encodings[nEncodings++] = preferredEncoding;
+        encodings[nEncodings++] = first;
         if (useCopyRect)
             encodings[nEncodings++] = RfbProto.EncodingCopyRect;
-        // if (preferredEncoding != RfbProto.EncodingTight)
-        // encodings[nEncodings++] = RfbProto.EncodingTight;
-        if (preferredEncoding != RfbProto.EncodingZRLE)
+        if (first != RfbProto.EncodingTight)
+            encodings[nEncodings++] = RfbProto.EncodingTight;
+        if (first != RfbProto.EncodingZRLE)
             encodings[nEncodings++] = RfbProto.EncodingZRLE;
-        if (preferredEncoding != RfbProto.EncodingHextile)
+        if (first != RfbProto.EncodingZYWRLE && useZywrle)
+            encodings[nEncodings++] = RfbProto.EncodingZYWRLE;
+        if (first != RfbProto.EncodingHextile)
             encodings[nEncodings++] = RfbProto.EncodingHextile;
-        if (preferredEncoding != RfbProto.EncodingZlib)
+        if (first != RfbProto.EncodingTRLE)
+            encodings[nEncodings++] = RfbProto.EncodingTRLE;
+        if (first != RfbProto.EncodingZlib)
             encodings[nEncodings++] = RfbProto.EncodingZlib;
-        if (preferredEncoding != RfbProto.EncodingCoRRE)
+        if (first != RfbProto.EncodingCoRRE)
             encodings[nEncodings++] = RfbProto.EncodingCoRRE;
-        if (preferredEncoding != RfbProto.EncodingRRE)
+        if (first != RfbProto.EncodingRRE)
             encodings[nEncodings++] = RfbProto.EncodingRRE;
 
         if (compressLevel >= 0 && compressLevel <= 9)
@@ -1129,15 +1947,22 @@ public class VncCanvas extends ImageView {
         if (jpegQuality >= 0 && jpegQuality <= 9)
             encodings[nEncodings++] = RfbProto.EncodingQualityLevel0 + jpegQuality;
 
-        if (requestCursorUpdates) {
+        if (tileCache != null)
+            encodings[nEncodings++] = RfbProto.EncodingTileCache;
+
+        // The shape alone would leave the cursor where it was first drawn, so the shape and the
+        // position are asked for together or not at all
+        if (requestCursorUpdates && !ignoreCursorUpdates && m_ViewRenderer != null) {
             encodings[nEncodings++] = RfbProto.EncodingXCursor;
             encodings[nEncodings++] = RfbProto.EncodingRichCursor;
-            if (!ignoreCursorUpdates)
-                encodings[nEncodings++] = RfbProto.EncodingPointerPos;
+            encodings[nEncodings++] = RfbProto.EncodingPointerPos;
         }
 
         encodings[nEncodings++] = RfbProto.EncodingLastRect;
         encodings[nEncodings++] = RfbProto.EncodingNewFBSize;
+        if (useContinuousUpdates)
+            encodings[nEncodings++] = RfbProto.EncodingContinuousUpdates;
+        encodings[nEncodings++] = RfbProto.EncodingFence;
 
         boolean encodingsWereChanged = false;
         if (nEncodings != nEncodingsSaved) {
@@ -1157,14 +1982,20 @@ public class VncCanvas extends ImageView {
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            encodingsSaved = encodings;
+            System.arraycopy(encodings, 0, encodingsSaved, 0, nEncodings);
             nEncodingsSaved = nEncodings;
         }
     }
 
     @Override
     protected void onDraw( Canvas canvas ) {
-        Canvas glAttachedCanvas = m_ViewRenderer.onDrawViewBegin();
+        // The renderer draws the desktop itself from the palette indices or its own copy
+        if (indexedFramebuffer || directFramebuffer)
+            return;
+        Rect dirty = dirtyViewRect();
+        if (dirty != null && dirty.isEmpty())
+            return;
+        Canvas glAttachedCanvas = m_ViewRenderer.onDrawViewBegin(dirty);
         if(glAttachedCanvas != null) {
             glAttachedCanvas.translate(-getScrollX(), -getScrollY());
             super.onDraw(glAttachedCanvas);
@@ -4,6 +4,8 @@
 package org.poc.vnc.domain;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -11,12 +13,17 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.widget.ImageView;
 
+import org.poc.common.IViewRenderer;
 import org.poc.vnc.VncCanvas;
 
 /**
  * Abstract interface between the VncCanvas and the bitmap and pixel data buffers that actually contain
  * the data.
  * This allows for implementations that use smaller bitmaps or buffers to save memory. 
+ * <p>
+ * The pixels are in bitmapPixels, or, while an implementation keeps them off the heap for a
+ * renderer that uploads them itself, in pixelBuffer, with bitmapPixels null.  Decoders write
+ * them through fillRect, putRect and the row methods, which work on either.
  * @author Michael A. MacDonald
  *
  */
@@ -28,10 +35,32 @@ public abstract class AbstractBitmapData {
 	RfbProto rfb;
 	Bitmap mbitmap;
 	public int bitmapPixels[];
+	// The pixels while they are kept in a direct buffer instead, in rows of framebufferwidth
+	IntBuffer pixelBuffer;
+	// Each thread's view of pixelBuffer, whose position only that thread moves: the buffer
+	// it was made of, then the view
+	private final ThreadLocal<IntBuffer[]> pixelViews = new ThreadLocal<IntBuffer[]>();
+	// Rows moved within pixelBuffer pass through here; used on the network thread only
+	private int[] moveRow = new int[0];
 	Canvas memGraphics;
 	boolean waitingForInput;
 	VncCanvas vncCanvas;
+	UpdateRequestPipeline requestPipeline = new UpdateRequestPipeline(1, 4);
+	boolean continuousUpdates;
 	private AbstractBitmapDrawable drawable;
+	volatile IViewRenderer indexedRenderer;
+	volatile IViewRenderer directRenderer;
+	// The direct renderer's buffer, which changed pixels are copied to while they are in
+	// bitmapPixels
+	IntBuffer directPixels;
+	
+	/**
+	 * Side of the squares changes are recorded in, the ZRLE tile size
+	 */
+	public static final int DIRTY_TILE_SIZE = 64;
+	// A bit per tile, row by row, set by markDirty and cleared by takeDirty; guarded by itself
+	private final long[] dirtyTiles;
+	private final int dirtyTilesAcross;
 
 	AbstractBitmapData(RfbProto p, VncCanvas c)
 	{
@@ -39,6 +68,11 @@ public abstract class AbstractBitmapData {
 		vncCanvas = c;
 		framebufferwidth=rfb.framebufferWidth;
 		framebufferheight=rfb.framebufferHeight;
+		dirtyTilesAcross = (framebufferwidth + DIRTY_TILE_SIZE - 1) / DIRTY_TILE_SIZE;
+		int tilesDown = (framebufferheight + DIRTY_TILE_SIZE - 1) / DIRTY_TILE_SIZE;
+		dirtyTiles = new long[(dirtyTilesAcross * tilesDown + 63) / 64];
+		// Nothing has been drawn from this data yet
+		markDirty(0, 0, framebufferwidth, framebufferheight);
 	}
 	
 	public synchronized void doneWaiting()
@@ -80,6 +114,74 @@ public abstract class AbstractBitmapData {
 	 * @param incremental True if we want incremental update; false for full update
 	 */
 	public abstract void writeFullUpdateRequest( boolean incremental) throws IOException;
+
+	/**
+	 * Request updates for the currently held bitmap, keeping as many incremental requests
+	 * outstanding as the request pipeline wants
+	 * @param incremental False to start with a full update request
+	 */
+	public void requestUpdates( boolean incremental) throws IOException
+	{
+		if (! incremental)
+		{
+			writeFullUpdateRequest(false);
+			requestPipeline.requestSent();
+		}
+		for (int n = requestPipeline.requestsToSend(); n > 0; n--)
+		{
+			writeFullUpdateRequest(true);
+			requestPipeline.requestSent();
+		}
+	}
+
+	/**
+	 * Ask for the whole of one rectangle, e.g. because the client lost what it held of it.
+	 * The request is counted by the request pipeline like any other.
+	 */
+	public void writeRectUpdateRequest( int x, int y, int w, int h) throws IOException
+	{
+		rfb.writeFramebufferUpdateRequest(x, y, w, h, false);
+		requestPipeline.requestSent();
+	}
+
+	/**
+	 * Tell the server to send updates for the currently held bitmap as they happen, or to stop.
+	 * @param enable True to enable continuous updates; false to disable them
+	 */
+	public abstract void writeContinuousUpdatesRequest( boolean enable) throws IOException;
+
+	/**
+	 * Switch continuous updates on or off. While on, the server pushes changes to the held
+	 * region and no update requests need to be sent.
+	 */
+	public synchronized void setContinuousUpdates( boolean enable) throws IOException
+	{
+		continuousUpdates = enable;
+		writeContinuousUpdatesRequest(enable);
+		requestPipeline.reset();
+	}
+
+	/**
+	 * The server has sent EndOfContinuousUpdates; updates must be requested again
+	 */
+	public synchronized void continuousUpdatesEnded()
+	{
+		continuousUpdates = false;
+		requestPipeline.reset();
+	}
+
+	public synchronized boolean isContinuousUpdates()
+	{
+		return continuousUpdates;
+	}
+
+	/**
+	 * @return Ledger of update requests in flight for this bitmap
+	 */
+	public UpdateRequestPipeline getRequestPipeline()
+	{
+		return requestPipeline;
+	}
 	
 	/**
 	 * Determine if a rectangle in full-frame coordinates can be drawn in the existing buffer
@@ -109,6 +211,65 @@ public abstract class AbstractBitmapData {
 	 */
 	public abstract void updateBitmap( int x, int y, int w, int h);
 	
+	/**
+	 * Record that a rectangle of the framebuffer has changed, for {@link #takeDirty}.
+	 * Implementations of updateBitmap call this.
+	 */
+	void markDirty( int x, int y, int w, int h)
+	{
+		if (w <= 0 || h <= 0)
+			return;
+		int left = x / DIRTY_TILE_SIZE;
+		int right = (x + w - 1) / DIRTY_TILE_SIZE;
+		int top = y / DIRTY_TILE_SIZE;
+		int bottom = (y + h - 1) / DIRTY_TILE_SIZE;
+		synchronized (dirtyTiles)
+		{
+			for (int ty = top; ty <= bottom; ty++)
+			{
+				for (int i = ty * dirtyTilesAcross + left; i <= ty * dirtyTilesAcross + right; i++)
+					dirtyTiles[i >> 6] |= 1L << i;
+			}
+		}
+	}
+	
+	/**
+	 * Take the changes recorded since the last call
+	 * @param bounds Receives the bounds, in full-frame coordinates, of the tiles that changed
+	 * @return False if none did
+	 */
+	public boolean takeDirty( Rect bounds)
+	{
+		int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = -1, bottom = -1;
+		synchronized (dirtyTiles)
+		{
+			for (int k = 0; k < dirtyTiles.length; k++)
+			{
+				long bits = dirtyTiles[k];
+				if (bits == 0)
+					continue;
+				dirtyTiles[k] = 0;
+				for (; bits != 0; bits &= bits - 1)
+				{
+					int i = (k << 6) + Long.numberOfTrailingZeros(bits);
+					int tx = i % dirtyTilesAcross;
+					int ty = i / dirtyTilesAcross;
+					left = Math.min(left, tx);
+					right = Math.max(right, tx);
+					top = Math.min(top, ty);
+					bottom = Math.max(bottom, ty);
+				}
+			}
+		}
+		if (right < 0)
+			return false;
+		bounds.left = left * DIRTY_TILE_SIZE;
+		bounds.top = top * DIRTY_TILE_SIZE;
+		bounds.right = Math.min((right + 1) * DIRTY_TILE_SIZE, framebufferwidth);
+		bounds.bottom = Math.min((bottom + 1) * DIRTY_TILE_SIZE, framebufferheight);
+		return true;
+	}
+	
 	/**
 	 * Create drawable appropriate for this data
 	 * @return drawable
@@ -128,13 +289,56 @@ public abstract class AbstractBitmapData {
 	}
 	
 	/**
-	 * Copy a rectangle from one part of the bitmap to another
+	 * Copy a rectangle from one part of the bitmap to another.  This checks the destination as
+	 * validDraw does, after deciding whether the source can be copied, so the caller doesn't
+	 * call validDraw first.
 	 * @param src Rectangle in full-frame coordinates to be copied
 	 * @param dest Destination rectangle in full-frame coordinates
 	 * @param paint Paint specifier
 	 */
 	public abstract void copyRect( Rect src, Rect dest, Paint paint);
 	
+	/**
+	 * Move a rectangle of the pixels, positioned in full-frame coordinates, to another place
+	 * in them.  The two may overlap: when moving down the rows are copied from the
+	 * bottom up, so none is overwritten before it has been read.
+	 * @param src Rectangle to be moved
+	 * @param destX Left edge of the destination
+	 * @param destY Top edge of the destination
+	 */
+	void movePixels( Rect src, int destX, int destY)
+	{
+		int[] pixels = bitmapPixels;
+		int w = src.right - src.left;
+		int h = src.bottom - src.top;
+		int from = offset(src.left, src.top);
+		int to = offset(destX, destY);
+		int stride = offset(src.left, src.top + 1) - from;
+		if (to > from)
+		{
+			from += (h - 1) * stride;
+			to += (h - 1) * stride;
+			stride = -stride;
+		}
+		if (pixels != null)
+		{
+			for (int j = 0; j < h; j++, from += stride, to += stride)
+				System.arraycopy(pixels, from, pixels, to, w);
+			return;
+		}
+		// A row of the buffer can't be copied onto itself; take it out first
+		if (moveRow.length < w)
+			moveRow = new int[w];
+		IntBuffer view = pixelView();
+		for (int j = 0; j < h; j++, from += stride, to += stride)
+		{
+			view.position(from);
+			view.get(moveRow, 0, w);
+			view.position(to);
+			view.put(moveRow, 0, w);
+		}
+	}
+	
 	/**
 	 * Draw a rectangle in the bitmap with coordinates given in full frame
 	 * @param x Top left x
@@ -145,6 +349,226 @@ public abstract class AbstractBitmapData {
 	 */
 	public abstract void drawRect( int x, int y, int w, int h, Paint paint);
 	
+	/**
+	 * Fill a rectangle of the pixels, positioned in full-frame coordinates, with one colour.
+	 * Like any change to them, it reaches the bitmap with updateBitmap.
+	 * @param x Top left x
+	 * @param y Top left y
+	 * @param w width (pixels)
+	 * @param h height (pixels)
+	 * @param color Colour as drawn by a Paint, 0xAARRGGBB
+	 */
+	public void fillRect( int x, int y, int w, int h, int color)
+	{
+		int[] pixels = bitmapPixels;
+		int offset = offset(x, y);
+		int stride = offset(x, y + 1) - offset;
+		if (pixels == null)
+		{
+			IntBuffer view = pixelView();
+			for (int j = 0; j < h; j++, offset += stride)
+			{
+				view.position(offset);
+				for (int k = 0; k < w; k++)
+					view.put(color);
+			}
+		}
+		else if (w > 32)
+		{
+			for (int j = 0; j < h; j++, offset += stride)
+				Arrays.fill(pixels, offset, offset + w, color);
+		}
+		else
+		{
+			// Rows as short as a Hextile tile's fill faster inline than through Arrays.fill
+			for (int j = 0; j < h; j++, offset += stride)
+			{
+				for (int k = offset; k < offset + w; k++)
+					pixels[k] = color;
+			}
+		}
+	}
+	
+	/**
+	 * Copy a rectangle of pixels into the framebuffer
+	 * @param src Pixels, stride per row, starting at srcPos
+	 * @param x Top left x in full-frame coordinates
+	 * @param y Top left y in full-frame coordinates
+	 */
+	public void putRect( int[] src, int srcPos, int stride, int x, int y, int w, int h)
+	{
+		int[] pixels = bitmapPixels;
+		if (pixels != null)
+		{
+			for (int j = 0; j < h; j++, srcPos += stride)
+				System.arraycopy(src, srcPos, pixels, offset(x, y + j), w);
+			return;
+		}
+		IntBuffer view = pixelView();
+		for (int j = 0; j < h; j++, srcPos += stride)
+		{
+			view.position(offset(x, y + j));
+			view.put(src, srcPos, w);
+		}
+	}
+	
+	/**
+	 * Copy a rectangle of pixels, w * h of them row after row, from src's position into the
+	 * framebuffer; src's position moves past them
+	 */
+	public void putRect( IntBuffer src, int x, int y, int w, int h)
+	{
+		int[] pixels = bitmapPixels;
+		if (pixels != null)
+		{
+			for (int j = 0; j < h; j++)
+				src.get(pixels, offset(x, y + j), w);
+			return;
+		}
+		IntBuffer view = pixelView();
+		int limit = src.limit();
+		for (int j = 0; j < h; j++)
+		{
+			src.limit(src.position() + w);
+			view.position(offset(x, y + j));
+			view.put(src);
+		}
+		src.limit(limit);
+	}
+	
+	/**
+	 * Copy a rectangle of the framebuffer out, w pixels per row, to dest from destPos
+	 */
+	public void getRect( int x, int y, int w, int h, int[] dest, int destPos)
+	{
+		int[] pixels = bitmapPixels;
+		if (pixels != null)
+		{
+			for (int j = 0; j < h; j++, destPos += w)
+				System.arraycopy(pixels, offset(x, y + j), dest, destPos, w);
+			return;
+		}
+		IntBuffer view = pixelView();
+		for (int j = 0; j < h; j++, destPos += w)
+		{
+			view.position(offset(x, y + j));
+			view.get(dest, destPos, w);
+		}
+	}
+	
+	/**
+	 * Start writing rows of pixels one at a time, for decoders that make them pixel by pixel:
+	 * write each row into the array returned, from {@link #rowOffset}, then call
+	 * {@link #rowWritten}.  The array is bitmapPixels itself, or, while the pixels are in a
+	 * buffer, row.
+	 * @param row The caller's own array of at least as many pixels as the rows are wide
+	 */
+	public int[] rowArray( int[] row)
+	{
+		int[] pixels = bitmapPixels;
+		return pixels != null ? pixels : row;
+	}
+	
+	/**
+	 * @param array What {@link #rowArray} returned
+	 * @return Where in array to write the row starting at x, y
+	 */
+	public int rowOffset( int[] array, int x, int y)
+	{
+		return array == bitmapPixels ? offset(x, y) : 0;
+	}
+	
+	/**
+	 * Finish writing the row of w pixels starting at x, y
+	 * @param array What {@link #rowArray} returned
+	 */
+	public void rowWritten( int[] array, int x, int y, int w)
+	{
+		if (array != bitmapPixels)
+			putRect(array, 0, w, x, y, w, 1);
+	}
+	
+	/**
+	 * @return The calling thread's own view of pixelBuffer
+	 */
+	private IntBuffer pixelView()
+	{
+		IntBuffer[] views = pixelViews.get();
+		if (views == null)
+		{
+			views = new IntBuffer[2];
+			pixelViews.set(views);
+		}
+		if (views[0] != pixelBuffer)
+		{
+			views[0] = pixelBuffer;
+			views[1] = pixelBuffer.duplicate();
+		}
+		return views[1];
+	}
+	
+	/**
+	 * While set, bitmapPixels hold 8-bit palette indices; updated pixels go to the renderer,
+	 * which colours them, instead of to the bitmap
+	 * @param renderer Renderer that accepted the palette, or null to draw pixels as colours
+	 */
+	public void setIndexedRenderer( IViewRenderer renderer)
+	{
+		indexedRenderer = renderer;
+	}
+	
+	/**
+	 * Pass a changed rectangle of indices to the indexed renderer, if there is one
+	 * @return True if the renderer took the pixels and the bitmap needn't be updated
+	 */
+	boolean updateIndexed( int x, int y, int w, int h)
+	{
+		IViewRenderer renderer = indexedRenderer;
+		if (renderer == null)
+			return false;
+		int offset = offset(x, y);
+		renderer.updateIndexedFramebuffer(bitmapPixels, offset, offset(x, y + 1) - offset, x, y, w, h);
+		return true;
+	}
+	
+	/**
+	 * While set, the renderer draws the desktop from its own buffer of the framebuffer's
+	 * colours, and updated pixels go to it instead of to the bitmap.  Implementations that can
+	 * keep their pixels in that buffer override this to do so; otherwise changed pixels are
+	 * copied to it from bitmapPixels.
+	 * @param renderer Renderer that accepted a direct framebuffer, or null to update the bitmap
+	 * @param pixels The buffer the renderer gave, or null
+	 */
+	public void setDirectRenderer( IViewRenderer renderer, IntBuffer pixels)
+	{
+		directPixels = renderer != null ? pixels : null;
+		directRenderer = renderer;
+	}
+	
+	/**
+	 * Tell the direct renderer, if there is one, that a rectangle of colours changed, first
+	 * copying it to the renderer's buffer if the pixels aren't kept there
+	 * @return True if the renderer took the pixels and the bitmap needn't be updated
+	 */
+	boolean updateDirect( int x, int y, int w, int h)
+	{
+		IViewRenderer renderer = directRenderer;
+		if (renderer == null)
+			return false;
+		int[] pixels = bitmapPixels;
+		if (pixels != null)
+		{
+			IntBuffer dest = directPixels;
+			for (int j = 0; j < h; j++)
+			{
+				dest.position((y + j) * framebufferwidth + x);
+				dest.put(pixels, offset(x, y + j), w);
+			}
+		}
+		renderer.directFramebufferChanged(x, y, w, h);
+		return true;
+	}
+	
 	/**
 	 * Scroll position has changed.
 	 * <p>
@@ -169,5 +593,6 @@ public abstract class AbstractBitmapData {
 			mbitmap.recycle();
 		memGraphics = null;
 		bitmapPixels = null;
+		pixelBuffer = null;
 	}
 }
@@ -6,21 +6,57 @@ import java.io.IOException;
  * Created by joel on 4/19/15.
  */
 public enum ColorModel {
-    C24bit, C256, C64, C8, C4, C2;
+    C24bit, C16, C15, C256, C64, C8, C4, C2;
 
     public int bpp() {
         switch (this) {
             case C24bit:
                 return 4;
+            case C16:
+            case C15:
+                return 2;
             default:
                 return 1;
         }
     }
 
+    /**
+     * Bits of each pixel that carry colour, as sent in SetPixelFormat
+     */
+    public int depth() {
+        switch (this) {
+            case C24bit:
+                return 24;
+            case C16:
+                return 16;
+            case C15:
+                return 15;
+            case C64:
+            case C4:
+                return 6;
+            case C8:
+            case C2:
+                return 3;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * True if the server is asked for shades of grey
+     */
+    public boolean greyscale() {
+        return this == C4 || this == C2;
+    }
+
     public int[] palette() {
         switch (this) {
             case C24bit:
                 return null;
+            case C16:
+                return ColorModel565.colors;
+            case C15:
+                return ColorModel555.colors;
             case C256:
                 return ColorModel256.colors;
             case C64:
@@ -44,9 +80,18 @@ public enum ColorModel {
     public void setPixelFormat(RfbProto rfb) throws IOException {
         switch (this) {
             case C24bit:
-                // 24-bit color
+                // 24-bit color, laid out so that each pixel read as a little-endian int is
+                // already a framebuffer pixel, 0x00RRGGBB apart from the padding byte
                 rfb.writeSetPixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0, false);
                 break;
+            case C16:
+                // 16-bit true colour, half the bytes of 24-bit; pixels are looked up in a
+                // table of all 65536 values, indexed by the little-endian short
+                rfb.writeSetPixelFormat(16, 16, false, true, 31, 63, 31, 11, 5, 0, false);
+                break;
+            case C15:
+                rfb.writeSetPixelFormat(16, 15, false, true, 31, 31, 31, 10, 5, 0, false);
+                break;
             case C256:
                 rfb.writeSetPixelFormat(8, 8, false, true, 7, 7, 3, 0, 3, 6, false);
                 break;
@@ -75,6 +120,10 @@ public enum ColorModel {
         switch (this) {
             case C24bit:
                 return "24-bit color (4 bpp)";
+            case C16:
+                return "65536 colors (2 bpp)";
+            case C15:
+                return "32768 colors (2 bpp)";
             case C256:
                 return "256 colors (1 bpp)";
             case C64:
@@ -0,0 +1,19 @@
+package org.poc.vnc.domain;
+
+/**
+ * Framebuffer colours of the 65536 16-bit pixel values; Red, green and blue at bits 11, 5 and 0
+ */
+public class ColorModel565 {
+
+	public final static int [] colors;
+
+	static {
+		colors = new int[65536];
+		for (int p = 0; p < colors.length; p++)
+			colors[p] = 0xff000000 | scale(p >> 11, 31) << 16 | scale((p >> 5) & 63, 63) << 8 | scale(p & 31, 31);
+	}
+
+	private static int scale(int c, int max) {
+		return (c * 255 + max / 2) / max;
+	}
+}
@@ -0,0 +1,99 @@
+package org.poc.vnc.domain;
+
+/**
+ * A cursor image sent by the server with the XCursor or RichCursor pseudo-encoding, so that
+ * the client can draw the cursor itself instead of the server drawing it into the framebuffer.
+ * <p>
+ * Pixels are 0xAARRGGBB: opaque where the cursor's mask is set and fully transparent
+ * elsewhere.  A shape with no pixels hides the cursor.
+ */
+public class CursorShape {
+
+    public final int width;
+    public final int height;
+    /** The point of the image that sits at the pointer position */
+    public final int hotX;
+    public final int hotY;
+    public final int[] pixels;
+
+    private CursorShape(int width, int height, int hotX, int hotY, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.hotX = hotX;
+        this.hotY = hotY;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return True if there is nothing to draw
+     */
+    public boolean isEmpty() {
+        return width == 0 || height == 0;
+    }
+
+    /**
+     * @return Bytes of data following the rectangle header of a cursor update
+     */
+    public static int dataLength(int encoding, int w, int h, int bytesPerPixel) {
+        int maskBytes = ((w + 7) / 8) * h;
+        if (encoding == RfbProto.EncodingXCursor)
+            return w * h > 0 ? 6 + 2 * maskBytes : 0;
+        return w * h * bytesPerPixel + maskBytes;
+    }
+
+    /**
+     * Decode an XCursor update: foreground and background RGB, then a bitmap choosing between
+     * them and a mask, each a row of whole bytes per line with the leftmost pixel in the top bit
+     * @param offset Where the update's data starts in data
+     * @param hotX The update rectangle's x
+     * @param hotY The update rectangle's y
+     */
+    public static CursorShape decodeXCursor(byte[] data, int offset, int w, int h, int hotX, int hotY) {
+        if (w * h == 0)
+            return new CursorShape(0, 0, 0, 0, null);
+        int fg = 0xFF000000 | (data[offset] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF);
+        int bg = 0xFF000000 | (data[offset + 3] & 0xFF) << 16 | (data[offset + 4] & 0xFF) << 8 | (data[offset + 5] & 0xFF);
+        int rowBytes = (w + 7) / 8;
+        int bitmap = offset + 6;
+        int mask = bitmap + rowBytes * h;
+
+        int[] pixels = new int[w * h];
+        for (int y = 0, i = 0; y < h; y++) {
+            for (int x = 0; x < w; x++, i++) {
+                int bit = 0x80 >> (x & 7);
+                if ((data[mask + y * rowBytes + (x >> 3)] & bit) != 0)
+                    pixels[i] = (data[bitmap + y * rowBytes + (x >> 3)] & bit) != 0 ? fg : bg;
+            }
+        }
+        return new CursorShape(w, h, hotX, hotY, pixels);
+    }
+
+    /**
+     * Decode a RichCursor update: w * h pixels in the negotiated format, then a mask as for
+     * XCursor
+     * @param offset Where the update's data starts in data
+     * @param colorPalette Colours of 8-bit and 16-bit pixels
+     */
+    public static CursorShape decodeRichCursor(byte[] data, int offset, int w, int h, int hotX, int hotY,
+                                               int bytesPerPixel, int[] colorPalette) {
+        if (w * h == 0)
+            return new CursorShape(0, 0, 0, 0, null);
+        int rowBytes = (w + 7) / 8;
+        int mask = offset + w * h * bytesPerPixel;
+
+        int[] pixels = new int[w * h];
+        for (int y = 0, i = 0, p = offset; y < h; y++) {
+            for (int x = 0; x < w; x++, i++, p += bytesPerPixel) {
+                if ((data[mask + y * rowBytes + (x >> 3)] & (0x80 >> (x & 7))) == 0)
+                    continue;
+                if (bytesPerPixel == 1)
+                    pixels[i] = colorPalette[data[p] & 0xFF];
+                else if (bytesPerPixel == 2)
+                    pixels[i] = colorPalette[(data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8];
+                else
+                    pixels[i] = 0xFF000000 | (data[p + 2] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (data[p] & 0xFF);
+            }
+        }
+        return new CursorShape(w, h, hotX, hotY, pixels);
+    }
+}
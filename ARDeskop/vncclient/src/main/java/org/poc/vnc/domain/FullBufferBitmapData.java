@@ -4,7 +4,7 @@
 package org.poc.vnc.domain;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.IntBuffer;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -12,6 +12,7 @@ import android.graphics.Rect;
 import android.util.Log;
 import android.widget.ImageView;
 
+import org.poc.common.IViewRenderer;
 import org.poc.vnc.VncCanvas;
 
 /**
@@ -42,9 +43,13 @@ public class FullBufferBitmapData extends AbstractBitmapData {
 		 */
 		@Override
 		public void draw(Canvas canvas) {
+			// Nothing to draw while a renderer draws the pixels from its buffer
+			int[] pixels = data.bitmapPixels;
+			if (pixels == null)
+				return;
 			if (vncCanvas.getScaleType() == ImageView.ScaleType.FIT_CENTER)
 			{
-				canvas.drawBitmap(data.bitmapPixels, 0, data.framebufferwidth, xoffset, yoffset, framebufferwidth, framebufferheight, false, null);				
+				canvas.drawBitmap(pixels, 0, data.framebufferwidth, xoffset, yoffset, framebufferwidth, framebufferheight, false, null);				
 			}
 			else
 			{
@@ -61,7 +66,7 @@ public class FullBufferBitmapData extends AbstractBitmapData {
 					int drawHeight = vncCanvas.getVisibleHeight();
 					if (drawHeight + yo > data.framebufferheight)
 						drawHeight = data.framebufferheight - yo;
-					canvas.drawBitmap(data.bitmapPixels, offset(xo, yo), data.framebufferwidth, xo, yo, drawWidth, drawHeight, false, null);
+					canvas.drawBitmap(pixels, offset(xo, yo), data.framebufferwidth, xo, yo, drawWidth, drawHeight, false, null);
 				/*
 				}
 				else
@@ -113,8 +118,9 @@ public class FullBufferBitmapData extends AbstractBitmapData {
 	 */
 	@Override
     public void copyRect(Rect src, Rect dest, Paint paint) {
-		// TODO copy rect working?
-		throw new RuntimeException( "copyrect Not implemented");
+		// Everything is valid to draw, so there is nothing for validDraw to check
+		movePixels(src, dest.left, dest.top);
+		updateBitmap(dest.left, dest.top, dest.right - dest.left, dest.bottom - dest.top);
 	}
 
 	/* (non-Javadoc)
@@ -130,25 +136,7 @@ public class FullBufferBitmapData extends AbstractBitmapData {
 	 */
 	@Override
     public void drawRect(int x, int y, int w, int h, Paint paint) {
-		int color = paint.getColor();
-		int offset = offset(x,y);
-		if (w > 10)
-		{
-			for (int j = 0; j < h; j++, offset += framebufferwidth)
-			{
-				Arrays.fill(bitmapPixels, offset, offset + w, color);
-			}
-		}
-		else
-		{
-			for (int j = 0; j < h; j++, offset += framebufferwidth - w)
-			{
-				for (int k = 0; k < w; k++, offset++)
-				{
-					bitmapPixels[offset] = color;
-				}
-			}
-		}
+		fillRect(x, y, w, h, paint.getColor());
 	}
 
 	/* (non-Javadoc)
@@ -182,8 +170,31 @@ public class FullBufferBitmapData extends AbstractBitmapData {
 	 */
 	@Override
     public void updateBitmap(int x, int y, int w, int h) {
-		// Don't need to do anything here
+		// The drawable draws bitmapPixels directly, and a renderer drawing the desktop itself
+		// draws pixelBuffer; only the renderer needs telling
+		markDirty(x, y, w, h);
+		if (!updateIndexed(x, y, w, h))
+			updateDirect(x, y, w, h);
+	}
 
+	/**
+	 * Keep the pixels in the renderer's buffer while it draws from it, so decoders write
+	 * straight into what it uploads and the desktop is off the heap, and in bitmapPixels
+	 * otherwise.  The pixels aren't carried over: a full update follows.
+	 */
+	@Override
+	public void setDirectRenderer(IViewRenderer renderer, IntBuffer pixels) {
+		if (renderer != null && pixels != null && pixels.capacity() >= framebufferwidth * framebufferheight)
+		{
+			pixelBuffer = pixels;
+			bitmapPixels = null;
+		}
+		else if (bitmapPixels == null)
+		{
+			bitmapPixels = new int[framebufferwidth * framebufferheight];
+			pixelBuffer = null;
+		}
+		super.setDirectRenderer(renderer, pixels);
 	}
 
 	/* (non-Javadoc)
@@ -202,4 +213,12 @@ public class FullBufferBitmapData extends AbstractBitmapData {
 		rfb.writeFramebufferUpdateRequest(0, 0, framebufferwidth, framebufferheight, incremental);
 	}
 
+	/* (non-Javadoc)
+	 * @see android.androidVNC.AbstractBitmapData#writeContinuousUpdatesRequest(boolean)
+	 */
+	@Override
+    public void writeContinuousUpdatesRequest(boolean enable) throws IOException {
+		rfb.writeEnableContinuousUpdates(enable, 0, 0, framebufferwidth, framebufferheight);
+	}
+
 }
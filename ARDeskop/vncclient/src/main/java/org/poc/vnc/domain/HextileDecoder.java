@@ -0,0 +1,187 @@
+package org.poc.vnc.domain;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Expands one 16x16 tile of Hextile data at a time into a scratch array of framebuffer pixels.
+ * <p>
+ * The background and subrectangles are filled into the scratch tile with plain array writes,
+ * and {@link #putTile} then copies the finished tile into the framebuffer one row at a time,
+ * so each framebuffer pixel is written once however many subrectangles cover it.  Raw pixels
+ * keep the framebuffer's 0x00RRGGBB and filled colours are opaque, as a Paint would draw them.
+ * <p>
+ * The background and foreground colours carry over from one tile to the next, so
+ * {@link #startRect} must be called before the first tile of each rectangle.  An instance
+ * keeps its own scratch space, so separate instances may decode separate rectangles on
+ * separate threads.
+ */
+public class HextileDecoder {
+
+    public static final int TILE_SIZE = 16;
+
+    /** Most bytes a tile can take: both colours and 255 coloured subrectangles of 32-bit pixels */
+    public static final int MAX_TILE_BYTES = 1 + 4 + 4 + 1 + 255 * (4 + 2);
+
+    /** Returned by {@link #decodeTile} for tiles that were expanded into the scratch tile */
+    public static final int EXPANDED = RleTileDecoder.EXPANDED;
+
+    private final int[] tile = new int[TILE_SIZE * TILE_SIZE];
+    private int bg;
+    private int fg;
+    private int end;
+
+    private int bytesPerPixel = 4;
+    private int[] colorPalette;
+
+    /**
+     * @param bytesPerPixel 1 for 8-bit and 2 for 16-bit colour, where pixels are looked up in
+     * colorPalette, or 4 for 24-bit colour
+     */
+    public void setPixelFormat(int bytesPerPixel, int[] colorPalette) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.colorPalette = colorPalette;
+    }
+
+    /**
+     * Forget the colours of the previous rectangle
+     */
+    public void startRect() {
+        bg = 0xFF000000;
+        fg = 0xFF000000;
+    }
+
+    /**
+     * Read the bytes of one tile from is, walking just enough of it to find its end
+     * @param buf Where the tile is copied to; must have room for {@link #MAX_TILE_BYTES} at off
+     * @return Number of bytes read
+     */
+    public static int readTile(DataInputStream is, byte[] buf, int off, int tw, int th, int bytesPerPixel) throws IOException {
+        int subencoding = is.readUnsignedByte();
+        buf[off] = (byte) subencoding;
+        if ((subencoding & RfbProto.HextileRaw) != 0) {
+            is.readFully(buf, off + 1, tw * th * bytesPerPixel);
+            return 1 + tw * th * bytesPerPixel;
+        }
+        int n = 1;
+        if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+            n += bytesPerPixel;
+        if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+            n += bytesPerPixel;
+        if ((subencoding & RfbProto.HextileAnySubrects) == 0) {
+            is.readFully(buf, off + 1, n - 1);
+            return n;
+        }
+        is.readFully(buf, off + 1, n);
+        int nSubrects = buf[off + n++] & 0xFF;
+        int subrectSize = (subencoding & RfbProto.HextileSubrectsColoured) != 0 ? bytesPerPixel + 2 : 2;
+        is.readFully(buf, off + n, nSubrects * subrectSize);
+        return n + nSubrects * subrectSize;
+    }
+
+    /**
+     * Decode the tile whose bytes start at buf[p]
+     * @return The colour of a solid tile, which is not expanded, or {@link #EXPANDED}
+     */
+    public int decodeTile(byte[] buf, int p, int tw, int th) {
+        int subencoding = buf[p++] & 0xFF;
+        if ((subencoding & RfbProto.HextileRaw) != 0) {
+            end = readRaw(buf, p, tw * th);
+            return EXPANDED;
+        }
+        if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
+            bg = fillColor(buf, p);
+            p += bytesPerPixel;
+        }
+        if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
+            fg = fillColor(buf, p);
+            p += bytesPerPixel;
+        }
+        if ((subencoding & RfbProto.HextileAnySubrects) == 0) {
+            end = p;
+            return bg;
+        }
+
+        int[] tile = this.tile;
+        Arrays.fill(tile, 0, tw * th, bg);
+        int nSubrects = buf[p++] & 0xFF;
+        boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+        int color = fg;
+        for (int j = 0; j < nSubrects; j++) {
+            if (coloured) {
+                color = fillColor(buf, p);
+                p += bytesPerPixel;
+            }
+            int b1 = buf[p++] & 0xFF;
+            int b2 = buf[p++] & 0xFF;
+            int sx = b1 >> 4;
+            int sy = b1 & 0xf;
+            // A subrectangle reaching past the edge of the tile is cut off there
+            int sw = Math.min((b2 >> 4) + 1, tw - sx);
+            int sh = Math.min((b2 & 0xf) + 1, th - sy);
+            int k = sy * tw + sx;
+            if (sh == 1) {
+                // Most subrectangles of text are a single row or column
+                for (int e = k + sw; k < e; k++)
+                    tile[k] = color;
+            } else if (sw == 1) {
+                for (int e = k + sh * tw; k < e; k += tw)
+                    tile[k] = color;
+            } else {
+                for (int rowEnd = k + sh * tw; k < rowEnd; k += tw) {
+                    for (int i = k; i < k + sw; i++)
+                        tile[i] = color;
+                }
+            }
+        }
+        fg = color;
+        end = p;
+        return EXPANDED;
+    }
+
+    /**
+     * @return Position in buf after the last tile decoded
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Copy the last tile decoded into the framebuffer
+     * @param pix What {@link #decodeTile} returned for it
+     */
+    public void putTile(AbstractBitmapData bitmapData, int tx, int ty, int tw, int th, int pix) {
+        if (pix != EXPANDED) {
+            bitmapData.fillRect(tx, ty, tw, th, pix);
+        } else {
+            bitmapData.putRect(tile, 0, tw, tx, ty, tw, th);
+        }
+    }
+
+    private int fillColor(byte[] buf, int p) {
+        if (bytesPerPixel == 1)
+            return colorPalette[buf[p] & 0xFF];
+        if (bytesPerPixel == 2)
+            return colorPalette[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+        return 0xFF000000 | (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+    }
+
+    // Returns the position after the pixels
+    private int readRaw(byte[] buf, int p, int count) {
+        int[] tile = this.tile;
+        if (bytesPerPixel == 1) {
+            int[] colors = colorPalette;
+            for (int i = 0; i < count; i++)
+                tile[i] = colors[buf[p++] & 0xFF];
+        } else if (bytesPerPixel == 2) {
+            int[] colors = colorPalette;
+            for (int i = 0; i < count; i++, p += 2)
+                tile[i] = colors[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+        } else {
+            for (int i = 0; i < count; i++, p += 4)
+                tile[i] = (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,37 @@
+package org.poc.vnc.domain;
+
+/**
+ * Receives the server messages framed by {@link RfbMessageParser}.
+ * <p>
+ * Buffers passed to these methods belong to the parser and are only valid for the duration of
+ * the call.
+ */
+public interface IRfbMessageListener {
+    /**
+     * A FramebufferUpdate header has arrived
+     * @param nRects Number of rectangles announced (0xFFFF when terminated by LastRect)
+     */
+    void onFramebufferUpdateBegin(int nRects) throws Exception;
+
+    /**
+     * One complete rectangle of the current FramebufferUpdate, including pseudo-encodings
+     * @param data Buffer holding the rectangle payload, exactly as it came off the wire
+     * @param offset Start of the payload in data
+     * @param length Payload length; 0 for rectangles with no payload
+     */
+    void onRect(int x, int y, int w, int h, int encoding, byte[] data, int offset, int length) throws Exception;
+
+    /**
+     * The last rectangle of the current FramebufferUpdate has been delivered
+     */
+    void onFramebufferUpdateEnd() throws Exception;
+
+    /**
+     * Any other complete server message
+     * @param msgType Message type
+     * @param data Buffer holding the message body, without the message type byte
+     * @param offset Start of the body in data
+     * @param length Body length
+     */
+    void onMessage(int msgType, byte[] data, int offset, int length) throws Exception;
+}
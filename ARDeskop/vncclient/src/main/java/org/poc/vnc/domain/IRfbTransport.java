@@ -0,0 +1,26 @@
+package org.poc.vnc.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte transport underneath {@link RfbProto}.
+ * <p>
+ * RfbProto only needs a pair of streams and a way to shut them down; implementations decide how
+ * the bytes actually move (plain blocking socket, NIO channel, ...).
+ */
+public interface IRfbTransport {
+    /**
+     * @return Stream the protocol reads server messages from; implementations are expected to
+     * do their own buffering
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return Stream the protocol writes client messages to
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,16 @@
+package org.poc.vnc.domain;
+
+import java.io.IOException;
+
+/**
+ * Opens the {@link IRfbTransport} a new {@link RfbProto} talks through.
+ */
+public interface IRfbTransportFactory {
+    /**
+     * Connect to an RFB server
+     * @param host Host name or address
+     * @param port TCP port
+     * @return Connected transport
+     */
+    IRfbTransport open(String host, int port) throws IOException;
+}
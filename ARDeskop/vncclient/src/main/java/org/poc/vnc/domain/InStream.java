@@ -44,6 +44,22 @@ abstract public class InStream {
       overrun(itemSize, 1);
   }
 
+  // ensure() makes sure there are at least n bytes of buffer data, where n
+  // is no more than the buffer size, and returns the number there are.
+  // Together with getbuf(), getptr() and setptr() it lets a decoder check
+  // once and then run a tight loop over the buffer itself.
+
+  public final int ensure(int n) throws Exception {
+    if (ptr + n > end)
+      overrun(n, 1);
+    return end - ptr;
+  }
+
+  // available() returns the number of bytes of buffer data, which can be
+  // read without a check.
+
+  public final int available() { return end - ptr; }
+
   // readU/SN() methods read unsigned and signed N-bit integers.
 
   public final int readS8() throws Exception {
@@ -0,0 +1,84 @@
+package org.poc.vnc.domain;
+
+import java.io.EOFException;
+import java.io.InputStream;
+
+/**
+ * InStream reading straight from a java.io.InputStream, so rectangle data is decoded as it
+ * arrives instead of being staged in a buffer the size of the rectangle.
+ * <p>
+ * The stream must never consume data belonging to the next rectangle or message, so that the
+ * underlying stream can be handed back to ordinary reads when a rectangle is done.  When the
+ * length of the data is known, as for ZRLE, a refill takes whatever has arrived up to that
+ * length.  When it isn't, as for TRLE, a refill reads only as many bytes as were asked for.
+ */
+public class JavaInStream extends InStream {
+
+    static final int DEFAULT_BUF_SIZE = 16384;
+
+    private InputStream in;
+    private int offset;
+    // Bytes that may still be read from in, or -1 if unknown
+    private int limit;
+
+    public JavaInStream() {
+        this(DEFAULT_BUF_SIZE);
+    }
+
+    public JavaInStream(int bufSize) {
+        b = new byte[bufSize];
+        ptr = end = 0;
+    }
+
+    /**
+     * Read from in from now on, dropping anything buffered; reads are never more than asked for
+     */
+    public void setUnderlying(InputStream in) {
+        setUnderlying(in, -1);
+    }
+
+    /**
+     * Read at most length bytes from in from now on, dropping anything buffered
+     */
+    public void setUnderlying(InputStream in, int length) {
+        this.in = in;
+        limit = length;
+        offset = 0;
+        ptr = end = 0;
+    }
+
+    public int pos() {
+        return offset + ptr;
+    }
+
+    protected int overrun(int itemSize, int nItems) throws Exception {
+        if (itemSize > b.length)
+            throw new Exception("JavaInStream overrun: max itemSize exceeded");
+
+        if (end != ptr)
+            System.arraycopy(b, ptr, b, 0, end - ptr);
+        offset += ptr;
+        end -= ptr;
+        ptr = 0;
+
+        int wanted = itemSize * nItems;
+        if (limit >= 0) {
+            if (end + limit < itemSize)
+                throw new Exception("JavaInStream overrun: end of data");
+            wanted = end + limit;
+        }
+        wanted = Math.min(wanted, b.length);
+        while (end < itemSize) {
+            int n = in.read(b, end, wanted - end);
+            if (n < 0)
+                throw new EOFException("JavaInStream: end of stream");
+            end += n;
+            if (limit >= 0)
+                limit -= n;
+        }
+
+        if (itemSize * nItems > end)
+            nItems = end / itemSize;
+        return nItems;
+    }
+}
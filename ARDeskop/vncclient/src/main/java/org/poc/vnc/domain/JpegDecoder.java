@@ -0,0 +1,490 @@
+package org.poc.vnc.domain;
+
+/**
+ * Pure Java baseline JPEG decoder that can scale while decoding.
+ * <p>
+ * Scaling happens in the DCT domain: for 1/2, 1/4 and 1/8 scale only the top-left 4x4, 2x2
+ * or 1x1 coefficients of each block are transformed, with a 4, 2 or 1 point inverse DCT, so
+ * the cost of the transform falls with the square of the scale.  This is the same technique
+ * libjpeg uses for its scaled output, which BitmapFactory exposes as inSampleSize.
+ * <p>
+ * It exists as a reference that runs without Android, so the scaled Tight JPEG path can be
+ * checked and timed off-device, and as a fallback.  Only what Tight servers produce is
+ * supported: baseline or extended sequential Huffman coding, 8-bit samples, one (grey) or
+ * three (YCbCr) components with any sampling factors, and restart intervals.  Buffers are
+ * kept and reused from one image to the next.
+ */
+public class JpegDecoder {
+
+    static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // IDCT_TABLES[n][x * n + u]: contribution of coefficient u to sample x of an n point IDCT
+    static final float[][] IDCT_TABLES = new float[9][];
+    static {
+        for (int n = 1; n <= 8; n *= 2) {
+            float[] t = new float[n * n];
+            for (int x = 0; x < n; x++) {
+                for (int u = 0; u < n; u++) {
+                    double c = (u == 0) ? Math.sqrt(0.5) : 1.0;
+                    t[x * n + u] = (float) (0.5 * c * Math.cos((2 * x + 1) * u * Math.PI / (2 * n)));
+                }
+            }
+            IDCT_TABLES[n] = t;
+        }
+    }
+
+    /**
+     * One Huffman table, decoded canonically
+     */
+    static class HuffmanTable {
+        final int[] maxCode = new int[18];
+        final int[] valPtr = new int[17];
+        final int[] minCode = new int[17];
+        final int[] values = new int[256];
+        int count;
+
+        void set(byte[] data, int pos) throws Exception {
+            int code = 0, k = 0;
+            int valuesPos = pos + 16;
+            for (int len = 1; len <= 16; len++) {
+                int count = data[pos + len - 1] & 0xFF;
+                valPtr[len] = k;
+                minCode[len] = code;
+                code += count;
+                k += count;
+                maxCode[len] = count > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+            if (k > 256)
+                throw new Exception("JPEG: bad Huffman table");
+            if (valuesPos + k > data.length)
+                throw new Exception("JPEG: unexpected end of data");
+            for (int i = 0; i < k; i++)
+                values[i] = data[valuesPos + i] & 0xFF;
+            count = k;
+        }
+
+        /**
+         * @return Size of the table in a DHT segment
+         */
+        int length() {
+            return 16 + count;
+        }
+    }
+
+    static class Component {
+        int id, h, v, tq;
+        int blocksPerLine, blocksPerColumn;
+        int dcTable, acTable;
+        int pred;
+        byte[] plane = new byte[0];
+        int planeStride;
+    }
+
+    private final int[][] quantTables = new int[4][64];
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+    private final Component[] components = { new Component(), new Component(), new Component() };
+    private final Component[] scanComponents = new Component[3];
+    private final int[] coefficients = new int[64];
+    private final float[] workspace = new float[64];
+
+    private int nComponents;
+    private int width, height;
+    private int maxH, maxV;
+    private int mcusPerLine, mcusPerColumn;
+    private int restartInterval;
+    private int n; // samples per block side at the current scale
+
+    private int[] pixels = new int[0];
+    private int outWidth, outHeight;
+
+    // Entropy coded data reader
+    private byte[] data;
+    private int pos, end;
+    private int bitBuffer, bitCount;
+
+    /**
+     * Decode a JPEG image at 1/scale of its size
+     * @param scale 1, 2, 4 or 8
+     */
+    public void decode(byte[] src, int offset, int length, int scale) throws Exception {
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8)
+            throw new IllegalArgumentException("JPEG scale must be 1, 2, 4 or 8");
+        n = 8 / scale;
+        data = src;
+        pos = offset;
+        end = offset + length;
+        nComponents = 0;
+        restartInterval = 0;
+
+        if (readU16() != 0xFFD8)
+            throw new Exception("JPEG: missing SOI marker");
+        boolean frame = false;
+        while (true) {
+            int marker = nextMarker();
+            switch (marker) {
+                case 0xFFC0: // baseline
+                case 0xFFC1: // extended sequential, Huffman
+                    readFrame();
+                    frame = true;
+                    break;
+                case 0xFFC4:
+                    readHuffmanTables();
+                    break;
+                case 0xFFDB:
+                    readQuantTables();
+                    break;
+                case 0xFFDD:
+                    readU16();
+                    restartInterval = readU16();
+                    break;
+                case 0xFFDA:
+                    if (!frame)
+                        throw new Exception("JPEG: scan before frame header");
+                    readScan();
+                    break;
+                case 0xFFD9:
+                    if (!frame)
+                        throw new Exception("JPEG: no image");
+                    writePixels(scale);
+                    return;
+                default:
+                    if (marker >= 0xFFC2 && marker <= 0xFFCF && marker != 0xFFC4 && marker != 0xFFC8 && marker != 0xFFCC)
+                        throw new Exception("JPEG: unsupported coding process 0x" + Integer.toHexString(marker));
+                    // APPn, COM and anything else with a length: skip
+                    pos += readU16() - 2;
+            }
+        }
+    }
+
+    /**
+     * @return Width of the decoded, scaled image
+     */
+    public int getWidth() {
+        return outWidth;
+    }
+
+    public int getHeight() {
+        return outHeight;
+    }
+
+    /**
+     * @return Decoded image as 0x00RRGGBB, getWidth() pixels per row; reused by the next decode
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    private int readU8() throws Exception {
+        if (pos >= end)
+            throw new Exception("JPEG: unexpected end of data");
+        return data[pos++] & 0xFF;
+    }
+
+    private int readU16() throws Exception {
+        return readU8() << 8 | readU8();
+    }
+
+    private int nextMarker() throws Exception {
+        int b = readU8();
+        while (b != 0xFF)
+            b = readU8();
+        while (b == 0xFF)
+            b = readU8();
+        return 0xFF00 | b;
+    }
+
+    private void readQuantTables() throws Exception {
+        int segmentEnd = pos + readU16();
+        while (pos < segmentEnd) {
+            int pq = readU8();
+            int[] table = quantTables[pq & 3];
+            for (int i = 0; i < 64; i++)
+                table[ZIGZAG[i]] = (pq >> 4) == 0 ? readU8() : readU16();
+        }
+    }
+
+    private void readHuffmanTables() throws Exception {
+        int segmentEnd = pos + readU16();
+        while (pos < segmentEnd) {
+            int tc = readU8();
+            HuffmanTable[] tables = (tc >> 4) == 0 ? dcTables : acTables;
+            int th = tc & 3;
+            if (tables[th] == null)
+                tables[th] = new HuffmanTable();
+            if (pos + 16 > end)
+                throw new Exception("JPEG: unexpected end of data");
+            tables[th].set(data, pos);
+            pos += tables[th].length();
+        }
+    }
+
+    private void readFrame() throws Exception {
+        readU16();
+        if (readU8() != 8)
+            throw new Exception("JPEG: only 8-bit samples are supported");
+        height = readU16();
+        width = readU16();
+        nComponents = readU8();
+        if (nComponents != 1 && nComponents != 3)
+            throw new Exception("JPEG: unsupported number of components " + nComponents);
+        maxH = 1;
+        maxV = 1;
+        for (int i = 0; i < nComponents; i++) {
+            Component c = components[i];
+            c.id = readU8();
+            int hv = readU8();
+            c.h = hv >> 4;
+            c.v = hv & 15;
+            c.tq = readU8() & 3;
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4)
+                throw new Exception("JPEG: bad sampling factors");
+            maxH = Math.max(maxH, c.h);
+            maxV = Math.max(maxV, c.v);
+        }
+        mcusPerLine = (width + 8 * maxH - 1) / (8 * maxH);
+        mcusPerColumn = (height + 8 * maxV - 1) / (8 * maxV);
+        for (int i = 0; i < nComponents; i++) {
+            Component c = components[i];
+            c.blocksPerLine = mcusPerLine * c.h;
+            c.blocksPerColumn = mcusPerColumn * c.v;
+            c.planeStride = c.blocksPerLine * n;
+            int size = c.planeStride * c.blocksPerColumn * n;
+            if (c.plane.length < size)
+                c.plane = new byte[size];
+        }
+    }
+
+    private void readScan() throws Exception {
+        readU16();
+        int count = readU8();
+        for (int i = 0; i < count; i++) {
+            int id = readU8();
+            int tables = readU8();
+            Component c = null;
+            for (int j = 0; j < nComponents; j++)
+                if (components[j].id == id)
+                    c = components[j];
+            if (c == null)
+                throw new Exception("JPEG: scan refers to unknown component " + id);
+            c.dcTable = tables >> 4;
+            c.acTable = tables & 15;
+            c.pred = 0;
+            scanComponents[i] = c;
+        }
+        // Spectral selection and successive approximation; fixed for sequential images
+        pos += 3;
+
+        bitBuffer = 0;
+        bitCount = 0;
+        int restartsLeft = restartInterval;
+        if (count == 1) {
+            // Non-interleaved: one block per MCU, covering only the component's own extent
+            Component c = scanComponents[0];
+            int blocksWide = ((width * c.h + maxH - 1) / maxH + 7) / 8;
+            int blocksHigh = ((height * c.v + maxV - 1) / maxV + 7) / 8;
+            for (int by = 0; by < blocksHigh; by++) {
+                for (int bx = 0; bx < blocksWide; bx++) {
+                    if (restartInterval != 0 && restartsLeft-- == 0) {
+                        restart(scanComponents, count);
+                        restartsLeft = restartInterval - 1;
+                    }
+                    decodeBlock(c, bx, by);
+                }
+            }
+        } else {
+            for (int my = 0; my < mcusPerColumn; my++) {
+                for (int mx = 0; mx < mcusPerLine; mx++) {
+                    if (restartInterval != 0 && restartsLeft-- == 0) {
+                        restart(scanComponents, count);
+                        restartsLeft = restartInterval - 1;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        Component c = scanComponents[i];
+                        for (int v = 0; v < c.v; v++)
+                            for (int h = 0; h < c.h; h++)
+                                decodeBlock(c, mx * c.h + h, my * c.v + v);
+                    }
+                }
+            }
+        }
+        // Leave pos at the marker that ends the scan
+        bitCount = 0;
+        while (pos + 1 < end && !(data[pos] == (byte) 0xFF && data[pos + 1] != 0 && (data[pos + 1] & 0xF8) != 0xD0))
+            pos++;
+    }
+
+    private void restart(Component[] scan, int count) throws Exception {
+        bitBuffer = 0;
+        bitCount = 0;
+        int marker = nextMarker();
+        if ((marker & 0xFFF8) != 0xFFD0)
+            throw new Exception("JPEG: expected restart marker");
+        for (int i = 0; i < count; i++)
+            scan[i].pred = 0;
+    }
+
+    private int readBit() {
+        if (bitCount == 0) {
+            int b = 0;
+            if (pos < end) {
+                b = data[pos] & 0xFF;
+                if (b == 0xFF) {
+                    int next = pos + 1 < end ? data[pos + 1] & 0xFF : 0;
+                    if (next == 0) {
+                        pos += 2;
+                    } else {
+                        // A marker: stay on it and feed zeros
+                        b = 0;
+                    }
+                } else {
+                    pos++;
+                }
+            }
+            bitBuffer = b;
+            bitCount = 8;
+        }
+        bitCount--;
+        return (bitBuffer >> bitCount) & 1;
+    }
+
+    private int receive(int length) {
+        int v = 0;
+        while (length-- > 0)
+            v = v << 1 | readBit();
+        return v;
+    }
+
+    private int receiveExtend(int length) {
+        if (length == 0)
+            return 0;
+        int v = receive(length);
+        return v < 1 << (length - 1) ? v - (1 << length) + 1 : v;
+    }
+
+    private int decodeHuffman(HuffmanTable table) throws Exception {
+        if (table == null)
+            throw new Exception("JPEG: missing Huffman table");
+        int code = readBit();
+        int len = 1;
+        while (code > table.maxCode[len]) {
+            code = code << 1 | readBit();
+            if (++len > 16)
+                throw new Exception("JPEG: bad Huffman code");
+        }
+        return table.values[table.valPtr[len] + code - table.minCode[len]];
+    }
+
+    private void decodeBlock(Component c, int bx, int by) throws Exception {
+        int[] coef = coefficients;
+        for (int i = 0; i < 64; i++)
+            coef[i] = 0;
+        int[] q = quantTables[c.tq];
+
+        int t = decodeHuffman(dcTables[c.dcTable]);
+        c.pred += receiveExtend(t);
+        coef[0] = c.pred * q[0];
+
+        HuffmanTable ac = acTables[c.acTable];
+        for (int k = 1; k < 64; ) {
+            int rs = decodeHuffman(ac);
+            int r = rs >> 4, s = rs & 15;
+            if (s == 0) {
+                if (r != 15)
+                    break;
+                k += 16;
+                continue;
+            }
+            k += r;
+            if (k > 63)
+                throw new Exception("JPEG: bad AC coefficient run");
+            int z = ZIGZAG[k];
+            int value = receiveExtend(s);
+            // Coefficients outside the n x n corner are read but not needed
+            if ((z & 7) < n && (z >> 3) < n)
+                coef[z] = value * q[z];
+            k++;
+        }
+
+        if (bx < c.blocksPerLine && by < c.blocksPerColumn)
+            idct(coef, c.plane, by * n * c.planeStride + bx * n, c.planeStride);
+    }
+
+    /**
+     * n point separable inverse DCT of the top-left n x n coefficients, level shifted
+     */
+    private void idct(int[] coef, byte[] out, int offset, int stride) {
+        float[] t = IDCT_TABLES[n];
+        float[] ws = workspace;
+        // Columns: ws[y * n + u] for coefficient column u
+        for (int u = 0; u < n; u++) {
+            for (int y = 0; y < n; y++) {
+                float sum = 0;
+                for (int v = 0; v < n; v++)
+                    sum += t[y * n + v] * coef[v * 8 + u];
+                ws[y * n + u] = sum;
+            }
+        }
+        // Rows
+        for (int y = 0; y < n; y++) {
+            int o = offset + y * stride;
+            for (int x = 0; x < n; x++) {
+                float sum = 0;
+                for (int u = 0; u < n; u++)
+                    sum += t[x * n + u] * ws[y * n + u];
+                int sample = Math.round(sum) + 128;
+                out[o + x] = (byte) (sample < 0 ? 0 : (sample > 255 ? 255 : sample));
+            }
+        }
+    }
+
+    private void writePixels(int scale) {
+        outWidth = (width + scale - 1) / scale;
+        outHeight = (height + scale - 1) / scale;
+        if (pixels.length < outWidth * outHeight)
+            pixels = new int[outWidth * outHeight];
+
+        Component y = components[0];
+        if (nComponents == 1) {
+            for (int j = 0; j < outHeight; j++) {
+                int row = (j * y.v / maxV) * y.planeStride;
+                for (int i = 0; i < outWidth; i++) {
+                    int g = y.plane[row + i * y.h / maxH] & 0xFF;
+                    pixels[j * outWidth + i] = g << 16 | g << 8 | g;
+                }
+            }
+            return;
+        }
+
+        Component cb = components[1], cr = components[2];
+        for (int j = 0; j < outHeight; j++) {
+            int yRow = (j * y.v / maxV) * y.planeStride;
+            int cbRow = (j * cb.v / maxV) * cb.planeStride;
+            int crRow = (j * cr.v / maxV) * cr.planeStride;
+            for (int i = 0; i < outWidth; i++) {
+                int lum = y.plane[yRow + i * y.h / maxH] & 0xFF;
+                int u = (cb.plane[cbRow + i * cb.h / maxH] & 0xFF) - 128;
+                int v = (cr.plane[crRow + i * cr.h / maxH] & 0xFF) - 128;
+                // JFIF YCbCr to RGB, 16.16 fixed point
+                int r = lum + ((91881 * v + 32768) >> 16);
+                int g = lum - ((22554 * u + 46802 * v + 32768) >> 16);
+                int b = lum + ((116130 * u + 32768) >> 16);
+                r = r < 0 ? 0 : (r > 255 ? 255 : r);
+                g = g < 0 ? 0 : (g > 255 ? 255 : g);
+                b = b < 0 ? 0 : (b > 255 ? 255 : b);
+                pixels[j * outWidth + i] = r << 16 | g << 8 | b;
+            }
+        }
+    }
+}
@@ -114,9 +114,21 @@ public class LargeBitmapData extends AbstractBitmapData {
 	 * @see android.androidVNC.AbstractBitmapData#copyRect(android.graphics.Rect, android.graphics.Rect, android.graphics.Paint)
 	 */
 	@Override
-	public void copyRect(Rect src, Rect dest, Paint paint) {
-		// TODO copy rect working?
-		throw new RuntimeException( "copyrect Not implemented");
+	public synchronized void copyRect(Rect src, Rect dest, Paint paint) {
+		// The source is only there to copy if it is in the bitmap and isn't waiting to be sent;
+		// otherwise have the destination asked for like any other invalid rectangle.  Ask before
+		// validDraw takes the destination off the lists, as the source may overlap it.
+		boolean inBitmap = src.left-xoffset>=0 && src.right-xoffset<=bitmapwidth && src.top-yoffset>=0 && src.bottom-yoffset<=bitmapheight;
+		boolean stale = ! inBitmap || invalidList.testIntersect(src) || pendingList.testIntersect(src);
+		if (! validDraw(dest.left, dest.top, dest.right - dest.left, dest.bottom - dest.top))
+			return;
+		if (stale)
+		{
+			invalidList.add(dest);
+			return;
+		}
+		movePixels(src, dest.left, dest.top);
+		updateBitmap(dest.left, dest.top, dest.right - dest.left, dest.bottom - dest.top);
 	}
 
 	/* (non-Javadoc)
@@ -185,6 +197,9 @@ public class LargeBitmapData extends AbstractBitmapData {
 	 */
 	@Override
     public void updateBitmap(int x, int y, int w, int h) {
+		markDirty(x, y, w, h);
+		if (updateIndexed(x, y, w, h) || updateDirect(x, y, w, h))
+			return;
 		mbitmap.setPixels(bitmapPixels, offset(x,y), bitmapwidth, x-xoffset, y-yoffset, w, h);
 	}
 
@@ -228,6 +243,14 @@ public class LargeBitmapData extends AbstractBitmapData {
 		rfb.writeFramebufferUpdateRequest(xoffset, yoffset, bitmapwidth, bitmapheight, incremental);
 	}
 
+	/* (non-Javadoc)
+	 * @see android.androidVNC.AbstractBitmapData#writeContinuousUpdatesRequest(boolean)
+	 */
+	@Override
+    public synchronized void writeContinuousUpdatesRequest(boolean enable) throws IOException {
+		rfb.writeEnableContinuousUpdates(enable, xoffset, yoffset, bitmapwidth, bitmapheight);
+	}
+
 	/* (non-Javadoc)
 	 * @see android.androidVNC.AbstractBitmapData#syncScroll()
 	 */
@@ -245,6 +268,21 @@ public class LargeBitmapData extends AbstractBitmapData {
 		invalidList.intersect(bitmapRect);
 		if ( deltaX != 0 || deltaY != 0)
 		{
+			// The bitmap now shows another part of the framebuffer
+			markDirty(0, 0, framebufferwidth, framebufferheight);
+			if (continuousUpdates)
+			{
+				// Move the continuously updated region along with the viewport
+				try
+				{
+					writeContinuousUpdatesRequest(true);
+				}
+				catch ( IOException ioe)
+				{
+					// The connection is going; the network thread will hear of it
+					android.util.Log.w("LBM", "Could not move the continuous updates region", ioe);
+				}
+			}
 			boolean didOverlapping = false;
 			if (Math.abs(deltaX) < bitmapwidth && Math.abs(deltaY) < bitmapheight) {
 				ObjectPool.Entry<Rect> sourceEntry = rectPool.reserve();
@@ -0,0 +1,150 @@
+package org.poc.vnc.domain;
+
+import java.io.IOException;
+
+/**
+ * Latency figures for an RFB connection, for the code that picks encodings and request rates.
+ * <p>
+ * The network round trip is measured with fences: a ClientFence with the request flag is
+ * answered by the server as soon as it reads it, so the time to the matching ServerFence is
+ * the round trip with no server-side waiting in it.  Update latency, from sending a
+ * FramebufferUpdateRequest to having decoded the update, is reported by the caller; the
+ * difference between the two is the time the server spent waiting for changes and encoding.
+ * <p>
+ * All times are nanoseconds; 0 means no sample yet.  Only the network thread may update an
+ * instance; getters may be called from any thread.
+ */
+public class LatencyMonitor {
+
+    /** Shortest interval between round trip probes, nanoseconds */
+    public static final long PROBE_INTERVAL = 1000L * 1000 * 1000;
+
+    static final int PROBE_PAYLOAD = 8;
+
+    private final byte[] probe = new byte[PROBE_PAYLOAD];
+    private boolean fencesSupported;
+    private boolean probeOutstanding;
+    private long lastProbe;
+
+    private volatile long roundTrip;
+    private volatile long minRoundTrip;
+    private volatile long lastRoundTrip;
+    private volatile long updateLatency;
+    private volatile long decodeTime;
+
+    /**
+     * @return True once the server has shown it understands fences
+     */
+    public boolean isFencesSupported() {
+        return fencesSupported;
+    }
+
+    /**
+     * The server has sent a fence, so it will also answer ours
+     */
+    public void setFencesSupported() {
+        fencesSupported = true;
+    }
+
+    /**
+     * Send a round trip probe if fences are supported, none is outstanding and the last one
+     * was long enough ago
+     * @return True if a probe was sent
+     */
+    public boolean probe(RfbProto rfb) throws IOException {
+        long now = System.nanoTime();
+        if (!fencesSupported || probeOutstanding || (lastProbe != 0 && now - lastProbe < PROBE_INTERVAL))
+            return false;
+        for (int i = 0; i < PROBE_PAYLOAD; i++)
+            probe[i] = (byte) (now >> (56 - 8 * i));
+        rfb.writeFence(RfbProto.FenceFlagRequest, probe, PROBE_PAYLOAD);
+        lastProbe = now;
+        probeOutstanding = true;
+        return true;
+    }
+
+    /**
+     * Offer the server's answer to a fence
+     * @return True if it answered our probe and a round trip sample was taken
+     */
+    public boolean fenceReply(byte[] payload, int len) {
+        if (!probeOutstanding || len != PROBE_PAYLOAD)
+            return false;
+        long sent = 0;
+        for (int i = 0; i < PROBE_PAYLOAD; i++) {
+            if (payload[i] != probe[i])
+                return false;
+            sent = sent << 8 | (payload[i] & 0xff);
+        }
+        probeOutstanding = false;
+        long sample = System.nanoTime() - sent;
+        lastRoundTrip = sample;
+        if (minRoundTrip == 0 || sample < minRoundTrip)
+            minRoundTrip = sample;
+        roundTrip = smooth(roundTrip, sample);
+        return true;
+    }
+
+    /**
+     * Report a completed update
+     * @param requestToUpdate Time from sending the request it answered to finishing its decode
+     * @param decode Time spent receiving and decoding it
+     */
+    public void updateCompleted(long requestToUpdate, long decode) {
+        if (requestToUpdate > 0)
+            updateLatency = smooth(updateLatency, requestToUpdate);
+        if (decode > 0)
+            decodeTime = smooth(decodeTime, decode);
+    }
+
+    /**
+     * @return Smoothed network round trip time
+     */
+    public long getRoundTripTime() {
+        return roundTrip;
+    }
+
+    /**
+     * @return Shortest round trip seen
+     */
+    public long getMinRoundTripTime() {
+        return minRoundTrip;
+    }
+
+    /**
+     * @return Most recent round trip sample
+     */
+    public long getLastRoundTripTime() {
+        return lastRoundTrip;
+    }
+
+    /**
+     * @return Smoothed time from sending an update request to having decoded the update
+     */
+    public long getUpdateLatency() {
+        return updateLatency;
+    }
+
+    /**
+     * @return Smoothed time to receive and decode an update once it starts arriving
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * @return Time the server takes to produce an update: update latency less the round trip
+     * and decode time; 0 until both have been measured
+     */
+    public long getServerTime() {
+        long rtt = roundTrip, latency = updateLatency;
+        if (rtt == 0 || latency == 0)
+            return 0;
+        return Math.max(0, latency - rtt - decodeTime);
+    }
+
+    // Exponentially weighted average with gain 1/8
+    private static long smooth(long average, long sample) {
+        return average == 0 ? sample : average + (sample - average) / 8;
+    }
+}
@@ -25,6 +25,14 @@ public class MemInStream extends InStream {
     end = offset + len;
   }
 
+  // reset() points the stream at new data, so one instance can read many buffers.
+
+  public void reset(byte[] data, int offset, int len) {
+    b = data;
+    ptr = offset;
+    end = offset + len;
+  }
+
   public int pos() { return ptr; }
 
   protected int overrun(int itemSize, int nItems) throws Exception {
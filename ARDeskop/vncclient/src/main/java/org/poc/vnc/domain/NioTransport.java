@@ -0,0 +1,273 @@
+package org.poc.vnc.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * RFB transport built on a non-blocking {@link SocketChannel}.
+ * <p>
+ * Incoming bytes are pulled into one large, reusable direct receive window, as many as the
+ * kernel has at the time, so the socket is touched once per window instead of once per
+ * protocol field.  The stream from {@link #getInputStream()} serves reads straight out of that
+ * window and only waits (on a selector) when it is empty; {@link #readAvailable()} lets a
+ * caller take whatever has arrived without waiting at all.
+ * <p>
+ * Socket options are fixed before connecting: TCP_NODELAY, and a receive buffer sized to the
+ * bandwidth-delay product of the expected link so the TCP window does not throttle a
+ * high-latency connection.
+ */
+public class NioTransport implements IRfbTransport {
+
+    /** Size of the receive window, bytes */
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
+    /** Connect timeout, milliseconds */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /** Link bandwidth assumed when sizing the socket receive buffer, bits per second */
+    public static final long DEFAULT_BANDWIDTH = 50L * 1000 * 1000;
+    /** Link round trip time assumed when sizing the socket receive buffer, milliseconds */
+    public static final int DEFAULT_RTT = 40;
+
+    static final int MIN_RECEIVE_BUFFER = 64 * 1024;
+    static final int MAX_RECEIVE_BUFFER = 4 * 1024 * 1024;
+    static final int SEND_BUFFER_SIZE = 4096;
+
+    public static final IRfbTransportFactory FACTORY = new IRfbTransportFactory() {
+        @Override
+        public IRfbTransport open(String host, int port) throws IOException {
+            return new NioTransport(host, port, DEFAULT_BANDWIDTH, DEFAULT_RTT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_WINDOW_SIZE);
+        }
+    };
+
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final ByteBuffer window;
+    private final InputStream is;
+    private final OutputStream os;
+    private long bytesReceived;
+
+    /**
+     * @param host Server host
+     * @param port Server port
+     * @param bandwidth Expected link bandwidth in bits per second
+     * @param rtt Expected round trip time in milliseconds
+     * @param connectTimeout Connect timeout in milliseconds; 0 waits forever
+     * @param windowSize Size of the direct receive window in bytes
+     */
+    public NioTransport(String host, int port, long bandwidth, int rtt, int connectTimeout, int windowSize) throws IOException {
+        channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            // Must be set before connect for the window scale option to be negotiated
+            socket.setReceiveBufferSize(receiveBufferSize(bandwidth, rtt));
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        window = ByteBuffer.allocateDirect(windowSize);
+        window.flip(); // window is kept ready for reading; starts empty
+        is = new WindowInputStream();
+        os = new ChannelOutputStream();
+    }
+
+    /**
+     * Socket receive buffer large enough to keep the link full: bandwidth times delay, clamped
+     * to a sane range.
+     */
+    static int receiveBufferSize(long bandwidth, int rtt) {
+        long bdp = bandwidth / 8 * rtt / 1000;
+        if (bdp < MIN_RECEIVE_BUFFER)
+            return MIN_RECEIVE_BUFFER;
+        if (bdp > MAX_RECEIVE_BUFFER)
+            return MAX_RECEIVE_BUFFER;
+        return (int) bdp;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return os;
+    }
+
+    /**
+     * The receive window; position..limit are the bytes received and not yet consumed.
+     * Consumers on the network thread may read from it directly.
+     */
+    public ByteBuffer getWindow() {
+        return window;
+    }
+
+    /**
+     * @return Total bytes taken off the socket since connecting
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Move whatever the kernel has already received into the receive window, without waiting.
+     * @return Number of bytes added; 0 if nothing was waiting or the window is full; -1 at end of stream
+     */
+    public int readAvailable() throws IOException {
+        window.compact();
+        int n;
+        try {
+            n = channel.read(window);
+        } finally {
+            window.flip();
+        }
+        if (n > 0)
+            bytesReceived += n;
+        return n;
+    }
+
+    /**
+     * Wait until at least one more byte is in the receive window.
+     * @return false at end of stream
+     */
+    public boolean fill() throws IOException {
+        while (true) {
+            int n = readAvailable();
+            if (n > 0)
+                return true;
+            if (n < 0)
+                return false;
+            try {
+                readSelector.select();
+            } catch (ClosedSelectorException cse) {
+                throw new IOException("RFB transport closed");
+            }
+            readSelector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+
+    /**
+     * Serves reads out of the receive window, refilling it only when it runs dry
+     */
+    class WindowInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (!window.hasRemaining() && !fill())
+                return -1;
+            return window.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!window.hasRemaining() && !fill())
+                return -1;
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0)
+                return 0;
+            if (!window.hasRemaining() && !fill())
+                return 0;
+            int skipped = (int) Math.min(n, window.remaining());
+            window.position(window.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return window.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            NioTransport.this.close();
+        }
+    }
+
+    /**
+     * Writes through a small direct buffer so the channel never has to copy a heap array.
+     * Single bytes wait in the buffer until it fills, an array is written after them or the
+     * stream is flushed, so a message ending in one must be flushed.
+     */
+    class ChannelOutputStream extends OutputStream {
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            sendBuffer.put((byte) b);
+            if (!sendBuffer.hasRemaining())
+                drain();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, sendBuffer.remaining());
+                sendBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+                drain();
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (sendBuffer.position() > 0)
+                drain();
+        }
+
+        private void drain() throws IOException {
+            sendBuffer.flip();
+            try {
+                while (sendBuffer.hasRemaining()) {
+                    if (channel.write(sendBuffer) == 0) {
+                        try {
+                            writeSelector.select();
+                        } catch (ClosedSelectorException cse) {
+                            throw new IOException("RFB transport closed");
+                        }
+                        writeSelector.selectedKeys().clear();
+                    }
+                }
+            } finally {
+                sendBuffer.clear();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            NioTransport.this.close();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.poc.vnc.domain;
+
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paints the Raw, RRE, CoRRE and Hextile rectangles of an update in parallel.
+ * <p>
+ * None of these encodings keeps state from one rectangle to the next, so once a rectangle's
+ * bytes have been read it can be painted at any time.  The calling thread frames each
+ * rectangle, walking just enough of its structure to find its end, and copies its bytes into
+ * one buffer that is reused from update to update.  Raw rectangles are cut into bands of rows
+ * so that a single large one is shared out too.  {@link #paint} then has a fixed pool of
+ * workers paint the queued rectangles straight into the framebuffer, each taking the next
+ * unclaimed one until none are left.
+ * <p>
+ * Queued rectangles must not overlap, or the result would depend on which worker came last;
+ * the caller paints what is queued before adding one that overlaps, before any rectangle of
+ * another encoding, and at the end of the update, which keeps the server's order wherever it
+ * matters.
+ */
+public class ParallelRectDecoder {
+
+    // Raw rectangles are painted in bands of about this many pixels
+    static final int RAW_BAND_PIXELS = 64 * 1024;
+
+    // Paint before queueing more than this much data
+    static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+
+    // Size of the staging buffer, which grows to hold bigger rectangles
+    static final int INITIAL_DATA_BYTES = 64 * 1024;
+
+    private final Worker[] workers;
+    private final WorkerGroup workerGroup;
+
+    // Queued rectangles: x, y, w, h, encoding and start in data
+    private int[] rects = new int[6 * 64];
+    private int nRects;
+    private byte[] data = new byte[INITIAL_DATA_BYTES];
+    private int dataLength;
+    // 32-bit Raw pixels start at a multiple of 4 in data, and are taken out of this view
+    private IntBuffer dataInts = intView(data);
+
+    private final AtomicInteger nextRect = new AtomicInteger();
+
+    private int bytesPerPixel;
+    private int[] colorPalette;
+    private final RreDecoder rre = new RreDecoder();
+    private AbstractBitmapData bitmapData;
+
+    /**
+     * @param nWorkers Number of threads painting rectangles
+     */
+    public ParallelRectDecoder(int nWorkers) {
+        workers = new Worker[nWorkers];
+        for (int i = 0; i < nWorkers; i++)
+            workers[i] = new Worker();
+        workerGroup = new WorkerGroup("Rectangle worker", workers);
+    }
+
+    /**
+     * @return True for the encodings this class can queue
+     */
+    public static boolean isStateless(int encoding) {
+        switch (encoding) {
+            case RfbProto.EncodingRaw:
+            case RfbProto.EncodingRRE:
+            case RfbProto.EncodingCoRRE:
+            case RfbProto.EncodingHextile:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if nothing is queued
+     */
+    public boolean isEmpty() {
+        return nRects == 0;
+    }
+
+    /**
+     * @return True if what is queued must be painted before this rectangle is added, because
+     * the two overlap or because enough is queued already
+     */
+    public boolean mustPaintBefore(int x, int y, int w, int h) {
+        if (dataLength > MAX_QUEUED_BYTES)
+            return true;
+        for (int i = 0; i < 6 * nRects; i += 6) {
+            if (x < rects[i] + rects[i + 2] && rects[i] < x + w && y < rects[i + 1] + rects[i + 3] && rects[i + 1] < y + h)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read a rectangle's data from is and queue it to be painted.  Rectangles queued together
+     * must have the same pixel format.
+     * @param colorPalette Colours of 8-bit and 16-bit pixels
+     * @param valid False if the rectangle can't be drawn; its data is only read
+     */
+    public void add(DataInputStream is, int x, int y, int w, int h, int encoding, int bytesPerPixel,
+                    int[] colorPalette, boolean valid) throws Exception {
+        this.bytesPerPixel = bytesPerPixel;
+        this.colorPalette = colorPalette;
+
+        int start = dataLength;
+        switch (encoding) {
+            case RfbProto.EncodingRaw: {
+                if (bytesPerPixel == 4) {
+                    ensure(3);
+                    dataLength = (dataLength + 3) & ~3;
+                }
+                int bandHeight = Math.max(1, RAW_BAND_PIXELS / Math.max(w, 1));
+                for (int by = y; by < y + h; by += bandHeight) {
+                    int bh = Math.min(y + h - by, bandHeight);
+                    if (valid)
+                        addRect(x, by, w, bh, encoding);
+                    copy(is, w * bh * bytesPerPixel);
+                }
+                break;
+            }
+            case RfbProto.EncodingRRE:
+            case RfbProto.EncodingCoRRE: {
+                if (valid)
+                    addRect(x, y, w, h, encoding);
+                copy(is, 4 + bytesPerPixel);
+                int nSubrects = s32(dataLength - 4 - bytesPerPixel);
+                int subrectSize = encoding == RfbProto.EncodingRRE ? 8 : 4;
+                if (nSubrects < 0)
+                    throw new Exception("RRE decoder: bad number of subrectangles " + nSubrects);
+                copy(is, nSubrects * (bytesPerPixel + subrectSize));
+                break;
+            }
+            case RfbProto.EncodingHextile:
+                if (valid)
+                    addRect(x, y, w, h, encoding);
+                copyHextile(is, x, y, w, h);
+                break;
+            default:
+                throw new Exception("Can't queue rectangle encoding " + encoding);
+        }
+        if (!valid)
+            dataLength = start;
+    }
+
+    /**
+     * Paint the queued rectangles, then copy them to the bitmap on the calling thread
+     */
+    public void paint(AbstractBitmapData bitmapData) throws Exception {
+        if (nRects == 0)
+            return;
+        this.bitmapData = bitmapData;
+
+        nextRect.set(0);
+        rre.setPixelFormat(bytesPerPixel, colorPalette);
+        for (Worker worker : workers)
+            worker.hextile.setPixelFormat(bytesPerPixel, colorPalette);
+        Throwable failure = workerGroup.runAll();
+        this.bitmapData = null;
+        if (failure != null) {
+            clear();
+            throw new Exception("Rectangle paint failed: " + failure, failure);
+        }
+
+        for (int i = 0; i < 6 * nRects; i += 6)
+            bitmapData.updateBitmap(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+        clear();
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public void shutdown() {
+        workerGroup.shutdown();
+    }
+
+    /**
+     * Give back staging space a big rectangle made grow; call when nothing is queued
+     */
+    public void trim() {
+        if (data.length > INITIAL_DATA_BYTES) {
+            data = new byte[INITIAL_DATA_BYTES];
+            dataInts = intView(data);
+        }
+    }
+
+    private void clear() {
+        nRects = 0;
+        dataLength = 0;
+    }
+
+    private void addRect(int x, int y, int w, int h, int encoding) {
+        if (6 * nRects + 6 > rects.length)
+            rects = Arrays.copyOf(rects, rects.length * 2);
+        int i = 6 * nRects++;
+        rects[i] = x;
+        rects[i + 1] = y;
+        rects[i + 2] = w;
+        rects[i + 3] = h;
+        rects[i + 4] = encoding;
+        rects[i + 5] = dataLength;
+    }
+
+    //
+    // Framing: copy one rectangle's bytes out of the stream
+    //
+
+    private void copyHextile(DataInputStream is, int x, int y, int w, int h) throws Exception {
+        for (int ty = y; ty < y + h; ty += HextileDecoder.TILE_SIZE) {
+            int th = Math.min(y + h - ty, HextileDecoder.TILE_SIZE);
+            for (int tx = x; tx < x + w; tx += HextileDecoder.TILE_SIZE) {
+                int tw = Math.min(x + w - tx, HextileDecoder.TILE_SIZE);
+                ensure(HextileDecoder.MAX_TILE_BYTES);
+                dataLength += HextileDecoder.readTile(is, data, dataLength, tw, th, bytesPerPixel);
+            }
+        }
+    }
+
+    private void ensure(int count) {
+        if (dataLength + count > data.length) {
+            data = Arrays.copyOf(data, Math.max(dataLength + count, data.length * 2));
+            dataInts = intView(data);
+        }
+    }
+
+    private static IntBuffer intView(byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private void copy(DataInputStream is, int count) throws Exception {
+        ensure(count);
+        is.readFully(data, dataLength, count);
+        dataLength += count;
+    }
+
+    private int s32(int i) {
+        return (data[i] & 0xFF) << 24 | (data[i + 1] & 0xFF) << 16 | (data[i + 2] & 0xFF) << 8 | (data[i + 3] & 0xFF);
+    }
+
+    //
+    // Painting: workers claim queued rectangles and paint them into the framebuffer
+    //
+
+    private class Worker implements Runnable {
+        // This worker's own view of dataInts, whose position it moves
+        private IntBuffer ints;
+        private IntBuffer intsOf;
+        final HextileDecoder hextile = new HextileDecoder();
+        // Row for AbstractBitmapData's rowWritten, while the framebuffer is in a buffer
+        private int[] row = new int[0];
+
+        @Override
+        public void run() {
+            if (intsOf != dataInts) {
+                intsOf = dataInts;
+                ints = dataInts.duplicate();
+            }
+            int n;
+            while ((n = nextRect.getAndIncrement()) < nRects)
+                paintRect(n, this);
+        }
+
+        int[] rowArray(int w) {
+            if (bitmapData.bitmapPixels == null && row.length < w)
+                row = new int[w];
+            return bitmapData.rowArray(row);
+        }
+    }
+
+    private void paintRect(int n, Worker worker) {
+        int i = 6 * n;
+        int x = rects[i], y = rects[i + 1], w = rects[i + 2], h = rects[i + 3];
+        int p = rects[i + 5];
+        switch (rects[i + 4]) {
+            case RfbProto.EncodingRaw:
+                paintRaw(p, x, y, w, h, worker);
+                break;
+            case RfbProto.EncodingRRE:
+                paintRRE(p, x, y, w, h, false);
+                break;
+            case RfbProto.EncodingCoRRE:
+                paintRRE(p, x, y, w, h, true);
+                break;
+            case RfbProto.EncodingHextile:
+                paintHextile(p, x, y, w, h, worker.hextile);
+                break;
+        }
+    }
+
+    // Returns the position after the pixels.  Given the worker's ints, aligned 32-bit pixels
+    // are copied as they are: they are already the framebuffer's, apart from the padding byte.
+    private int paintRaw(int p, int x, int y, int w, int h, Worker worker) {
+        IntBuffer ints = worker.ints;
+        if (ints != null && bytesPerPixel == 4 && (p & 3) == 0) {
+            ints.position(p >> 2);
+            bitmapData.putRect(ints, x, y, w, h);
+            return p + 4 * w * h;
+        }
+        byte[] data = this.data;
+        int[] pixels = worker.rowArray(w);
+        for (int j = 0; j < h; j++) {
+            int offset = bitmapData.rowOffset(pixels, x, y + j);
+            if (bytesPerPixel == 1) {
+                for (int k = 0; k < w; k++)
+                    pixels[offset + k] = colorPalette[data[p++] & 0xFF];
+            } else if (bytesPerPixel == 2) {
+                for (int k = 0; k < w; k++, p += 2)
+                    pixels[offset + k] = colorPalette[(data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8];
+            } else {
+                for (int k = 0; k < w; k++, p += 4)
+                    pixels[offset + k] = (data[p + 2] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (data[p] & 0xFF);
+            }
+            bitmapData.rowWritten(pixels, x, y + j, w);
+        }
+        return p;
+    }
+
+    private void paintRRE(int p, int x, int y, int w, int h, boolean compact) {
+        rre.paint(bitmapData, data, p + 4, s32(p), x, y, w, h, compact);
+    }
+
+    private void paintHextile(int p, int x, int y, int w, int h, HextileDecoder hextile) {
+        hextile.startRect();
+        for (int ty = y; ty < y + h; ty += HextileDecoder.TILE_SIZE) {
+            int th = Math.min(y + h - ty, HextileDecoder.TILE_SIZE);
+            for (int tx = x; tx < x + w; tx += HextileDecoder.TILE_SIZE) {
+                int tw = Math.min(x + w - tx, HextileDecoder.TILE_SIZE);
+                int pix = hextile.decodeTile(data, p, tw, th);
+                hextile.putTile(bitmapData, tx, ty, tw, th, pix);
+                p = hextile.getEnd();
+            }
+        }
+    }
+}
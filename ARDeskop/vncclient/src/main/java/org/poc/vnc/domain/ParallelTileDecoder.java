@@ -0,0 +1,219 @@
+package org.poc.vnc.domain;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes ZRLE and ZYWRLE rectangles in two stages.
+ * <p>
+ * The zlib stream can only be inflated in order, but once a tile's bytes are known its
+ * expansion into pixels depends on nothing else.  The calling thread therefore inflates the
+ * rectangle and splits it into tiles, copying each tile's bytes into one buffer and noting
+ * where it starts; finding a tile's end only takes a walk over its run lengths.  A fixed pool
+ * of workers then expands the tiles straight into the framebuffer, each taking the next
+ * unclaimed tile until none are left.  Tiles don't overlap, so workers never write the same
+ * pixels.
+ * <p>
+ * TRLE can't be split this way, since a tile may reuse the previous tile's palette.
+ */
+public class ParallelTileDecoder {
+
+    static final int TILE_SIZE = 64;
+
+    // Size of the staging buffer, which grows to hold bigger rectangles
+    static final int INITIAL_DATA_BYTES = 64 * 1024;
+
+    private final Worker[] workers;
+    private final WorkerGroup workerGroup;
+
+    // Tiles of the current rectangle: x, y, w, h and start in data
+    private int[] tiles = new int[5 * 64];
+    private int nTiles;
+    private byte[] data = new byte[INITIAL_DATA_BYTES];
+    private int dataLength;
+
+    private final AtomicInteger nextTile = new AtomicInteger();
+
+    private int bytesPerPixel;
+    private int zywrleLevel;
+    private AbstractBitmapData bitmapData;
+
+    /**
+     * @param nWorkers Number of threads expanding tiles
+     */
+    public ParallelTileDecoder(int nWorkers) {
+        workers = new Worker[nWorkers];
+        for (int i = 0; i < nWorkers; i++)
+            workers[i] = new Worker();
+        workerGroup = new WorkerGroup("ZRLE tile worker", workers);
+    }
+
+    /**
+     * @return Number of threads expanding tiles
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Decode the tiles of a rectangle whose inflated data is read from is
+     * @param zywrleLevel Wavelet level if the rectangle is ZYWRLE, otherwise 0
+     * @param colorPalette Colours of 8-bit and 16-bit pixels
+     * @param valid False if the rectangle can't be drawn; its data is only read
+     */
+    public void decode(InStream is, int x, int y, int w, int h, int zywrleLevel, int bytesPerPixel,
+                       int[] colorPalette, AbstractBitmapData bitmapData, boolean valid) throws Exception {
+        this.bytesPerPixel = bytesPerPixel;
+        this.zywrleLevel = zywrleLevel;
+        this.bitmapData = bitmapData;
+
+        nTiles = 0;
+        dataLength = 0;
+        for (int ty = y; ty < y + h; ty += TILE_SIZE) {
+            int th = Math.min(y + h - ty, TILE_SIZE);
+            for (int tx = x; tx < x + w; tx += TILE_SIZE) {
+                int tw = Math.min(x + w - tx, TILE_SIZE);
+                addTile(tx, ty, tw, th);
+                copyTile(is, tw, th);
+            }
+        }
+        if (!valid)
+            return;
+
+        nextTile.set(0);
+        for (Worker worker : workers)
+            worker.decoder.setPixelFormat(bytesPerPixel, colorPalette);
+        Throwable failure = workerGroup.runAll();
+        this.bitmapData = null;
+        if (failure != null)
+            throw new Exception("ZRLE tile decode failed: " + failure.getCause(), failure);
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public void shutdown() {
+        workerGroup.shutdown();
+    }
+
+    /**
+     * Give back staging space a big rectangle made grow; call when nothing is queued
+     */
+    public void trim() {
+        if (data.length > INITIAL_DATA_BYTES) {
+            data = new byte[INITIAL_DATA_BYTES];
+        }
+    }
+
+    private void addTile(int tx, int ty, int tw, int th) {
+        if (5 * nTiles + 5 > tiles.length)
+            tiles = Arrays.copyOf(tiles, tiles.length * 2);
+        int i = 5 * nTiles++;
+        tiles[i] = tx;
+        tiles[i + 1] = ty;
+        tiles[i + 2] = tw;
+        tiles[i + 3] = th;
+        tiles[i + 4] = dataLength;
+    }
+
+    //
+    // Stage one: copy one tile's bytes out of the inflated stream
+    //
+
+    private void copyTile(InStream is, int tw, int th) throws Exception {
+        int mode = copyU8(is);
+        if (zywrleLevel > 0 && mode == 0)
+            mode = copyU8(is);
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+        int cpixel = bytesPerPixel == 4 ? 3 : bytesPerPixel;
+
+        copy(is, palSize * cpixel);
+        if (palSize == 1)
+            return;
+
+        if (!rle) {
+            if (palSize == 0) {
+                copy(is, tw * th * cpixel);
+            } else {
+                int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+                copy(is, th * ((tw * bppp + 7) / 8));
+            }
+            return;
+        }
+
+        int left = tw * th;
+        while (left > 0) {
+            int len = 1;
+            boolean run;
+            if (palSize == 0) {
+                copy(is, cpixel);
+                run = true;
+            } else {
+                run = (copyU8(is) & 128) != 0;
+            }
+            if (run) {
+                int b;
+                do {
+                    b = copyU8(is);
+                    len += b;
+                } while (b == 255);
+            }
+            if (len > left)
+                throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+            left -= len;
+        }
+    }
+
+    private void ensure(int count) {
+        if (dataLength + count > data.length)
+            data = Arrays.copyOf(data, Math.max(dataLength + count, data.length * 2));
+    }
+
+    private void copy(InStream is, int count) throws Exception {
+        ensure(count);
+        is.readBytes(data, dataLength, count);
+        dataLength += count;
+    }
+
+    private int copyU8(InStream is) throws Exception {
+        ensure(1);
+        int b = is.readU8();
+        data[dataLength++] = (byte) b;
+        return b;
+    }
+
+    //
+    // Stage two: expand claimed tiles into the framebuffer
+    //
+
+    private class Worker implements Runnable {
+        final RleTileDecoder decoder = new RleTileDecoder();
+        final MemInStream in = new MemInStream(data, 0, 0);
+
+        @Override
+        public void run() {
+            try {
+                int n;
+                while ((n = nextTile.getAndIncrement()) < nTiles)
+                    expand(n);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void expand(int n) throws Exception {
+            int i = 5 * n;
+            int tx = tiles[i], ty = tiles[i + 1], tw = tiles[i + 2], th = tiles[i + 3];
+            int start = tiles[i + 4];
+            int end = n + 1 < nTiles ? tiles[i + 9] : dataLength;
+            in.reset(data, start, end - start);
+
+            int pix = decoder.decodeTile(in, tw, th, false, zywrleLevel);
+            if (pix != RleTileDecoder.EXPANDED)
+                bitmapData.fillRect(tx, ty, tw, th, 0xFF000000 | pix);
+            else
+                bitmapData.putRect(decoder.getPixels(), 0, tw, tx, ty, tw, th);
+        }
+    }
+}
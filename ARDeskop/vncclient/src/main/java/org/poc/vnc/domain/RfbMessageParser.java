@@ -0,0 +1,548 @@
+package org.poc.vnc.domain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resumable framer for the server-to-client half of the RFB protocol.
+ * <p>
+ * Unlike the RfbProto read methods, which block on the socket in the middle of a message, this
+ * parser takes whatever bytes have arrived, advances as far as they allow and remembers where
+ * it stopped.  Each time a whole message or rectangle is available it is handed to an
+ * {@link IRfbMessageListener}, so decoding never waits on the network and one thread can
+ * service any number of connections.
+ * <p>
+ * The parser only frames: it knows how long every supported encoding is, not what the pixels
+ * are.  It must be told the current pixel size, since that determines most payload lengths.
+ */
+public class RfbMessageParser {
+
+    // Parser states.  In every state the parser is waiting for buf to hold need bytes.
+    static final int
+        S_MSG_TYPE         = 0,
+        S_FBU_HEADER       = 1,
+        S_RECT_HEADER      = 2,
+        S_RECT_DONE        = 3,
+        S_RRE_HEADER       = 4,
+        S_CORRE_HEADER     = 5,
+        S_HEXTILE_TILE     = 6,
+        S_HEXTILE_COUNT    = 7,
+        S_HEXTILE_DONE     = 8,
+        S_LENGTH_PREFIXED  = 9,
+        S_MESSAGE_DONE     = 10,
+        S_COLOURMAP_HEADER = 11,
+        S_CUTTEXT_HEADER   = 12,
+        S_TEXTCHAT_HEADER  = 13,
+        S_FENCE_HEADER     = 14,
+        S_TIGHT_CONTROL    = 15,
+        S_TIGHT_FILTER     = 16,
+        S_TIGHT_PALETTE    = 17,
+        S_TIGHT_DATA       = 18,
+        S_TIGHT_LENGTH     = 19,
+        S_TRLE_TILE        = 20,
+        S_TRLE_RUN         = 21,
+        S_TRLE_RUN_LENGTH  = 22,
+        S_TRLE_DONE        = 23;
+
+    /** Largest single message or rectangle accepted, same limit the ZRLE decoder applies */
+    static final int MAX_UNIT_SIZE = 64 * 1024 * 1024;
+
+    private final IRfbMessageListener listener;
+    private int bytesPerPixel;
+    private int framebufferWidth;
+    private int framebufferHeight;
+
+    private byte[] buf = new byte[4096];
+    private int have;
+    private int need;
+    private int state;
+
+    private int msgType;
+    private int rectsLeft;
+    private int rectX, rectY, rectW, rectH, rectEncoding;
+    private int tileX, tileY, tileW, tileH;
+    private int hextileSubencoding;
+    private int tightColors, tightLength, tightLengthBytes;
+    private int trlePaletteSize, trlePixelsLeft, trleRunLength;
+    private boolean trlePaletteRle;
+
+    /**
+     * @param listener Receives framed messages
+     * @param bytesPerPixel Size of a pixel in the negotiated pixel format
+     * @param framebufferWidth Current framebuffer width, for checking rectangle bounds
+     * @param framebufferHeight Current framebuffer height
+     */
+    public RfbMessageParser(IRfbMessageListener listener, int bytesPerPixel, int framebufferWidth, int framebufferHeight) {
+        this.listener = listener;
+        this.bytesPerPixel = bytesPerPixel;
+        this.framebufferWidth = framebufferWidth;
+        this.framebufferHeight = framebufferHeight;
+        state = S_MSG_TYPE;
+        need = 1;
+    }
+
+    /**
+     * Change the pixel size used to frame subsequent rectangles; call after SetPixelFormat
+     */
+    public void setBytesPerPixel(int bytesPerPixel) {
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    public void setFramebufferSize(int width, int height) {
+        framebufferWidth = width;
+        framebufferHeight = height;
+    }
+
+    /**
+     * @return True if the parser is between messages
+     */
+    public boolean isIdle() {
+        return state == S_MSG_TYPE && have == 0;
+    }
+
+    /**
+     * Consume bytes from an array, delivering every message they complete
+     * @return Number of bytes consumed; always len
+     */
+    public int feed(byte[] src, int off, int len) throws Exception {
+        int end = off + len;
+        while (true) {
+            if (have < need) {
+                int n = Math.min(need - have, end - off);
+                if (n == 0)
+                    break;
+                System.arraycopy(src, off, buf, have, n);
+                have += n;
+                off += n;
+                if (have < need)
+                    break;
+            }
+            step();
+        }
+        return len;
+    }
+
+    /**
+     * Consume everything between the position and limit of a buffer, delivering every message
+     * it completes.  On return the buffer position equals its limit.
+     */
+    public void feed(ByteBuffer src) throws Exception {
+        while (true) {
+            if (have < need) {
+                int n = Math.min(need - have, src.remaining());
+                if (n == 0)
+                    break;
+                src.get(buf, have, n);
+                have += n;
+                if (have < need)
+                    break;
+            }
+            step();
+        }
+    }
+
+    /**
+     * Start a new unit: wait for count bytes at the start of the buffer
+     */
+    private void expect(int newState, int count) throws Exception {
+        need = 0;
+        more(newState, count);
+    }
+
+    /**
+     * Continue the current unit: wait for count more bytes after those already needed
+     */
+    private void more(int newState, int count) throws Exception {
+        if (count < 0 || need + count > MAX_UNIT_SIZE)
+            throw new Exception("RFB message too large or corrupt (" + count + " bytes)");
+        state = newState;
+        need += count;
+        if (need > buf.length) {
+            byte[] newBuf = new byte[Math.max(need, buf.length * 2)];
+            System.arraycopy(buf, 0, newBuf, 0, have);
+            buf = newBuf;
+        }
+    }
+
+    private int u8(int i) {
+        return buf[i] & 0xff;
+    }
+
+    private int u16(int i) {
+        return (buf[i] & 0xff) << 8 | (buf[i + 1] & 0xff);
+    }
+
+    private int s32(int i) {
+        return (buf[i] & 0xff) << 24 | (buf[i + 1] & 0xff) << 16 | (buf[i + 2] & 0xff) << 8 | (buf[i + 3] & 0xff);
+    }
+
+    /**
+     * buf holds exactly need bytes; act on them
+     */
+    private void step() throws Exception {
+        switch (state) {
+            case S_MSG_TYPE:
+                msgType = u8(0);
+                have = 0;
+                startMessage();
+                break;
+            case S_FBU_HEADER:
+                rectsLeft = u16(1);
+                have = 0;
+                listener.onFramebufferUpdateBegin(rectsLeft);
+                if (rectsLeft == 0)
+                    endUpdate();
+                else
+                    expect(S_RECT_HEADER, 12);
+                break;
+            case S_RECT_HEADER:
+                rectX = u16(0);
+                rectY = u16(2);
+                rectW = u16(4);
+                rectH = u16(6);
+                rectEncoding = s32(8);
+                have = 0;
+                startRect();
+                break;
+            case S_RRE_HEADER:
+                more(S_RECT_DONE, s32(0) * (bytesPerPixel + 8));
+                break;
+            case S_CORRE_HEADER:
+                more(S_RECT_DONE, s32(0) * (bytesPerPixel + 4));
+                break;
+            case S_HEXTILE_TILE:
+                startHextileTile(u8(need - 1));
+                break;
+            case S_HEXTILE_COUNT: {
+                int nSubrects = u8(need - 1);
+                int subrectSize = (hextileSubencoding & RfbProto.HextileSubrectsColoured) != 0 ? bytesPerPixel + 2 : 2;
+                more(S_HEXTILE_DONE, nSubrects * subrectSize);
+                break;
+            }
+            case S_HEXTILE_DONE:
+                nextHextileTile();
+                break;
+            case S_LENGTH_PREFIXED:
+                more(S_RECT_DONE, s32(need - 4));
+                break;
+            case S_RECT_DONE:
+                endRect();
+                break;
+            case S_COLOURMAP_HEADER:
+                more(S_MESSAGE_DONE, u16(3) * 6);
+                break;
+            case S_CUTTEXT_HEADER:
+                more(S_MESSAGE_DONE, s32(3));
+                break;
+            case S_TEXTCHAT_HEADER: {
+                // Negative lengths are chat control codes with no text
+                int len = s32(3);
+                more(S_MESSAGE_DONE, len > 0 ? len : 0);
+                break;
+            }
+            case S_TIGHT_CONTROL:
+                startTight(u8(need - 1) >> 4);
+                break;
+            case S_TIGHT_FILTER: {
+                int filter = u8(need - 1);
+                if (filter == RfbProto.TightFilterPalette)
+                    more(S_TIGHT_PALETTE, 1);
+                else if (filter == RfbProto.TightFilterCopy || filter == RfbProto.TightFilterGradient)
+                    startTightData();
+                else
+                    throw new Exception("Incorrect tight filter id: " + filter);
+                break;
+            }
+            case S_TIGHT_PALETTE:
+                tightColors = u8(need - 1) + 1;
+                more(S_TIGHT_DATA, tightColors * compactPixelSize());
+                break;
+            case S_TIGHT_DATA:
+                startTightData();
+                break;
+            case S_TIGHT_LENGTH: {
+                int b = u8(need - 1);
+                tightLength |= (tightLengthBytes < 2 ? b & 0x7F : b) << (7 * tightLengthBytes);
+                tightLengthBytes++;
+                if ((b & 0x80) != 0 && tightLengthBytes < 3)
+                    more(S_TIGHT_LENGTH, 1);
+                else
+                    more(S_RECT_DONE, tightLength);
+                break;
+            }
+            case S_TRLE_TILE:
+                startTrleTile(u8(need - 1));
+                break;
+            case S_TRLE_RUN:
+                if (!trlePaletteRle || (u8(need - 1) & 128) != 0) {
+                    trleRunLength = 1;
+                    more(S_TRLE_RUN_LENGTH, 1);
+                } else {
+                    endTrleRun(1);
+                }
+                break;
+            case S_TRLE_RUN_LENGTH: {
+                int b = u8(need - 1);
+                trleRunLength += b;
+                if (b == 255)
+                    more(S_TRLE_RUN_LENGTH, 1);
+                else
+                    endTrleRun(trleRunLength);
+                break;
+            }
+            case S_TRLE_DONE:
+                nextTrleTile();
+                break;
+            case S_FENCE_HEADER:
+                more(S_MESSAGE_DONE, u8(7));
+                break;
+            case S_MESSAGE_DONE:
+                listener.onMessage(msgType, buf, 0, have);
+                have = 0;
+                expect(S_MSG_TYPE, 1);
+                break;
+            default:
+                throw new IllegalStateException("RfbMessageParser in unknown state " + state);
+        }
+    }
+
+    private void startMessage() throws Exception {
+        switch (msgType) {
+            case RfbProto.FramebufferUpdate:
+                expect(S_FBU_HEADER, 3);
+                break;
+            case RfbProto.SetColourMapEntries:
+                expect(S_COLOURMAP_HEADER, 5);
+                break;
+            case RfbProto.Bell:
+            case RfbProto.EndOfContinuousUpdates:
+                expect(S_MESSAGE_DONE, 0);
+                break;
+            case RfbProto.ServerCutText:
+                expect(S_CUTTEXT_HEADER, 7);
+                break;
+            case RfbProto.TextChat:
+                expect(S_TEXTCHAT_HEADER, 7);
+                break;
+            case RfbProto.ServerFence:
+                expect(S_FENCE_HEADER, 8);
+                break;
+            default:
+                throw new Exception("Unknown RFB message type " + msgType);
+        }
+    }
+
+    private void startRect() throws Exception {
+        if (rectEncoding >= 0 && rectEncoding <= RfbProto.MaxNormalEncoding || rectEncoding == RfbProto.EncodingPointerPos
+                || rectEncoding == RfbProto.EncodingTileCache) {
+            if (rectX + rectW > framebufferWidth || rectY + rectH > framebufferHeight) {
+                throw new Exception("Framebuffer update rectangle too large: " +
+                        rectW + "x" + rectH + " at (" + rectX + "," + rectY + ")");
+            }
+        }
+        switch (rectEncoding) {
+            case RfbProto.EncodingRaw:
+                expect(S_RECT_DONE, rectW * rectH * bytesPerPixel);
+                break;
+            case RfbProto.EncodingCopyRect:
+                expect(S_RECT_DONE, 4);
+                break;
+            case RfbProto.EncodingRRE:
+                expect(S_RRE_HEADER, 4 + bytesPerPixel);
+                break;
+            case RfbProto.EncodingCoRRE:
+                expect(S_CORRE_HEADER, 4 + bytesPerPixel);
+                break;
+            case RfbProto.EncodingHextile:
+                tileX = rectX;
+                tileY = rectY;
+                if (rectW == 0 || rectH == 0) {
+                    expect(S_RECT_DONE, 0);
+                } else {
+                    setHextileTileSize();
+                    expect(S_HEXTILE_TILE, 1);
+                }
+                break;
+            case RfbProto.EncodingZlib:
+            case RfbProto.EncodingZRLE:
+            case RfbProto.EncodingZYWRLE:
+                expect(S_LENGTH_PREFIXED, 4);
+                break;
+            case RfbProto.EncodingTRLE:
+                tileX = rectX;
+                tileY = rectY;
+                if (rectW == 0 || rectH == 0) {
+                    expect(S_RECT_DONE, 0);
+                } else {
+                    setTrleTileSize();
+                    expect(S_TRLE_TILE, 1);
+                }
+                break;
+            case RfbProto.EncodingTight:
+                tightColors = 0;
+                expect(S_TIGHT_CONTROL, 1);
+                break;
+            case RfbProto.EncodingXCursor:
+            case RfbProto.EncodingRichCursor:
+                expect(S_RECT_DONE, CursorShape.dataLength(rectEncoding, rectW, rectH, bytesPerPixel));
+                break;
+            case RfbProto.EncodingTileCache:
+                expect(S_RECT_DONE, RfbProto.TileCacheDataLength);
+                break;
+            case RfbProto.EncodingPointerPos:
+            case RfbProto.EncodingLastRect:
+            case RfbProto.EncodingNewFBSize:
+                expect(S_RECT_DONE, 0);
+                break;
+            default:
+                throw new Exception("Unknown RFB rectangle encoding " + rectEncoding + " (0x" + Integer.toHexString(rectEncoding) + ")");
+        }
+    }
+
+    private void setHextileTileSize() {
+        tileW = Math.min(rectX + rectW - tileX, 16);
+        tileH = Math.min(rectY + rectH - tileY, 16);
+    }
+
+    private void startHextileTile(int subencoding) throws Exception {
+        hextileSubencoding = subencoding;
+        if ((subencoding & RfbProto.HextileRaw) != 0) {
+            more(S_HEXTILE_DONE, tileW * tileH * bytesPerPixel);
+            return;
+        }
+        int colors = 0;
+        if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+            colors += bytesPerPixel;
+        if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+            colors += bytesPerPixel;
+        if ((subencoding & RfbProto.HextileAnySubrects) != 0)
+            more(S_HEXTILE_COUNT, colors + 1);
+        else
+            more(S_HEXTILE_DONE, colors);
+    }
+
+    private void nextHextileTile() throws Exception {
+        tileX += 16;
+        if (tileX >= rectX + rectW) {
+            tileX = rectX;
+            tileY += 16;
+            if (tileY >= rectY + rectH) {
+                state = S_RECT_DONE;
+                return;
+            }
+        }
+        setHextileTileSize();
+        more(S_HEXTILE_TILE, 1);
+    }
+
+    private void setTrleTileSize() {
+        tileW = Math.min(rectX + rectW - tileX, 16);
+        tileH = Math.min(rectY + rectH - tileY, 16);
+    }
+
+    private void startTrleTile(int subencoding) throws Exception {
+        int cpixel = compactPixelSize();
+        int palSize = subencoding & 127;
+        if (subencoding == 127 || subencoding == 129) {
+            // Palette of the previous tile
+            palSize = trlePaletteSize;
+        } else if (subencoding > 16 && subencoding < 128) {
+            throw new Exception("TRLE decoder: bad subencoding " + subencoding);
+        } else {
+            trlePaletteSize = palSize;
+            more(S_TRLE_TILE, palSize * cpixel);
+        }
+        if (subencoding == 0) {
+            more(S_TRLE_DONE, tileW * tileH * cpixel);
+        } else if (subencoding == 1) {
+            state = S_TRLE_DONE;
+        } else if (subencoding < 128) {
+            int bits = palSize > 4 ? 4 : (palSize > 2 ? 2 : 1);
+            more(S_TRLE_DONE, tileH * ((tileW * bits + 7) / 8));
+        } else {
+            trlePaletteRle = subencoding != 128;
+            trlePixelsLeft = tileW * tileH;
+            more(S_TRLE_RUN, trlePaletteRle ? 1 : cpixel);
+        }
+    }
+
+    private void endTrleRun(int length) throws Exception {
+        trlePixelsLeft -= length;
+        if (trlePixelsLeft < 0)
+            throw new Exception("TRLE decoder: run overflows tile");
+        if (trlePixelsLeft > 0)
+            more(S_TRLE_RUN, trlePaletteRle ? 1 : compactPixelSize());
+        else
+            nextTrleTile();
+    }
+
+    private void nextTrleTile() throws Exception {
+        tileX += 16;
+        if (tileX >= rectX + rectW) {
+            tileX = rectX;
+            tileY += 16;
+            if (tileY >= rectY + rectH) {
+                state = S_RECT_DONE;
+                return;
+            }
+        }
+        setTrleTileSize();
+        more(S_TRLE_TILE, 1);
+    }
+
+    // In 24-bit colour Tight and the RLE encodings send pixels as 3 bytes
+    private int compactPixelSize() {
+        return bytesPerPixel == 4 ? 3 : bytesPerPixel;
+    }
+
+    private void startTight(int control) throws Exception {
+        if (control == RfbProto.TightFill) {
+            more(S_RECT_DONE, compactPixelSize());
+        } else if (control == RfbProto.TightJpeg) {
+            startTightLength();
+        } else if (control > RfbProto.TightMaxSubencoding) {
+            throw new Exception("Incorrect tight subencoding: " + control);
+        } else if ((control & RfbProto.TightExplicitFilter) != 0) {
+            more(S_TIGHT_FILTER, 1);
+        } else {
+            startTightData();
+        }
+    }
+
+    private void startTightData() throws Exception {
+        int rowSize;
+        if (tightColors == 2)
+            rowSize = (rectW + 7) / 8;
+        else if (tightColors != 0)
+            rowSize = rectW;
+        else
+            rowSize = rectW * compactPixelSize();
+        int dataSize = rectH * rowSize;
+        if (dataSize < RfbProto.TightMinToCompress)
+            more(S_RECT_DONE, dataSize);
+        else
+            startTightLength();
+    }
+
+    private void startTightLength() throws Exception {
+        tightLength = 0;
+        tightLengthBytes = 0;
+        more(S_TIGHT_LENGTH, 1);
+    }
+
+    private void endRect() throws Exception {
+        listener.onRect(rectX, rectY, rectW, rectH, rectEncoding, buf, 0, have);
+        have = 0;
+        if (rectEncoding == RfbProto.EncodingNewFBSize)
+            setFramebufferSize(rectW, rectH);
+        // LastRect, and a new framebuffer size, end the update early
+        if (--rectsLeft == 0 || rectEncoding == RfbProto.EncodingLastRect || rectEncoding == RfbProto.EncodingNewFBSize)
+            endUpdate();
+        else
+            expect(S_RECT_HEADER, 12);
+    }
+
+    private void endUpdate() throws Exception {
+        expect(S_MSG_TYPE, 1);
+        listener.onFramebufferUpdateEnd();
+    }
+}
@@ -27,7 +27,6 @@
 package org.poc.vnc.domain;
 
 import java.io.*;
-import java.net.Socket;
 import android.util.Log;
 
 import org.poc.vnc.VncCanvas;
@@ -91,7 +90,9 @@ public class RfbProto {
     SetColourMapEntries = 1,
     Bell                = 2,
     ServerCutText       = 3,
-    TextChat 			= 11;
+    TextChat 			= 11,
+    EndOfContinuousUpdates = 150,
+    ServerFence         = 248;
 
   // Client-to-server messages
   final static int
@@ -101,7 +102,9 @@ public class RfbProto {
     FramebufferUpdateRequest = 3,
     KeyboardEvent            = 4,
     PointerEvent             = 5,
-    ClientCutText            = 6;
+    ClientCutText            = 6,
+    EnableContinuousUpdates  = 150,
+    ClientFence              = 248;
 
   // Supported encodings and pseudo-encodings
   public final static int
@@ -112,14 +115,20 @@ public class RfbProto {
     EncodingHextile        = 5,
     EncodingZlib           = 6,
     EncodingTight          = 7,
+    EncodingTRLE           = 15,
     EncodingZRLE           = 16,
+    EncodingZYWRLE         = 17,
     EncodingCompressLevel0 = 0xFFFFFF00,
     EncodingQualityLevel0  = 0xFFFFFFE0,
     EncodingXCursor        = 0xFFFFFF10,
     EncodingRichCursor     = 0xFFFFFF11,
     EncodingPointerPos     = 0xFFFFFF18,
     EncodingLastRect       = 0xFFFFFF20,
-    EncodingNewFBSize      = 0xFFFFFF21;
+    EncodingNewFBSize      = 0xFFFFFF21,
+    EncodingContinuousUpdates = 0xFFFFFEC7,
+    EncodingFence          = 0xFFFFFEC8,
+    // Not registered: only servers we run know it
+    EncodingTileCache      = 0xFFFE4100;
   final static String
     SigEncodingRaw            = "RAW_____",
     SigEncodingCopyRect       = "COPYRECT",
@@ -139,6 +148,22 @@ public class RfbProto {
 
   final static int MaxNormalEncoding = 255;
 
+  // Fence message flags
+  public final static int
+    FenceFlagBlockBefore = 1,
+    FenceFlagBlockAfter  = 2,
+    FenceFlagSyncNext    = 4,
+    FenceFlagRequest     = 0x80000000,
+    FenceFlagsSupported  = FenceFlagBlockBefore | FenceFlagBlockAfter |
+                           FenceFlagSyncNext | FenceFlagRequest;
+  final static int MaxFencePayload = 64;
+
+  // TileCache rectangles: an operation byte and a 64-bit key
+  public final static int
+    TileCacheStore   = 0,
+    TileCacheRestore = 1,
+    TileCacheDataLength = 9;
+
   // Contstants used in the Hextile decoder
   public final static int
     HextileRaw                 = 1,
@@ -148,8 +173,8 @@ public class RfbProto {
     HextileSubrectsColoured    = 16;
 
   // Contstants used in the Tight decoder
-  final static int TightMinToCompress = 12;
-  final static int
+  public final static int TightMinToCompress = 12;
+  public final static int
     TightExplicitFilter = 0x04,
     TightFill           = 0x08,
     TightJpeg           = 0x09,
@@ -166,7 +191,7 @@ public class RfbProto {
 
   String host;
   int port;
-  Socket sock;
+  IRfbTransport transport;
   public DataInputStream is;
   OutputStream os;
   
@@ -225,9 +250,12 @@ public class RfbProto {
   // Constructor. Make TCP connection to RFB server.
   //
 
-  
+  public RfbProto(String h, int p) throws IOException {
+    this(h, p, SocketTransport.FACTORY);
+  }
+
   //-RfbProto(String h, int p, VncViewer v) throws IOException {
-  public RfbProto(String h, int p) throws IOException{
+  public RfbProto(String h, int p, IRfbTransportFactory transportFactory) throws IOException{
   	//- viewer = v;
     host = h;
     port = p;
@@ -250,10 +278,9 @@ public class RfbProto {
       }
     } */
     //+
-    sock = new Socket(host, port);
-    is = new DataInputStream(new BufferedInputStream(sock.getInputStream(),
-						     16384));
-    os = sock.getOutputStream();
+    transport = transportFactory.open(host, port);
+    is = new DataInputStream(transport.getInputStream());
+    os = transport.getOutputStream();
 
     timing = false;
     timeWaitedIn100us = 5;
@@ -261,9 +288,59 @@ public class RfbProto {
   }
  
 
+  public IRfbTransport getTransport() {
+    return transport;
+  }
+
+  // Round trip and update latency, measured with fences
+  final LatencyMonitor latencyMonitor = new LatencyMonitor();
+
+  public LatencyMonitor getLatencyMonitor() {
+    return latencyMonitor;
+  }
+
+  //
+  // Replay of messages already framed by RfbMessageParser. Between
+  // beginReplay() and endReplay() every read method, and is itself, read
+  // from the given buffer instead of the connection, so the existing
+  // decoders can be reused unchanged on bytes that have already arrived.
+  //
+
+  static class ReplayInputStream extends ByteArrayInputStream {
+    ReplayInputStream() {
+      super(new byte[0]);
+    }
+
+    void set(byte[] b, int off, int len) {
+      buf = b;
+      pos = off;
+      count = off + len;
+      mark = off;
+    }
+  }
+
+  private final ReplayInputStream replayStream = new ReplayInputStream();
+  private final DataInputStream replayIs = new DataInputStream(replayStream);
+  private DataInputStream connectionIs;
+
+  public void beginReplay(byte[] b, int off, int len) {
+    replayStream.set(b, off, len);
+    if (connectionIs == null) {
+      connectionIs = is;
+      is = replayIs;
+    }
+  }
+
+  public void endReplay() {
+    if (connectionIs != null) {
+      is = connectionIs;
+      connectionIs = null;
+    }
+  }
+
   public synchronized void close() {
     try {
-      sock.close();
+      transport.close();
       closed = true;
       //- System.out.println("RFB socket closed");
       Log.v(TAG, "RFB socket closed");
@@ -385,6 +462,7 @@ public class RfbProto {
       if (secTypes[i] == SecTypeTight) {
 	protocolTightVNC = true;
 	os.write(SecTypeTight);
+	os.flush();
 	return SecTypeTight;
       }
     }
@@ -401,6 +479,7 @@ public class RfbProto {
       throw new Exception("Server did not offer supported security type");
     } else {
       os.write(secType);
+      os.flush();
     }
 
     return secType;
@@ -653,6 +732,7 @@ public class RfbProto {
     viewer.options.disableShareDesktop();
     */
 	  os.write(0);
+	  os.flush();
   }
 
 
@@ -846,7 +926,8 @@ public class RfbProto {
     }
 	*/
 
-    if (updateRectEncoding != RfbProto.EncodingPointerPos && ( updateRectEncoding < 0 || updateRectEncoding > MaxNormalEncoding ))
+    if (updateRectEncoding != RfbProto.EncodingPointerPos && updateRectEncoding != RfbProto.EncodingTileCache &&
+        ( updateRectEncoding < 0 || updateRectEncoding > MaxNormalEncoding ))
       return;
 
     if (updateRectX + updateRectW > framebufferWidth ||
@@ -875,13 +956,33 @@ public class RfbProto {
   }
 
 
+  //
+  // Read a ServerFence message
+  //
+
+  public int fenceFlags, fenceLength;
+  public byte[] fencePayload = new byte[MaxFencePayload];
+
+  public void readFence() throws IOException {
+    is.readUnsignedByte();
+    is.readUnsignedShort();
+    fenceFlags = is.readInt();
+    fenceLength = is.readUnsignedByte();
+    if (fenceLength > MaxFencePayload)
+      throw new IOException("Fence payload too long: " + fenceLength);
+    readFully(fencePayload, 0, fenceLength);
+  }
+
+
   //
   // Read a ServerCutText message
   //
 
+  // Padding of incoming messages, which is read and ignored
+  byte[] readPad = new byte[3];
+
   public String readServerCutText() throws IOException {
-    byte[] pad = new byte[3];
-    readFully(pad);
+    readFully(readPad);
     int len = is.readInt();
     byte[] text = new byte[len];
     readFully(text);
@@ -892,30 +993,19 @@ public class RfbProto {
   //
   // Read an integer in compact representation (1..3 bytes).
   // Such format is used as a part of the Tight encoding.
-  // Also, this method records data if session recording is active and
-  // the viewer's recordFromBeginning variable is set to true.
-  //
-
-  int readCompactLen() throws IOException {
-    int[] portion = new int[3];
-    portion[0] = is.readUnsignedByte();
-    int byteCount = 1;
-    int len = portion[0] & 0x7F;
-    if ((portion[0] & 0x80) != 0) {
-      portion[1] = is.readUnsignedByte();
-      byteCount++;
-      len |= (portion[1] & 0x7F) << 7;
-      if ((portion[1] & 0x80) != 0) {
-	portion[2] = is.readUnsignedByte();
-	byteCount++;
-	len |= (portion[2] & 0xFF) << 14;
+  //
+
+  public int readCompactLen() throws IOException {
+    int b = is.readUnsignedByte();
+    int len = b & 0x7F;
+    if ((b & 0x80) != 0) {
+      b = is.readUnsignedByte();
+      len |= (b & 0x7F) << 7;
+      if ((b & 0x80) != 0) {
+	b = is.readUnsignedByte();
+	len |= (b & 0xFF) << 14;
       }
     }
-    /*-
-    if (rec != null && recordFromBeginning)
-      for (int i = 0; i < byteCount; i++)
-	rec.writeByte(portion[i]);
-	*/
     return len;
   }
 
@@ -944,17 +1034,66 @@ public class RfbProto {
   }
 
 
+  //
+  // Write a ClientFence message. The server answers a fence carrying
+  // FenceFlagRequest with a ServerFence holding the same payload.
+  //
+
+  byte[] clientFence = new byte[9 + MaxFencePayload];
+  public synchronized void writeFence(int flags, byte[] payload, int len)
+       throws IOException
+  {
+    clientFence[0] = (byte) ClientFence;
+    clientFence[4] = (byte) ((flags >> 24) & 0xff);
+    clientFence[5] = (byte) ((flags >> 16) & 0xff);
+    clientFence[6] = (byte) ((flags >> 8) & 0xff);
+    clientFence[7] = (byte) (flags & 0xff);
+    clientFence[8] = (byte) len;
+    System.arraycopy(payload, 0, clientFence, 9, len);
+
+    os.write(clientFence, 0, 9 + len);
+  }
+
+
+  //
+  // Write an EnableContinuousUpdates message. While enabled the server
+  // sends updates for the given region as it changes, without waiting
+  // for FramebufferUpdateRequests; disabling is confirmed with an
+  // EndOfContinuousUpdates message.
+  //
+
+  byte[] enableContinuousUpdates = new byte[10];
+  public synchronized void writeEnableContinuousUpdates(boolean enable, int x, int y,
+				     int w, int h)
+       throws IOException
+  {
+    enableContinuousUpdates[0] = (byte) EnableContinuousUpdates;
+    enableContinuousUpdates[1] = (byte) (enable ? 1 : 0);
+    enableContinuousUpdates[2] = (byte) ((x >> 8) & 0xff);
+    enableContinuousUpdates[3] = (byte) (x & 0xff);
+    enableContinuousUpdates[4] = (byte) ((y >> 8) & 0xff);
+    enableContinuousUpdates[5] = (byte) (y & 0xff);
+    enableContinuousUpdates[6] = (byte) ((w >> 8) & 0xff);
+    enableContinuousUpdates[7] = (byte) (w & 0xff);
+    enableContinuousUpdates[8] = (byte) ((h >> 8) & 0xff);
+    enableContinuousUpdates[9] = (byte) (h & 0xff);
+
+    os.write(enableContinuousUpdates);
+  }
+
+
   //
   // Write a SetPixelFormat message
   //
 
+  byte[] setPixelFormat = new byte[20];
   synchronized void writeSetPixelFormat(int bitsPerPixel, int depth, boolean bigEndian,
 			   boolean trueColour,
 			   int redMax, int greenMax, int blueMax,
 			   int redShift, int greenShift, int blueShift, boolean fGreyScale) // sf@2005)
        throws IOException
   {
-    byte[] b = new byte[20];
+    byte[] b = setPixelFormat;
 
     b[0]  = (byte) SetPixelFormat;
     b[4]  = (byte) bitsPerPixel;
@@ -1010,8 +1149,11 @@ public class RfbProto {
   // Write a SetEncodings message
   //
 
+  byte[] setEncodings = new byte[4 + 4 * 24];
   public synchronized void writeSetEncodings(int[] encs, int len) throws IOException {
-    byte[] b = new byte[4 + 4 * len];
+    if (setEncodings.length < 4 + 4 * len)
+      setEncodings = new byte[4 + 4 * len];
+    byte[] b = setEncodings;
 
     b[0] = (byte) SetEncodings;
     b[2] = (byte) ((len >> 8) & 0xff);
@@ -1024,7 +1166,7 @@ public class RfbProto {
       b[7 + 4 * i] = (byte) (encs[i] & 0xff);
     }
 
-    os.write(b);
+    os.write(b, 0, 4 + 4 * len);
   }
 
 
@@ -1257,8 +1399,7 @@ public class RfbProto {
 	}
 
 	public String readTextChatMsg() throws Exception {
-		byte[] pad = new byte[3];
-		readFully(pad);
+		readFully(readPad);
 		int len = is.readInt();
 		if (len == CHAT_OPEN) {
 			// Remote user requests chat
@@ -0,0 +1,347 @@
+package org.poc.vnc.domain;
+
+import java.util.Arrays;
+
+/**
+ * Expands one tile of ZRLE, TRLE or ZYWRLE data into 0x00RRGGBB pixels.
+ * <p>
+ * All three encodings share the tile format: a subencoding byte followed by raw, solid,
+ * packed palette, plain RLE or palette RLE data, with pixels as 3 byte CPIXELs in 24-bit
+ * colour.  An instance keeps its own palette and scratch space, so separate instances may
+ * decode separate tiles on separate threads.
+ */
+public class RleTileDecoder {
+
+    /** Largest tile of any of the encodings */
+    public static final int MAX_TILE_SIZE = 64;
+
+    // Most bytes a run length can take: 4095 more pixels is sixteen 255s and a final byte
+    static final int MAX_RUN_LENGTH_BYTES = (MAX_TILE_SIZE * MAX_TILE_SIZE - 1) / 255 + 1;
+
+    /**
+     * Returned by {@link #decodeTile} for tiles that were expanded into {@link #getPixels()}.
+     * Never a colour: those are 0x00RRGGBB or, from a palette, opaque.
+     */
+    public static final int EXPANDED = 0x01000000;
+
+    private final int[] palette = new int[128];
+    private final int[] pixels = new int[MAX_TILE_SIZE * MAX_TILE_SIZE];
+    private int[] zywrleBuf;
+
+    private int bytesPerPixel = 4;
+    private int[] colorPalette;
+
+    // TRLE subencodings 127 and 129 reuse the previous tile's palette
+    private int paletteSize;
+
+    /**
+     * @param bytesPerPixel 1 for 8-bit and 2 for 16-bit colour, where pixels are looked up in
+     * colorPalette, or 4 for 24-bit colour
+     */
+    public void setPixelFormat(int bytesPerPixel, int[] colorPalette) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.colorPalette = colorPalette;
+    }
+
+    /**
+     * @return The last expanded tile, tw pixels per row
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Read and decode one tile
+     * @param trle Accept TRLE's palette reuse subencodings
+     * @param zywrleLevel Wavelet level if the rectangle is ZYWRLE, otherwise 0
+     * @return The colour of a solid tile, which is not expanded, or {@link #EXPANDED}
+     */
+    public int decodeTile(InStream is, int tw, int th, boolean trle, int zywrleLevel) throws Exception {
+        int mode = is.readU8();
+        if (zywrleLevel > 0 && mode == 0) {
+            // A raw ZYWRLE tile holds a tile of wavelet coefficients
+            int pix = readTile(is, is.readU8(), tw, th, false);
+            if (pix != EXPANDED)
+                Arrays.fill(pixels, 0, tw * th, pix);
+            if (zywrleBuf == null)
+                zywrleBuf = new int[MAX_TILE_SIZE * MAX_TILE_SIZE];
+            Zywrle.synthesize(pixels, 0, tw, tw, th, zywrleLevel, zywrleBuf);
+            return EXPANDED;
+        }
+        return readTile(is, mode, tw, th, trle);
+    }
+
+    private int readTile(InStream is, int mode, int tw, int th, boolean trle) throws Exception {
+        boolean rle = (mode & 128) != 0;
+        int palSize;
+        if (trle && (mode == 127 || mode == 129)) {
+            palSize = paletteSize;
+            if (palSize == 0)
+                throw new Exception("TRLE decoder: palette reused before one was sent");
+        } else {
+            palSize = mode & 127;
+            if (trle && !rle && palSize > 16)
+                throw new Exception("TRLE decoder: bad subencoding " + mode);
+
+            readPixels(is, palette, palSize);
+            paletteSize = palSize;
+
+            if (palSize == 1)
+                return palette[0];
+        }
+
+        if (!rle) {
+            if (palSize == 0) {
+                readPixels(is, pixels, tw * th);
+            } else {
+                readPackedPixels(is, tw, th, palSize);
+            }
+        } else {
+            if (palSize == 0) {
+                readPlainRLEPixels(is, tw, th);
+            } else {
+                readPackedRLEPixels(is, tw, th);
+            }
+        }
+        return EXPANDED;
+    }
+
+    private void readPackedPixels(InStream is, int tw, int th, int palSize) throws Exception {
+
+        int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+        int mask = ((1 << bppp) - 1) & 127;
+        int rowBytes = (tw * bppp + 7) / 8;
+        int[] pixels = this.pixels;
+        int[] palette = this.palette;
+        int ptr = 0;
+
+        for (int i = 0; i < th; i++) {
+            // Rows are padded to whole bytes, so each row can be checked for once
+            is.ensure(rowBytes);
+            byte[] buf = is.getbuf();
+            int p = is.getptr();
+            int eol = ptr + tw;
+            int b = 0;
+            int nbits = 0;
+
+            while (ptr < eol) {
+                if (nbits == 0) {
+                    b = buf[p++] & 0xFF;
+                    nbits = 8;
+                }
+                nbits -= bppp;
+                pixels[ptr++] = palette[(b >> nbits) & mask];
+            }
+            is.setptr(p);
+        }
+    }
+
+    //
+    // The RLE loops decode runs straight from the stream's buffer while a whole run is sure
+    // to be there, and fall back to checked reads for a run that may cross the end of it.
+    //
+
+    private void readPlainRLEPixels(InStream is, int tw, int th) throws Exception {
+        if (bytesPerPixel == 1)
+            readPlainRLEPixels8(is, tw * th);
+        else if (bytesPerPixel == 2)
+            readPlainRLEPixels16(is, tw * th);
+        else
+            readPlainRLEPixels24(is, tw * th);
+    }
+
+    private void readPlainRLEPixels24(InStream is, int count) throws Exception {
+        int[] pixels = this.pixels;
+        int ptr = 0;
+        while (ptr < count) {
+            byte[] buf = is.getbuf();
+            int p = is.getptr();
+            int safeEnd = is.getend() - 3 - MAX_RUN_LENGTH_BYTES;
+            while (ptr < count && p <= safeEnd) {
+                int pix = (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+                p += 3;
+                int len = 1;
+                int b;
+                do {
+                    b = buf[p++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+
+                if (len > count - ptr)
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+                Arrays.fill(pixels, ptr, ptr + len, pix);
+                ptr += len;
+            }
+            is.setptr(p);
+            if (ptr < count)
+                ptr = readPlainRun(is, ptr, count);
+        }
+    }
+
+    private void readPlainRLEPixels8(InStream is, int count) throws Exception {
+        int[] pixels = this.pixels;
+        int[] colors = colorPalette;
+        int ptr = 0;
+        while (ptr < count) {
+            byte[] buf = is.getbuf();
+            int p = is.getptr();
+            int safeEnd = is.getend() - 1 - MAX_RUN_LENGTH_BYTES;
+            while (ptr < count && p <= safeEnd) {
+                int pix = colors[buf[p++] & 0xFF];
+                int len = 1;
+                int b;
+                do {
+                    b = buf[p++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+
+                if (len > count - ptr)
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+                Arrays.fill(pixels, ptr, ptr + len, pix);
+                ptr += len;
+            }
+            is.setptr(p);
+            if (ptr < count)
+                ptr = readPlainRun(is, ptr, count);
+        }
+    }
+
+    private void readPlainRLEPixels16(InStream is, int count) throws Exception {
+        int[] pixels = this.pixels;
+        int[] colors = colorPalette;
+        int ptr = 0;
+        while (ptr < count) {
+            byte[] buf = is.getbuf();
+            int p = is.getptr();
+            int safeEnd = is.getend() - 2 - MAX_RUN_LENGTH_BYTES;
+            while (ptr < count && p <= safeEnd) {
+                int pix = colors[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+                p += 2;
+                int len = 1;
+                int b;
+                do {
+                    b = buf[p++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+
+                if (len > count - ptr)
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+                Arrays.fill(pixels, ptr, ptr + len, pix);
+                ptr += len;
+            }
+            is.setptr(p);
+            if (ptr < count)
+                ptr = readPlainRun(is, ptr, count);
+        }
+    }
+
+    private int readPlainRun(InStream is, int ptr, int count) throws Exception {
+        int pix = readPixel(is);
+        int len = readRunLength(is);
+        if (len > count - ptr)
+            throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+        Arrays.fill(pixels, ptr, ptr + len, pix);
+        ptr += len;
+        return ptr;
+    }
+
+    private void readPackedRLEPixels(InStream is, int tw, int th) throws Exception {
+        int[] pixels = this.pixels;
+        int[] palette = this.palette;
+        int count = tw * th;
+        int ptr = 0;
+        while (ptr < count) {
+            byte[] buf = is.getbuf();
+            int p = is.getptr();
+            int safeEnd = is.getend() - 1 - MAX_RUN_LENGTH_BYTES;
+            while (ptr < count && p <= safeEnd) {
+                int index = buf[p++] & 0xFF;
+                int pix = palette[index & 127];
+                if ((index & 128) == 0) {
+                    pixels[ptr++] = pix;
+                    continue;
+                }
+                int len = 1;
+                int b;
+                do {
+                    b = buf[p++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+
+                if (len > count - ptr)
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+                Arrays.fill(pixels, ptr, ptr + len, pix);
+                ptr += len;
+            }
+            is.setptr(p);
+            if (ptr < count) {
+                int index = is.readU8();
+                int len = (index & 128) != 0 ? readRunLength(is) : 1;
+                if (len > count - ptr)
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+                int pix = palette[index & 127];
+                Arrays.fill(pixels, ptr, ptr + len, pix);
+                ptr += len;
+            }
+        }
+    }
+
+    // Run length bytes: 1 plus their sum, the last being less than 255
+    private static int readRunLength(InStream is) throws Exception {
+        int len = 1;
+        int b;
+        do {
+            b = is.readU8();
+            len += b;
+        } while (b == 255);
+        return len;
+    }
+
+    // Read count CPIXELs as 0x00RRGGBB, converting straight from the stream's buffer
+    private void readPixels(InStream is, int[] dst, int count) throws Exception {
+        int i = 0;
+        if (bytesPerPixel == 1) {
+            int[] colors = colorPalette;
+            while (i < count) {
+                int n = is.check(1, count - i);
+                byte[] buf = is.getbuf();
+                int p = is.getptr();
+                for (int end = i + n; i < end; i++)
+                    dst[i] = colors[buf[p++] & 0xFF];
+                is.setptr(p);
+            }
+        } else if (bytesPerPixel == 2) {
+            int[] colors = colorPalette;
+            while (i < count) {
+                int n = is.check(2, count - i);
+                byte[] buf = is.getbuf();
+                int p = is.getptr();
+                for (int end = i + n; i < end; i++, p += 2)
+                    dst[i] = colors[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+                is.setptr(p);
+            }
+        } else {
+            while (i < count) {
+                int n = is.check(3, count - i);
+                byte[] buf = is.getbuf();
+                int p = is.getptr();
+                for (int end = i + n; i < end; i++, p += 3)
+                    dst[i] = (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+                is.setptr(p);
+            }
+        }
+    }
+
+    private int readPixel(InStream is) throws Exception {
+        if (bytesPerPixel == 1)
+            return colorPalette[is.readU8()];
+        if (bytesPerPixel == 2) {
+            int p1 = is.readU8();
+            return colorPalette[p1 | is.readU8() << 8];
+        }
+        int p1 = is.readU8();
+        int p2 = is.readU8();
+        int p3 = is.readU8();
+        return p3 << 16 | p2 << 8 | p1;
+    }
+}
@@ -0,0 +1,74 @@
+package org.poc.vnc.domain;
+
+/**
+ * Paints RRE and CoRRE rectangles into the framebuffer with {@link AbstractBitmapData#fillRect},
+ * one subrectangle at a time in the server's order.  An instance holds nothing but the pixel
+ * format, so it may paint separate rectangles on separate threads.
+ */
+public class RreDecoder {
+
+    private int bytesPerPixel = 4;
+    private int[] colorPalette;
+
+    /**
+     * @param bytesPerPixel 1 for 8-bit and 2 for 16-bit colour, where pixels are looked up in
+     * colorPalette, or 4 for 24-bit colour
+     */
+    public void setPixelFormat(int bytesPerPixel, int[] colorPalette) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.colorPalette = colorPalette;
+    }
+
+    /**
+     * @return Number of bytes of background and subrectangles following the subrectangle count
+     */
+    public static int dataLength(int nSubrects, boolean compact, int bytesPerPixel) {
+        return bytesPerPixel + nSubrects * (bytesPerPixel + (compact ? 4 : 8));
+    }
+
+    /**
+     * Paint a rectangle whose background pixel starts at buf[p], followed by nSubrects
+     * subrectangles.  The caller updates the bitmap.
+     * @param compact True for CoRRE's one byte coordinates
+     * @return Position in buf after the last subrectangle
+     */
+    public int paint(AbstractBitmapData bitmapData, byte[] buf, int p, int nSubrects, int x, int y, int w, int h,
+                     boolean compact) {
+        bitmapData.fillRect(x, y, w, h, fillColor(buf, p));
+        p += bytesPerPixel;
+
+        for (int j = 0; j < nSubrects; j++) {
+            int color = fillColor(buf, p);
+            p += bytesPerPixel;
+            int sx, sy, sw, sh;
+            if (compact) {
+                sx = buf[p] & 0xFF;
+                sy = buf[p + 1] & 0xFF;
+                sw = buf[p + 2] & 0xFF;
+                sh = buf[p + 3] & 0xFF;
+                p += 4;
+            } else {
+                sx = (buf[p] & 0xFF) << 8 | (buf[p + 1] & 0xFF);
+                sy = (buf[p + 2] & 0xFF) << 8 | (buf[p + 3] & 0xFF);
+                sw = (buf[p + 4] & 0xFF) << 8 | (buf[p + 5] & 0xFF);
+                sh = (buf[p + 6] & 0xFF) << 8 | (buf[p + 7] & 0xFF);
+                p += 8;
+            }
+            // A subrectangle reaching past the edge of the rectangle is cut off there
+            sw = Math.min(sw, w - sx);
+            sh = Math.min(sh, h - sy);
+            if (sw > 0 && sh > 0)
+                bitmapData.fillRect(x + sx, y + sy, sw, sh, color);
+        }
+        return p;
+    }
+
+    // Filled colours are opaque, as a Paint would draw them
+    private int fillColor(byte[] buf, int p) {
+        if (bytesPerPixel == 1)
+            return colorPalette[buf[p] & 0xFF];
+        if (bytesPerPixel == 2)
+            return colorPalette[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+        return 0xFF000000 | (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+    }
+}
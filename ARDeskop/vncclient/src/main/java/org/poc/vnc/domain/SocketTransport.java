@@ -0,0 +1,45 @@
+package org.poc.vnc.domain;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The original transport: a blocking {@link Socket} read through a 16K BufferedInputStream.
+ */
+public class SocketTransport implements IRfbTransport {
+
+    public static final IRfbTransportFactory FACTORY = new IRfbTransportFactory() {
+        @Override
+        public IRfbTransport open(String host, int port) throws IOException {
+            return new SocketTransport(host, port);
+        }
+    };
+
+    private final Socket sock;
+    private final InputStream is;
+    private final OutputStream os;
+
+    public SocketTransport(String host, int port) throws IOException {
+        sock = new Socket(host, port);
+        is = new BufferedInputStream(sock.getInputStream(), 16384);
+        os = sock.getOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+}
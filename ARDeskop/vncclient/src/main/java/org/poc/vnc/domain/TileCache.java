@@ -0,0 +1,328 @@
+package org.poc.vnc.domain;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rectangles of framebuffer pixels the server has asked the client to keep, for the
+ * {@link RfbProto#EncodingTileCache} pseudo-encoding.
+ * <p>
+ * The server names each rectangle with a 64-bit key, normally a hash of its content, and later
+ * has it drawn again anywhere by that key instead of sending the pixels.  Tiles are kept in
+ * memory in least recently used order up to a limit; beyond it the oldest are written to a
+ * memory-mapped spill file, from which they are read back when asked for.  The spill file is
+ * named after the host, and is read back when the next connection to it opens the cache, so
+ * the tiles outlive the connection.  The file is a log of tiles that starts again from the
+ * beginning when it is full, forgetting what was in it.  It is only created once the server
+ * sends its first TileCache rectangle, so a server that doesn't use the cache leaves nothing
+ * on disk.
+ * <p>
+ * Tiles pushed out of memory are kept as spares, and their arrays are filled again by the
+ * next tiles stored or read back, so a cache working at its limit doesn't allocate.
+ * <p>
+ * Pixels are kept as they are in the framebuffer, so each tile is tagged with the pixel format
+ * it was stored in and isn't drawn in any other.  Only the network thread may use an instance.
+ */
+public class TileCache {
+
+    private static final String TAG = "TileCache";
+
+    static final int FILE_MAGIC = 0x41524443;   // "ARDC"
+    // Changes whenever what a spill file holds means something else; a file of another
+    // version is started again
+    static final int FILE_VERSION = 2;
+    static final int TILE_MAGIC = 0x54494C45;   // "TILE"
+    // Magic and version
+    static final int FILE_HEADER = 8;
+    // Magic, key, format, width and height
+    static final int TILE_HEADER = 4 + 8 + 4 + 2 + 2;
+
+    // Evicted tiles kept for their arrays
+    static final int MAX_SPARE_TILES = 4;
+
+    private static final class Tile {
+        int format;
+        int width;
+        int height;
+        // At least width * height; memory is counted by its length
+        final int[] pixels;
+
+        Tile(int size) {
+            pixels = new int[size];
+        }
+    }
+
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+    private final int memoryLimit;
+    private int memoryUsed;
+
+    private final ArrayList<Tile> spareTiles = new ArrayList<Tile>(MAX_SPARE_TILES);
+
+    // The spill file to open on first use, until then
+    private File spillPath;
+    private int spillLimit;
+    private RandomAccessFile spillFile;
+    private MappedByteBuffer spill;
+    // Key to where the tile starts in spill
+    private final HashMap<Long, Integer> spillIndex = new HashMap<Long, Integer>();
+    private int spillEnd = FILE_HEADER;
+
+    private int hits;
+    private int misses;
+
+    /**
+     * @param memoryLimit Bytes of pixels to keep in memory
+     */
+    public TileCache(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Make a cache that spills to a file of the tiles kept for host.  The file is opened, and
+     * the tiles a previous connection left in it read back, when the cache is first used; if it
+     * can't be mapped then the cache is kept in memory only.
+     * @param dir Directory of the app's spill files
+     * @param spillLimit Size of the spill file in bytes
+     */
+    public static TileCache open(File dir, String host, int port, int memoryLimit, int spillLimit) {
+        TileCache cache = new TileCache(memoryLimit);
+        if (dir == null || spillLimit <= FILE_HEADER)
+            return cache;
+        cache.spillPath = new File(dir, "tiles-" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + port + ".cache");
+        cache.spillLimit = spillLimit;
+        return cache;
+    }
+
+    private void openSpillOnFirstUse() {
+        if (spillPath == null)
+            return;
+        File file = spillPath;
+        spillPath = null;
+        try {
+            openSpill(file, spillLimit);
+        } catch (IOException e) {
+            Log.w(TAG, "Keeping tiles in memory only: " + e);
+            closeSpill();
+        }
+    }
+
+    private void openSpill(File file, int spillLimit) throws IOException {
+        spillFile = new RandomAccessFile(file, "rw");
+        spillFile.setLength(spillLimit);
+        spill = spillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, spillLimit);
+        if (spill.getInt(0) != FILE_MAGIC || spill.getInt(4) != FILE_VERSION) {
+            spill.putInt(0, FILE_MAGIC);
+            spill.putInt(4, FILE_VERSION);
+            spill.putInt(FILE_HEADER, 0);
+            return;
+        }
+        // Index the log up to the first place that doesn't start a whole tile
+        int p = FILE_HEADER;
+        while (p + TILE_HEADER <= spillLimit && spill.getInt(p) == TILE_MAGIC) {
+            int size = TILE_HEADER + 4 * (spill.getShort(p + 16) & 0xFFFF) * (spill.getShort(p + 18) & 0xFFFF);
+            if (p + size > spillLimit)
+                break;
+            spillIndex.put(spill.getLong(p + 4), p);
+            p += size;
+        }
+        spillEnd = p;
+        Log.i(TAG, "Read back " + spillIndex.size() + " tiles from " + file);
+    }
+
+    /**
+     * The format tiles are tagged with: bits per pixel, depth and greyscale, as asked of the
+     * server, and whether the framebuffer holds palette indices rather than colours.  It is
+     * kept in the spill file, so it means the same in every build.
+     */
+    public static int format(ColorModel colorModel, boolean indexed) {
+        return colorModel.bpp() * 8 << 16 | colorModel.depth() << 8 | (colorModel.greyscale() ? 2 : 0) | (indexed ? 1 : 0);
+    }
+
+    /**
+     * Keep a rectangle of the framebuffer under key, replacing what was kept under it before
+     * @param format Pixel format the framebuffer is in, from {@link #format}
+     */
+    public void store(long key, int format, AbstractBitmapData data, int x, int y, int w, int h) {
+        openSpillOnFirstUse();
+        Tile old = tiles.remove(key);
+        if (old != null) {
+            memoryUsed -= 4 * old.pixels.length;
+            recycle(old);
+        }
+        Tile tile = obtainTile(format, w, h);
+        int[] pixels = tile.pixels;
+        data.getRect(x, y, w, h, pixels, 0);
+        tiles.put(key, tile);
+        memoryUsed += 4 * pixels.length;
+        spillIndex.remove(key);
+        while (memoryUsed > memoryLimit && !tiles.isEmpty())
+            evictEldest();
+    }
+
+    /**
+     * Draw the tile kept under key into a rectangle of the framebuffer
+     * @return False if there is no such tile of that size and format, and nothing was drawn
+     */
+    public boolean restore(long key, int format, AbstractBitmapData data, int x, int y, int w, int h) {
+        openSpillOnFirstUse();
+        Tile tile = tiles.get(key);
+        if (tile == null)
+            tile = readSpilled(key);
+        if (tile == null || tile.format != format || tile.width != w || tile.height != h) {
+            misses++;
+            return false;
+        }
+        data.putRect(tile.pixels, 0, w, x, y, w, h);
+        hits++;
+        return true;
+    }
+
+    /**
+     * Move every tile kept in memory to the spill file, if there is one, to give memory back
+     */
+    public void spillAll() {
+        while (!tiles.isEmpty())
+            evictEldest();
+        spareTiles.clear();
+    }
+
+    /**
+     * Spill the tiles kept in memory so the next connection finds them, and close the file
+     */
+    public void close() {
+        spillPath = null;
+        if (spill != null) {
+            spillAll();
+            spill.force();
+        }
+        closeSpill();
+    }
+
+    private void closeSpill() {
+        spill = null;
+        spillIndex.clear();
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Closing spill file: " + e);
+            }
+            spillFile = null;
+        }
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator();
+        Map.Entry<Long, Tile> eldest = it.next();
+        it.remove();
+        Tile tile = eldest.getValue();
+        memoryUsed -= 4 * tile.pixels.length;
+        writeSpilled(eldest.getKey(), tile);
+        recycle(tile);
+    }
+
+    private void recycle(Tile tile) {
+        if (spareTiles.size() < MAX_SPARE_TILES)
+            spareTiles.add(tile);
+    }
+
+    /**
+     * @return A spare tile that fits w x h pixels without wasting more than as much again, or
+     * a new one
+     */
+    private Tile obtainTile(int format, int w, int h) {
+        int size = w * h;
+        int best = -1;
+        for (int i = 0; i < spareTiles.size(); i++) {
+            int length = spareTiles.get(i).pixels.length;
+            if (length >= size && length <= 2 * size
+                    && (best < 0 || length < spareTiles.get(best).pixels.length))
+                best = i;
+        }
+        Tile tile = best >= 0 ? spareTiles.remove(best) : new Tile(size);
+        tile.format = format;
+        tile.width = w;
+        tile.height = h;
+        return tile;
+    }
+
+    private void writeSpilled(long key, Tile tile) {
+        if (spill == null || spillIndex.containsKey(key))
+            return;
+        int n = tile.width * tile.height;
+        int size = TILE_HEADER + 4 * n;
+        int limit = spill.capacity();
+        if (FILE_HEADER + size > limit)
+            return;
+        if (spillEnd + size > limit) {
+            // Start the log again; the tiles in it are forgotten as they are overwritten
+            spillIndex.clear();
+            spillEnd = FILE_HEADER;
+        }
+        int p = spillEnd;
+        spill.putInt(p, 0);
+        spill.putLong(p + 4, key);
+        spill.putInt(p + 12, tile.format);
+        spill.putShort(p + 16, (short) tile.width);
+        spill.putShort(p + 18, (short) tile.height);
+        int[] pixels = tile.pixels;
+        for (int i = 0, q = p + TILE_HEADER; i < n; i++, q += 4)
+            spill.putInt(q, pixels[i]);
+        spillEnd = p + size;
+        if (spillEnd + 4 <= limit)
+            spill.putInt(spillEnd, 0);
+        // Written last, so a tile cut short by the process dying is never read back
+        spill.putInt(p, TILE_MAGIC);
+        spillIndex.put(key, p);
+    }
+
+    private Tile readSpilled(long key) {
+        Integer at = spillIndex.get(key);
+        if (at == null)
+            return null;
+        int p = at;
+        int w = spill.getShort(p + 16) & 0xFFFF;
+        int h = spill.getShort(p + 18) & 0xFFFF;
+        Tile tile = obtainTile(spill.getInt(p + 12), w, h);
+        int[] pixels = tile.pixels;
+        for (int i = 0, q = p + TILE_HEADER, n = w * h; i < n; i++, q += 4)
+            pixels[i] = spill.getInt(q);
+        // Back in memory as the most recently used; it stays in the spill file as well
+        tiles.put(key, tile);
+        memoryUsed += 4 * pixels.length;
+        while (memoryUsed > memoryLimit && tiles.size() > 1)
+            evictEldest();
+        return tile;
+    }
+
+    /**
+     * @return Number of tiles drawn from the cache
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of tiles asked for that weren't there
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Bytes of pixels kept in memory
+     */
+    public int getMemoryUsed() {
+        return memoryUsed;
+    }
+}
@@ -0,0 +1,201 @@
+package org.poc.vnc.domain;
+
+/**
+ * Ledger of FramebufferUpdateRequests that have been sent and not yet answered.
+ * <p>
+ * Waiting for each update to be decoded before asking for the next one costs a full round trip
+ * per frame.  Keeping several requests outstanding lets the server start on the next update
+ * while the client is still decoding the last one.  The number kept in flight (the depth) is
+ * chosen from the measured round trip and decode times: enough requests to cover one round
+ * trip at the rate updates can be decoded, clamped to a configured range.
+ * <p>
+ * Servers are free to merge pending requests into a single update, so the ledger can never
+ * know exactly which request an update answers.  Each update retires the oldest entry, and
+ * entries that stay unanswered for much longer than a round trip are assumed merged and
+ * dropped.  Only the network thread may use an instance.
+ */
+public class UpdateRequestPipeline {
+
+    /** Most requests ever kept in flight */
+    public static final int MAX_DEPTH = 8;
+
+    /** Entries are never expired sooner than this, nanoseconds */
+    static final long MIN_STALE_NANOS = 2000L * 1000 * 1000;
+    /** Decode times below this are treated as this, nanoseconds */
+    static final long MIN_DECODE_NANOS = 1000L * 1000;
+
+    // Send times of outstanding requests, oldest first, in a ring
+    private final long[] sent = new long[MAX_DEPTH];
+    private int first;
+    private int outstanding;
+
+    private int minDepth;
+    private int maxDepth;
+    private int depth;
+
+    // Smoothed estimates, nanoseconds; 0 until the first sample
+    private long rtt;
+    private long decodeTime;
+    private long rttOverride;
+    private long updateStart;
+    private long answeredSent;
+
+    // Latest samples, nanoseconds
+    private long lastUpdateLatency;
+    private long lastDecodeTime;
+
+    /**
+     * @param minDepth Fewest requests kept in flight, at least 1
+     * @param maxDepth Most requests kept in flight, at most {@link #MAX_DEPTH}
+     */
+    public UpdateRequestPipeline(int minDepth, int maxDepth) {
+        setDepthRange(minDepth, maxDepth);
+    }
+
+    /**
+     * Change the allowed depth range; equal bounds give a fixed depth
+     */
+    public void setDepthRange(int minDepth, int maxDepth) {
+        this.minDepth = Math.max(1, Math.min(minDepth, MAX_DEPTH));
+        this.maxDepth = Math.max(this.minDepth, Math.min(maxDepth, MAX_DEPTH));
+        adaptDepth();
+    }
+
+    /**
+     * Use a round trip time measured elsewhere instead of the request-to-update time, which
+     * also includes however long the server waited for something to change.
+     * @param nanos Round trip time in nanoseconds; 0 goes back to the ledger's own estimate
+     */
+    public void setRoundTripTime(long nanos) {
+        rttOverride = nanos;
+        adaptDepth();
+    }
+
+    /**
+     * @return Number of requests to keep in flight
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return Number of requests sent and not yet answered
+     */
+    public int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * @return Smoothed round trip estimate in nanoseconds, 0 if none yet
+     */
+    public long getRoundTripTime() {
+        return rttOverride > 0 ? rttOverride : rtt;
+    }
+
+    /**
+     * @return Smoothed time to decode one update in nanoseconds, 0 if none yet
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * @return Time from sending the request the last update answered to finishing its decode,
+     * in nanoseconds; 0 if it answered no recorded request
+     */
+    public long getLastUpdateLatency() {
+        return lastUpdateLatency;
+    }
+
+    /**
+     * @return Time the last update took from its header to the end of its decode, nanoseconds
+     */
+    public long getLastDecodeTime() {
+        return lastDecodeTime;
+    }
+
+    /**
+     * Drop everything outstanding, e.g. after the request region has changed
+     */
+    public void reset() {
+        first = 0;
+        outstanding = 0;
+    }
+
+    /**
+     * Expire stale entries and work out how many more requests should be sent now
+     */
+    public int requestsToSend() {
+        expireStale();
+        return Math.max(0, depth - outstanding);
+    }
+
+    /**
+     * Drop entries unanswered for so long that the server must have merged them into others
+     * @return Number of requests still outstanding
+     */
+    public int expireStale() {
+        long now = System.nanoTime();
+        long stale = Math.max(MIN_STALE_NANOS, 4 * getRoundTripTime());
+        while (outstanding > 0 && now - sent[first] > stale)
+            retire();
+        return outstanding;
+    }
+
+    /**
+     * Record a request just written to the server
+     */
+    public void requestSent() {
+        if (outstanding == MAX_DEPTH)
+            retire();
+        sent[(first + outstanding) % MAX_DEPTH] = System.nanoTime();
+        outstanding++;
+    }
+
+    /**
+     * A FramebufferUpdate header has arrived; it answers the oldest outstanding request
+     */
+    public void updateBegun() {
+        updateStart = System.nanoTime();
+        answeredSent = 0;
+        if (outstanding > 0) {
+            answeredSent = sent[first];
+            rtt = smooth(rtt, updateStart - answeredSent);
+            retire();
+        }
+    }
+
+    /**
+     * The update announced by the last {@link #updateBegun()} has been decoded
+     */
+    public void updateFinished() {
+        if (updateStart != 0) {
+            long now = System.nanoTime();
+            lastDecodeTime = now - updateStart;
+            lastUpdateLatency = answeredSent != 0 ? now - answeredSent : 0;
+            decodeTime = smooth(decodeTime, lastDecodeTime);
+            updateStart = 0;
+        }
+        adaptDepth();
+    }
+
+    private void retire() {
+        first = (first + 1) % MAX_DEPTH;
+        outstanding--;
+    }
+
+    // Exponentially weighted average with gain 1/8, as TCP uses for its round trip estimate
+    private static long smooth(long average, long sample) {
+        return average == 0 ? sample : average + (sample - average) / 8;
+    }
+
+    private void adaptDepth() {
+        long roundTrip = getRoundTripTime();
+        int d = minDepth;
+        if (roundTrip > 0) {
+            long decode = Math.max(decodeTime, MIN_DECODE_NANOS);
+            d = 1 + (int) Math.min(MAX_DEPTH, (roundTrip + decode - 1) / decode);
+        }
+        depth = Math.max(minDepth, Math.min(d, maxDepth));
+    }
+}
@@ -0,0 +1,101 @@
+package org.poc.vnc.domain;
+
+/**
+ * Daemon threads that each run their own task once every time {@link #runAll()} is called,
+ * which waits for all of them to finish.
+ * <p>
+ * This is what the parallel decoders did with an ExecutorService, except that submitting a
+ * task there allocates a future and a queue node per worker, every rectangle.  Here a run is
+ * only a counter change under the group's lock, so decoding allocates nothing.
+ */
+class WorkerGroup {
+
+    private final Runnable[] tasks;
+    private final Thread[] threads;
+
+    // Guarded by this
+    private int generation;
+    private int running;
+    private Throwable failure;
+    private boolean stopped;
+
+    /**
+     * Start a thread per task
+     * @param name Threads are called name followed by their number
+     */
+    WorkerGroup(String name, Runnable[] tasks) {
+        this.tasks = tasks;
+        threads = new Thread[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(index);
+                }
+            }, name + " " + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @return Number of threads
+     */
+    int size() {
+        return tasks.length;
+    }
+
+    /**
+     * Run every task once on its thread and wait for them all
+     * @return What the first task to fail threw, or null if none did
+     */
+    synchronized Throwable runAll() throws InterruptedException {
+        failure = null;
+        running = tasks.length;
+        generation++;
+        notifyAll();
+        while (running > 0)
+            wait();
+        Throwable result = failure;
+        failure = null;
+        return result;
+    }
+
+    /**
+     * Stop the threads once they finish what they are running
+     */
+    synchronized void shutdown() {
+        stopped = true;
+        notifyAll();
+    }
+
+    private void work(int index) {
+        int done = 0;
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (generation == done && !stopped)
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (stopped)
+                    return;
+                done = generation;
+            }
+            Throwable thrown = null;
+            try {
+                tasks[index].run();
+            } catch (Throwable t) {
+                thrown = t;
+            }
+            synchronized (this) {
+                if (thrown != null && failure == null)
+                    failure = thrown;
+                if (--running == 0)
+                    notifyAll();
+            }
+        }
+    }
+}
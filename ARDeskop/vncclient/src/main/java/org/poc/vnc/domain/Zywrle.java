@@ -0,0 +1,159 @@
+package org.poc.vnc.domain;
+
+/**
+ * Inverse transform for ZYWRLE, the lossy wavelet variant of ZRLE.
+ * <p>
+ * A ZYWRLE server converts a tile to a reversible YUV colour space, applies a piecewise-linear
+ * Haar wavelet transform a few levels deep, quantises the coefficients and sends them, packed
+ * back into pixels, as an ordinary ZRLE tile.  The quantised coefficients compress far better
+ * than photographic pixels.  This class turns such a decoded tile back into RGB pixels, in
+ * place; the coefficient order and arithmetic follow libvncserver's zywrle.h exactly, as they
+ * must for the result to match the server's image.
+ * <p>
+ * Pixels are 0x00RRGGBB ints.  Coefficients travel in the same ints as three signed bytes:
+ * V in the red byte, Y in green and U in blue.
+ */
+public final class Zywrle {
+
+    /** Deepest wavelet level a server uses */
+    public static final int MAX_LEVEL = 3;
+
+    private Zywrle() {
+    }
+
+    /**
+     * Wavelet level a libvncserver-based server picks for a given JPEG quality setting
+     * @param quality 0-9, or -1 if none was requested
+     */
+    public static int levelForQuality(int quality) {
+        if (quality < 0)
+            return 1;
+        if (quality < 3)
+            return 3;
+        if (quality < 6)
+            return 2;
+        return 1;
+    }
+
+    /**
+     * Convert a tile of decoded ZYWRLE coefficients back to pixels
+     * @param pixels Tile, decoded as for ZRLE
+     * @param offset Index of the tile's top left pixel
+     * @param stride Pixels per row of pixels
+     * @param level Wavelet level, 1 to {@link #MAX_LEVEL}
+     * @param buf Scratch space for at least w * h ints
+     */
+    public static void synthesize(int[] pixels, int offset, int stride, int w, int h, int level, int[] buf) {
+        // Only the part that divides evenly at the deepest level is transformed; the
+        // remaining right and bottom strips are sent as plain pixels after the coefficients
+        int aw = w & ~((1 << level) - 1);
+        int ah = h & ~((1 << level) - 1);
+        if (aw == 0 || ah == 0)
+            return;
+
+        // Coefficients arrive in raster order, highest frequency sub-bands first
+        int src = 0;
+        for (int l = 0; l < level; l++) {
+            for (int r = 3; r >= (l == level - 1 ? 0 : 1); r--) {
+                int s = 2 << l;
+                int start = ((r & 1) != 0 ? s >> 1 : 0) + ((r & 2) != 0 ? (s >> 1) * aw : 0);
+                for (int row = start; row < aw * ah; row += s * aw) {
+                    for (int i = row; i < row - row % aw + aw; i += s) {
+                        buf[i] = pixels[offset + (src / w) * stride + src % w];
+                        src++;
+                    }
+                }
+            }
+        }
+        int tail = aw * ah;
+        for (int i = tail; i < w * h; i++, src++)
+            buf[i] = pixels[offset + (src / w) * stride + src % w];
+
+        invWavelet(buf, aw, ah, level);
+
+        for (int y = 0; y < ah; y++) {
+            int p = offset + y * stride;
+            int q = y * aw;
+            for (int x = 0; x < aw; x++)
+                pixels[p + x] = yuvToRgb(buf[q + x]);
+        }
+
+        // Right strip, bottom strip, then the corner between them
+        int t = tail;
+        for (int y = 0; y < ah; y++)
+            for (int x = aw; x < w; x++)
+                pixels[offset + y * stride + x] = buf[t++];
+        for (int y = ah; y < h; y++)
+            for (int x = 0; x < aw; x++)
+                pixels[offset + y * stride + x] = buf[t++];
+        for (int y = ah; y < h; y++)
+            for (int x = aw; x < w; x++)
+                pixels[offset + y * stride + x] = buf[t++];
+    }
+
+    private static int yuvToRgb(int c) {
+        int v = (byte) (c >> 16);
+        int y = (byte) (c >> 8);
+        int u = (byte) c;
+        y += 128;
+        u <<= 1;
+        v <<= 1;
+        int g = y - ((u + v) >> 2);
+        int b = u + g;
+        int r = v + g;
+        return clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(int x) {
+        return x < 0 ? 0 : (x > 255 ? 255 : x);
+    }
+
+    // Undo the levels deepest first, columns before rows within a level
+    static void invWavelet(int[] buf, int width, int height, int level) {
+        for (int l = level - 1; l >= 0; l--) {
+            for (int x = 0; x < width; x += 1 << l)
+                waveletLevel(buf, x, height, l, width);
+            for (int row = 0; row < width * height; row += width << l)
+                waveletLevel(buf, row, width, l, 1);
+        }
+    }
+
+    // One level along a row or column.  Coefficients stay interleaved: each pair is
+    // transformed where it lies rather than being sorted into low and high halves.
+    static void waveletLevel(int[] buf, int start, int size, int l, int skip) {
+        int step = (2 << l) * skip;
+        int ofs = (1 << l) * skip;
+        int end = start + (size >> (l + 1)) * step;
+        for (int i = start; i < end; i += step) {
+            int a = buf[i], b = buf[i + ofs];
+            int ra = 0, rb = 0;
+            for (int shift = 0; shift < 24; shift += 8) {
+                int x0 = (byte) (a >> shift);
+                int x1 = (byte) (b >> shift);
+                int pair = harr(x0, x1);
+                ra |= (pair & 0xFF) << shift;
+                rb |= (pair >> 8 & 0xFF) << shift;
+            }
+            buf[i] = ra;
+            buf[i + ofs] = rb;
+        }
+    }
+
+    // Piecewise-linear Haar step on two signed bytes; applying it twice gives back the input.
+    // Returns the new first value in the low byte and the new second in the next.
+    static int harr(int x0, int x1) {
+        int orgX0 = x0, orgX1 = x1;
+        if (((x0 ^ x1) & 0x80) != 0) {
+            // Signs differ
+            x1 += x0;
+            if (((x1 ^ orgX1) & 0x80) == 0)
+                x0 -= x1;
+        } else {
+            // Same sign
+            x0 -= x1;
+            if (((x0 ^ orgX0) & 0x80) == 0)
+                x1 += x0;
+        }
+        return (x1 & 0xFF) | (x0 & 0xFF) << 8;
+    }
+}
@@ -0,0 +1,134 @@
+package org.poc.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ByteBufferStack and IntBufferStack: regions are handed out at the same offsets of the same
+ * array once released, the array grows keeping what is reserved, and trim() only replaces it
+ * when nothing is reserved.
+ */
+public class BufferStackTest {
+
+    @Test
+    public void releasedRegionsAreReused() {
+        ByteBufferStack stack = new ByteBufferStack(4, 100);
+        byte[] buffer = stack.getBuffer();
+        for (int round = 0; round < 3; round++) {
+            assertEquals(0, stack.reserve(10));
+            assertEquals(0, stack.getOffset());
+            assertEquals(10, stack.reserve(20));
+            assertEquals(10, stack.getOffset());
+            assertEquals(2, stack.getDepth());
+
+            stack.release();
+            assertEquals(0, stack.getOffset());
+            assertEquals(10, stack.reserve(5));
+            assertEquals(10, stack.getOffset());
+            stack.release();
+            stack.release();
+            assertEquals(0, stack.getDepth());
+        }
+        assertSame(buffer, stack.getBuffer());
+        assertEquals(100, stack.getCapacity());
+        assertEquals(30, stack.getHighWater());
+    }
+
+    @Test
+    public void growsKeepingReservedBytes() {
+        ByteBufferStack stack = new ByteBufferStack(2, 16);
+        int offset = stack.reserve(10);
+        byte[] buffer = stack.getBuffer();
+        for (int i = 0; i < 10; i++)
+            buffer[offset + i] = (byte) i;
+
+        // Deeper than the stack was made for, and past the end of the buffer
+        stack.reserve(4);
+        assertEquals(14, stack.reserve(100));
+        assertEquals(3, stack.getDepth());
+        assertNotSame(buffer, stack.getBuffer());
+        assertEquals(114, stack.getCapacity());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, stack.getBuffer()[offset + i]);
+
+        stack.release();
+        stack.release();
+        assertEquals(offset, stack.getOffset());
+        assertEquals(114, stack.getHighWater());
+    }
+
+    @Test
+    public void trimsOnlyWhenEmpty() {
+        ByteBufferStack stack = new ByteBufferStack(20, 100);
+        stack.reserve(500);
+        assertEquals(500, stack.getCapacity());
+        assertFalse("trimmed while reserved", stack.trim(100));
+        stack.release();
+
+        assertFalse("trimmed to a bigger size", stack.trim(600));
+        assertTrue(stack.trim(100));
+        assertEquals(100, stack.getCapacity());
+        assertEquals(100, stack.getBuffer().length);
+        assertEquals(500, stack.getHighWater());
+        stack.resetHighWater();
+        assertEquals(0, stack.getHighWater());
+        assertEquals(0, stack.reserve(100));
+        assertEquals(100, stack.getCapacity());
+    }
+
+    @Test
+    public void unbalancedCalls() {
+        ByteBufferStack stack = new ByteBufferStack();
+        try {
+            stack.getOffset();
+            fail("getOffset() without reserve()");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        stack.reserve(1);
+        stack.release();
+        try {
+            stack.release();
+            fail("release() without reserve()");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            stack.reserve(-1);
+            fail("negative reserve()");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void intStack() {
+        IntBufferStack stack = new IntBufferStack(2, 16);
+        int[] buffer = stack.getBuffer();
+        assertEquals(0, stack.reserve(8));
+        assertEquals(8, stack.reserve(8));
+        stack.release();
+        assertEquals(8, stack.reserve(8));
+        assertSame(buffer, stack.getBuffer());
+
+        stack.getBuffer()[3] = 42;
+        assertEquals(16, stack.reserve(40));
+        assertEquals(56, stack.getCapacity());
+        assertEquals(42, stack.getBuffer()[3]);
+        assertEquals(16, stack.getOffset());
+
+        assertFalse(stack.trim(16));
+        stack.release();
+        stack.release();
+        stack.release();
+        assertTrue(stack.trim(16));
+        assertEquals(16, stack.getBuffer().length);
+        assertEquals(56, stack.getHighWater());
+    }
+}
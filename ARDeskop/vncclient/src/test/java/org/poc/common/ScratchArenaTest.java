@@ -0,0 +1,149 @@
+package org.poc.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ScratchArena hands out the same slices update after update, and gives memory back only
+ * between updates: every TRIM_PERIOD updates down to what that period used, and on request
+ * down to what was used lately or to the minimum.
+ */
+public class ScratchArenaTest {
+
+    static final int MIN_BYTES = 1024;
+    static final int MIN_INTS = 256;
+
+    /**
+     * One update's worth of decoding: a byte slice and, inside it, an int slice
+     */
+    static void update(ScratchArena arena, int nBytes, int nInts) {
+        int b = arena.reserveBytes(nBytes);
+        int i = arena.reserveInts(nInts);
+        arena.bytes()[b + nBytes - 1] = 1;
+        arena.ints()[i + nInts - 1] = 1;
+        arena.releaseInts();
+        arena.releaseBytes();
+    }
+
+    @Test
+    public void reusesSlices() {
+        ScratchArena arena = new ScratchArena(MIN_BYTES, MIN_INTS);
+        byte[] bytes = arena.bytes();
+        int[] ints = arena.ints();
+        for (int n = 0; n < 3 * ScratchArena.TRIM_PERIOD; n++) {
+            assertEquals(0, arena.reserveBytes(100));
+            assertEquals(100, arena.reserveBytes(MIN_BYTES - 100));
+            assertEquals(0, arena.reserveInts(MIN_INTS));
+            arena.releaseInts();
+            arena.releaseBytes();
+            arena.releaseBytes();
+            assertFalse(arena.updateFinished());
+        }
+        assertSame(bytes, arena.bytes());
+        assertSame(ints, arena.ints());
+        assertEquals(MIN_BYTES + 4L * MIN_INTS, arena.getCapacityBytes());
+        assertEquals(0, arena.getTrimCount());
+    }
+
+    @Test
+    public void trimsToWhatThePeriodUsed() {
+        ScratchArena arena = new ScratchArena(MIN_BYTES, MIN_INTS);
+        update(arena, 1 << 20, 1 << 16);
+        long grown = arena.getCapacityBytes();
+        assertEquals((1 << 20) + 4L * (1 << 16), grown);
+        arena.updateFinished();
+
+        // The big update is still in the period that ends now, so nothing is given back
+        for (int n = 1; n < ScratchArena.TRIM_PERIOD; n++) {
+            update(arena, 5000, 1000);
+            arena.updateFinished();
+        }
+        assertEquals(grown, arena.getCapacityBytes());
+        assertEquals(0, arena.getTrimCount());
+        assertEquals(0, arena.getByteHighWater());
+
+        for (int n = 0; n < ScratchArena.TRIM_PERIOD - 1; n++) {
+            update(arena, 5000, 1000);
+            arena.updateFinished();
+            assertEquals(grown, arena.getCapacityBytes());
+        }
+        assertEquals(5000, arena.getByteHighWater());
+        assertEquals(1000, arena.getIntHighWater());
+        update(arena, 5000, 1000);
+        assertFalse(arena.updateFinished());
+        assertEquals(5000 + 4L * 1000, arena.getCapacityBytes());
+        assertEquals(1, arena.getTrimCount());
+
+        // The trimmed stacks are big enough for the same updates again
+        byte[] bytes = arena.bytes();
+        for (int n = 0; n < ScratchArena.TRIM_PERIOD; n++) {
+            update(arena, 5000, 1000);
+            arena.updateFinished();
+        }
+        assertSame(bytes, arena.bytes());
+        assertEquals(1, arena.getTrimCount());
+    }
+
+    @Test
+    public void keepsStacksWithinTwiceWhatWasUsed() {
+        ScratchArena arena = new ScratchArena(MIN_BYTES, MIN_INTS);
+        update(arena, 3000, 600);
+        long grown = arena.getCapacityBytes();
+        for (int n = 0; n < 4 * ScratchArena.TRIM_PERIOD; n++) {
+            update(arena, 1500, 300);
+            arena.updateFinished();
+        }
+        assertEquals(grown, arena.getCapacityBytes());
+        assertEquals(0, arena.getTrimCount());
+    }
+
+    @Test
+    public void trimsOnRequest() {
+        ScratchArena arena = new ScratchArena(MIN_BYTES, MIN_INTS);
+        update(arena, 1 << 20, 1 << 16);
+        arena.updateFinished();
+        update(arena, 5000, 1000);
+
+        // Between updates the high water still includes the big update
+        arena.requestTrim(false);
+        assertFalse(arena.updateFinished());
+        assertEquals((1 << 20) + 4L * (1 << 16), arena.getCapacityBytes());
+
+        update(arena, 5000, 1000);
+        arena.requestTrim(false);
+        assertFalse(arena.updateFinished());
+        assertEquals(5000 + 4L * 1000, arena.getCapacityBytes());
+        assertEquals(1, arena.getTrimCount());
+        assertEquals(0, arena.getPressureTrimCount());
+
+        // A trim for memory pressure wins over a later ordinary one, and goes down to the minimum
+        update(arena, 5000, 1000);
+        arena.requestTrim(true);
+        arena.requestTrim(false);
+        assertTrue(arena.updateFinished());
+        assertEquals(MIN_BYTES + 4L * MIN_INTS, arena.getCapacityBytes());
+        assertEquals(2, arena.getTrimCount());
+        assertEquals(1, arena.getPressureTrimCount());
+
+        // The request is used up
+        update(arena, 100, 10);
+        assertFalse(arena.updateFinished());
+        assertEquals(1, arena.getPressureTrimCount());
+    }
+
+    @Test
+    public void doesNotTrimReservedSlices() {
+        ScratchArena arena = new ScratchArena(MIN_BYTES, MIN_INTS);
+        int offset = arena.reserveBytes(1 << 16);
+        arena.bytes()[offset + 10] = 7;
+        arena.requestTrim(true);
+        arena.updateFinished();
+        assertEquals(1 << 16, arena.bytes().length);
+        assertEquals(7, arena.bytes()[offset + 10]);
+        arena.releaseBytes();
+    }
+}
@@ -0,0 +1,109 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Continuous updates against the loopback server: enabled when it offers them, given up for
+ * update requests when it ends them, and paused around a pixel format change.
+ */
+public class ContinuousUpdatesTest {
+
+    static final long ROUND_TRIP_MS = 30;
+    static final long RUN_MS = 1500;
+    static final int WIDTH = 64;
+    static final int HEIGHT = 64;
+    static final String ENABLE = "EnableContinuousUpdates on 0,0 64x64";
+    static final String DISABLE = "EnableContinuousUpdates off 0,0 64x64";
+
+    LoopbackServer server;
+    TestSession session;
+
+    /**
+     * Run a session against a server offering continuous updates, doing something halfway
+     */
+    void run(boolean fences, final Runnable halfway) throws Exception {
+        server = new LoopbackServer(ROUND_TRIP_MS, RUN_MS);
+        server.continuousUpdates = true;
+        server.fences = fences;
+        server.start();
+        session = new TestSession(server.transport(false), WIDTH, HEIGHT);
+        session.start();
+        Thread action = new Thread("halfway") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(RUN_MS / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                halfway.run();
+            }
+        };
+        action.start();
+        session.run();
+        action.join();
+        if (server.failure != null)
+            throw server.failure;
+    }
+
+    @Test
+    public void enabledWhenOffered() throws Exception {
+        run(false, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertEquals(Arrays.asList("SetPixelFormat 32", ENABLE), server.log);
+        assertTrue(session.canvas.bitmapData.isContinuousUpdates());
+        assertTrue("no updates pushed", server.updatesPushed > 0);
+        assertEquals(0, server.requestsWhilePushing);
+    }
+
+    @Test
+    public void requestsAgainWhenServerEnds() throws Exception {
+        final int[] answeredBefore = new int[1];
+        run(false, new Runnable() {
+            @Override
+            public void run() {
+                answeredBefore[0] = server.updatesSent;
+                server.endContinuousUpdates();
+            }
+        });
+        assertEquals(Arrays.asList("SetPixelFormat 32", ENABLE), server.log);
+        assertFalse(session.canvas.bitmapData.isContinuousUpdates());
+        assertTrue("no requests after the end", server.updatesSent > answeredBefore[0]);
+    }
+
+    void changeFormat(boolean fences) throws Exception {
+        run(fences, new Runnable() {
+            @Override
+            public void run() {
+                session.canvas.setColorModel(ColorModel.C16);
+            }
+        });
+        // Nothing in the old format can follow EndOfContinuousUpdates and the fence or the
+        // last request answered, so the server may push in the new format at once
+        assertEquals(Arrays.asList("SetPixelFormat 32", ENABLE, DISABLE, "SetPixelFormat 16", ENABLE), server.log);
+        assertTrue(session.canvas.bitmapData.isContinuousUpdates());
+        assertTrue("no 16-bit updates", server.updatesByBytesPerPixel[2] > 0);
+        assertEquals(Integer.toHexString(new PipelinedUpdatesTest().expectedPixel(ColorModel.C16)),
+                Integer.toHexString(session.pixels()[0]));
+    }
+
+    @Test
+    public void formatChangePausesUpdates() throws Exception {
+        changeFormat(false);
+    }
+
+    @Test
+    public void formatChangePausesUpdatesFenced() throws Exception {
+        changeFormat(true);
+    }
+}
@@ -0,0 +1,49 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.RfbProto;
+
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cursor's shape and position are asked for together, and only with a view renderer to
+ * draw them; otherwise the server goes on drawing the cursor into the framebuffer.
+ */
+public class CursorEncodingsTest {
+
+    static final long ROUND_TRIP_MS = 10;
+    static final long RUN_MS = 300;
+
+    List<Integer> encodingsAskedFor(boolean renderer) throws Exception {
+        LoopbackServer server = new LoopbackServer(ROUND_TRIP_MS, RUN_MS);
+        server.start();
+        TestSession session = new TestSession(server.transport(false), 64, 64);
+        if (renderer)
+            session.canvas.setViewRenderer(new DirectFramebufferTest.DirectRenderer());
+        session.start();
+        session.run();
+        if (server.failure != null)
+            throw server.failure;
+        assertTrue("no SetEncodings", server.encodings.contains(RfbProto.EncodingZRLE));
+        return server.encodings;
+    }
+
+    @Test
+    public void serverDrawsCursorWithoutRenderer() throws Exception {
+        List<Integer> encodings = encodingsAskedFor(false);
+        assertFalse(encodings.contains(RfbProto.EncodingXCursor));
+        assertFalse(encodings.contains(RfbProto.EncodingRichCursor));
+        assertFalse(encodings.contains(RfbProto.EncodingPointerPos));
+    }
+
+    @Test
+    public void shapeAndPositionWithRenderer() throws Exception {
+        List<Integer> encodings = encodingsAskedFor(true);
+        assertTrue(encodings.contains(RfbProto.EncodingXCursor));
+        assertTrue(encodings.contains(RfbProto.EncodingRichCursor));
+        assertTrue(encodings.contains(RfbProto.EncodingPointerPos));
+    }
+}
@@ -0,0 +1,201 @@
+package org.poc.vnc;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.poc.common.IViewRenderer;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.RfbProto;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * With a renderer that takes the desktop from a direct buffer, the pixels are kept in that
+ * buffer and not on the heap, and every decoder leaves it holding what it leaves in the array
+ * otherwise.
+ */
+public class DirectFramebufferTest {
+
+    static final int WIDTH = 1024;
+    static final int HEIGHT = 768;
+
+    /**
+     * Takes note of the changed rectangles, and nothing else
+     */
+    public static class DirectRenderer implements IViewRenderer {
+        public int changes;
+
+        @Override
+        public Canvas onDrawViewBegin(Rect dirty) {
+            return null;
+        }
+
+        @Override
+        public void onDrawViewEnd() {
+        }
+
+        @Override
+        public int getPanelScreenWidth() {
+            return 0;
+        }
+
+        @Override
+        public void setCursorShape(int[] pixels, int width, int height, int hotX, int hotY) {
+        }
+
+        @Override
+        public void setCursorPosition(int x, int y, int framebufferWidth, int framebufferHeight) {
+        }
+
+        @Override
+        public boolean setFramebufferPalette(int[] palette, int framebufferWidth, int framebufferHeight) {
+            return false;
+        }
+
+        @Override
+        public void updateIndexedFramebuffer(int[] indices, int offset, int stride, int x, int y, int w, int h) {
+        }
+
+        @Override
+        public IntBuffer setDirectFramebuffer(int framebufferWidth, int framebufferHeight) {
+            return null;
+        }
+
+        @Override
+        public void directFramebufferChanged(int x, int y, int w, int h) {
+            assertTrue("changed outside the framebuffer", x >= 0 && y >= 0 && x + w <= WIDTH && y + h <= HEIGHT);
+            changes++;
+        }
+    }
+
+    final Random random = new Random(3);
+
+    byte[] jpeg(int w, int h) throws IOException {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < h; j++)
+            for (int i = 0; i < w; i++)
+                image.setRGB(i, j, (i * 255 / w) << 16 | (j * 255 / h) << 8 | random.nextInt(64));
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", jpeg);
+        return jpeg.toByteArray();
+    }
+
+    /**
+     * The parallel test's overlapping rectangles, every encoding of the allocation test's
+     * updates over them, and Tight's filters and JPEG
+     */
+    byte[] session24() throws Exception {
+        ServerStream s = new ServerStream();
+        s.out.write(new ParallelRectsTest().session(1, 4));
+        SteadyStateAllocationTest updates = new SteadyStateAllocationTest();
+        for (int i = 0; i < 3; i++)
+            updates.writeUpdate(s);
+
+        TightConformanceTest pixels = new TightConformanceTest();
+        TightEncoder tight = new TightEncoder(s, 4);
+        s.update(4);
+        tight.basic(600, 300, 101, 77, pixels.smooth24(101, 77), TightEncoder.FILTER_GRADIENT, 3, 0);
+        tight.basic(710, 300, 1, 40, pixels.smooth24(1, 40), TightEncoder.FILTER_GRADIENT, 3, 0);
+        tight.basic(600, 400, 63, 12, pixels.fewColours(63 * 12, 2, 0xFFFFFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        tight.jpeg(700, 500, 96, 64, jpeg(96, 64));
+        return s.toByteArray();
+    }
+
+    /**
+     * Raw rectangles and Tight's filters in 16-bit colour
+     */
+    byte[] session16() throws Exception {
+        ServerStream s = new ServerStream();
+        TightConformanceTest pixels = new TightConformanceTest();
+        TightEncoder tight = new TightEncoder(s, 2);
+        s.update(5);
+        s.rect(3, 7, 45, 31, RfbProto.EncodingRaw);
+        for (int i = 0; i < 45 * 31; i++)
+            s.out.writeShort(random.nextInt(0x10000));
+        tight.basic(100, 5, 33, 21, pixels.randomPixels(33 * 21, 0xFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        tight.basic(150, 5, 19, 9, pixels.fewColours(19 * 9, 9, 0xFFFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        tight.basic(5, 40, 90, 70, pixels.smooth16(90, 70, 11, 63), TightEncoder.FILTER_GRADIENT, 2, 0);
+        tight.fill(200, 200, 50, 50, 0xF81F, 0);
+        return s.toByteArray();
+    }
+
+    /**
+     * The parallel test's rectangles and Tight palettes in 8-bit colour
+     */
+    byte[] session8() throws Exception {
+        ServerStream s = new ServerStream();
+        s.out.write(new ParallelRectsTest().session(2, 1));
+        TightConformanceTest pixels = new TightConformanceTest();
+        TightEncoder tight = new TightEncoder(s, 1);
+        s.update(2);
+        tight.basic(600, 300, 40, 30, pixels.fewColours(40 * 30, 6, 0xFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        tight.basic(700, 300, 40, 30, pixels.randomPixels(40 * 30, 0xFF), TightEncoder.FILTER_COPY, 0, 0);
+        return s.toByteArray();
+    }
+
+    int[] replay(byte[] stream, ColorModel colorModel, int workers, boolean direct) throws Exception {
+        ServerStream s = new ServerStream();
+        s.out.write(stream);
+        TestSession session = new TestSession(s.replay(), WIDTH, HEIGHT);
+        session.canvas.setColorModel(colorModel);
+        session.canvas.setRectWorkers(workers);
+        session.canvas.setZrleWorkers(workers);
+        session.canvas.setUseJavaJpegDecoder(true);
+        session.start();
+        if (!direct) {
+            session.run();
+            return session.pixels().clone();
+        }
+        IntBuffer buffer = ByteBuffer.allocateDirect(4 * WIDTH * HEIGHT).order(ByteOrder.nativeOrder()).asIntBuffer();
+        DirectRenderer renderer = new DirectRenderer();
+        session.canvas.bitmapData.setDirectRenderer(renderer, buffer);
+        assertNull("pixels kept on the heap as well", session.pixels());
+        session.run();
+        assertNull("pixels kept on the heap as well", session.pixels());
+        assertTrue("renderer never told of changes", renderer.changes > 0);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        buffer.position(0);
+        buffer.get(pixels);
+        return pixels;
+    }
+
+    void check(byte[] stream, ColorModel colorModel) throws Exception {
+        int[] expected = replay(stream, colorModel, 1, false);
+        for (int workers : new int[] { 1, 3 }) {
+            int[] actual = replay(stream, colorModel, workers, true);
+            for (int i = 0; i < expected.length; i++) {
+                if (actual[i] != expected[i])
+                    assertEquals(colorModel + ", " + workers + " workers, pixel at " + i % WIDTH + "," + i / WIDTH,
+                            Integer.toHexString(expected[i]), Integer.toHexString(actual[i]));
+            }
+        }
+    }
+
+    @Test
+    public void sameAsArray24() throws Exception {
+        check(session24(), ColorModel.C24bit);
+    }
+
+    @Test
+    public void sameAsArray16() throws Exception {
+        check(session16(), ColorModel.C16);
+    }
+
+    @Test
+    public void sameAsArray8() throws Exception {
+        check(session8(), ColorModel.C256);
+    }
+}
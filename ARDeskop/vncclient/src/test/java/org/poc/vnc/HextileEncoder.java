@@ -0,0 +1,178 @@
+package org.poc.vnc;
+
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes Hextile rectangles the way a server does: a solid tile as just its background, a
+ * two-colour tile as subrectangles of the foreground, a tile of more colours as coloured
+ * subrectangles, and any tile those would make bigger than its pixels as raw.  The
+ * background and foreground are only sent when they differ from the previous tile's.
+ * <p>
+ * Pixels are given as values in the session's pixel format, as for {@link TightEncoder}.
+ */
+class HextileEncoder {
+
+    // Tiles of each kind
+    static final int RAW = 0;
+    static final int SOLID = 1;
+    static final int MONO = 2;
+    static final int COLOURED = 3;
+
+    final ServerStream stream;
+    final int bytesPerPixel;
+    /** Tiles written as each kind */
+    final int[] tiles = new int[4];
+
+    // The colours the client holds, when it holds them
+    private int bg;
+    private int fg;
+    private boolean bgValid;
+    private boolean fgValid;
+
+    HextileEncoder(ServerStream stream, int bytesPerPixel) {
+        this.stream = stream;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    void hextile(int x, int y, int w, int h, int[] pixels) throws IOException {
+        stream.rect(x, y, w, h, RfbProto.EncodingHextile);
+        // The client forgets both colours at the start of a rectangle
+        bgValid = false;
+        fgValid = false;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] tile = new int[16 * 16];
+        for (int ty = 0; ty < h; ty += 16) {
+            for (int tx = 0; tx < w; tx += 16) {
+                int tw = Math.min(16, w - tx), th = Math.min(16, h - ty);
+                for (int j = 0; j < th; j++)
+                    System.arraycopy(pixels, (ty + j) * w + tx, tile, j * tw, tw);
+                writeTile(data, tile, tw, th);
+            }
+        }
+        data.writeTo(stream.out);
+    }
+
+    private void writeTile(ByteArrayOutputStream out, int[] tile, int tw, int th) throws IOException {
+        int n = tw * th;
+        // The most common colour is the background, and a second colour the foreground
+        int background = tile[0], count = 0, other = tile[0];
+        int colours = 1;
+        for (int i = 0; i < n; i++) {
+            int c = 0;
+            for (int k = 0; k < n; k++)
+                if (tile[k] == tile[i])
+                    c++;
+            if (c > count) {
+                count = c;
+                background = tile[i];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (tile[i] != background) {
+                if (colours == 1) {
+                    other = tile[i];
+                    colours = 2;
+                } else if (tile[i] != other) {
+                    colours = 3;
+                    break;
+                }
+            }
+        }
+
+        int mask = 0;
+        if (!bgValid || bg != background)
+            mask |= RfbProto.HextileBackgroundSpecified;
+        if (colours == 1) {
+            out.write(mask);
+            if (mask != 0)
+                writePixel(out, background);
+            bg = background;
+            bgValid = true;
+            tiles[SOLID]++;
+            return;
+        }
+
+        ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+        int nSubrects = subrects(subrects, tile, tw, th, background, colours == 3);
+        if (colours == 2 && (!fgValid || fg != other))
+            mask |= RfbProto.HextileForegroundSpecified;
+        mask |= RfbProto.HextileAnySubrects;
+        if (colours == 3)
+            mask |= RfbProto.HextileSubrectsColoured;
+        int size = 2 + ((mask & RfbProto.HextileBackgroundSpecified) != 0 ? bytesPerPixel : 0)
+                + ((mask & RfbProto.HextileForegroundSpecified) != 0 ? bytesPerPixel : 0) + subrects.size();
+        if (nSubrects > 255 || size > n * bytesPerPixel) {
+            out.write(RfbProto.HextileRaw);
+            for (int i = 0; i < n; i++)
+                writePixel(out, tile[i]);
+            // What the client holds after a raw tile is up to the client
+            bgValid = false;
+            fgValid = false;
+            tiles[RAW]++;
+            return;
+        }
+
+        out.write(mask);
+        if ((mask & RfbProto.HextileBackgroundSpecified) != 0)
+            writePixel(out, background);
+        if ((mask & RfbProto.HextileForegroundSpecified) != 0)
+            writePixel(out, other);
+        out.write(nSubrects);
+        subrects.writeTo(out);
+        bg = background;
+        bgValid = true;
+        fg = other;
+        // Coloured subrectangles leave the foreground undefined
+        fgValid = colours == 2;
+        tiles[colours == 2 ? MONO : COLOURED]++;
+    }
+
+    /**
+     * Cover the pixels that aren't the background with rectangles of one colour, each as wide
+     * as its run on its top row and as tall as that run repeats below it
+     * @return Number of subrectangles
+     */
+    private int subrects(ByteArrayOutputStream out, int[] tile, int tw, int th, int background, boolean coloured) {
+        boolean[] covered = new boolean[tw * th];
+        int count = 0;
+        for (int y = 0; y < th; y++) {
+            for (int x = 0; x < tw; x++) {
+                int colour = tile[y * tw + x];
+                if (colour == background || covered[y * tw + x])
+                    continue;
+                int sw = 1;
+                while (x + sw < tw && tile[y * tw + x + sw] == colour && !covered[y * tw + x + sw])
+                    sw++;
+                int sh = 1;
+                for (boolean same = true; same && y + sh < th; ) {
+                    for (int i = x; i < x + sw; i++)
+                        same &= tile[(y + sh) * tw + i] == colour && !covered[(y + sh) * tw + i];
+                    if (same)
+                        sh++;
+                }
+                for (int j = y; j < y + sh; j++)
+                    for (int i = x; i < x + sw; i++)
+                        covered[j * tw + i] = true;
+                if (coloured)
+                    writePixel(out, colour);
+                out.write(x << 4 | y);
+                out.write((sw - 1) << 4 | (sh - 1));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void writePixel(ByteArrayOutputStream out, int pixel) {
+        out.write(pixel);
+        if (bytesPerPixel > 1)
+            out.write(pixel >> 8);
+        if (bytesPerPixel == 4) {
+            out.write(pixel >> 16);
+            out.write(0);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.poc.vnc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to decode full-screen pages of text at 1920x1080 sent as Hextile, as
+ * {@link HextileEncoder} writes them: through the canvas, which expands each tile into a
+ * scratch tile and copies it into the framebuffer once, and through the decoder it replaced,
+ * which filled the background and then each subrectangle straight into the framebuffer.  The
+ * old decoder also set a Paint's colour per subrectangle and called validDraw per tile;
+ * those only cost anything on a device and are left out.  Both start each call with a new
+ * framebuffer.  main() prints how the tiles were sent first.
+ * <p>
+ * Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HextileTextBenchmark {
+
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+    static final int FRAMES = 4;
+    // Update and rectangle headers
+    static final int HEADER_BYTES = 4 + 12;
+
+    @Param({ "canvas", "perSubrect" })
+    public String decoder;
+
+    @Param({ "C24bit", "C16", "C256" })
+    public String colorModel;
+
+    private ColorModel model;
+    private int[] tiles;
+    private byte[] session;
+    private IRfbTransportFactory replay;
+
+    @Setup
+    public void setUp() throws Exception {
+        model = ColorModel.valueOf(colorModel);
+        ServerStream stream = new ServerStream();
+        HextileEncoder encoder = new HextileEncoder(stream, model.bpp());
+        Random random = new Random(17);
+        for (int i = 0; i < FRAMES; i++) {
+            stream.update(1);
+            encoder.hextile(0, 0, WIDTH, HEIGHT, RleEncodingsTest.inFormat(HextileTextTest.textPage(random, WIDTH, HEIGHT), model));
+        }
+        tiles = encoder.tiles;
+        session = stream.toByteArray();
+        replay = stream.replay();
+    }
+
+    @Benchmark
+    public int[] decodeFrames() throws Exception {
+        if (decoder.equals("perSubrect"))
+            return perSubrect();
+        TestSession test = new TestSession(replay, WIDTH, HEIGHT);
+        test.canvas.setColorModel(model);
+        test.start();
+        test.run();
+        return test.pixels();
+    }
+
+    /**
+     * The Hextile decoder before tiles were expanded into a scratch tile
+     */
+    int[] perSubrect() throws Exception {
+        int[] framebuffer = new int[WIDTH * HEIGHT];
+        int bytesPerPixel = model.bpp();
+        byte[] buf = new byte[255 * (4 + 2)];
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(session));
+        for (int f = 0; f < FRAMES; f++) {
+            is.skipBytes(HEADER_BYTES);
+            int bg = 0xFF000000, fg = 0xFF000000;
+            for (int ty = 0; ty < HEIGHT; ty += 16) {
+                int th = Math.min(16, HEIGHT - ty);
+                for (int tx = 0; tx < WIDTH; tx += 16) {
+                    int tw = Math.min(16, WIDTH - tx);
+                    int subencoding = is.readUnsignedByte();
+                    if ((subencoding & RfbProto.HextileRaw) != 0) {
+                        for (int j = 0; j < th; j++) {
+                            is.readFully(buf, 0, tw * bytesPerPixel);
+                            for (int i = 0; i < tw; i++)
+                                framebuffer[(ty + j) * WIDTH + tx + i] = pixel(buf, i * bytesPerPixel) & 0xFFFFFF;
+                        }
+                        continue;
+                    }
+                    if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
+                        is.readFully(buf, 0, bytesPerPixel);
+                        bg = pixel(buf, 0);
+                    }
+                    fill(framebuffer, tx, ty, tw, th, bg);
+                    if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
+                        is.readFully(buf, 0, bytesPerPixel);
+                        fg = pixel(buf, 0);
+                    }
+                    if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+                        continue;
+                    int nSubrects = is.readUnsignedByte();
+                    boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+                    is.readFully(buf, 0, nSubrects * (coloured ? bytesPerPixel + 2 : 2));
+                    for (int j = 0, i = 0; j < nSubrects; j++) {
+                        if (coloured) {
+                            fg = pixel(buf, i);
+                            i += bytesPerPixel;
+                        }
+                        int b1 = buf[i++] & 0xFF;
+                        int b2 = buf[i++] & 0xFF;
+                        fill(framebuffer, tx + (b1 >> 4), ty + (b1 & 0xf), (b2 >> 4) + 1, (b2 & 0xf) + 1, fg);
+                    }
+                }
+            }
+        }
+        return framebuffer;
+    }
+
+    private int pixel(byte[] buf, int p) {
+        if (model.bpp() == 1)
+            return model.palette()[buf[p] & 0xFF];
+        if (model.bpp() == 2)
+            return model.palette()[(buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8];
+        return 0xFF000000 | (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+    }
+
+    private static void fill(int[] framebuffer, int x, int y, int w, int h, int color) {
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                framebuffer[j * WIDTH + i] = color;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String colorModel : new String[] { "C24bit", "C16", "C256" }) {
+            HextileTextBenchmark benchmark = new HextileTextBenchmark();
+            benchmark.colorModel = colorModel;
+            benchmark.setUp();
+            int[] tiles = benchmark.tiles;
+            System.out.println(colorModel + ": " + benchmark.session.length / FRAMES + " bytes a frame; tiles raw "
+                    + tiles[HextileEncoder.RAW] + ", solid " + tiles[HextileEncoder.SOLID] + ", two-colour "
+                    + tiles[HextileEncoder.MONO] + ", coloured " + tiles[HextileEncoder.COLOURED]);
+        }
+        new Runner(new OptionsBuilder().include(HextileTextBenchmark.class.getSimpleName()).build()).run();
+    }
+}
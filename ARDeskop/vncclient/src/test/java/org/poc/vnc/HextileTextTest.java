@@ -0,0 +1,154 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pages of text written by {@link HextileEncoder} come back as the pixels they were made
+ * from, in every pixel format, with the background and foreground carried from tile to tile.
+ */
+public class HextileTextTest {
+
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+
+    // Ink for plain text, keywords, strings and comments, and the gutter's line numbers
+    static final int[] INK = { 0x000000, 0x000080, 0xA31515, 0x008000, 0x2B91AF };
+    static final int PAPER = 0xFFFFFF;
+    static final int GUTTER = 0xF0F0F0;
+    static final int CURRENT_LINE = 0xE8F2FE;
+
+    /**
+     * Glyphs of an 8x16 font, 0 for paper, 1 for ink and 2 for the half-tone of an
+     * antialiased edge
+     */
+    static byte[][] font(Random random) {
+        byte[][] glyphs = new byte[95][];
+        for (int g = 0; g < glyphs.length; g++) {
+            byte[] glyph = new byte[8 * 16];
+            for (int k = 2 + random.nextInt(3); k > 0; k--) {
+                int x = 1 + random.nextInt(6), y = 3 + random.nextInt(9);
+                int dx = random.nextInt(3) - 1, dy = dx == 0 ? 1 : random.nextInt(2);
+                for (int len = 2 + random.nextInt(6); len > 0 && x >= 1 && x < 7 && y >= 3 && y < 13; len--) {
+                    glyph[y * 8 + x] = 1;
+                    if (dx != 0 && dy != 0 && glyph[y * 8 + x - dx] == 0)
+                        glyph[y * 8 + x - dx] = 2;
+                    x += dx;
+                    y += dy;
+                }
+            }
+            glyphs[g] = glyph;
+        }
+        return glyphs;
+    }
+
+    /**
+     * A code editor's page in 0xRRGGBB: a gutter of line numbers, indented lines of text in
+     * a few colours, some of it antialiased, and the current line highlighted
+     */
+    static int[] textPage(Random random, int w, int h) {
+        byte[][] font = font(random);
+        int[] pixels = new int[w * h];
+        Arrays.fill(pixels, PAPER);
+        int lines = (h + 15) / 16, gutter = Math.min(48, w), current = random.nextInt(lines);
+        for (int line = 0; line < lines; line++) {
+            int paper = line == current ? CURRENT_LINE : PAPER;
+            for (int y = line * 16; y < Math.min(line * 16 + 16, h); y++) {
+                Arrays.fill(pixels, y * w, y * w + gutter, GUTTER);
+                Arrays.fill(pixels, y * w + gutter, y * w + w, paper);
+            }
+            drawText(pixels, w, font, 8, line * 16, String.valueOf(line + 1), INK[4], GUTTER, false);
+            if (random.nextInt(6) == 0)
+                continue;
+            int x = Math.min(gutter + 8 + 32 * random.nextInt(4), w);
+            boolean antialiased = random.nextInt(3) == 0;
+            while (x < w - 80 && random.nextInt(12) > 0) {
+                StringBuilder word = new StringBuilder();
+                for (int k = 1 + random.nextInt(9); k > 0; k--)
+                    word.append((char) (' ' + 1 + random.nextInt(94)));
+                int ink = INK[random.nextInt(4) == 0 ? 1 + random.nextInt(3) : 0];
+                x = drawText(pixels, w, font, x, line * 16, word.toString(), ink, paper, antialiased) + 8;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @return The x after the text
+     */
+    static int drawText(int[] pixels, int w, byte[][] font, int x, int y, String text, int ink, int paper, boolean antialiased) {
+        int half = blend(ink, paper);
+        for (int c = 0; c < text.length() && x + 8 <= w; c++, x += 8) {
+            byte[] glyph = font[text.charAt(c) - ' '];
+            for (int j = 0; j < 16 && (y + j) * w < pixels.length; j++) {
+                for (int i = 0; i < 8; i++) {
+                    int dot = glyph[j * 8 + i];
+                    if (dot == 1 || (dot == 2 && !antialiased))
+                        pixels[(y + j) * w + x + i] = ink;
+                    else if (dot == 2)
+                        pixels[(y + j) * w + x + i] = half;
+                }
+            }
+        }
+        return x;
+    }
+
+    static int blend(int a, int b) {
+        return ((a >> 16 & 0xFF) + (b >> 16 & 0xFF)) / 2 << 16
+                | ((a >> 8 & 0xFF) + (b >> 8 & 0xFF)) / 2 << 8
+                | ((a & 0xFF) + (b & 0xFF)) / 2;
+    }
+
+    void check(ColorModel colorModel) throws Exception {
+        Random random = new Random(31);
+        ServerStream stream = new ServerStream();
+        HextileEncoder encoder = new HextileEncoder(stream, colorModel.bpp());
+        int[] palette = colorModel.palette();
+        int[] expected = new int[WIDTH * HEIGHT];
+        // A whole page, then a few lines of it rewritten in rectangles that cut tiles short
+        int[][] rects = { { 0, 0, WIDTH, HEIGHT }, { 56, 32, 301, 40 }, { 0, 200, 95, 161 }, { 600, 470, 40, 10 } };
+        for (int[] r : rects) {
+            int x = r[0], y = r[1], w = r[2], h = r[3];
+            int[] pixels = RleEncodingsTest.inFormat(textPage(random, w, h), colorModel);
+            stream.update(1);
+            encoder.hextile(x, y, w, h, pixels);
+            for (int j = 0; j < h; j++)
+                for (int i = 0; i < w; i++)
+                    expected[(y + j) * WIDTH + x + i] = (palette == null ? pixels[j * w + i] : palette[pixels[j * w + i]]) & 0xFFFFFF;
+        }
+        assertTrue("no solid tiles", encoder.tiles[HextileEncoder.SOLID] > 0);
+        assertTrue("no two-colour tiles", encoder.tiles[HextileEncoder.MONO] > 0);
+        assertTrue("no coloured tiles", encoder.tiles[HextileEncoder.COLOURED] > 0);
+
+        TestSession session = new TestSession(stream.replay(), WIDTH, HEIGHT);
+        session.canvas.setColorModel(colorModel);
+        session.start();
+        session.run();
+        int[] actual = session.pixels();
+        for (int i = 0; i < actual.length; i++)
+            if ((actual[i] & 0xFFFFFF) != expected[i])
+                fail(colorModel + " pixel at " + i % WIDTH + "," + i / WIDTH + ": expected "
+                        + Integer.toHexString(expected[i]) + " but was " + Integer.toHexString(actual[i] & 0xFFFFFF));
+    }
+
+    @Test
+    public void text24() throws Exception {
+        check(ColorModel.C24bit);
+    }
+
+    @Test
+    public void text16() throws Exception {
+        check(ColorModel.C16);
+    }
+
+    @Test
+    public void text8() throws Exception {
+        check(ColorModel.C256);
+    }
+}
@@ -0,0 +1,151 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.IRfbTransport;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.NioTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sessions framed by the incremental parser, arriving a few bytes at a time, leave the same
+ * framebuffer as the blocking loop reading them in one piece.
+ * <p>
+ * The server writes a session in chunks of random size, and the client's receive window is
+ * sized so each read takes at most a chunk's worth; a window of one byte hands the parser
+ * every byte on its own.
+ */
+public class IncrementalParserTest {
+
+    static final int WIDTH = 1024;
+    static final int HEIGHT = 768;
+
+    final Random random = new Random(11);
+
+    /**
+     * Serves one connection: writes the session in chunks of 1 to maxChunk bytes, ends the
+     * stream and reads and drops what the client sends until it hangs up
+     */
+    class ChunkingServer extends Thread {
+        final ServerSocket listener;
+        final byte[] session;
+        final int maxChunk;
+        volatile IOException failure;
+
+        ChunkingServer(byte[] session, int maxChunk) throws IOException {
+            super("chunking server");
+            listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            this.session = session;
+            this.maxChunk = maxChunk;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = listener.accept();
+                try {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    Random chunks = new Random(maxChunk);
+                    for (int off = 0; off < session.length; ) {
+                        int n = Math.min(session.length - off, 1 + chunks.nextInt(maxChunk));
+                        out.write(session, off, n);
+                        out.flush();
+                        off += n;
+                    }
+                    socket.shutdownOutput();
+                    InputStream in = socket.getInputStream();
+                    byte[] sink = new byte[4096];
+                    while (in.read(sink) >= 0) {
+                    }
+                } finally {
+                    socket.close();
+                    listener.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    int[] blocking(byte[] session, ColorModel colorModel) throws Exception {
+        ServerStream s = new ServerStream();
+        s.out.write(session);
+        TestSession test = new TestSession(s.replay(), WIDTH, HEIGHT);
+        test.canvas.setColorModel(colorModel);
+        test.canvas.setUseJavaJpegDecoder(true);
+        test.start();
+        test.run();
+        return test.pixels().clone();
+    }
+
+    int[] incremental(byte[] session, ColorModel colorModel, final int maxChunk) throws Exception {
+        ChunkingServer server = new ChunkingServer(session, maxChunk);
+        server.start();
+        final int port = server.listener.getLocalPort();
+        TestSession test = new TestSession(new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int ignored) throws IOException {
+                return new NioTransport("127.0.0.1", port, NioTransport.DEFAULT_BANDWIDTH, NioTransport.DEFAULT_RTT,
+                        NioTransport.DEFAULT_CONNECT_TIMEOUT, maxChunk);
+            }
+        }, WIDTH, HEIGHT);
+        test.canvas.setUseIncrementalParser(true);
+        test.canvas.setColorModel(colorModel);
+        test.canvas.setUseJavaJpegDecoder(true);
+        test.start();
+        test.run();
+        server.join();
+        if (server.failure != null)
+            throw server.failure;
+        return test.pixels();
+    }
+
+    void check(byte[] session, ColorModel colorModel, int... maxChunks) throws Exception {
+        int[] expected = blocking(session, colorModel);
+        for (int maxChunk : maxChunks) {
+            int[] actual = incremental(session, colorModel, maxChunk);
+            for (int i = 0; i < expected.length; i++) {
+                if (actual[i] != expected[i])
+                    assertEquals(colorModel + ", chunks up to " + maxChunk + " bytes, pixel at " + i % WIDTH + "," + i / WIDTH,
+                            Integer.toHexString(expected[i]), Integer.toHexString(actual[i]));
+            }
+        }
+    }
+
+    /**
+     * A rectangle of every encoding, each update ending in a fence
+     */
+    @Test
+    public void everyEncoding() throws Exception {
+        ServerStream s = new ServerStream();
+        SteadyStateAllocationTest updates = new SteadyStateAllocationTest();
+        for (int i = 0; i < 3; i++)
+            updates.writeUpdate(s);
+        check(s.toByteArray(), ColorModel.C24bit, 1, 2, 3 + random.nextInt(30), 100 + random.nextInt(900), 65536);
+    }
+
+    @Test
+    public void sameAsBlocking24() throws Exception {
+        check(new DirectFramebufferTest().session24(), ColorModel.C24bit, 1, 5 + random.nextInt(60), 4096);
+    }
+
+    @Test
+    public void sameAsBlocking16() throws Exception {
+        check(new DirectFramebufferTest().session16(), ColorModel.C16, 1, 5 + random.nextInt(60), 4096);
+    }
+
+    @Test
+    public void sameAsBlocking8() throws Exception {
+        check(new DirectFramebufferTest().session8(), ColorModel.C256, 1, 5 + random.nextInt(60), 4096);
+    }
+}
@@ -0,0 +1,62 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.LatencyMonitor;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The latency monitor's figures against the loopback server's injected round trip: fences
+ * it echoes a round trip late measure that round trip, and updates it sends a round trip
+ * after being asked take that round trip plus next to nothing.
+ */
+public class LatencyTest {
+
+    static final long ROUND_TRIP_MS = 100;
+    // Long enough for a few probes a second apart
+    static final long RUN_MS = 3500;
+    // Loopback and scheduling delays allowed on top of the injected round trip
+    static final long MARGIN_MS = ROUND_TRIP_MS / 2;
+
+    TestSession run(boolean fences) throws Exception {
+        LoopbackServer server = new LoopbackServer(ROUND_TRIP_MS, RUN_MS);
+        server.fences = fences;
+        server.start();
+        TestSession session = new TestSession(server.transport(false), 64, 64);
+        session.canvas.setUseContinuousUpdates(false);
+        session.canvas.setUpdateRequestDepth(1, 1);
+        session.start();
+        session.run();
+        if (server.failure != null)
+            throw server.failure;
+        return session;
+    }
+
+    static void assertAbout(String what, long expectedMs, long nanos) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        assertTrue(what + " " + ms + " ms", ms >= expectedMs && ms <= expectedMs + MARGIN_MS);
+    }
+
+    @Test
+    public void fencesMeasureRoundTrip() throws Exception {
+        TestSession session = run(true);
+        LatencyMonitor latency = session.rfb.getLatencyMonitor();
+        assertTrue(latency.isFencesSupported());
+        assertAbout("round trip", ROUND_TRIP_MS, latency.getRoundTripTime());
+        assertEquals(latency.getRoundTripTime(), session.canvas.bitmapData.getRequestPipeline().getRoundTripTime());
+        assertAbout("shortest round trip", ROUND_TRIP_MS, latency.getMinRoundTripTime());
+        assertAbout("update latency", ROUND_TRIP_MS, latency.getUpdateLatency());
+        assertTrue("server time " + latency.getServerTime(),
+                latency.getServerTime() <= TimeUnit.MILLISECONDS.toNanos(MARGIN_MS));
+    }
+
+    @Test
+    public void noRoundTripWithoutFences() throws Exception {
+        LatencyMonitor latency = run(false).rfb.getLatencyMonitor();
+        assertEquals(0, latency.getRoundTripTime());
+        assertAbout("update latency", ROUND_TRIP_MS, latency.getUpdateLatency());
+    }
+}
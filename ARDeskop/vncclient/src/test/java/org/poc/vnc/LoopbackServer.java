@@ -0,0 +1,311 @@
+package org.poc.vnc;
+
+import org.poc.vnc.domain.IRfbTransport;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.NioTransport;
+import org.poc.vnc.domain.RfbProto;
+import org.poc.vnc.domain.SocketTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server on a loopback socket, after ServerInit, that answers a fixed round trip after each
+ * client message needing an answer, for a fixed time, then ends the stream.
+ * <p>
+ * Each answer is made as its message is read, in the pixel format in force then, and is sent
+ * once its time comes, so updates asked for before a SetPixelFormat arrive in the old format
+ * after it, as from a real server.  Every update is one Raw rectangle of a single colour.
+ * Fences are announced and answered if {@link #fences} is set before the client connects;
+ * a fence with SyncNext is answered before the message after it is applied.  Likewise with
+ * {@link #continuousUpdates}, which pushes an update every {@link #PUSH_INTERVAL_MS} while
+ * the client has them enabled.
+ */
+class LoopbackServer {
+
+    static final int UPDATE_SIZE = 16;
+    /** Colour of every update, as 0xRRGGBB */
+    static final int COLOUR = 0x336699;
+    static final long PUSH_INTERVAL_MS = 20;
+
+    final ServerSocket listener;
+    final long roundTripMs;
+    final long runMs;
+    volatile boolean fences;
+    volatile boolean continuousUpdates;
+
+    // Answers in the order they were made, each with the time it is due
+    private final LinkedBlockingQueue<Answer> answers = new LinkedBlockingQueue<Answer>();
+    private volatile int bitsPerPixel = 32;
+    private volatile boolean pushing;
+    private boolean announcedFences;
+    private boolean announcedContinuousUpdates;
+    private int requestsInFlight;
+
+    volatile int updatesSent;
+    volatile int updatesPushed;
+    volatile int maxRequestsInFlight;
+    volatile int requestsWhilePushing;
+    // The encodings the client last asked for
+    volatile List<Integer> encodings = Collections.emptyList();
+    // SetPixelFormat and EnableContinuousUpdates messages, in the order they came
+    final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    // Updates made in each pixel format, by bytes per pixel
+    final int[] updatesByBytesPerPixel = new int[5];
+    volatile IOException failure;
+
+    static class Answer {
+        final long due;
+        final byte[] bytes;
+        final boolean update;
+
+        Answer(long due, byte[] bytes, boolean update) {
+            this.due = due;
+            this.bytes = bytes;
+            this.update = update;
+        }
+    }
+
+    LoopbackServer(long roundTripMs, long runMs) throws IOException {
+        this.roundTripMs = roundTripMs;
+        this.runMs = runMs;
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @param nio True for {@link NioTransport}, which the incremental parser needs, false for
+     * {@link SocketTransport}
+     * @return Connects to this server, whatever host and port are asked for
+     */
+    IRfbTransportFactory transport(final boolean nio) {
+        final int port = listener.getLocalPort();
+        return new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int ignored) throws IOException {
+                if (nio)
+                    return NioTransport.FACTORY.open("127.0.0.1", port);
+                return new SocketTransport("127.0.0.1", port);
+            }
+        };
+    }
+
+    void start() {
+        new Thread("loopback server") {
+            @Override
+            public void run() {
+                try {
+                    serve(listener.accept());
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }.start();
+    }
+
+    void serve(final Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        Thread reader = new Thread("loopback server reader") {
+            @Override
+            public void run() {
+                try {
+                    while (true)
+                        readClientMessage(in);
+                } catch (EOFException e) {
+                    // The client hung up
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        };
+        reader.start();
+        OutputStream out = socket.getOutputStream();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(runMs);
+        long nextPush = 0;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (now > end)
+                    break;
+                if (pushing && now >= nextPush) {
+                    out.write(update(bitsPerPixel / 8));
+                    out.flush();
+                    updatesPushed++;
+                    nextPush = now + TimeUnit.MILLISECONDS.toNanos(PUSH_INTERVAL_MS);
+                    continue;
+                }
+                Answer answer = answers.poll((pushing ? Math.min(end, nextPush) : end) - now, TimeUnit.NANOSECONDS);
+                if (answer == null)
+                    continue;
+                long wait = answer.due - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                if (System.nanoTime() > end)
+                    break;
+                if (answer.update) {
+                    // Before the client can see the update and ask again
+                    synchronized (this) {
+                        requestsInFlight--;
+                    }
+                }
+                out.write(answer.bytes);
+                out.flush();
+                if (answer.update)
+                    updatesSent++;
+            }
+            // End the stream, and let the client close the connection when it sees the end
+            socket.shutdownOutput();
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            socket.close();
+            listener.close();
+        }
+    }
+
+    /**
+     * Stop pushing updates, as a server may at any time, and tell the client so
+     */
+    void endContinuousUpdates() {
+        pushing = false;
+        answer(new byte[] { (byte) RfbProto.EndOfContinuousUpdates }, false);
+    }
+
+    private void answer(byte[] bytes, boolean update) {
+        answers.add(new Answer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(roundTripMs), bytes, update));
+    }
+
+    /**
+     * Read one client message and queue its answer, if any
+     */
+    void readClientMessage(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case 0: // SetPixelFormat
+                in.skipBytes(3);
+                bitsPerPixel = in.readUnsignedByte();
+                in.skipBytes(15);
+                log.add("SetPixelFormat " + bitsPerPixel);
+                break;
+            case 2: // SetEncodings
+                in.skipBytes(1);
+                boolean fenceEncoding = false;
+                boolean continuousUpdatesEncoding = false;
+                List<Integer> listed = new ArrayList<Integer>();
+                for (int n = in.readUnsignedShort(); n > 0; n--) {
+                    int encoding = in.readInt();
+                    listed.add(encoding);
+                    fenceEncoding |= encoding == RfbProto.EncodingFence;
+                    continuousUpdatesEncoding |= encoding == RfbProto.EncodingContinuousUpdates;
+                }
+                encodings = listed;
+                // Each is announced the first time the client lists it, as TigerVNC does
+                if (fenceEncoding && fences && !announcedFences) {
+                    announcedFences = true;
+                    answer(fence(RfbProto.FenceFlagRequest, new byte[0], 0), false);
+                }
+                if (continuousUpdatesEncoding && continuousUpdates && !announcedContinuousUpdates) {
+                    announcedContinuousUpdates = true;
+                    answer(new byte[] { (byte) RfbProto.EndOfContinuousUpdates }, false);
+                }
+                break;
+            case 3: // FramebufferUpdateRequest
+                in.skipBytes(9);
+                if (pushing)
+                    requestsWhilePushing++;
+                synchronized (this) {
+                    requestsInFlight++;
+                    maxRequestsInFlight = Math.max(maxRequestsInFlight, requestsInFlight);
+                }
+                answer(update(bitsPerPixel / 8), true);
+                break;
+            case 4: // KeyEvent
+                in.skipBytes(7);
+                break;
+            case 5: // PointerEvent
+                in.skipBytes(5);
+                break;
+            case 150: // EnableContinuousUpdates
+                boolean enable = in.readUnsignedByte() != 0;
+                int x = in.readUnsignedShort();
+                int y = in.readUnsignedShort();
+                int w = in.readUnsignedShort();
+                int h = in.readUnsignedShort();
+                if (!continuousUpdates)
+                    throw new IOException("EnableContinuousUpdates to a server that never offered them");
+                log.add("EnableContinuousUpdates " + (enable ? "on " : "off ") + x + "," + y + " " + w + "x" + h);
+                if (enable) {
+                    pushing = true;
+                    // Wake the writer, which may be waiting for an answer that never comes
+                    answers.add(new Answer(0, new byte[0], false));
+                }
+                else if (pushing)
+                    endContinuousUpdates();
+                break;
+            case 248: // ClientFence
+                in.skipBytes(3);
+                int flags = in.readInt();
+                byte[] payload = new byte[in.readUnsignedByte()];
+                in.readFully(payload);
+                if (!fences)
+                    throw new IOException("ClientFence to a server that never offered fences");
+                // The answer leaves after every update made so far and before any made once
+                // the next message is applied, which is all SyncNext asks for
+                if ((flags & RfbProto.FenceFlagRequest) != 0)
+                    answer(fence(flags & RfbProto.FenceFlagsSupported & ~RfbProto.FenceFlagRequest, payload, payload.length), false);
+                break;
+            default:
+                throw new IOException("Unexpected client message " + type);
+        }
+    }
+
+    static byte[] fence(int flags, byte[] payload, int len) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RfbProto.ServerFence);
+        out.write(new byte[3]);
+        out.writeInt(flags);
+        out.writeByte(len);
+        out.write(payload, 0, len);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return An update of one Raw rectangle of {@link #COLOUR}, in the given pixel format
+     */
+    synchronized byte[] update(int bytesPerPixel) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RfbProto.FramebufferUpdate);
+        out.writeByte(0);
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(UPDATE_SIZE);
+        out.writeShort(UPDATE_SIZE);
+        out.writeInt(RfbProto.EncodingRaw);
+        // Little-endian, in the layouts ColorModel asks for
+        int pixel = bytesPerPixel == 4 ? COLOUR
+                : bytesPerPixel == 2 ? (COLOUR >> 19 & 0x1F) << 11 | (COLOUR >> 10 & 0x3F) << 5 | (COLOUR >> 3 & 0x1F)
+                : (COLOUR >> 21 & 7) | (COLOUR >> 13 & 7) << 3 | (COLOUR >> 6 & 3) << 6;
+        for (int i = 0; i < UPDATE_SIZE * UPDATE_SIZE; i++)
+            for (int b = 0; b < bytesPerPixel; b++)
+                out.writeByte(pixel >> 8 * b);
+        updatesByBytesPerPixel[bytesPerPixel]++;
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,191 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Raw, RRE, CoRRE and Hextile updates painted by several rect workers leave the framebuffer
+ * exactly as painting them one after another does, however the rectangles overlap and
+ * whatever stateful rectangles come between them.
+ */
+public class ParallelRectsTest {
+
+    static final int WIDTH = 512;
+    static final int HEIGHT = 384;
+
+    static final int[] STATELESS = {
+            RfbProto.EncodingRaw, RfbProto.EncodingRRE, RfbProto.EncodingCoRRE, RfbProto.EncodingHextile
+    };
+
+    Random random;
+    int bytesPerPixel;
+
+    void writePixel(ServerStream s) throws IOException {
+        if (bytesPerPixel == 1) {
+            s.out.writeByte(random.nextInt(256));
+        } else {
+            // Little-endian 0x00RRGGBB
+            s.out.writeByte(random.nextInt(256));
+            s.out.writeByte(random.nextInt(256));
+            s.out.writeByte(random.nextInt(256));
+            s.out.writeByte(0);
+        }
+    }
+
+    void writeRect(ServerStream s, int encoding, int x, int y, int w, int h) throws IOException {
+        s.rect(x, y, w, h, encoding);
+        if (encoding == RfbProto.EncodingRaw) {
+            for (int i = 0; i < w * h; i++)
+                writePixel(s);
+        } else if (encoding == RfbProto.EncodingRRE || encoding == RfbProto.EncodingCoRRE) {
+            int n = random.nextInt(20);
+            s.out.writeInt(n);
+            writePixel(s);
+            for (int i = 0; i < n; i++) {
+                writePixel(s);
+                int sx = random.nextInt(w), sy = random.nextInt(h);
+                int sw = 1 + random.nextInt(w - sx), sh = 1 + random.nextInt(h - sy);
+                if (encoding == RfbProto.EncodingRRE) {
+                    s.out.writeShort(sx);
+                    s.out.writeShort(sy);
+                    s.out.writeShort(sw);
+                    s.out.writeShort(sh);
+                } else {
+                    s.out.writeByte(sx);
+                    s.out.writeByte(sy);
+                    s.out.writeByte(sw);
+                    s.out.writeByte(sh);
+                }
+            }
+        } else {
+            writeHextileTiles(s, x, y, w, h);
+        }
+    }
+
+    /**
+     * Tiles of every kind, including ones that rely on the background and foreground colours
+     * of the tiles before them
+     */
+    void writeHextileTiles(ServerStream s, int x, int y, int w, int h) throws IOException {
+        for (int ty = y; ty < y + h; ty += 16) {
+            for (int tx = x; tx < x + w; tx += 16) {
+                int tw = Math.min(16, x + w - tx), th = Math.min(16, y + h - ty);
+                if (random.nextInt(6) == 0) {
+                    s.out.writeByte(RfbProto.HextileRaw);
+                    for (int i = 0; i < tw * th; i++)
+                        writePixel(s);
+                    continue;
+                }
+                boolean background = random.nextBoolean(), foreground = random.nextBoolean();
+                boolean anySubrects = random.nextInt(3) > 0, coloured = random.nextBoolean();
+                int mask = 0;
+                if (background)
+                    mask |= RfbProto.HextileBackgroundSpecified;
+                if (foreground && !coloured)
+                    mask |= RfbProto.HextileForegroundSpecified;
+                if (anySubrects)
+                    mask |= RfbProto.HextileAnySubrects;
+                if (anySubrects && coloured)
+                    mask |= RfbProto.HextileSubrectsColoured;
+                s.out.writeByte(mask);
+                if (background)
+                    writePixel(s);
+                if (foreground && !coloured)
+                    writePixel(s);
+                if (!anySubrects)
+                    continue;
+                int n = random.nextInt(8);
+                s.out.writeByte(n);
+                for (int i = 0; i < n; i++) {
+                    if (coloured)
+                        writePixel(s);
+                    int sx = random.nextInt(tw), sy = random.nextInt(th);
+                    int sw = 1 + random.nextInt(tw - sx), sh = 1 + random.nextInt(th - sy);
+                    s.out.writeByte(sx << 4 | sy);
+                    s.out.writeByte((sw - 1) << 4 | (sh - 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * A session of several updates of overlapping rectangles, now and then with a Tight fill,
+     * which the canvas paints itself after whatever the workers have queued
+     */
+    byte[] session(long seed, int bytesPerPixel) throws IOException {
+        random = new Random(seed);
+        this.bytesPerPixel = bytesPerPixel;
+        ServerStream s = new ServerStream();
+        for (int update = 0; update < 4; update++) {
+            int n = 5 + random.nextInt(40);
+            s.update(n);
+            for (int i = 0; i < n; i++) {
+                boolean large = random.nextInt(8) == 0;
+                int w = 1 + random.nextInt(large ? WIDTH - 12 : 120);
+                int h = 1 + random.nextInt(large ? HEIGHT - 4 : 120);
+                int x = random.nextInt(WIDTH - w + 1), y = random.nextInt(HEIGHT - h + 1);
+                if (random.nextInt(10) == 0) {
+                    s.rect(x, y, w, h, RfbProto.EncodingTight);
+                    s.out.writeByte(RfbProto.TightFill << 4);
+                    for (int b = 0; b < (bytesPerPixel == 4 ? 3 : 1); b++)
+                        s.out.writeByte(random.nextInt(256));
+                    continue;
+                }
+                int encoding = STATELESS[random.nextInt(STATELESS.length)];
+                // CoRRE positions and sizes are single bytes
+                if (encoding == RfbProto.EncodingCoRRE && (w > 255 || h > 255))
+                    encoding = RfbProto.EncodingRaw;
+                writeRect(s, encoding, x, y, w, h);
+            }
+        }
+        return s.toByteArray();
+    }
+
+    int[] replay(byte[] stream, ColorModel colorModel, int rectWorkers) throws Exception {
+        ServerStream s = new ServerStream();
+        s.out.write(stream);
+        TestSession session = new TestSession(s.replay(), WIDTH, HEIGHT);
+        session.canvas.setColorModel(colorModel);
+        session.canvas.setRectWorkers(rectWorkers);
+        session.start();
+        session.run();
+        return session.pixels().clone();
+    }
+
+    void check(ColorModel colorModel) throws Exception {
+        for (long seed = 0; seed < 10; seed++) {
+            byte[] stream = session(seed, colorModel.bpp());
+            int[] serial = replay(stream, colorModel, 1);
+            int painted = 0;
+            for (int pixel : serial)
+                if (pixel != 0)
+                    painted++;
+            assertTrue("session " + seed + " painted little", painted > WIDTH * HEIGHT / 4);
+            for (int workers : new int[] { 2, 4, 7 }) {
+                int[] parallel = replay(stream, colorModel, workers);
+                for (int i = 0; i < serial.length; i++) {
+                    if (parallel[i] != serial[i])
+                        assertEquals("session " + seed + ", " + workers + " workers, pixel at "
+                                + i % WIDTH + "," + i / WIDTH, Integer.toHexString(serial[i]), Integer.toHexString(parallel[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameAsSerial24() throws Exception {
+        check(ColorModel.C24bit);
+    }
+
+    @Test
+    public void sameAsSerial8() throws Exception {
+        check(ColorModel.C256);
+    }
+}
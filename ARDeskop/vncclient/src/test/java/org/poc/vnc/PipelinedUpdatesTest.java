@@ -0,0 +1,119 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames delivered over a loopback connection with a round trip injected by the server, with
+ * one FramebufferUpdateRequest at a time and with the request pipeline, and pixel format
+ * changes while requests are in flight.
+ */
+public class PipelinedUpdatesTest {
+
+    static final long ROUND_TRIP_MS = 50;
+    static final long RUN_MS = 2000;
+    static final int WIDTH = 64;
+    static final int HEIGHT = 64;
+
+    /**
+     * Run a session with a fixed number of requests in flight
+     * @return The server, for the updates it sent and the requests it had in hand
+     */
+    LoopbackServer framesDelivered(int requests) throws Exception {
+        LoopbackServer server = new LoopbackServer(ROUND_TRIP_MS, RUN_MS);
+        server.start();
+        TestSession session = new TestSession(server.transport(false), WIDTH, HEIGHT);
+        session.canvas.setUseContinuousUpdates(false);
+        session.canvas.setUpdateRequestDepth(requests, requests);
+        session.start();
+        session.run();
+        if (server.failure != null)
+            throw server.failure;
+        return server;
+    }
+
+    /**
+     * @return The framebuffer pixel a session in the given colour model makes of the loopback
+     * server's colour
+     */
+    int expectedPixel(ColorModel colorModel) throws Exception {
+        ServerStream s = new ServerStream();
+        s.out.write(new LoopbackServer(0, 0).update(colorModel.bpp()));
+        TestSession session = new TestSession(s.replay(), WIDTH, HEIGHT);
+        session.canvas.setColorModel(colorModel);
+        session.start();
+        session.run();
+        return session.pixels()[0];
+    }
+
+    /**
+     * Switch to 16-bit colour halfway through with several requests in flight, which the
+     * server answers in the format they were asked in, and check that every update is read in
+     * the format it came in and the framebuffer ends up in the new one
+     */
+    void changeFormatWhilePipelined(boolean fences, boolean incremental) throws Exception {
+        LoopbackServer server = new LoopbackServer(ROUND_TRIP_MS, RUN_MS);
+        server.fences = fences;
+        server.start();
+        final TestSession session = new TestSession(server.transport(incremental), WIDTH, HEIGHT);
+        session.canvas.setUseContinuousUpdates(false);
+        session.canvas.setUseIncrementalParser(incremental);
+        session.canvas.setUpdateRequestDepth(4, 4);
+        session.start();
+        Thread change = new Thread("format change") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(RUN_MS / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                session.canvas.setColorModel(ColorModel.C16);
+            }
+        };
+        change.start();
+        session.run();
+        change.join();
+        if (server.failure != null)
+            throw server.failure;
+
+        assertTrue("requests in flight " + server.maxRequestsInFlight, server.maxRequestsInFlight > 1);
+        assertEquals(fences, session.rfb.getLatencyMonitor().isFencesSupported());
+        assertTrue("no 16-bit updates", server.updatesByBytesPerPixel[2] > 0);
+        assertEquals(Integer.toHexString(expectedPixel(ColorModel.C16)), Integer.toHexString(session.pixels()[0]));
+    }
+
+    @Test
+    public void formatChangeWaitsForRequestsInFlight() throws Exception {
+        changeFormatWhilePipelined(false, false);
+    }
+
+    @Test
+    public void formatChangeFencedOff() throws Exception {
+        changeFormatWhilePipelined(true, false);
+    }
+
+    @Test
+    public void formatChangeFencedOffIncremental() throws Exception {
+        changeFormatWhilePipelined(true, true);
+    }
+
+    /**
+     * Bounds that follow from the injected round trip alone, so a slow machine can only
+     * narrow the gap between them rather than fail the test
+     */
+    @Test
+    public void pipelineOutrunsOneFramePerRoundTrip() throws Exception {
+        long perRoundTrip = RUN_MS / ROUND_TRIP_MS + 1;
+        LoopbackServer serial = framesDelivered(1);
+        assertEquals(1, serial.maxRequestsInFlight);
+        assertTrue("serial " + serial.updatesSent, serial.updatesSent <= perRoundTrip);
+
+        LoopbackServer pipelined = framesDelivered(4);
+        assertEquals(4, pipelined.maxRequestsInFlight);
+        assertTrue("pipelined " + pipelined.updatesSent, pipelined.updatesSent > perRoundTrip);
+    }
+}
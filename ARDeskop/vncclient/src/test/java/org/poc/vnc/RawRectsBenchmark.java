@@ -0,0 +1,113 @@
+package org.poc.vnc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to decode full-screen Raw updates at 1920x1080 in each pixel format: through the
+ * canvas, which reads batches of rows and copies 32-bit pixels in bulk, and through the
+ * conversion it replaced, which read a row at a time and built each pixel from its bytes.
+ * Both start each call with a new framebuffer.  Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RawRectsBenchmark {
+
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+    static final int FRAMES = 4;
+    // Update and rectangle headers
+    static final int HEADER_BYTES = 4 + 12;
+
+    @Param({ "canvas", "perPixel" })
+    public String decoder;
+
+    @Param({ "C24bit", "C16", "C256" })
+    public String colorModel;
+
+    private ColorModel model;
+    private byte[] session;
+    private IRfbTransportFactory replay;
+
+    @Setup
+    public void setUp() throws Exception {
+        model = ColorModel.valueOf(colorModel);
+        ServerStream stream = new ServerStream();
+        Random random = new Random(5);
+        byte[] pixels = new byte[WIDTH * HEIGHT * model.bpp()];
+        for (int i = 0; i < FRAMES; i++) {
+            random.nextBytes(pixels);
+            stream.update(1).rect(0, 0, WIDTH, HEIGHT, RfbProto.EncodingRaw);
+            stream.out.write(pixels);
+        }
+        session = stream.toByteArray();
+        replay = stream.replay();
+    }
+
+    @Benchmark
+    public int[] decodeFrames() throws Exception {
+        if (decoder.equals("perPixel"))
+            return perPixel();
+        TestSession test = new TestSession(replay, WIDTH, HEIGHT);
+        test.canvas.setColorModel(model);
+        test.start();
+        test.run();
+        return test.pixels();
+    }
+
+    /**
+     * The Raw decoder before the canvas read pixels in batches
+     */
+    int[] perPixel() throws Exception {
+        int[] framebuffer = new int[WIDTH * HEIGHT];
+        int bytesPerPixel = model.bpp();
+        int[] palette = model.palette();
+        byte[] row = new byte[WIDTH * bytesPerPixel];
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(session));
+        for (int i = 0; i < FRAMES; i++) {
+            is.skipBytes(HEADER_BYTES);
+            for (int y = 0; y < HEIGHT; y++) {
+                is.readFully(row);
+                int offset = y * WIDTH;
+                if (bytesPerPixel == 4) {
+                    for (int x = 0; x < WIDTH; x++)
+                        framebuffer[offset + x] = (row[x * 4 + 2] & 0xFF) << 16 | (row[x * 4 + 1] & 0xFF) << 8 | (row[x * 4] & 0xFF);
+                } else if (bytesPerPixel == 2) {
+                    for (int x = 0; x < WIDTH; x++)
+                        framebuffer[offset + x] = palette[(row[x * 2] & 0xFF) | (row[x * 2 + 1] & 0xFF) << 8];
+                } else {
+                    for (int x = 0; x < WIDTH; x++)
+                        framebuffer[offset + x] = palette[row[x] & 0xFF];
+                }
+            }
+        }
+        return framebuffer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(RawRectsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
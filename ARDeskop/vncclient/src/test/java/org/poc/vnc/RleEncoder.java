@@ -0,0 +1,271 @@
+package org.poc.vnc;
+
+import org.poc.vnc.domain.RfbProto;
+import org.poc.vnc.domain.ZywrleTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes ZRLE, TRLE and ZYWRLE rectangles the way a server does: each tile in whichever of
+ * the raw, solid, packed palette, plain RLE and palette RLE subencodings is smallest, TRLE
+ * reusing the previous tile's palette where it can, and ZYWRLE sending the wavelet
+ * coefficients of the tiles that would otherwise go raw.  ZRLE and ZYWRLE share one
+ * persistent zlib stream, flushed at the end of each rectangle.
+ * <p>
+ * Pixels are given as values in the session's pixel format, as for {@link TightEncoder}.
+ */
+class RleEncoder {
+
+    // Subencodings of a tile, and TRLE's two that reuse the previous palette
+    static final int RAW = 0;
+    static final int SOLID = 1;
+    static final int PLAIN_RLE = 128;
+    static final int REUSE_PACKED = 127;
+    static final int REUSE_RLE = 129;
+
+    final ServerStream stream;
+    final int bytesPerPixel;
+    final Deflater deflater = new Deflater();
+    /** Tiles written with each subencoding, packed palette and palette RLE by palette size */
+    final int[] subencodings = new int[256];
+    /** Tiles ZYWRLE sent as wavelet coefficients */
+    int waveletTiles;
+
+    // The palette a TRLE tile may reuse, as the client holds it
+    private List<Integer> trlePalette = new ArrayList<Integer>();
+
+    RleEncoder(ServerStream stream, int bytesPerPixel) {
+        this.stream = stream;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    void zrle(int x, int y, int w, int h, int[] pixels) throws IOException {
+        stream.rect(x, y, w, h, RfbProto.EncodingZRLE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int ty = 0; ty < h; ty += 64)
+            for (int tx = 0; tx < w; tx += 64)
+                writeTile(data, tile(pixels, w, tx, ty, Math.min(64, w - tx), Math.min(64, h - ty)),
+                        Math.min(64, w - tx), Math.min(64, h - ty), false);
+        writeDeflated(data.toByteArray());
+    }
+
+    void trle(int x, int y, int w, int h, int[] pixels) throws IOException {
+        stream.rect(x, y, w, h, RfbProto.EncodingTRLE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int ty = 0; ty < h; ty += 16)
+            for (int tx = 0; tx < w; tx += 16)
+                writeTile(data, tile(pixels, w, tx, ty, Math.min(16, w - tx), Math.min(16, h - ty)),
+                        Math.min(16, w - tx), Math.min(16, h - ty), true);
+        data.writeTo(stream.out);
+    }
+
+    /**
+     * A ZYWRLE rectangle, whose coefficients are not quantised
+     * @param level Wavelet level, which the client derives from its JPEG quality
+     * @return The pixels the client shows for it, which lose the low bit of U and V in the
+     * tiles sent as coefficients
+     */
+    int[] zywrle(int x, int y, int w, int h, int[] pixels, int level) throws IOException {
+        if (bytesPerPixel != 4)
+            throw new IllegalArgumentException("ZYWRLE in " + bytesPerPixel * 8 + "-bit colour");
+        stream.rect(x, y, w, h, RfbProto.EncodingZYWRLE);
+        int[] shown = pixels.clone();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int ty = 0; ty < h; ty += 64) {
+            for (int tx = 0; tx < w; tx += 64) {
+                int tw = Math.min(64, w - tx), th = Math.min(64, h - ty);
+                int[] tile = tile(pixels, w, tx, ty, tw, th);
+                if (bestSubencoding(tile, tw, th, palette(tile), false) != RAW) {
+                    writeTile(data, tile, tw, th, false);
+                    continue;
+                }
+                data.write(RAW);
+                writeTile(data, ZywrleTest.analyse(tile, tw, th, level), tw, th, false);
+                waveletTiles++;
+                int aw = tw & ~((1 << level) - 1), ah = th & ~((1 << level) - 1);
+                if (aw > 0 && ah > 0)
+                    for (int j = 0; j < ah; j++)
+                        for (int i = 0; i < aw; i++)
+                            shown[(ty + j) * w + tx + i] = ZywrleTest.yuvRoundTrip(tile[j * tw + i]);
+            }
+        }
+        writeDeflated(data.toByteArray());
+        return shown;
+    }
+
+    static int[] tile(int[] pixels, int w, int tx, int ty, int tw, int th) {
+        int[] tile = new int[tw * th];
+        for (int j = 0; j < th; j++)
+            System.arraycopy(pixels, (ty + j) * w + tx, tile, j * tw, tw);
+        return tile;
+    }
+
+    // The tile's colours in order of appearance, or null past 127 of them
+    static List<Integer> palette(int[] tile) {
+        List<Integer> palette = new ArrayList<Integer>();
+        for (int pixel : tile) {
+            if (!palette.contains(pixel)) {
+                if (palette.size() == 127)
+                    return null;
+                palette.add(pixel);
+            }
+        }
+        return palette;
+    }
+
+    private void writeTile(ByteArrayOutputStream out, int[] tile, int tw, int th, boolean trle) throws IOException {
+        List<Integer> palette = palette(tile);
+        int mode = bestSubencoding(tile, tw, th, palette, trle);
+        subencodings[mode]++;
+        out.write(mode);
+        if (mode == REUSE_PACKED || mode == REUSE_RLE)
+            palette = trlePalette;
+        else if (mode != RAW && mode != PLAIN_RLE)
+            for (int colour : palette)
+                writeCPixel(out, colour);
+
+        if (mode == RAW) {
+            for (int pixel : tile)
+                writeCPixel(out, pixel);
+        } else if (mode == PLAIN_RLE) {
+            for (int i = 0; i < tile.length; ) {
+                int run = runAt(tile, i);
+                writeCPixel(out, tile[i]);
+                writeRunLength(out, run);
+                i += run;
+            }
+        } else if (mode == REUSE_RLE || mode > PLAIN_RLE) {
+            for (int i = 0; i < tile.length; ) {
+                int run = runAt(tile, i);
+                if (run == 1) {
+                    out.write(palette.indexOf(tile[i]));
+                } else {
+                    out.write(palette.indexOf(tile[i]) | 128);
+                    writeRunLength(out, run);
+                }
+                i += run;
+            }
+        } else if (mode != SOLID) {
+            int bits = bitsPerIndex(palette.size());
+            for (int j = 0; j < th; j++) {
+                int b = 0, n = 0;
+                for (int i = 0; i < tw; i++) {
+                    b = b << bits | palette.indexOf(tile[j * tw + i]);
+                    n += bits;
+                    if (n == 8) {
+                        out.write(b);
+                        b = n = 0;
+                    }
+                }
+                if (n > 0)
+                    out.write(b << (8 - n));
+            }
+        }
+
+        // The client keeps the palette of the last tile that sent one, and empties it for
+        // raw and plain RLE tiles
+        if (mode == RAW || mode == PLAIN_RLE)
+            trlePalette = new ArrayList<Integer>();
+        else if (mode != REUSE_PACKED && mode != REUSE_RLE)
+            trlePalette = palette;
+    }
+
+    // Smallest subencoding for the tile; ties go to the simpler
+    private int bestSubencoding(int[] tile, int tw, int th, List<Integer> palette, boolean trle) {
+        if (palette != null && palette.size() == 1)
+            return SOLID;
+        int cpixel = cpixelSize();
+        int best = RAW;
+        int bestSize = tile.length * cpixel;
+
+        int plainRle = 0, paletteRle = 0;
+        for (int i = 0; i < tile.length; ) {
+            int run = runAt(tile, i);
+            plainRle += cpixel + runLengthBytes(run);
+            paletteRle += 1 + (run > 1 ? runLengthBytes(run) : 0);
+            i += run;
+        }
+        if (plainRle < bestSize) {
+            best = PLAIN_RLE;
+            bestSize = plainRle;
+        }
+        if (palette == null)
+            return best;
+
+        int n = palette.size();
+        int packed = packedBytes(tw, th, n);
+        if (n <= 16 && n * cpixel + packed < bestSize) {
+            best = n;
+            bestSize = n * cpixel + packed;
+        }
+        if (n * cpixel + paletteRle < bestSize) {
+            best = 128 + n;
+            bestSize = n * cpixel + paletteRle;
+        }
+        if (trle && trlePalette.size() > 1 && trlePalette.containsAll(palette)) {
+            int reusedPacked = packedBytes(tw, th, trlePalette.size());
+            if (trlePalette.size() <= 16 && reusedPacked < bestSize) {
+                best = REUSE_PACKED;
+                bestSize = reusedPacked;
+            }
+            if (paletteRle < bestSize)
+                best = REUSE_RLE;
+        }
+        return best;
+    }
+
+    static int runAt(int[] tile, int i) {
+        int run = 1;
+        while (i + run < tile.length && tile[i + run] == tile[i])
+            run++;
+        return run;
+    }
+
+    static int bitsPerIndex(int colours) {
+        return colours > 4 ? 4 : colours > 2 ? 2 : 1;
+    }
+
+    static int packedBytes(int tw, int th, int colours) {
+        return (tw * bitsPerIndex(colours) + 7) / 8 * th;
+    }
+
+    static int runLengthBytes(int run) {
+        return (run - 1) / 255 + 1;
+    }
+
+    static void writeRunLength(ByteArrayOutputStream out, int run) {
+        int rest = run - 1;
+        for (; rest >= 255; rest -= 255)
+            out.write(255);
+        out.write(rest);
+    }
+
+    int cpixelSize() {
+        return bytesPerPixel == 4 ? 3 : bytesPerPixel;
+    }
+
+    void writeCPixel(ByteArrayOutputStream out, int pixel) {
+        out.write(pixel);
+        if (bytesPerPixel > 1)
+            out.write(pixel >> 8);
+        if (bytesPerPixel == 4)
+            out.write(pixel >> 16);
+    }
+
+    private void writeDeflated(byte[] data) throws IOException {
+        deflater.setInput(data);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            compressed.write(buf, 0, n);
+        } while (n == buf.length);
+        stream.out.writeInt(compressed.size());
+        compressed.writeTo(stream.out);
+    }
+}
@@ -0,0 +1,83 @@
+package org.poc.vnc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.poc.vnc.domain.IRfbTransportFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for the canvas to decode the same full-screen desktops sent as ZRLE, TRLE and ZYWRLE
+ * through the blocking protocol loop, with {@link RleEncoder} picking each tile's
+ * subencoding.  main() prints the bytes each encoding sends first; RleEncoder doesn't
+ * quantise ZYWRLE's coefficients, so its size is no guide to a real server's.
+ * <p>
+ * Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RleEncodingsBenchmark {
+
+    static final int WIDTH = 1024;
+    static final int HEIGHT = 768;
+    static final int FRAMES = 4;
+
+    @Param({ "ZRLE", "TRLE", "ZYWRLE" })
+    public String encoding;
+
+    private int sessionBytes;
+    private IRfbTransportFactory replay;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServerStream stream = new ServerStream();
+        RleEncoder encoder = new RleEncoder(stream, 4);
+        Random random = new Random(9);
+        for (int i = 0; i < FRAMES; i++) {
+            int[] pixels = RleEncodingsTest.desktop(random, WIDTH, HEIGHT);
+            stream.update(1);
+            if (encoding.equals("TRLE"))
+                encoder.trle(0, 0, WIDTH, HEIGHT, pixels);
+            else if (encoding.equals("ZYWRLE"))
+                encoder.zywrle(0, 0, WIDTH, HEIGHT, pixels, 1);
+            else
+                encoder.zrle(0, 0, WIDTH, HEIGHT, pixels);
+        }
+        sessionBytes = stream.toByteArray().length;
+        replay = stream.replay();
+    }
+
+    @Benchmark
+    public int[] decodeFrames() throws Exception {
+        TestSession test = new TestSession(replay, WIDTH, HEIGHT);
+        test.start();
+        test.run();
+        return test.pixels();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String encoding : new String[] { "ZRLE", "TRLE", "ZYWRLE" }) {
+            RleEncodingsBenchmark benchmark = new RleEncodingsBenchmark();
+            benchmark.encoding = encoding;
+            benchmark.setUp();
+            System.out.println(encoding + ": " + benchmark.sessionBytes / FRAMES + " bytes a frame");
+        }
+        new Runner(new OptionsBuilder().include(RleEncodingsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
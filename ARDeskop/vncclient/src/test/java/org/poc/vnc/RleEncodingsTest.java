@@ -0,0 +1,248 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.RfbProto;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ZRLE, TRLE and ZYWRLE rectangles written by {@link RleEncoder} come back as the pixels they
+ * were made from, ZYWRLE's less the low bits its colour transform drops, and the incremental
+ * parser frames TRLE and ZYWRLE rectangles as the blocking loop reads them.
+ */
+public class RleEncodingsTest {
+
+    // The incremental parser's test compares whole framebuffers of its own size
+    static final int WIDTH = IncrementalParserTest.WIDTH;
+    static final int HEIGHT = IncrementalParserTest.HEIGHT;
+
+    final Random random = new Random(23);
+
+    /**
+     * A desktop in 0xRRGGBB: a background, windows with text on them, a photo, and a band of
+     * short runs of many colours, as dithering leaves
+     */
+    static int[] desktop(Random random, int w, int h) {
+        int[] pixels = new int[w * h];
+        Arrays.fill(pixels, 0x3A6EA5);
+        for (int k = 0; k < 4; k++) {
+            int ww = w / 4 + random.nextInt(w / 3), wh = h / 4 + random.nextInt(h / 3);
+            int wx = random.nextInt(w - ww), wy = random.nextInt(h - wh);
+            int[] ink = { 0x000000, 0x202020, 0x0000C0 };
+            for (int y = wy; y < wy + wh; y++) {
+                for (int x = wx; x < wx + ww; x++) {
+                    int pixel;
+                    if (y == wy || y == wy + wh - 1 || x == wx || x == wx + ww - 1)
+                        pixel = 0x808080;
+                    else if (y < wy + 20)
+                        pixel = 0x0A246A;
+                    else if ((y - wy) % 14 < 10 && random.nextInt(3) == 0)
+                        pixel = ink[random.nextInt(ink.length)];
+                    else
+                        pixel = 0xFFFFFF;
+                    pixels[y * w + x] = pixel;
+                }
+            }
+        }
+        int px = random.nextInt(w / 2), py = random.nextInt(h / 2);
+        for (int y = py; y < py + h / 3; y++) {
+            for (int x = px; x < px + w / 3; x++) {
+                int r = clamp(90 + (x - px) - (y - py) / 2 + random.nextInt(11) - 5);
+                int g = clamp(140 + (y - py) + random.nextInt(11) - 5);
+                int b = clamp(200 - (x - px) / 2 + random.nextInt(11) - 5);
+                pixels[y * w + x] = r << 16 | g << 8 | b;
+            }
+        }
+        for (int y = h - h / 5; y < h; y++) {
+            for (int x = 0; x < w; ) {
+                int run = 2 + random.nextInt(8), colour = random.nextInt(0x1000000);
+                for (; run > 0 && x < w; run--, x++)
+                    pixels[y * w + x] = colour;
+            }
+        }
+        return pixels;
+    }
+
+    static int clamp(int x) {
+        return x < 0 ? 0 : (x > 255 ? 255 : x);
+    }
+
+    /**
+     * The nearest pixel values in the colour model's format
+     */
+    static int[] inFormat(int[] rgb, ColorModel colorModel) {
+        int[] pixels = new int[rgb.length];
+        for (int i = 0; i < rgb.length; i++) {
+            int r = rgb[i] >> 16 & 0xFF, g = rgb[i] >> 8 & 0xFF, b = rgb[i] & 0xFF;
+            if (colorModel == ColorModel.C16)
+                pixels[i] = (r >> 3) << 11 | (g >> 2) << 5 | b >> 3;
+            else if (colorModel == ColorModel.C256)
+                pixels[i] = r >> 5 | (g >> 5) << 3 | (b >> 6) << 6;
+            else
+                pixels[i] = rgb[i];
+        }
+        return pixels;
+    }
+
+    /**
+     * The server's side of a session of RLE rectangles, and what the client should show
+     */
+    class Session {
+        final ColorModel colorModel;
+        final ServerStream stream = new ServerStream();
+        final RleEncoder encoder;
+        final int[] expected = new int[WIDTH * HEIGHT];
+
+        Session(ColorModel colorModel) {
+            this.colorModel = colorModel;
+            encoder = new RleEncoder(stream, colorModel.bpp());
+        }
+
+        /**
+         * A desktop across the top left of the framebuffer, then new content in rectangles
+         * of odd sizes on top of it, so tiles are cut short at their right and bottom edges
+         * @param encoding ZRLE, TRLE or ZYWRLE
+         */
+        Session write(int encoding, int zywrleLevel) throws Exception {
+            int[][] rects = { { 0, 0, 331, 254 }, { 17, 9, 150, 77 }, { 200, 100, 131, 154 }, { 3, 150, 65, 64 } };
+            stream.update(1);
+            rect(encoding, zywrleLevel, rects[0]);
+            stream.update(rects.length - 1);
+            for (int k = 1; k < rects.length; k++)
+                rect(encoding, zywrleLevel, rects[k]);
+            return this;
+        }
+
+        void rect(int encoding, int zywrleLevel, int[] r) throws Exception {
+            int x = r[0], y = r[1], w = r[2], h = r[3];
+            int[] pixels = inFormat(desktop(random, w, h), colorModel);
+            int[] shown = pixels;
+            if (encoding == RfbProto.EncodingZYWRLE)
+                shown = encoder.zywrle(x, y, w, h, pixels, zywrleLevel);
+            else if (encoding == RfbProto.EncodingTRLE)
+                encoder.trle(x, y, w, h, pixels);
+            else
+                encoder.zrle(x, y, w, h, pixels);
+            int[] palette = colorModel.palette();
+            for (int j = 0; j < h; j++)
+                for (int i = 0; i < w; i++)
+                    expected[(y + j) * WIDTH + x + i] = (palette == null ? shown[j * w + i] : palette[shown[j * w + i]]) & 0xFFFFFF;
+        }
+
+        void check(int jpegQuality) throws Exception {
+            TestSession session = new TestSession(stream.replay(), WIDTH, HEIGHT);
+            session.canvas.setColorModel(colorModel);
+            session.canvas.setJpegQuality(jpegQuality);
+            session.start();
+            session.run();
+            int[] pixels = session.pixels();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int actual = pixels[y * WIDTH + x] & 0xFFFFFF;
+                    if (actual != expected[y * WIDTH + x])
+                        fail(colorModel + " pixel at " + x + "," + y + ": expected "
+                                + Integer.toHexString(expected[y * WIDTH + x]) + " but was " + Integer.toHexString(actual));
+                }
+            }
+        }
+
+        void assertUsed(String what, int... subencodings) {
+            for (int mode : subencodings)
+                if (encoder.subencodings[mode] > 0)
+                    return;
+            fail("no " + what + " tiles");
+        }
+
+        void assertEverySubencoding() {
+            // 8-bit tiles of this desktop always have few enough colours for a palette
+            if (colorModel.bpp() > 1)
+                assertUsed("raw", RleEncoder.RAW);
+            assertUsed("solid", RleEncoder.SOLID);
+            assertUsed("packed palette", 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+            assertUsed("plain RLE", RleEncoder.PLAIN_RLE);
+            int[] paletteRle = new int[126];
+            for (int i = 0; i < paletteRle.length; i++)
+                paletteRle[i] = 130 + i;
+            assertUsed("palette RLE", paletteRle);
+        }
+    }
+
+    void zrle(ColorModel colorModel) throws Exception {
+        Session s = new Session(colorModel).write(RfbProto.EncodingZRLE, 0);
+        s.assertEverySubencoding();
+        s.check(-1);
+    }
+
+    @Test
+    public void zrle24() throws Exception {
+        zrle(ColorModel.C24bit);
+    }
+
+    @Test
+    public void zrle16() throws Exception {
+        zrle(ColorModel.C16);
+    }
+
+    @Test
+    public void zrle8() throws Exception {
+        zrle(ColorModel.C256);
+    }
+
+    void trle(ColorModel colorModel) throws Exception {
+        Session s = new Session(colorModel).write(RfbProto.EncodingTRLE, 0);
+        s.assertEverySubencoding();
+        s.assertUsed("reused packed palette", RleEncoder.REUSE_PACKED);
+        s.assertUsed("reused palette RLE", RleEncoder.REUSE_RLE);
+        s.check(-1);
+    }
+
+    @Test
+    public void trle24() throws Exception {
+        trle(ColorModel.C24bit);
+    }
+
+    @Test
+    public void trle16() throws Exception {
+        trle(ColorModel.C16);
+    }
+
+    @Test
+    public void trle8() throws Exception {
+        trle(ColorModel.C256);
+    }
+
+    /**
+     * At each wavelet level, picked by the JPEG quality as a server picks it
+     */
+    @Test
+    public void zywrle() throws Exception {
+        int[] qualities = { 8, 4, 1 };
+        for (int level = 1; level <= 3; level++) {
+            Session s = new Session(ColorModel.C24bit).write(RfbProto.EncodingZYWRLE, level);
+            assertTrue("no wavelet tiles", s.encoder.waveletTiles > 0);
+            s.check(qualities[level - 1]);
+        }
+    }
+
+    @Test
+    public void parserFramesTrle() throws Exception {
+        IncrementalParserTest incremental = new IncrementalParserTest();
+        ColorModel[] colorModels = { ColorModel.C24bit, ColorModel.C16, ColorModel.C256 };
+        for (ColorModel colorModel : colorModels) {
+            byte[] session = new Session(colorModel).write(RfbProto.EncodingTRLE, 0).stream.toByteArray();
+            incremental.check(session, colorModel, 1, 2 + random.nextInt(40), 4096);
+        }
+    }
+
+    @Test
+    public void parserFramesZywrle() throws Exception {
+        // Without a JPEG quality the client takes the wavelet level to be 1
+        byte[] session = new Session(ColorModel.C24bit).write(RfbProto.EncodingZYWRLE, 1).stream.toByteArray();
+        new IncrementalParserTest().check(session, ColorModel.C24bit, 1, 2 + random.nextInt(40), 4096);
+    }
+}
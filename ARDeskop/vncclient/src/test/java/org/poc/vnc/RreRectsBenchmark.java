@@ -0,0 +1,188 @@
+package org.poc.vnc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.poc.vnc.domain.AbstractBitmapData;
+import org.poc.vnc.domain.FullBufferBitmapData;
+import org.poc.vnc.domain.RfbProto;
+import org.poc.vnc.domain.RreDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to paint a full-screen RRE rectangle of a page of text at 1920x1080 into a
+ * FullBufferBitmapData: with {@link RreDecoder}, which fills each subrectangle as it reads
+ * it, and with {@link CoalescingRreDecoder}, which joined consecutive subrectangles of the
+ * same colour into one span before filling it.  subrects picks how the server cut the
+ * text up: a subrectangle per pixel, per run of a row, or per run extended down the rows
+ * that repeat it.  main() prints the number of subrectangles of each first.
+ * <p>
+ * Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RreRectsBenchmark {
+
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+
+    @Param({ "oneByOne", "coalesced" })
+    public String decoder;
+
+    @Param({ "pixels", "rows", "blocks" })
+    public String subrects;
+
+    private AbstractBitmapData bitmapData;
+    private RreDecoder oneByOne;
+    private CoalescingRreDecoder coalescing;
+    private byte[] data;
+    private int nSubrects;
+
+    /**
+     * RreDecoder as it was when it joined subrectangles: a subrectangle of the same colour
+     * continuing the span before it along its row or down its column joins the span, and
+     * the span is filled when one doesn't
+     */
+    static class CoalescingRreDecoder {
+
+        int paint(AbstractBitmapData bitmapData, byte[] buf, int p, int nSubrects, int x, int y, int w, int h) {
+            bitmapData.fillRect(x, y, w, h, fillColor(buf, p));
+            p += 4;
+
+            // The span waiting to be filled, relative to the rectangle
+            int spanX = 0, spanY = 0, spanW = 0, spanH = 0, spanColor = 0;
+            for (int j = 0; j < nSubrects; j++) {
+                int color = fillColor(buf, p);
+                p += 4;
+                int sx = (buf[p] & 0xFF) << 8 | (buf[p + 1] & 0xFF);
+                int sy = (buf[p + 2] & 0xFF) << 8 | (buf[p + 3] & 0xFF);
+                int sw = (buf[p + 4] & 0xFF) << 8 | (buf[p + 5] & 0xFF);
+                int sh = (buf[p + 6] & 0xFF) << 8 | (buf[p + 7] & 0xFF);
+                p += 8;
+                sw = Math.min(sw, w - sx);
+                sh = Math.min(sh, h - sy);
+                if (sw <= 0 || sh <= 0)
+                    continue;
+
+                if (color == spanColor && spanW > 0) {
+                    if (sy == spanY && sh == spanH && sx == spanX + spanW) {
+                        spanW += sw;
+                        continue;
+                    }
+                    if (sx == spanX && sw == spanW && sy == spanY + spanH) {
+                        spanH += sh;
+                        continue;
+                    }
+                }
+                if (spanW > 0)
+                    bitmapData.fillRect(x + spanX, y + spanY, spanW, spanH, spanColor);
+                spanX = sx;
+                spanY = sy;
+                spanW = sw;
+                spanH = sh;
+                spanColor = color;
+            }
+            if (spanW > 0)
+                bitmapData.fillRect(x + spanX, y + spanY, spanW, spanH, spanColor);
+            return p;
+        }
+
+        private static int fillColor(byte[] buf, int p) {
+            return 0xFF000000 | (buf[p + 2] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p] & 0xFF);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        RfbProto rfb = new RfbProto("test", 0, new ServerStream().replay());
+        rfb.framebufferWidth = WIDTH;
+        rfb.framebufferHeight = HEIGHT;
+        bitmapData = new FullBufferBitmapData(rfb, null, 0);
+        oneByOne = new RreDecoder();
+        oneByOne.setPixelFormat(4, null);
+        coalescing = new CoalescingRreDecoder();
+
+        int[] page = HextileTextTest.textPage(new Random(19), WIDTH, HEIGHT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writePixel(out, HextileTextTest.PAPER);
+        boolean[] covered = new boolean[WIDTH * HEIGHT];
+        nSubrects = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int colour = page[y * WIDTH + x];
+                if (colour == HextileTextTest.PAPER || covered[y * WIDTH + x])
+                    continue;
+                int sw = 1, sh = 1;
+                if (!subrects.equals("pixels")) {
+                    while (x + sw < WIDTH && page[y * WIDTH + x + sw] == colour && !covered[y * WIDTH + x + sw])
+                        sw++;
+                }
+                if (subrects.equals("blocks")) {
+                    for (boolean same = true; same && y + sh < HEIGHT; ) {
+                        for (int i = x; i < x + sw; i++)
+                            same &= page[(y + sh) * WIDTH + i] == colour && !covered[(y + sh) * WIDTH + i];
+                        if (same)
+                            sh++;
+                    }
+                }
+                for (int j = y; j < y + sh; j++)
+                    for (int i = x; i < x + sw; i++)
+                        covered[j * WIDTH + i] = true;
+                writePixel(out, colour);
+                writeShort(out, x);
+                writeShort(out, y);
+                writeShort(out, sw);
+                writeShort(out, sh);
+                nSubrects++;
+                x += sw - 1;
+            }
+        }
+        data = out.toByteArray();
+    }
+
+    static void writePixel(ByteArrayOutputStream out, int pixel) {
+        out.write(pixel);
+        out.write(pixel >> 8);
+        out.write(pixel >> 16);
+        out.write(0);
+    }
+
+    static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    @Benchmark
+    public int paintRect() {
+        if (decoder.equals("coalesced"))
+            return coalescing.paint(bitmapData, data, 0, nSubrects, 0, 0, WIDTH, HEIGHT);
+        return oneByOne.paint(bitmapData, data, 0, nSubrects, 0, 0, WIDTH, HEIGHT, false);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String subrects : new String[] { "pixels", "rows", "blocks" }) {
+            RreRectsBenchmark benchmark = new RreRectsBenchmark();
+            benchmark.subrects = subrects;
+            benchmark.setUp();
+            System.out.println(subrects + ": " + benchmark.nSubrects + " subrectangles");
+        }
+        new Runner(new OptionsBuilder().include(RreRectsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
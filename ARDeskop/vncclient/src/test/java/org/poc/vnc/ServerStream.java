@@ -0,0 +1,92 @@
+package org.poc.vnc;
+
+import org.poc.vnc.domain.IRfbTransport;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The server's side of a session after ServerInit, written message by message, and a transport
+ * that plays it back to a {@link TestSession} and throws away what the client sends.
+ */
+class ServerStream {
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+
+    /**
+     * Start a FramebufferUpdate of the given number of rectangles
+     */
+    ServerStream update(int rects) throws IOException {
+        out.writeByte(RfbProto.FramebufferUpdate);
+        out.writeByte(0);
+        out.writeShort(rects);
+        return this;
+    }
+
+    ServerStream rect(int x, int y, int w, int h, int encoding) throws IOException {
+        out.writeShort(x);
+        out.writeShort(y);
+        out.writeShort(w);
+        out.writeShort(h);
+        out.writeInt(encoding);
+        return this;
+    }
+
+    /**
+     * A length in Tight's one to three byte form
+     */
+    ServerStream compactLen(int len) throws IOException {
+        out.writeByte((len & 0x7F) | (len > 0x7F ? 0x80 : 0));
+        if (len > 0x7F) {
+            out.writeByte(((len >> 7) & 0x7F) | (len > 0x3FFF ? 0x80 : 0));
+            if (len > 0x3FFF)
+                out.writeByte(len >> 14);
+        }
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    IRfbTransportFactory replay() {
+        final byte[] session = toByteArray();
+        return new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int port) {
+                final InputStream in = new ByteArrayInputStream(session);
+                final OutputStream sink = new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                };
+                return new IRfbTransport() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return in;
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return sink;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+    }
+}
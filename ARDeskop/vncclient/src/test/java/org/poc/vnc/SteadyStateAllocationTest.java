@@ -0,0 +1,283 @@
+package org.poc.vnc;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.IRfbTransport;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Once a session has warmed up, decoding an update allocates nothing: not on the network
+ * thread, and not on the decoding workers.  A recorded session of every encoding is replayed
+ * and the bytes the JVM reports allocated by those threads are compared before and after the
+ * last updates.
+ */
+public class SteadyStateAllocationTest {
+
+    static final int WIDTH = 1024;
+    static final int HEIGHT = 768;
+
+    // Enough updates for the JIT to settle, whose own allocations would otherwise show up
+    static final int WARM_UP_UPDATES = 10000;
+    static final int MEASURED_UPDATES = 1000;
+
+    final Random random = new Random(1);
+    final Deflater zrle = new Deflater();
+    final Deflater zlib = new Deflater();
+    final Deflater tight = new Deflater();
+
+    void writePixel(ServerStream s) throws IOException {
+        s.out.writeInt(random.nextInt());
+    }
+
+    byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.setInput(data);
+        byte[] buf = new byte[data.length * 2 + 64];
+        int n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+        byte[] compressed = new byte[n];
+        System.arraycopy(buf, 0, compressed, 0, n);
+        return compressed;
+    }
+
+    /**
+     * Text-like bytes: a few values in runs
+     */
+    byte[] runs(int n) {
+        byte[] data = new byte[n];
+        byte b = 0;
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(12) == 0)
+                b = (byte) random.nextInt(4);
+            data[i] = b;
+        }
+        return data;
+    }
+
+    /**
+     * An update with a rectangle of every encoding the canvas decodes, followed by a
+     * ServerFence asking to be answered
+     */
+    void writeUpdate(ServerStream s) throws IOException {
+        s.update(9);
+        s.rect(0, 0, 16, 8, RfbProto.EncodingRaw);
+        for (int i = 0; i < 16 * 8; i++)
+            writePixel(s);
+
+        s.rect(40, 0, 64, 32, RfbProto.EncodingRRE);
+        s.out.writeInt(20);
+        writePixel(s);
+        for (int i = 0; i < 20; i++) {
+            writePixel(s);
+            s.out.writeShort(i);
+            s.out.writeShort(i);
+            s.out.writeShort(3);
+            s.out.writeShort(2);
+        }
+
+        s.rect(120, 0, 64, 32, RfbProto.EncodingCoRRE);
+        s.out.writeInt(20);
+        writePixel(s);
+        for (int i = 0; i < 20; i++) {
+            writePixel(s);
+            s.out.writeByte(i);
+            s.out.writeByte(i);
+            s.out.writeByte(3);
+            s.out.writeByte(2);
+        }
+
+        // Hextile, 32 x 32: raw, solid background, coloured subrectangles, unchanged
+        s.rect(200, 0, 32, 32, RfbProto.EncodingHextile);
+        s.out.writeByte(RfbProto.HextileRaw);
+        for (int i = 0; i < 16 * 16; i++)
+            writePixel(s);
+        s.out.writeByte(RfbProto.HextileBackgroundSpecified);
+        writePixel(s);
+        s.out.writeByte(RfbProto.HextileBackgroundSpecified | RfbProto.HextileAnySubrects | RfbProto.HextileSubrectsColoured);
+        writePixel(s);
+        s.out.writeByte(3);
+        for (int i = 0; i < 3; i++) {
+            writePixel(s);
+            s.out.writeByte(i * 17);
+            s.out.writeByte(0x11);
+        }
+        s.out.writeByte(0);
+
+        // ZRLE, 128 x 64: a solid tile and a palette tile of two colours
+        byte[] tiles = new byte[1 + 3 + 1 + 2 * 3 + 64 * 8];
+        tiles[0] = 1;
+        tiles[4] = 2;
+        byte[] bits = runs(64 * 8);
+        for (int i = 0; i < bits.length; i++)
+            tiles[11 + i] = (byte) (bits[i] * 0x55);
+        byte[] compressed = deflate(zrle, tiles);
+        s.rect(0, 100, 128, 64, RfbProto.EncodingZRLE);
+        s.out.writeInt(compressed.length);
+        s.out.write(compressed);
+
+        compressed = deflate(zlib, runs(16 * 16 * 4));
+        s.rect(300, 0, 16, 16, RfbProto.EncodingZlib);
+        s.out.writeInt(compressed.length);
+        s.out.write(compressed);
+
+        s.rect(400, 0, 50, 50, RfbProto.EncodingTight);
+        s.out.writeByte(RfbProto.TightFill << 4);
+        s.out.write(new byte[] { 1, 2, 3 });
+
+        compressed = deflate(tight, runs(20 * 20 * 3));
+        s.rect(400, 100, 20, 20, RfbProto.EncodingTight);
+        s.out.writeByte(0);
+        s.compactLen(compressed.length);
+        s.out.write(compressed);
+
+        s.rect(500, 0, 16, 16, RfbProto.EncodingTRLE);
+        s.out.writeByte(1);
+        s.out.write(new byte[] { 4, 5, 6 });
+
+        s.out.writeByte(RfbProto.ServerFence);
+        s.out.write(new byte[3]);
+        s.out.writeInt(RfbProto.FenceFlagRequest | RfbProto.FenceFlagBlockBefore);
+        s.out.writeByte(4);
+        s.out.writeInt(42);
+    }
+
+    /**
+     * Plays back a session and reads the threads' allocation counters when it reaches the
+     * measured updates and when it runs out
+     */
+    static class MeasuringStream extends InputStream {
+        final byte[] session;
+        final int measuredFrom;
+        final com.sun.management.ThreadMXBean threads;
+        final byte[] oneByte = new byte[1];
+        int pos;
+        long[] threadIds;
+        long before = -1, after = -1;
+
+        MeasuringStream(byte[] session, int measuredFrom, com.sun.management.ThreadMXBean threads) {
+            this.session = session;
+            this.measuredFrom = measuredFrom;
+            this.threads = threads;
+        }
+
+        /**
+         * Bytes allocated so far by this thread, which runs the protocol loop, and by the
+         * decoding workers
+         */
+        long allocated() {
+            if (threadIds == null) {
+                List<Long> ids = new ArrayList<Long>();
+                ids.add(Thread.currentThread().getId());
+                for (Thread t : Thread.getAllStackTraces().keySet())
+                    if (t.getName().startsWith("Rectangle worker") || t.getName().startsWith("ZRLE tile worker"))
+                        ids.add(t.getId());
+                threadIds = new long[ids.size()];
+                for (int i = 0; i < threadIds.length; i++)
+                    threadIds[i] = ids.get(i);
+            }
+            long total = 0;
+            for (long id : threadIds)
+                total += threads.getThreadAllocatedBytes(id);
+            return total;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos == measuredFrom && before < 0)
+                before = allocated();
+            if (pos >= session.length) {
+                if (after < 0)
+                    after = allocated();
+                throw new EOFException();
+            }
+            // Stop at the first measured byte, so the counters are read there
+            if (pos < measuredFrom)
+                len = Math.min(len, measuredFrom - pos);
+            len = Math.min(len, session.length - pos);
+            System.arraycopy(session, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+    }
+
+    long allocatedPerUpdate(int workers) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ServerStream s = new ServerStream();
+        for (int i = 0; i < WARM_UP_UPDATES; i++)
+            writeUpdate(s);
+        int measuredFrom = s.bytes.size();
+        for (int i = 0; i < MEASURED_UPDATES; i++)
+            writeUpdate(s);
+        final MeasuringStream in = new MeasuringStream(s.toByteArray(), measuredFrom, threads);
+
+        TestSession session = new TestSession(new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int port) {
+                return new IRfbTransport() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return in;
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return new OutputStream() {
+                            @Override
+                            public void write(int b) {
+                            }
+
+                            @Override
+                            public void write(byte[] b, int off, int len) {
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        }, WIDTH, HEIGHT);
+        session.canvas.setColorModel(ColorModel.C24bit);
+        session.canvas.setZrleWorkers(workers);
+        session.canvas.setRectWorkers(workers);
+        session.start();
+        session.run();
+        assertTrue("the whole session was read", in.before >= 0 && in.after >= 0);
+        return (in.after - in.before) / MEASURED_UPDATES;
+    }
+
+    @Test
+    public void noAllocationPerUpdate() throws Exception {
+        assertEquals("bytes allocated per update", 0, allocatedPerUpdate(1));
+    }
+
+    @Test
+    public void noAllocationPerUpdateWithWorkers() throws Exception {
+        assertEquals("bytes allocated per update", 0, allocatedPerUpdate(2));
+    }
+}
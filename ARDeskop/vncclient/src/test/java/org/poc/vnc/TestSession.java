@@ -0,0 +1,59 @@
+package org.poc.vnc;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+
+import org.poc.vnc.domain.FullBufferBitmapData;
+import org.poc.vnc.domain.IRfbTransportFactory;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A VncCanvas in the state ServerInit leaves it in, talking through a given transport, so a
+ * test can run the protocol loop over a recorded stream or a loopback server.  Options are set
+ * on {@link #canvas} before {@link #start()}.
+ */
+class TestSession {
+
+    final VncCanvas canvas;
+    final RfbProto rfb;
+
+    TestSession(IRfbTransportFactory transport, int width, int height) throws IOException {
+        canvas = new VncCanvas(null, null);
+        canvas.setUseTileCache(false);
+        rfb = new RfbProto("test", 0, transport);
+        rfb.framebufferWidth = width;
+        rfb.framebufferHeight = height;
+        rfb.inNormalProtocol = true;
+        canvas.rfb = rfb;
+    }
+
+    /**
+     * Make the framebuffer and send the pixel format, as after ServerInit
+     */
+    void start() throws IOException {
+        canvas.bitmapData = new FullBufferBitmapData(rfb, canvas, 0);
+        canvas.startSession();
+    }
+
+    /**
+     * Run the protocol loop until the server's stream ends
+     */
+    void run() throws Exception {
+        try {
+            canvas.processNormalProtocol(null, new ProgressDialog((Context) null), new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        } catch (EOFException e) {
+            // The end of the session
+        }
+    }
+
+    int[] pixels() {
+        return canvas.bitmapData.bitmapPixels;
+    }
+}
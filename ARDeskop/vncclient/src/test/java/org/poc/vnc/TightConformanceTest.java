@@ -0,0 +1,305 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tight sessions covering each subencoding and filter, in each pixel size, replayed through the
+ * protocol loop; the framebuffer must end up holding the pixels the server sent.
+ */
+public class TightConformanceTest {
+
+    static final int WIDTH = 160;
+    static final int HEIGHT = 120;
+
+    final Random random = new Random(7);
+
+    /**
+     * The server's side of a session: what it sends, and the colours the client should show
+     */
+    class Session {
+        final ColorModel colorModel;
+        final int[] palette;
+        final ServerStream stream = new ServerStream();
+        final TightEncoder tight;
+        final int[] expected = new int[WIDTH * HEIGHT];
+
+        Session(ColorModel colorModel) {
+            this.colorModel = colorModel;
+            this.palette = colorModel.palette();
+            this.tight = colorModel == ColorModel.C15
+                    ? new TightEncoder(stream, 2, 10, 31)
+                    : new TightEncoder(stream, colorModel.bpp());
+        }
+
+        int colour(int pixel) {
+            return (palette == null ? pixel : palette[pixel]) & 0xFFFFFF;
+        }
+
+        void expect(int x, int y, int w, int h, int[] pixels) {
+            for (int j = 0; j < h; j++)
+                for (int i = 0; i < w; i++)
+                    expected[(y + j) * WIDTH + x + i] = colour(pixels[j * w + i]);
+        }
+
+        void fill(int x, int y, int w, int h, int pixel, int resetStreams) throws IOException {
+            tight.fill(x, y, w, h, pixel, resetStreams);
+            int[] pixels = new int[w * h];
+            Arrays.fill(pixels, pixel);
+            expect(x, y, w, h, pixels);
+        }
+
+        void basic(int x, int y, int w, int h, int[] pixels, int filter, int streamId, int resetStreams) throws IOException {
+            tight.basic(x, y, w, h, pixels, filter, streamId, resetStreams);
+            expect(x, y, w, h, pixels);
+        }
+
+        /**
+         * Replay the session and compare the whole framebuffer
+         */
+        void check() throws Exception {
+            TestSession session = new TestSession(stream.replay(), WIDTH, HEIGHT);
+            session.canvas.setColorModel(colorModel);
+            session.start();
+            session.run();
+            int[] pixels = session.pixels();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int actual = pixels[y * WIDTH + x] & 0xFFFFFF;
+                    if (actual != expected[y * WIDTH + x])
+                        fail(colorModel + " pixel at " + x + "," + y + ": expected "
+                                + Integer.toHexString(expected[y * WIDTH + x]) + " but was " + Integer.toHexString(actual));
+                }
+            }
+        }
+    }
+
+    int[] randomPixels(int n, int mask) {
+        int[] pixels = new int[n];
+        for (int i = 0; i < n; i++)
+            pixels[i] = random.nextInt() & mask;
+        return pixels;
+    }
+
+    /**
+     * n x m pixels drawn from a few colours, in runs, as text and window borders are
+     */
+    int[] fewColours(int n, int colours, int mask) {
+        int[] choice = randomPixels(colours, mask);
+        int[] pixels = new int[n];
+        int c = 0;
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(6) == 0)
+                c = random.nextInt(colours);
+            pixels[i] = choice[c];
+        }
+        // Every colour at least once, so the palette has exactly this many
+        for (int i = 0; i < colours; i++)
+            pixels[random.nextInt(n / colours) * colours + i] = choice[i];
+        return pixels;
+    }
+
+    @Test
+    public void fillAndCopy24() throws Exception {
+        Session s = new Session(ColorModel.C24bit);
+        s.stream.update(4);
+        s.fill(0, 0, WIDTH, HEIGHT, 0x204060, 0);
+        s.fill(10, 10, 1, 1, 0xFFFFFF, 0);
+        s.basic(20, 5, 37, 23, randomPixels(37 * 23, 0xFFFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.basic(100, 90, 60, 30, randomPixels(60 * 30, 0xFFFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.check();
+    }
+
+    @Test
+    public void palette24() throws Exception {
+        Session s = new Session(ColorModel.C24bit);
+        int[] widths = { 1, 7, 8, 9, 13, 16, 17, 63 };
+        s.stream.update(widths.length * 2);
+        int y = 0;
+        for (int w : widths) {
+            // Two colours go one bit per pixel, with each row padded to a byte
+            s.basic(0, y, w, 6, fewColours(w * 6, 2, 0xFFFFFF), TightEncoder.FILTER_PALETTE, 1, 0);
+            s.basic(80, y, w, 6, fewColours(w * 6, Math.min(w * 6 / 2, 200), 0xFFFFFF), TightEncoder.FILTER_PALETTE, 2, 0);
+            y += 7;
+        }
+        s.check();
+    }
+
+    @Test
+    public void gradient24() throws Exception {
+        Session s = new Session(ColorModel.C24bit);
+        s.stream.update(3);
+        s.fill(0, 0, WIDTH, HEIGHT, 0xFFFFFF, 0);
+        s.basic(3, 4, 101, 77, smooth24(101, 77), TightEncoder.FILTER_GRADIENT, 3, 0);
+        // A column one pixel wide, where every estimate comes from the pixel above
+        s.basic(110, 50, 1, 40, smooth24(1, 40), TightEncoder.FILTER_GRADIENT, 3, 0);
+        s.check();
+    }
+
+    /**
+     * Ramps in each component with noise, wrapping around, so the gradient estimate is
+     * clamped at both ends of the range
+     */
+    int[] smooth24(int w, int h) {
+        int[] pixels = new int[w * h];
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int r = (i * 7 + random.nextInt(3)) & 0xFF;
+                int g = (j * 5 + i + random.nextInt(2)) & 0xFF;
+                int b = ((i + j) * 3) & 0xFF;
+                pixels[j * w + i] = r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Rectangles whose data is shorter than TightMinToCompress are sent without zlib, and
+     * leave the streams alone
+     */
+    @Test
+    public void uncompressedData() throws Exception {
+        Session s = new Session(ColorModel.C24bit);
+        s.stream.update(5);
+        s.basic(0, 0, 40, 20, randomPixels(40 * 20, 0xFFFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.basic(50, 0, 3, 1, randomPixels(3, 0xFFFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.basic(60, 0, 8, 11, fewColours(8 * 11, 2, 0xFFFFFF), TightEncoder.FILTER_PALETTE, 0, 0);
+        s.basic(70, 0, 2, 5, fewColours(2 * 5, 3, 0xFFFFFF), TightEncoder.FILTER_PALETTE, 0, 0);
+        s.basic(0, 30, 40, 20, randomPixels(40 * 20, 0xFFFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.check();
+    }
+
+    /**
+     * The four zlib streams keep their state from rectangle to rectangle and update to
+     * update, until the server resets some of them
+     */
+    @Test
+    public void streamsAndResets() throws Exception {
+        Session s = new Session(ColorModel.C24bit);
+        int[] repeated = fewColours(30 * 10, 40, 0xFFFFFF);
+        for (int update = 0; update < 6; update++) {
+            s.stream.update(8);
+            for (int i = 0; i < 8; i++) {
+                int streamId = i % 4;
+                // Streams 1 and 2 reset at the start of the fourth update, then all of them
+                int reset = 0;
+                if (i == 0 && update == 3)
+                    reset = 0x6;
+                else if (i == 0 && update == 5)
+                    reset = 0xF;
+                int x = (i % 4) * 40, y = (i / 4) * 60 + update * 5;
+                // The same pixels again compress to back references into earlier rectangles
+                int[] pixels = (update + i) % 2 == 0 ? repeated : fewColours(30 * 10, 40, 0xFFFFFF);
+                s.basic(x, y, 30, 10, pixels, i < 4 ? TightEncoder.FILTER_COPY : TightEncoder.FILTER_PALETTE, streamId, reset);
+            }
+        }
+        s.check();
+    }
+
+    @Test
+    public void fillCopyPaletteGradient16() throws Exception {
+        Session s = new Session(ColorModel.C16);
+        s.stream.update(5);
+        s.fill(0, 0, WIDTH, HEIGHT, 0xF81F, 0);
+        s.basic(5, 5, 33, 21, randomPixels(33 * 21, 0xFFFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.basic(50, 5, 19, 9, fewColours(19 * 9, 2, 0xFFFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        s.basic(80, 5, 19, 9, fewColours(19 * 9, 9, 0xFFFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        s.basic(5, 40, 90, 70, smooth16(90, 70, 11, 63), TightEncoder.FILTER_GRADIENT, 2, 0);
+        s.check();
+    }
+
+    @Test
+    public void gradient15() throws Exception {
+        Session s = new Session(ColorModel.C15);
+        s.stream.update(2);
+        s.fill(0, 0, WIDTH, HEIGHT, 0x7FFF, 0);
+        s.basic(7, 9, 123, 88, smooth16(123, 88, 10, 31), TightEncoder.FILTER_GRADIENT, 2, 0);
+        s.check();
+    }
+
+    int[] smooth16(int w, int h, int redShift, int greenMax) {
+        int[] pixels = new int[w * h];
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int r = (i + random.nextInt(2)) & 31;
+                int g = (j * 3 + i + random.nextInt(2)) & greenMax;
+                int b = (i + j) & 31;
+                pixels[j * w + i] = r << redShift | g << 5 | b;
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void fillCopyPalette8() throws Exception {
+        Session s = new Session(ColorModel.C256);
+        s.stream.update(4);
+        s.fill(0, 0, WIDTH, HEIGHT, 0x3C, 0);
+        s.basic(0, 0, 47, 31, randomPixels(47 * 31, 0xFF), TightEncoder.FILTER_COPY, 0, 0);
+        s.basic(60, 40, 21, 13, fewColours(21 * 13, 2, 0xFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        s.basic(90, 40, 21, 13, fewColours(21 * 13, 17, 0xFF), TightEncoder.FILTER_PALETTE, 1, 0);
+        s.check();
+    }
+
+    /**
+     * A JPEG rectangle decoded by the Java decoder matches ImageIO's reading of the same image,
+     * within the rounding of the two IDCTs
+     */
+    @Test
+    public void jpeg() throws Exception {
+        int w = 96, h = 64;
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < h; j++)
+            for (int i = 0; i < w; i++)
+                image.setRGB(i, j, (i * 255 / w) << 16 | (j * 255 / h) << 8 | (i + j) * 255 / (w + h));
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        writer.setOutput(ImageIO.createImageOutputStream(jpeg));
+        writer.write(null, new IIOImage(image, null, null), param);
+        writer.dispose();
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jpeg.toByteArray()));
+
+        ServerStream stream = new ServerStream();
+        stream.update(2);
+        TightEncoder tight = new TightEncoder(stream, 4);
+        tight.fill(0, 0, WIDTH, HEIGHT, 0, 0);
+        tight.jpeg(30, 20, w, h, jpeg.toByteArray());
+        TestSession session = new TestSession(stream.replay(), WIDTH, HEIGHT);
+        session.canvas.setColorModel(ColorModel.C24bit);
+        session.canvas.setUseJavaJpegDecoder(true);
+        session.start();
+        session.run();
+
+        int[] pixels = session.pixels();
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int actual = pixels[(20 + j) * WIDTH + 30 + i];
+                int expected = reference.getRGB(i, j);
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int error = Math.abs(((actual >> shift) & 0xFF) - ((expected >> shift) & 0xFF));
+                    assertTrue("pixel at " + i + "," + j + " off by " + error, error <= 4);
+                }
+            }
+        }
+        assertEquals("untouched around the rectangle", 0, pixels[19 * WIDTH + 30] & 0xFFFFFF);
+    }
+}
@@ -0,0 +1,179 @@
+package org.poc.vnc;
+
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes Tight rectangles the way a server does, following the RFB specification and the
+ * TightVNC encoder: the compression control byte, fill and JPEG subencodings, the copy, palette
+ * and gradient filters, data shorter than TightMinToCompress sent as is and the rest deflated
+ * on four persistent zlib streams that the server may reset.
+ * <p>
+ * Pixels are given as values in the session's pixel format: 0xRRGGBB for 24-bit colour, the
+ * 16-bit value for 16-bit colour and the byte for 8-bit colour.
+ */
+class TightEncoder {
+
+    static final int FILTER_COPY = RfbProto.TightFilterCopy;
+    static final int FILTER_PALETTE = RfbProto.TightFilterPalette;
+    static final int FILTER_GRADIENT = RfbProto.TightFilterGradient;
+
+    final ServerStream stream;
+    final int bytesPerPixel;
+    /** For 16-bit colour, the red shift and green maximum, 11 and 63 for 565, 10 and 31 for 555 */
+    final int redShift, greenMax;
+    final Deflater[] deflaters = new Deflater[4];
+
+    TightEncoder(ServerStream stream, int bytesPerPixel) {
+        this(stream, bytesPerPixel, 11, 63);
+    }
+
+    TightEncoder(ServerStream stream, int bytesPerPixel, int redShift, int greenMax) {
+        this.stream = stream;
+        this.bytesPerPixel = bytesPerPixel;
+        this.redShift = redShift;
+        this.greenMax = greenMax;
+        for (int i = 0; i < deflaters.length; i++)
+            deflaters[i] = new Deflater();
+    }
+
+    void fill(int x, int y, int w, int h, int pixel, int resetStreams) throws IOException {
+        stream.rect(x, y, w, h, RfbProto.EncodingTight);
+        stream.out.writeByte(resetStreams(resetStreams) | RfbProto.TightFill << 4);
+        ByteArrayOutputStream tpixel = new ByteArrayOutputStream();
+        writeTPixel(tpixel, pixel);
+        stream.out.write(tpixel.toByteArray());
+    }
+
+    void jpeg(int x, int y, int w, int h, byte[] jpeg) throws IOException {
+        stream.rect(x, y, w, h, RfbProto.EncodingTight);
+        stream.out.writeByte(RfbProto.TightJpeg << 4);
+        stream.compactLen(jpeg.length);
+        stream.out.write(jpeg);
+    }
+
+    /**
+     * A rectangle of the basic subencoding, pixels w x h row by row, sent through the given
+     * filter on the given zlib stream; FILTER_COPY is sent without an explicit filter id
+     */
+    void basic(int x, int y, int w, int h, int[] pixels, int filter, int streamId, int resetStreams) throws IOException {
+        stream.rect(x, y, w, h, RfbProto.EncodingTight);
+        int control = resetStreams(resetStreams) | streamId << 4;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        if (filter == FILTER_COPY) {
+            stream.out.writeByte(control);
+            for (int i = 0; i < w * h; i++)
+                writeTPixel(data, pixels[i]);
+        } else if (filter == FILTER_PALETTE) {
+            stream.out.writeByte(control | RfbProto.TightExplicitFilter << 4);
+            stream.out.writeByte(FILTER_PALETTE);
+            List<Integer> palette = new ArrayList<Integer>();
+            for (int i = 0; i < w * h; i++)
+                if (!palette.contains(pixels[i]))
+                    palette.add(pixels[i]);
+            if (palette.size() < 2 || palette.size() > 256)
+                throw new IllegalArgumentException("palette of " + palette.size() + " colours");
+            stream.out.writeByte(palette.size() - 1);
+            ByteArrayOutputStream colours = new ByteArrayOutputStream();
+            for (int colour : palette)
+                writeTPixel(colours, colour);
+            stream.out.write(colours.toByteArray());
+            if (palette.size() == 2) {
+                // One bit per pixel, most significant first, each row padded to a byte
+                for (int j = 0; j < h; j++) {
+                    int bits = 0, n = 0;
+                    for (int i = 0; i < w; i++) {
+                        bits = bits << 1 | palette.indexOf(pixels[j * w + i]);
+                        if (++n == 8) {
+                            data.write(bits);
+                            bits = n = 0;
+                        }
+                    }
+                    if (n > 0)
+                        data.write(bits << (8 - n));
+                }
+            } else {
+                for (int i = 0; i < w * h; i++)
+                    data.write(palette.indexOf(pixels[i]));
+            }
+        } else if (filter == FILTER_GRADIENT) {
+            stream.out.writeByte(control | RfbProto.TightExplicitFilter << 4);
+            stream.out.writeByte(FILTER_GRADIENT);
+            writeGradient(data, w, h, pixels);
+        } else {
+            throw new IllegalArgumentException("filter " + filter);
+        }
+        writeData(data.toByteArray(), streamId);
+    }
+
+    private int resetStreams(int resetStreams) {
+        for (int i = 0; i < 4; i++) {
+            if ((resetStreams & (1 << i)) != 0) {
+                deflaters[i].end();
+                deflaters[i] = new Deflater();
+            }
+        }
+        return resetStreams;
+    }
+
+    private void writeData(byte[] data, int streamId) throws IOException {
+        if (data.length < RfbProto.TightMinToCompress) {
+            stream.out.write(data);
+            return;
+        }
+        Deflater deflater = deflaters[streamId];
+        deflater.setInput(data);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            compressed.write(buf, 0, n);
+        } while (n == buf.length);
+        stream.compactLen(compressed.size());
+        stream.out.write(compressed.toByteArray());
+    }
+
+    private void writeTPixel(ByteArrayOutputStream out, int pixel) {
+        if (bytesPerPixel == 4) {
+            out.write(pixel >> 16);
+            out.write(pixel >> 8);
+            out.write(pixel);
+        } else if (bytesPerPixel == 2) {
+            out.write(pixel);
+            out.write(pixel >> 8);
+        } else {
+            out.write(pixel);
+        }
+    }
+
+    /**
+     * Each pixel is sent as its difference from up + left - upper left, per component, with the
+     * estimate clamped to the component's range
+     */
+    private void writeGradient(ByteArrayOutputStream out, int w, int h, int[] pixels) {
+        int[] shifts = bytesPerPixel == 4 ? new int[] { 16, 8, 0 } : new int[] { redShift, 5, 0 };
+        int[] maxes = bytesPerPixel == 4 ? new int[] { 255, 255, 255 } : new int[] { 31, greenMax, 31 };
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int pixel = pixels[j * w + i];
+                int up = j > 0 ? pixels[(j - 1) * w + i] : 0;
+                int left = i > 0 ? pixels[j * w + i - 1] : 0;
+                int upperLeft = i > 0 && j > 0 ? pixels[(j - 1) * w + i - 1] : 0;
+                int diff = 0;
+                for (int c = 0; c < 3; c++) {
+                    int shift = shifts[c], max = maxes[c];
+                    int est = ((up >> shift) & max) + ((left >> shift) & max) - ((upperLeft >> shift) & max);
+                    est = Math.max(0, Math.min(max, est));
+                    diff |= ((((pixel >> shift) & max) - est) & max) << shift;
+                }
+                writeTPixel(out, diff);
+            }
+        }
+    }
+}
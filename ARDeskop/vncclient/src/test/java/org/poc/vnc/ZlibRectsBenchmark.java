@@ -0,0 +1,70 @@
+package org.poc.vnc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.IRfbTransportFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to decode ZlibRectsTest's rectangles, 300 of them on one zlib stream with the first
+ * full-screen at 1280x800: through the canvas, which inflates batches of rows from fixed
+ * chunks of input, and through {@link ZlibRectsTest.RowDecoder}, the decoder it replaced,
+ * which read each rectangle's data whole and inflated a row at a time.  Both start each call
+ * with a new framebuffer.  Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ZlibRectsBenchmark {
+
+    static final int RECTS = 300;
+
+    @Param({ "batched", "row" })
+    public String decoder;
+
+    @Param({ "C24bit", "C256" })
+    public String colorModel;
+
+    private ColorModel model;
+    private ZlibRectsTest.Rects rects;
+    private IRfbTransportFactory replay;
+
+    @Setup
+    public void setUp() throws Exception {
+        model = ColorModel.valueOf(colorModel);
+        rects = new ZlibRectsTest.Rects(model, RECTS, new Random(3));
+        replay = rects.session.replay();
+    }
+
+    @Benchmark
+    public int[] decodeRects() throws Exception {
+        if (decoder.equals("row"))
+            return rects.reference(model).pixels;
+        TestSession session = new TestSession(replay, ZlibRectsTest.WIDTH, ZlibRectsTest.HEIGHT);
+        session.canvas.setColorModel(model);
+        session.start();
+        session.run();
+        return session.pixels();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ZlibRectsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
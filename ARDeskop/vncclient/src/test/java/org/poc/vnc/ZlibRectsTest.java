@@ -0,0 +1,167 @@
+package org.poc.vnc;
+
+import org.junit.Test;
+import org.poc.vnc.domain.ColorModel;
+import org.poc.vnc.domain.RfbProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Zlib rectangles decoded by the canvas, which inflates them in batches of rows fed a chunk of
+ * input at a time, against the decoder it replaced, which read each rectangle's compressed data
+ * whole and inflated it a row at a time.
+ */
+public class ZlibRectsTest {
+
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 800;
+
+    // A deflate stored block holding nothing, at a byte boundary: header, then LEN and NLEN
+    static final byte[] EMPTY_STORED_BLOCK = { 0, 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    /**
+     * The old decoder, kept here as the reference
+     */
+    static class RowDecoder {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        final Inflater inflater = new Inflater();
+        byte[] zlibBuf;
+        byte[] rowBuf = new byte[128];
+
+        void decode(DataInputStream is, int x, int y, int w, int h, int bytesPerPixel, int[] colorPalette) throws Exception {
+            int nBytes = is.readInt();
+            if (zlibBuf == null || zlibBuf.length < nBytes)
+                zlibBuf = new byte[nBytes * 2];
+            is.readFully(zlibBuf, 0, nBytes);
+            inflater.setInput(zlibBuf, 0, nBytes);
+            int rowBytes = w * bytesPerPixel;
+            if (rowBytes > rowBuf.length)
+                rowBuf = new byte[rowBytes];
+            for (int dy = y; dy < y + h; dy++) {
+                inflater.inflate(rowBuf, 0, rowBytes);
+                int offset = dy * WIDTH + x;
+                for (int i = 0; i < w; i++) {
+                    if (bytesPerPixel == 1)
+                        pixels[offset + i] = colorPalette[0xFF & rowBuf[i]];
+                    else
+                        pixels[offset + i] = (rowBuf[i * 4 + 2] & 0xFF) << 16 | (rowBuf[i * 4 + 1] & 0xFF) << 8 | (rowBuf[i * 4] & 0xFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rectangles on one zlib stream, sync flushed after each, the first full-screen and the
+     * rest at random, ten to an update
+     */
+    static class Rects {
+        final int n;
+        final ServerStream session = new ServerStream();
+        // The same rectangles without the update and rectangle headers, for the old decoder
+        final ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+        final int[] rects;
+
+        Rects(ColorModel colorModel, int n, Random random) throws IOException {
+            this.n = n;
+            rects = new int[4 * n];
+            int bytesPerPixel = colorModel.bpp();
+            Deflater deflater = new Deflater();
+            for (int k = 0; k < n; k++) {
+                if (k % 10 == 0)
+                    session.update(Math.min(10, n - k));
+                // Every tenth rectangle is big enough that its data spans several input chunks
+                int w = k == 0 ? WIDTH : 1 + random.nextInt(k % 10 == 0 ? WIDTH : 300);
+                int h = k == 0 ? HEIGHT : 1 + random.nextInt(k % 10 == 0 ? HEIGHT : 200);
+                int x = random.nextInt(WIDTH - w + 1), y = random.nextInt(HEIGHT - h + 1);
+                rects[4 * k] = x;
+                rects[4 * k + 1] = y;
+                rects[4 * k + 2] = w;
+                rects[4 * k + 3] = h;
+
+                // Runs of colours, so the data compresses somewhat
+                byte[] raw = new byte[w * h * bytesPerPixel];
+                int colour = random.nextInt();
+                for (int i = 0; i < raw.length; i += bytesPerPixel) {
+                    if (random.nextInt(8) == 0)
+                        colour = random.nextInt();
+                    if (bytesPerPixel == 1) {
+                        raw[i] = (byte) colour;
+                    } else {
+                        raw[i] = (byte) colour;
+                        raw[i + 1] = (byte) (colour >> 8);
+                        raw[i + 2] = (byte) (colour >> 16);
+                    }
+                }
+                deflater.setInput(raw);
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                byte[] buf = new byte[raw.length + 1024];
+                int length;
+                do {
+                    length = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, length);
+                } while (length == buf.length);
+                if (k % 10 == 0) {
+                    // Pad with empty stored blocks, as a server flushing again with nothing new
+                    // sends, until the pixels end in one input chunk and the rectangle's data in
+                    // the next
+                    int chunks = compressed.size() / VncCanvas.ZLIB_INPUT_CHUNK;
+                    while (compressed.size() / VncCanvas.ZLIB_INPUT_CHUNK == chunks)
+                        compressed.write(EMPTY_STORED_BLOCK, 0, EMPTY_STORED_BLOCK.length);
+                }
+
+                session.rect(x, y, w, h, RfbProto.EncodingZlib);
+                session.out.writeInt(compressed.size());
+                compressed.writeTo(session.out);
+                DataOutputStream payload = new DataOutputStream(payloads);
+                payload.writeInt(compressed.size());
+                compressed.writeTo(payload);
+            }
+        }
+
+        /**
+         * Decode the payloads with the old decoder
+         */
+        RowDecoder reference(ColorModel colorModel) throws Exception {
+            RowDecoder reference = new RowDecoder();
+            DataInputStream is = new DataInputStream(new ByteArrayInputStream(payloads.toByteArray()));
+            for (int k = 0; k < n; k++)
+                reference.decode(is, rects[4 * k], rects[4 * k + 1], rects[4 * k + 2], rects[4 * k + 3], colorModel.bpp(), colorModel.palette());
+            return reference;
+        }
+    }
+
+    void check(ColorModel colorModel) throws Exception {
+        Rects rects = new Rects(colorModel, 120, new Random(3));
+        RowDecoder reference = rects.reference(colorModel);
+
+        TestSession replay = new TestSession(rects.session.replay(), WIDTH, HEIGHT);
+        replay.canvas.setColorModel(colorModel);
+        replay.start();
+        replay.run();
+        int[] pixels = replay.pixels();
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != reference.pixels[i])
+                assertEquals(colorModel + " pixel at " + i % WIDTH + "," + i / WIDTH,
+                        Integer.toHexString(reference.pixels[i]), Integer.toHexString(pixels[i]));
+        }
+    }
+
+    @Test
+    public void sameAsRowDecoder24() throws Exception {
+        check(ColorModel.C24bit);
+    }
+
+    @Test
+    public void sameAsRowDecoder8() throws Exception {
+        check(ColorModel.C256);
+    }
+}
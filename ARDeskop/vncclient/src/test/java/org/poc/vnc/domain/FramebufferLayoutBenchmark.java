@@ -0,0 +1,138 @@
+package org.poc.vnc.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The framebuffer's pixels row-major, as AbstractBitmapData keeps them, against the same
+ * pixels in 64x64 tiles stored one after another, for what decoders and the renderer do
+ * with them: copy whole ZRLE tiles in, copy full-width Raw rows in, write pixel by pixel
+ * reading the neighbours above and to the left as Tight's gradient filter does, and copy
+ * an eighth of the tiles out for a dirty-tile upload.  Run main() with the unit test
+ * classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FramebufferLayoutBenchmark {
+
+    // A whole number of tiles each way, so both layouts hold the same pixels
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1088;
+    static final int TILE_SIZE = AbstractBitmapData.DIRTY_TILE_SIZE;
+    static final int TILES_ACROSS = WIDTH / TILE_SIZE;
+    static final int TILES_DOWN = HEIGHT / TILE_SIZE;
+
+    @Param({ "rowMajor", "tiled" })
+    public String layout;
+
+    private boolean tiled;
+    private int[] framebuffer;
+    private int[] tile;
+    private int[] row;
+    private int[] upload;
+    private int[] dirtyTiles;
+
+    @Setup
+    public void setUp() {
+        tiled = layout.equals("tiled");
+        framebuffer = new int[WIDTH * HEIGHT];
+        Random random = new Random(3);
+        tile = new int[TILE_SIZE * TILE_SIZE];
+        for (int i = 0; i < tile.length; i++)
+            tile[i] = random.nextInt();
+        row = new int[WIDTH];
+        for (int i = 0; i < row.length; i++)
+            row[i] = random.nextInt();
+        // An eighth of the tiles, scattered as a desktop's changes are
+        dirtyTiles = new int[TILES_ACROSS * TILES_DOWN / 8];
+        for (int i = 0; i < dirtyTiles.length; i++)
+            dirtyTiles[i] = random.nextInt(TILES_ACROSS * TILES_DOWN);
+        upload = new int[dirtyTiles.length * TILE_SIZE * TILE_SIZE];
+    }
+
+    int offset(int x, int y) {
+        if (!tiled)
+            return y * WIDTH + x;
+        return ((y / TILE_SIZE) * TILES_ACROSS + x / TILE_SIZE) * TILE_SIZE * TILE_SIZE
+                + (y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE;
+    }
+
+    @Benchmark
+    public int[] zrleTiles() {
+        for (int ty = 0; ty < HEIGHT; ty += TILE_SIZE) {
+            for (int tx = 0; tx < WIDTH; tx += TILE_SIZE) {
+                if (tiled) {
+                    System.arraycopy(tile, 0, framebuffer, offset(tx, ty), tile.length);
+                } else {
+                    for (int j = 0; j < TILE_SIZE; j++)
+                        System.arraycopy(tile, j * TILE_SIZE, framebuffer, offset(tx, ty + j), TILE_SIZE);
+                }
+            }
+        }
+        return framebuffer;
+    }
+
+    @Benchmark
+    public int[] rawRows() {
+        for (int y = 0; y < HEIGHT; y++) {
+            if (tiled) {
+                for (int x = 0; x < WIDTH; x += TILE_SIZE)
+                    System.arraycopy(row, x, framebuffer, offset(x, y), TILE_SIZE);
+            } else {
+                System.arraycopy(row, 0, framebuffer, offset(0, y), WIDTH);
+            }
+        }
+        return framebuffer;
+    }
+
+    @Benchmark
+    public int[] gradientPixels() {
+        int[] fb = framebuffer;
+        for (int y = 1; y < HEIGHT; y++) {
+            for (int x = 1; x < WIDTH; x++) {
+                int prediction = fb[offset(x - 1, y)] + fb[offset(x, y - 1)] - fb[offset(x - 1, y - 1)];
+                fb[offset(x, y)] = prediction + row[x];
+            }
+        }
+        return fb;
+    }
+
+    @Benchmark
+    public int[] uploadDirtyTiles() {
+        int out = 0;
+        for (int t : dirtyTiles) {
+            int tx = (t % TILES_ACROSS) * TILE_SIZE;
+            int ty = (t / TILES_ACROSS) * TILE_SIZE;
+            if (tiled) {
+                System.arraycopy(framebuffer, offset(tx, ty), upload, out, TILE_SIZE * TILE_SIZE);
+                out += TILE_SIZE * TILE_SIZE;
+            } else {
+                for (int j = 0; j < TILE_SIZE; j++, out += TILE_SIZE)
+                    System.arraycopy(framebuffer, offset(tx, ty + j), upload, out, TILE_SIZE);
+            }
+        }
+        return upload;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(FramebufferLayoutBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,215 @@
+package org.poc.vnc.domain;
+
+import android.graphics.Rect;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.poc.vnc.DirectFramebufferTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FullBufferBitmapData's pixel operations do the same to pixels kept in the renderer's direct
+ * buffer as to pixels in the array, and the array comes back when the renderer goes.
+ */
+public class FullBufferBitmapDataTest {
+
+    static final int WIDTH = 64;
+    static final int HEIGHT = 48;
+
+    final Random random = new Random(5);
+    RfbProto rfb;
+    FullBufferBitmapData array;
+    FullBufferBitmapData direct;
+    IntBuffer buffer;
+
+    @Before
+    public void setUp() throws Exception {
+        rfb = new RfbProto("test", 0, new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int port) {
+                return new IRfbTransport() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return new ByteArrayOutputStream();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        });
+        rfb.framebufferWidth = WIDTH;
+        rfb.framebufferHeight = HEIGHT;
+        array = new FullBufferBitmapData(rfb, null, 0);
+        direct = new FullBufferBitmapData(rfb, null, 0);
+        buffer = ByteBuffer.allocateDirect(4 * WIDTH * HEIGHT).order(ByteOrder.nativeOrder()).asIntBuffer();
+        direct.setDirectRenderer(new DirectFramebufferTest.DirectRenderer(), buffer);
+        assertNull(direct.bitmapPixels);
+
+        int[] noise = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < noise.length; i++)
+            noise[i] = random.nextInt();
+        array.putRect(noise, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        direct.putRect(noise, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+    }
+
+    int[] directPixels() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        buffer.position(0);
+        buffer.get(pixels);
+        return pixels;
+    }
+
+    void assertSame(String what) {
+        assertArrayEquals(what, array.bitmapPixels, directPixels());
+    }
+
+    static Rect rect(int left, int top, int w, int h) {
+        // Rect's methods are stubs here; its fields are not
+        Rect r = new Rect();
+        r.left = left;
+        r.top = top;
+        r.right = left + w;
+        r.bottom = top + h;
+        return r;
+    }
+
+    @Test
+    public void fillAndPut() {
+        for (FullBufferBitmapData data : new FullBufferBitmapData[] { array, direct }) {
+            data.fillRect(3, 4, 20, 10, 0x123456);
+            data.fillRect(40, 0, 5, 48, 0x654321);
+            data.putRect(new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }, 1, 4, 10, 30, 3, 2);
+        }
+        assertSame("fillRect and putRect");
+        assertEquals(0x123456, directPixels()[4 * WIDTH + 3]);
+        assertEquals(8, directPixels()[31 * WIDTH + 12]);
+
+        // From a buffer whose limit is left as it was
+        IntBuffer src = IntBuffer.allocate(100);
+        for (int i = 0; i < 100; i++)
+            src.put(i, i * 3);
+        for (FullBufferBitmapData data : new FullBufferBitmapData[] { array, direct }) {
+            src.limit(90).position(5);
+            data.putRect(src, 50, 20, 7, 11);
+            assertEquals(82, src.position());
+            assertEquals(90, src.limit());
+        }
+        assertSame("putRect from a buffer");
+    }
+
+    @Test
+    public void getRect() {
+        int[] fromArray = new int[2 + 9 * 13];
+        int[] fromDirect = new int[2 + 9 * 13];
+        array.getRect(30, 20, 9, 13, fromArray, 2);
+        direct.getRect(30, 20, 9, 13, fromDirect, 2);
+        assertArrayEquals(fromArray, fromDirect);
+        assertEquals(array.bitmapPixels[20 * WIDTH + 30], fromDirect[2]);
+    }
+
+    @Test
+    public void rowsOneAtATime() {
+        int[] row = new int[WIDTH];
+        for (FullBufferBitmapData data : new FullBufferBitmapData[] { array, direct }) {
+            int[] pixels = data.rowArray(row);
+            for (int y = 5; y < 9; y++) {
+                int offset = data.rowOffset(pixels, 7, y);
+                for (int i = 0; i < 20; i++)
+                    pixels[offset + i] = y << 8 | i;
+                data.rowWritten(pixels, 7, y, 20);
+            }
+        }
+        assertSame("rows");
+    }
+
+    /**
+     * Overlapping moves in every direction, as CopyRect makes when scrolling
+     */
+    @Test
+    public void movePixels() {
+        int[][] moves = {
+                { 0, 0, 30, 20, 0, 5 }, { 0, 5, 30, 20, 0, 0 }, { 10, 10, 20, 20, 15, 10 },
+                { 15, 10, 20, 20, 10, 10 }, { 5, 5, 40, 30, 9, 12 }, { 0, 0, WIDTH, HEIGHT - 1, 0, 1 }
+        };
+        for (int[] move : moves) {
+            array.movePixels(rect(move[0], move[1], move[2], move[3]), move[4], move[5]);
+            direct.movePixels(rect(move[0], move[1], move[2], move[3]), move[4], move[5]);
+            assertSame("move from " + move[0] + "," + move[1] + " to " + move[4] + "," + move[5]);
+        }
+    }
+
+    void assertDirty(AbstractBitmapData data, int left, int top, int right, int bottom) {
+        Rect bounds = new Rect();
+        assertTrue("nothing dirty", data.takeDirty(bounds));
+        assertEquals(left + "," + top + " to " + right + "," + bottom,
+                bounds.left + "," + bounds.top + " to " + bounds.right + "," + bounds.bottom);
+        assertFalse("dirty again", data.takeDirty(bounds));
+    }
+
+    /**
+     * Dirty bounds are whole tiles cut off at the framebuffer's edges, on a framebuffer of
+     * more than 64 tiles so the bits run into a second word
+     */
+    @Test
+    public void dirtyTilesAtEdges() {
+        rfb.framebufferWidth = 1000;
+        rfb.framebufferHeight = 700;
+        FullBufferBitmapData data = new FullBufferBitmapData(rfb, null, 0);
+        // 16 tiles across, the last 40 wide, and 11 down, the last 60 high
+        assertDirty(data, 0, 0, 1000, 700);
+
+        data.markDirty(999, 699, 1, 1);
+        assertDirty(data, 960, 640, 1000, 700);
+        data.markDirty(0, 0, 1, 1);
+        assertDirty(data, 0, 0, 64, 64);
+        data.markDirty(63, 63, 2, 2);
+        assertDirty(data, 0, 0, 128, 128);
+        data.markDirty(960, 0, 40, 700);
+        assertDirty(data, 960, 0, 1000, 700);
+        // Tile 64, the first bit of the second word
+        data.markDirty(0, 256, 64, 64);
+        assertDirty(data, 0, 256, 64, 320);
+        data.markDirty(10, 650, 1, 1);
+        data.markDirty(980, 20, 1, 1);
+        assertDirty(data, 0, 0, 1000, 700);
+
+        data.markDirty(500, 300, 0, 10);
+        data.markDirty(500, 300, 10, 0);
+        assertFalse("empty rectangle marked", data.takeDirty(new Rect()));
+
+        data.fillRect(130, 70, 5, 5, 1);
+        data.updateBitmap(130, 70, 5, 5);
+        assertDirty(data, 128, 64, 192, 128);
+    }
+
+    @Test
+    public void arrayBackWithoutRenderer() {
+        direct.setDirectRenderer(null, null);
+        assertNotNull(direct.bitmapPixels);
+        assertEquals(WIDTH * HEIGHT, direct.bitmapPixels.length);
+        direct.fillRect(0, 0, 2, 2, 7);
+        assertEquals(7, direct.bitmapPixels[WIDTH + 1]);
+    }
+}
@@ -0,0 +1,172 @@
+package org.poc.vnc.domain;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ZRLE rectangles inflated straight from the connection through a {@link JavaInStream}
+ * limited to each rectangle's length decode as they did when each rectangle's data was first
+ * read whole into a {@link MemInStream}, and leave the connection at the byte after the
+ * rectangle, however the reads come back short.
+ */
+public class JavaInStreamTest {
+
+    static final int RECTS = 60;
+    // Written after every rectangle, as the start of the next message would be
+    static final int MARKER = 0x5A5A0F0F;
+    // A deflate stored block holding nothing, as a server flushing again with nothing new sends
+    static final byte[] EMPTY_STORED_BLOCK = { 0, 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    final Random random = new Random(13);
+    final int[][] sizes = new int[RECTS][];
+
+    /**
+     * An InputStream that hands out a random 1 to maxRead bytes a read
+     */
+    static class ShortReads extends InputStream {
+        final InputStream in;
+        final Random random;
+        final int maxRead;
+
+        ShortReads(byte[] data, int maxRead, long seed) {
+            in = new ByteArrayInputStream(data);
+            random = new Random(seed);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, 1 + random.nextInt(maxRead)));
+        }
+    }
+
+    /**
+     * Rectangles of ZRLE tiles on one zlib stream, sync flushed at the end of each, as
+     * length-prefixed payloads each followed by the marker
+     */
+    byte[] session() throws IOException {
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int k = 0; k < RECTS; k++) {
+            int w = 1 + random.nextInt(k % 10 == 0 ? 600 : 150);
+            int h = 1 + random.nextInt(k % 10 == 0 ? 400 : 100);
+            sizes[k] = new int[] { w, h };
+            ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+            DataOutputStream tileOut = new DataOutputStream(tiles);
+            for (int ty = 0; ty < h; ty += 64)
+                for (int tx = 0; tx < w; tx += 64)
+                    ZrleWorkersBenchmark.writeTile(tileOut, random, Math.min(64, w - tx), Math.min(64, h - ty));
+
+            deflater.setInput(tiles.toByteArray());
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                compressed.write(buf, 0, n);
+            } while (n == buf.length);
+            // Some rectangles end in data the tiles don't need
+            if (k % 3 == 0)
+                for (int i = random.nextInt(4); i >= 0; i--)
+                    compressed.write(EMPTY_STORED_BLOCK, 0, EMPTY_STORED_BLOCK.length);
+
+            out.writeInt(compressed.size());
+            compressed.writeTo(out);
+            out.writeInt(MARKER);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a rectangle's tiles
+     * @return A checksum per tile
+     */
+    int[] decodeTiles(InStream is, RleTileDecoder decoder, int w, int h) throws Exception {
+        int[] sums = new int[((w + 63) / 64) * ((h + 63) / 64)];
+        int t = 0;
+        for (int ty = 0; ty < h; ty += 64) {
+            for (int tx = 0; tx < w; tx += 64) {
+                int tw = Math.min(64, w - tx), th = Math.min(64, h - ty);
+                int pix = decoder.decodeTile(is, tw, th, false, 0);
+                int sum = pix;
+                if (pix == RleTileDecoder.EXPANDED)
+                    for (int i = 0; i < tw * th; i++)
+                        sum = 31 * sum + decoder.getPixels()[i];
+                sums[t++] = sum;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * The way ZRLE was read before: each rectangle's compressed data copied whole first
+     */
+    int[][] throughMemInStream(byte[] session) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(session));
+        ZlibInStream zlib = new ZlibInStream();
+        RleTileDecoder decoder = new RleTileDecoder();
+        int[][] tiles = new int[RECTS][];
+        for (int k = 0; k < RECTS; k++) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            zlib.setUnderlying(new MemInStream(data, 0, data.length), data.length);
+            tiles[k] = decodeTiles(zlib, decoder, sizes[k][0], sizes[k][1]);
+            zlib.reset();
+            assertEquals(MARKER, in.readInt());
+        }
+        return tiles;
+    }
+
+    void check(int maxRead) throws Exception {
+        byte[] session = session();
+        int[][] expected = throughMemInStream(session);
+
+        DataInputStream in = new DataInputStream(new ShortReads(session, maxRead, maxRead));
+        JavaInStream socket = new JavaInStream();
+        ZlibInStream zlib = new ZlibInStream();
+        RleTileDecoder decoder = new RleTileDecoder();
+        for (int k = 0; k < RECTS; k++) {
+            int length = in.readInt();
+            socket.setUnderlying(in, length);
+            zlib.setUnderlying(socket, length);
+            assertArrayEquals("rectangle " + k + ", reads up to " + maxRead, expected[k],
+                    decodeTiles(zlib, decoder, sizes[k][0], sizes[k][1]));
+            zlib.reset();
+            assertEquals("rectangle " + k + " bytes consumed", length, socket.pos());
+            assertEquals("rectangle " + k + " followed by", Integer.toHexString(MARKER), Integer.toHexString(in.readInt()));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void byteAtATime() throws Exception {
+        check(1);
+    }
+
+    @Test
+    public void shortReads() throws Exception {
+        check(37);
+    }
+
+    @Test
+    public void readsLongerThanTheBuffer() throws Exception {
+        check(3 * JavaInStream.DEFAULT_BUF_SIZE);
+    }
+}
@@ -0,0 +1,135 @@
+package org.poc.vnc.domain;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JpegDecoder against ImageIO's decoder, at full scale and at each reduced scale, where every
+ * decoded pixel should be close to the average of the block of ImageIO's pixels it stands for.
+ */
+public class JpegDecoderTest {
+
+    // Not a multiple of the 16 x 16 colour MCU either way
+    static final int WIDTH = 333;
+    static final int HEIGHT = 217;
+
+    static BufferedImage testImage(int type) {
+        BufferedImage colour = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / WIDTH, g = y * 255 / HEIGHT, b = (x + y) * 255 / (WIDTH + HEIGHT);
+                colour.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        if (type == BufferedImage.TYPE_INT_RGB)
+            return colour;
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        image.getGraphics().drawImage(colour, 0, 0, null);
+        return image;
+    }
+
+    static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        writer.setOutput(ImageIO.createImageOutputStream(out));
+        writer.write(null, new IIOImage(image, null, null), param);
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    static int rgb(BufferedImage image, int x, int y) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+            return image.getRaster().getSample(x, y, 0) * 0x010101;
+        return image.getRGB(x, y);
+    }
+
+    /**
+     * Decode at every scale and compare with ImageIO
+     * @param maxMeanError Largest mean, over the image, of the summed component errors
+     * @param maxError Largest summed component error of any one pixel
+     */
+    static void check(BufferedImage image, double[] maxMeanError, int[] maxError) throws Exception {
+        byte[] jpeg = encode(image);
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jpeg));
+        JpegDecoder decoder = new JpegDecoder();
+        int[] scales = { 1, 2, 4, 8 };
+        for (int s = 0; s < scales.length; s++) {
+            int scale = scales[s];
+            decoder.decode(jpeg, 0, jpeg.length, scale);
+            int w = decoder.getWidth(), h = decoder.getHeight();
+            assertEquals("width at 1/" + scale, (WIDTH + scale - 1) / scale, w);
+            assertEquals("height at 1/" + scale, (HEIGHT + scale - 1) / scale, h);
+            int[] pixels = decoder.getPixels();
+            long totalError = 0;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int r = 0, g = 0, b = 0, n = 0;
+                    for (int yy = y * scale; yy < Math.min(HEIGHT, (y + 1) * scale); yy++) {
+                        for (int xx = x * scale; xx < Math.min(WIDTH, (x + 1) * scale); xx++) {
+                            int c = rgb(reference, xx, yy);
+                            r += (c >> 16) & 0xFF;
+                            g += (c >> 8) & 0xFF;
+                            b += c & 0xFF;
+                            n++;
+                        }
+                    }
+                    int c = pixels[y * w + x];
+                    int error = Math.abs(((c >> 16) & 0xFF) - r / n) + Math.abs(((c >> 8) & 0xFF) - g / n)
+                            + Math.abs((c & 0xFF) - b / n);
+                    assertTrue("pixel at " + x + "," + y + " at 1/" + scale + " off by " + error, error <= maxError[s]);
+                    totalError += error;
+                }
+            }
+            double meanError = (double) totalError / (w * h);
+            assertTrue("mean error at 1/" + scale + " is " + meanError, meanError <= maxMeanError[s]);
+        }
+    }
+
+    @Test
+    public void grey() throws Exception {
+        check(testImage(BufferedImage.TYPE_BYTE_GRAY), new double[] { 0.1, 2, 2, 2 }, new int[] { 3, 6, 8, 6 });
+    }
+
+    @Test
+    public void colour() throws Exception {
+        check(testImage(BufferedImage.TYPE_INT_RGB), new double[] { 0.5, 3, 5, 8 }, new int[] { 8, 10, 12, 18 });
+    }
+
+    /**
+     * Restarting at the same scale and switching scales reuse the buffers without leaving
+     * anything of the previous image behind
+     */
+    @Test
+    public void reuse() throws Exception {
+        byte[] grey = encode(testImage(BufferedImage.TYPE_BYTE_GRAY));
+        byte[] colour = encode(testImage(BufferedImage.TYPE_INT_RGB));
+        JpegDecoder fresh = new JpegDecoder();
+        fresh.decode(colour, 0, colour.length, 2);
+        int[] expected = fresh.getPixels().clone();
+
+        JpegDecoder decoder = new JpegDecoder();
+        decoder.decode(colour, 0, colour.length, 1);
+        decoder.decode(grey, 0, grey.length, 8);
+        byte[] padded = new byte[colour.length + 10];
+        System.arraycopy(colour, 0, padded, 5, colour.length);
+        decoder.decode(padded, 5, colour.length, 2);
+        int n = decoder.getWidth() * decoder.getHeight();
+        for (int i = 0; i < n; i++)
+            assertEquals("pixel " + i, expected[i], decoder.getPixels()[i]);
+    }
+}
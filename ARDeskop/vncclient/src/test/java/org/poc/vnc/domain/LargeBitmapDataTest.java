@@ -0,0 +1,100 @@
+package org.poc.vnc.domain;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The region LargeBitmapData has the server push continuous updates for moves with the part of
+ * the framebuffer the bitmap holds.
+ */
+public class LargeBitmapDataTest {
+
+    static final int WIDTH = 2000;
+    static final int HEIGHT = 1500;
+
+    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    LargeBitmapData data;
+
+    @Before
+    public void setUp() throws Exception {
+        RfbProto rfb = new RfbProto("test", 0, new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int port) {
+                return new IRfbTransport() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return sent;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        });
+        rfb.framebufferWidth = WIDTH;
+        rfb.framebufferHeight = HEIGHT;
+        // Room for a bitmap a fraction of the framebuffer's size
+        data = new LargeBitmapData(rfb, null, 100, 100, 1);
+        assertTrue(data.bitmapwidth < WIDTH && data.bitmapheight < HEIGHT);
+    }
+
+    /**
+     * @return The first message sent since the last call, which must be an
+     * EnableContinuousUpdates, as { enable, x, y, w, h }
+     */
+    int[] enableContinuousUpdatesSent() throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+        sent.reset();
+        assertEquals("EnableContinuousUpdates", RfbProto.EnableContinuousUpdates, in.readUnsignedByte());
+        return new int[] { in.readUnsignedByte(), in.readUnsignedShort(), in.readUnsignedShort(),
+                in.readUnsignedShort(), in.readUnsignedShort() };
+    }
+
+    @Test
+    public void regionFollowsScrolling() throws Exception {
+        data.setContinuousUpdates(true);
+        int[] enable = enableContinuousUpdatesSent();
+        assertEquals(1, enable[0]);
+        assertEquals(0, enable[1]);
+        assertEquals(0, enable[2]);
+        assertEquals(data.bitmapwidth, enable[3]);
+        assertEquals(data.bitmapheight, enable[4]);
+
+        data.scrolledToX = 60;
+        data.scrolledToY = 25;
+        data.syncScroll();
+        enable = enableContinuousUpdatesSent();
+        assertEquals(1, enable[0]);
+        assertEquals(60, enable[1]);
+        assertEquals(25, enable[2]);
+        assertEquals(data.bitmapwidth, enable[3]);
+        assertEquals(data.bitmapheight, enable[4]);
+    }
+
+    @Test
+    public void regionLeftAloneWhileOff() throws Exception {
+        data.setContinuousUpdates(true);
+        data.setContinuousUpdates(false);
+        enableContinuousUpdatesSent();
+
+        data.scrolledToX = 60;
+        data.syncScroll();
+        byte[] after = sent.toByteArray();
+        assertTrue("moved a disabled region", after.length == 0 || after[0] != RfbProto.EnableContinuousUpdates);
+    }
+}
@@ -0,0 +1,102 @@
+package org.poc.vnc.domain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Single bytes written to a {@link NioTransport} stay in its send buffer until it is
+ * flushed, an array is written after them or the buffer fills, and reach the server in the
+ * order they were written.
+ */
+public class NioTransportTest {
+
+    // How long the server waits for bytes that shouldn't come, milliseconds
+    static final int QUIET = 200;
+
+    ServerSocket listener;
+    NioTransport transport;
+    Socket server;
+    DataInputStream in;
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        transport = new NioTransport("127.0.0.1", listener.getLocalPort(), NioTransport.DEFAULT_BANDWIDTH,
+                NioTransport.DEFAULT_RTT, NioTransport.DEFAULT_CONNECT_TIMEOUT, NioTransport.DEFAULT_WINDOW_SIZE);
+        server = listener.accept();
+        server.setSoTimeout(QUIET);
+        in = new DataInputStream(server.getInputStream());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.close();
+        server.close();
+        listener.close();
+    }
+
+    void assertNothingSent() throws IOException {
+        try {
+            fail("server read " + in.read());
+        } catch (SocketTimeoutException expected) {
+        }
+    }
+
+    byte[] receive(int n) throws IOException {
+        server.setSoTimeout(0);
+        byte[] b = new byte[n];
+        in.readFully(b);
+        server.setSoTimeout(QUIET);
+        return b;
+    }
+
+    @Test
+    public void singleBytesWaitForFlush() throws IOException {
+        OutputStream os = transport.getOutputStream();
+        os.write(1);
+        os.write(2);
+        assertNothingSent();
+        os.flush();
+        assertArrayEquals(new byte[] { 1, 2 }, receive(2));
+        // Nothing left to send
+        os.flush();
+        assertNothingSent();
+    }
+
+    @Test
+    public void arrayWriteSendsBytesBeforeIt() throws IOException {
+        OutputStream os = transport.getOutputStream();
+        os.write(1);
+        os.write(new byte[] { 2, 3, 4 });
+        os.write(5);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, receive(4));
+        assertNothingSent();
+        os.flush();
+        assertArrayEquals(new byte[] { 5 }, receive(1));
+    }
+
+    @Test
+    public void fullBufferIsSent() throws IOException {
+        OutputStream os = transport.getOutputStream();
+        byte[] expected = new byte[NioTransport.SEND_BUFFER_SIZE];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+            os.write(i);
+        }
+        os.write(0);
+        assertArrayEquals(expected, receive(expected.length));
+        assertNothingSent();
+    }
+}
@@ -0,0 +1,304 @@
+package org.poc.vnc.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to decode the tiles of a full-screen ZRLE rectangle into the tile array, with
+ * {@link RleTileDecoder} reading straight from the stream's buffer and with
+ * {@link PerByteTileDecoder}, the decoder as it was before, reading a byte at a time through
+ * {@link InStream#readU8()}.  The tiles are already inflated, so only the tile loops are
+ * measured; mix picks the subencodings, from ZrleWorkersBenchmark's desktop mix to one kind
+ * only.  Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RleTileDecoderBenchmark {
+
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+    static final int TILE_SIZE = 64;
+
+    @Param({ "buffer", "perByte" })
+    public String decoder;
+
+    // desktop mixes every subencoding; the others are raw, packed palette, plain RLE and
+    // palette RLE tiles only
+    @Param({ "desktop", "raw", "packed", "plainRle", "paletteRle" })
+    public String mix;
+
+    @Param({ "4", "1" })
+    public int bytesPerPixel;
+
+    private byte[] data;
+    private MemInStream is;
+    private RleTileDecoder bufferDecoder;
+    private PerByteTileDecoder perByteDecoder;
+
+    @Setup
+    public void setUp() throws Exception {
+        int kind = mix.equals("raw") ? 0 : mix.equals("packed") ? 2 : mix.equals("plainRle") ? 3
+                : mix.equals("paletteRle") ? 4 : -1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Random random = new Random(7);
+        for (int ty = 0; ty < HEIGHT; ty += TILE_SIZE) {
+            for (int tx = 0; tx < WIDTH; tx += TILE_SIZE) {
+                int tw = Math.min(TILE_SIZE, WIDTH - tx);
+                int th = Math.min(TILE_SIZE, HEIGHT - ty);
+                if (bytesPerPixel == 1)
+                    out.write(tile8(random, tw, th, kind >= 0 ? kind : random.nextInt(5)));
+                else if (kind >= 0)
+                    ZrleWorkersBenchmark.writeTile(out, random, tw, th, kind);
+                else
+                    ZrleWorkersBenchmark.writeTile(out, random, tw, th);
+            }
+        }
+        data = bytes.toByteArray();
+        is = new MemInStream(data, 0, data.length);
+
+        int[] colorPalette = bytesPerPixel == 1 ? ColorModel.C256.palette() : null;
+        bufferDecoder = new RleTileDecoder();
+        bufferDecoder.setPixelFormat(bytesPerPixel, colorPalette);
+        perByteDecoder = new PerByteTileDecoder();
+        perByteDecoder.setPixelFormat(bytesPerPixel, colorPalette);
+        // The comparison only means something if both decode the tiles alike
+        if (decodeAll(true) != decodeAll(false))
+            throw new IllegalStateException("Decoders disagree on " + mix + " tiles");
+    }
+
+    /**
+     * A tile like ZrleWorkersBenchmark's, with 1-byte CPIXELs as in 8-bit colour
+     */
+    static byte[] tile8(Random random, int tw, int th, int kind) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (kind == 0) {
+            out.writeByte(0);
+            for (int i = 0; i < tw * th; i++)
+                out.writeByte(random.nextInt(256));
+        } else if (kind == 1) {
+            out.writeByte(1);
+            out.writeByte(random.nextInt(256));
+        } else if (kind == 2) {
+            int colours = 2 + random.nextInt(15);
+            out.writeByte(colours);
+            for (int i = 0; i < colours; i++)
+                out.writeByte(random.nextInt(256));
+            int bits = colours > 4 ? 4 : colours > 2 ? 2 : 1;
+            for (int j = 0; j < th; j++) {
+                int b = 0, n = 0;
+                for (int i = 0; i < tw; i++) {
+                    b = b << bits | random.nextInt(colours);
+                    n += bits;
+                    if (n == 8) {
+                        out.writeByte(b);
+                        b = n = 0;
+                    }
+                }
+                if (n > 0)
+                    out.writeByte(b << (8 - n));
+            }
+        } else if (kind == 3) {
+            out.writeByte(128);
+            for (int left = tw * th; left > 0; ) {
+                int run = 1 + random.nextInt(Math.min(left, 600));
+                out.writeByte(random.nextInt(256));
+                ZrleWorkersBenchmark.writeRunLength(out, run);
+                left -= run;
+            }
+        } else {
+            int colours = 2 + random.nextInt(20);
+            out.writeByte(128 + colours);
+            for (int i = 0; i < colours; i++)
+                out.writeByte(random.nextInt(256));
+            for (int left = tw * th; left > 0; ) {
+                int run = 1 + random.nextInt(Math.min(left, 300));
+                int index = random.nextInt(colours);
+                if (run == 1) {
+                    out.writeByte(index);
+                } else {
+                    out.writeByte(index | 128);
+                    ZrleWorkersBenchmark.writeRunLength(out, run);
+                }
+                left -= run;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public int decodeTiles() throws Exception {
+        return decodeAll(decoder.equals("buffer"));
+    }
+
+    /**
+     * @return A checksum of the decoded tiles
+     */
+    int decodeAll(boolean buffer) throws Exception {
+        is.reset(data, 0, data.length);
+        int sum = 0;
+        for (int ty = 0; ty < HEIGHT; ty += TILE_SIZE) {
+            int th = Math.min(HEIGHT - ty, TILE_SIZE);
+            for (int tx = 0; tx < WIDTH; tx += TILE_SIZE) {
+                int tw = Math.min(WIDTH - tx, TILE_SIZE);
+                if (buffer) {
+                    int pix = bufferDecoder.decodeTile(is, tw, th, false, 0);
+                    sum = 31 * sum + (pix != RleTileDecoder.EXPANDED ? pix : checksum(bufferDecoder.getPixels(), tw * th));
+                } else {
+                    int pix = perByteDecoder.decodeTile(is, tw, th);
+                    sum = 31 * sum + (pix != RleTileDecoder.EXPANDED ? pix : checksum(perByteDecoder.pixels, tw * th));
+                }
+            }
+        }
+        return sum;
+    }
+
+    static int checksum(int[] pixels, int n) {
+        return pixels[0] ^ pixels[n / 2] ^ pixels[n - 1];
+    }
+
+    /**
+     * RleTileDecoder's ZRLE tile loops before they read from the buffer directly: every byte
+     * goes through readU8() and its bounds check, and the pixel size is checked per pixel
+     */
+    static class PerByteTileDecoder {
+        final int[] palette = new int[128];
+        final int[] pixels = new int[RleTileDecoder.MAX_TILE_SIZE * RleTileDecoder.MAX_TILE_SIZE];
+        private final byte[] pixelBytes = new byte[RleTileDecoder.MAX_TILE_SIZE * RleTileDecoder.MAX_TILE_SIZE * 3];
+        private int bytesPerPixel = 4;
+        private int[] colorPalette;
+
+        void setPixelFormat(int bytesPerPixel, int[] colorPalette) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.colorPalette = colorPalette;
+        }
+
+        int decodeTile(InStream is, int tw, int th) throws Exception {
+            int mode = is.readU8();
+            boolean rle = (mode & 128) != 0;
+            int palSize = mode & 127;
+            readPixels(is, palette, palSize);
+            if (palSize == 1)
+                return palette[0];
+            if (!rle) {
+                if (palSize == 0)
+                    readPixels(is, pixels, tw * th);
+                else
+                    readPackedPixels(is, tw, th, palSize);
+            } else {
+                if (palSize == 0)
+                    readPlainRLEPixels(is, tw, th);
+                else
+                    readPackedRLEPixels(is, tw, th);
+            }
+            return RleTileDecoder.EXPANDED;
+        }
+
+        private void readPackedPixels(InStream is, int tw, int th, int palSize) throws Exception {
+            int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+            int ptr = 0;
+            for (int i = 0; i < th; i++) {
+                int eol = ptr + tw;
+                int b = 0;
+                int nbits = 0;
+                while (ptr < eol) {
+                    if (nbits == 0) {
+                        b = is.readU8();
+                        nbits = 8;
+                    }
+                    nbits -= bppp;
+                    int index = (b >> nbits) & ((1 << bppp) - 1) & 127;
+                    pixels[ptr++] = palette[index];
+                }
+            }
+        }
+
+        private void readPlainRLEPixels(InStream is, int tw, int th) throws Exception {
+            int ptr = 0;
+            int end = ptr + tw * th;
+            while (ptr < end) {
+                int pix = readPixel(is);
+                int len = 1;
+                int b;
+                do {
+                    b = is.readU8();
+                    len += b;
+                } while (b == 255);
+                if (!(len <= end - ptr))
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+                while (len-- > 0)
+                    pixels[ptr++] = pix;
+            }
+        }
+
+        private void readPackedRLEPixels(InStream is, int tw, int th) throws Exception {
+            int ptr = 0;
+            int end = ptr + tw * th;
+            while (ptr < end) {
+                int index = is.readU8();
+                int len = 1;
+                if ((index & 128) != 0) {
+                    int b;
+                    do {
+                        b = is.readU8();
+                        len += b;
+                    } while (b == 255);
+                    if (!(len <= end - ptr))
+                        throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+                }
+                int pix = palette[index & 127];
+                while (len-- > 0)
+                    pixels[ptr++] = pix;
+            }
+        }
+
+        private void readPixels(InStream is, int[] dst, int count) throws Exception {
+            if (bytesPerPixel == 1) {
+                is.readBytes(pixelBytes, 0, count);
+                for (int i = 0; i < count; i++)
+                    dst[i] = colorPalette[pixelBytes[i] & 0xFF];
+            } else {
+                is.readBytes(pixelBytes, 0, count * 3);
+                for (int i = 0; i < count; i++) {
+                    int idx = i * 3;
+                    dst[i] = (pixelBytes[idx + 2] & 0xFF) << 16 | (pixelBytes[idx + 1] & 0xFF) << 8 | (pixelBytes[idx] & 0xFF);
+                }
+            }
+        }
+
+        private int readPixel(InStream is) throws Exception {
+            if (bytesPerPixel == 1)
+                return colorPalette[is.readU8()];
+            int p1 = is.readU8();
+            int p2 = is.readU8();
+            int p3 = is.readU8();
+            return p3 << 16 | p2 << 8 | p1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(RleTileDecoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,248 @@
+package org.poc.vnc.domain;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TileCache keeps tiles in memory up to its limit and the rest in the spill file, which isn't
+ * created until the cache is used and is read back by the next cache opened for the host.
+ */
+public class TileCacheTest {
+
+    static final int WIDTH = 256;
+    static final int HEIGHT = 64;
+    static final int TILE = 16;
+    static final int FORMAT = TileCache.format(ColorModel.C24bit, false);
+    // Room in memory for two tiles
+    static final int MEMORY = 2 * 4 * TILE * TILE;
+    static final int SPILL = 64 * 1024;
+
+    File dir;
+    AbstractBitmapData data;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("tilecache", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        RfbProto rfb = new RfbProto("test", 0, new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int port) {
+                return new IRfbTransport() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return new ByteArrayOutputStream();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        });
+        rfb.framebufferWidth = WIDTH;
+        rfb.framebufferHeight = HEIGHT;
+        data = new FullBufferBitmapData(rfb, null, 0);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    /**
+     * Paint tile n's pattern at x, y
+     */
+    void paint(int n, int x, int y) {
+        for (int j = 0; j < TILE; j++)
+            for (int i = 0; i < TILE; i++)
+                data.bitmapPixels[data.offset(x + i, y + j)] = n << 16 | j << 8 | i;
+    }
+
+    void assertPainted(int n, int x, int y) {
+        for (int j = 0; j < TILE; j++)
+            for (int i = 0; i < TILE; i++)
+                assertEquals("tile " + n + " pixel " + i + "," + j,
+                        n << 16 | j << 8 | i, data.bitmapPixels[data.offset(x + i, y + j)]);
+    }
+
+    @Test
+    public void noSpillFileUntilUsed() {
+        TileCache cache = TileCache.open(dir, "host:1", 5900, MEMORY, SPILL);
+        assertEquals(0, dir.list().length);
+        cache.spillAll();
+        assertEquals(0, dir.list().length);
+
+        paint(1, 0, 0);
+        cache.store(1, FORMAT, data, 0, 0, TILE, TILE);
+        assertEquals(1, dir.list().length);
+        cache.close();
+
+        TileCache unused = TileCache.open(dir, "other", 5900, MEMORY, SPILL);
+        unused.close();
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void spillsAndReadsBack() {
+        TileCache cache = TileCache.open(dir, "host", 5900, MEMORY, SPILL);
+        for (int n = 0; n < 10; n++) {
+            paint(n, 0, 0);
+            cache.store(n, FORMAT, data, 0, 0, TILE, TILE);
+            assertTrue("over the memory limit", cache.getMemoryUsed() <= MEMORY);
+        }
+        // Each restore reads one back from the file and pushes another out
+        for (int round = 0; round < 2; round++) {
+            for (int n = 0; n < 10; n++) {
+                assertTrue("tile " + n, cache.restore(n, FORMAT, data, TILE * n, TILE, TILE, TILE));
+                assertPainted(n, TILE * n, TILE);
+            }
+        }
+        assertEquals(20, cache.getHits());
+        assertFalse(cache.restore(3, FORMAT + 1, data, 0, 0, TILE, TILE));
+        assertFalse(cache.restore(3, FORMAT, data, 0, 0, TILE, 8));
+        assertFalse(cache.restore(42, FORMAT, data, 0, 0, TILE, TILE));
+        assertEquals(3, cache.getMisses());
+        cache.close();
+
+        TileCache next = TileCache.open(dir, "host", 5900, MEMORY, SPILL);
+        for (int n = 9; n >= 0; n--) {
+            assertTrue("tile " + n + " after reopening", next.restore(n, FORMAT, data, TILE * n, 2 * TILE, TILE, TILE));
+            assertPainted(n, TILE * n, 2 * TILE);
+        }
+        next.close();
+    }
+
+    /**
+     * A spill file of another version is started again, not read back
+     */
+    @Test
+    public void fileOfAnotherVersionIsStartedAgain() throws Exception {
+        TileCache cache = TileCache.open(dir, "host", 5900, MEMORY, SPILL);
+        paint(1, 0, 0);
+        cache.store(1, FORMAT, data, 0, 0, TILE, TILE);
+        cache.close();
+        File file = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(TileCache.FILE_VERSION - 1);
+        } finally {
+            raf.close();
+        }
+
+        TileCache next = TileCache.open(dir, "host", 5900, MEMORY, SPILL);
+        assertFalse(next.restore(1, FORMAT, data, TILE, 0, TILE, TILE));
+        next.close();
+        raf = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(TileCache.FILE_MAGIC, raf.readInt());
+            assertEquals(TileCache.FILE_VERSION, raf.readInt());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Every colour model, with and without an indexed framebuffer, tags its tiles differently,
+     * and the tags don't depend on the order the colour models are declared in
+     */
+    @Test
+    public void formatsAreDistinct() {
+        Set<Integer> formats = new HashSet<Integer>();
+        for (ColorModel colorModel : ColorModel.values()) {
+            assertTrue(colorModel + " direct", formats.add(TileCache.format(colorModel, false)));
+            assertTrue(colorModel + " indexed", formats.add(TileCache.format(colorModel, true)));
+        }
+        assertEquals(0x201800, TileCache.format(ColorModel.C24bit, false));
+        assertEquals(0x101000, TileCache.format(ColorModel.C16, false));
+        assertEquals(0x080801, TileCache.format(ColorModel.C256, true));
+        assertEquals(0x080602, TileCache.format(ColorModel.C4, false));
+    }
+
+    /**
+     * Replacing a tile, and tiles of another size filling arrays left by evicted ones, keep
+     * what each tile holds apart
+     */
+    @Test
+    public void storesOverRecycledTiles() {
+        TileCache cache = new TileCache(MEMORY);
+        paint(1, 0, 0);
+        cache.store(1, FORMAT, data, 0, 0, TILE, TILE);
+        paint(2, 0, 0);
+        cache.store(1, FORMAT, data, 0, 0, TILE, TILE);
+        assertEquals(4 * TILE * TILE, cache.getMemoryUsed());
+        assertTrue(cache.restore(1, FORMAT, data, TILE, 0, TILE, TILE));
+        assertPainted(2, TILE, 0);
+
+        // Without a spill file evicted tiles are gone, but their arrays are reused
+        for (int n = 3; n < 8; n++) {
+            paint(n, 0, 0);
+            cache.store(n, FORMAT, data, 0, 0, TILE, n == 5 ? TILE - 2 : TILE);
+        }
+        assertFalse(cache.restore(1, FORMAT, data, 0, 0, TILE, TILE));
+        assertTrue(cache.restore(6, FORMAT, data, TILE, 0, TILE, TILE));
+        assertPainted(6, TILE, 0);
+        assertTrue(cache.restore(7, FORMAT, data, 2 * TILE, 0, TILE, TILE));
+        assertPainted(7, 2 * TILE, 0);
+        assertTrue("over the memory limit", cache.getMemoryUsed() <= MEMORY);
+    }
+
+    /**
+     * At its limit the cache fills the arrays of the tiles it pushes out, whether storing or
+     * reading back from the spill file: what is left to allocate is the map's bookkeeping,
+     * far less than a tile's pixels
+     */
+    @Test
+    public void reusesArraysAtTheLimit() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        int size = 64;
+        TileCache cache = TileCache.open(dir, "host", 5900, 2 * 4 * size * size, 1024 * 1024);
+        int operations = 0;
+        long before = 0;
+        for (int round = 0; round < 200; round++) {
+            if (round == 100)
+                before = threads.getThreadAllocatedBytes(thread);
+            for (int n = 0; n < 8; n++) {
+                cache.store(round * 8 + n, FORMAT, data, 0, 0, size, size);
+                cache.restore(round * 8 + (n + 4) % 8, FORMAT, data, 0, 0, size, size);
+                if (round >= 100)
+                    operations += 2;
+            }
+        }
+        long perOperation = (threads.getThreadAllocatedBytes(thread) - before) / operations;
+        cache.close();
+        assertTrue("allocated " + perOperation + " bytes per operation", perOperation < size * size);
+    }
+}
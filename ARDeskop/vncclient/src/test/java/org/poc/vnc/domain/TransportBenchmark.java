@@ -0,0 +1,128 @@
+package org.poc.vnc.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each {@link IRfbTransport} over loopback, read the way {@link RfbProto} and
+ * the decoders read: through a DataInputStream, in rectangle headers and payloads of the
+ * sizes updates are made of.  A server thread keeps the socket full, so this measures the
+ * client's cost per byte rather than the network.
+ * <p>
+ * Run main() with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+    /** Bytes read by each benchmark call */
+    static final int CHUNK_BYTES = 1024 * 1024;
+    // Rectangle header: position, size and encoding
+    static final int HEADER_BYTES = 12;
+
+    @Param({ "socket", "nio" })
+    public String transport;
+
+    // Payload sizes, from small RRE and Hextile rectangles to Raw and Zlib bands
+    @Param({ "64", "1024", "65536" })
+    public int payload;
+
+    private ServerSocket server;
+    private Thread writer;
+    private IRfbTransport client;
+    private DataInputStream is;
+    private byte[] buf;
+    private int[] lengths;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Payloads vary around the size asked for, as real rectangles do
+        Random random = new Random(1);
+        int n = 0;
+        int total = 0;
+        int[] sizes = new int[CHUNK_BYTES / HEADER_BYTES];
+        while (true) {
+            int size = payload / 2 + random.nextInt(payload);
+            if (total + HEADER_BYTES + size > CHUNK_BYTES)
+                break;
+            sizes[n++] = size;
+            total += HEADER_BYTES + size;
+        }
+        // The last payload takes up the rest, so every call reads exactly one chunk
+        sizes[n - 1] += CHUNK_BYTES - total;
+        lengths = new int[n];
+        System.arraycopy(sizes, 0, lengths, 0, n);
+        buf = new byte[2 * payload + CHUNK_BYTES - total];
+
+        final byte[] chunk = new byte[CHUNK_BYTES];
+        random.nextBytes(chunk);
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        writer = new Thread("transport benchmark server") {
+            @Override
+            public void run() {
+                try {
+                    Socket s = server.accept();
+                    OutputStream os = s.getOutputStream();
+                    while (true)
+                        os.write(chunk);
+                } catch (IOException e) {
+                    // Closed by tearDown
+                }
+            }
+        };
+        writer.start();
+        IRfbTransportFactory factory = "nio".equals(transport) ? NioTransport.FACTORY : SocketTransport.FACTORY;
+        client = factory.open("127.0.0.1", server.getLocalPort());
+        is = new DataInputStream(client.getInputStream());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        writer.join(1000);
+    }
+
+    @Benchmark
+    public int readChunk() throws IOException {
+        int sum = 0;
+        for (int length : lengths) {
+            sum += is.readUnsignedShort();
+            sum += is.readUnsignedShort();
+            sum += is.readUnsignedShort();
+            sum += is.readUnsignedShort();
+            sum += is.readInt();
+            is.readFully(buf, 0, length);
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(TransportBenchmark.class.getSimpleName()).build()).run();
+    }
+}
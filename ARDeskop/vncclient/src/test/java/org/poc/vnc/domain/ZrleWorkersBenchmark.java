@@ -0,0 +1,213 @@
+package org.poc.vnc.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to expand the tiles of a full-screen ZRLE rectangle into the framebuffer, on the
+ * calling thread as {@link org.poc.vnc.VncCanvas} does without workers, and with a
+ * {@link ParallelTileDecoder} of each size.  The tile data is already inflated: inflating
+ * stays on the network thread whatever the worker count, so it bounds the speed-up of a
+ * whole rectangle and is left out here.
+ * <p>
+ * The speed-up can't exceed the number of cores; run main() with the unit test classpath on
+ * a machine with at least as many cores as the largest worker count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ZrleWorkersBenchmark {
+
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+    static final int TILE_SIZE = 64;
+
+    // 0 decodes on the calling thread
+    @Param({ "0", "1", "2", "4", "8" })
+    public int workers;
+
+    private byte[] data;
+    private MemInStream is;
+    private AbstractBitmapData bitmapData;
+    private RleTileDecoder serialDecoder;
+    private ParallelTileDecoder parallelDecoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Random random = new Random(7);
+        for (int ty = 0; ty < HEIGHT; ty += TILE_SIZE)
+            for (int tx = 0; tx < WIDTH; tx += TILE_SIZE)
+                writeTile(out, random, Math.min(TILE_SIZE, WIDTH - tx), Math.min(TILE_SIZE, HEIGHT - ty));
+        data = bytes.toByteArray();
+        is = new MemInStream(data, 0, data.length);
+
+        RfbProto rfb = new RfbProto("benchmark", 0, new IRfbTransportFactory() {
+            @Override
+            public IRfbTransport open(String host, int port) {
+                return new IRfbTransport() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return new ByteArrayOutputStream();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        });
+        rfb.framebufferWidth = WIDTH;
+        rfb.framebufferHeight = HEIGHT;
+        bitmapData = new FullBufferBitmapData(rfb, null, 0);
+        if (workers == 0) {
+            serialDecoder = new RleTileDecoder();
+            serialDecoder.setPixelFormat(4, null);
+        } else {
+            parallelDecoder = new ParallelTileDecoder(workers);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (parallelDecoder != null)
+            parallelDecoder.shutdown();
+    }
+
+    /**
+     * A tile of one of ZRLE's subencodings, in the mix a desktop gives: raw, solid, packed
+     * palette, plain RLE and palette RLE.  Pixels are 3-byte CPIXELs, as in 24-bit colour.
+     */
+    static void writeTile(DataOutputStream out, Random random, int tw, int th) throws IOException {
+        writeTile(out, random, tw, th, random.nextInt(5));
+    }
+
+    /**
+     * @param kind 0 raw, 1 solid, 2 packed palette, 3 plain RLE, 4 palette RLE
+     */
+    static void writeTile(DataOutputStream out, Random random, int tw, int th, int kind) throws IOException {
+        if (kind == 0) {
+            out.writeByte(0);
+            for (int i = 0; i < tw * th; i++)
+                writeCPixel(out, random);
+        } else if (kind == 1) {
+            out.writeByte(1);
+            writeCPixel(out, random);
+        } else if (kind == 2) {
+            int colours = 2 + random.nextInt(15);
+            out.writeByte(colours);
+            for (int i = 0; i < colours; i++)
+                writeCPixel(out, random);
+            int bits = colours > 4 ? 4 : colours > 2 ? 2 : 1;
+            for (int j = 0; j < th; j++) {
+                int b = 0, n = 0;
+                for (int i = 0; i < tw; i++) {
+                    b = b << bits | random.nextInt(colours);
+                    n += bits;
+                    if (n == 8) {
+                        out.writeByte(b);
+                        b = n = 0;
+                    }
+                }
+                if (n > 0)
+                    out.writeByte(b << (8 - n));
+            }
+        } else if (kind == 3) {
+            out.writeByte(128);
+            for (int left = tw * th; left > 0; ) {
+                int run = 1 + random.nextInt(Math.min(left, 600));
+                writeCPixel(out, random);
+                writeRunLength(out, run);
+                left -= run;
+            }
+        } else {
+            int colours = 2 + random.nextInt(20);
+            out.writeByte(128 + colours);
+            for (int i = 0; i < colours; i++)
+                writeCPixel(out, random);
+            for (int left = tw * th; left > 0; ) {
+                int run = 1 + random.nextInt(Math.min(left, 300));
+                int index = random.nextInt(colours);
+                if (run == 1) {
+                    out.writeByte(index);
+                } else {
+                    out.writeByte(index | 128);
+                    writeRunLength(out, run);
+                }
+                left -= run;
+            }
+        }
+    }
+
+    static void writeCPixel(DataOutputStream out, Random random) throws IOException {
+        out.writeByte(random.nextInt(256));
+        out.writeByte(random.nextInt(256));
+        out.writeByte(random.nextInt(256));
+    }
+
+    static void writeRunLength(DataOutputStream out, int run) throws IOException {
+        int rest = run - 1;
+        for (; rest >= 255; rest -= 255)
+            out.writeByte(255);
+        out.writeByte(rest);
+    }
+
+    @Benchmark
+    public int decodeRect() throws Exception {
+        is.reset(data, 0, data.length);
+        if (parallelDecoder != null) {
+            parallelDecoder.decode(is, 0, 0, WIDTH, HEIGHT, 0, 4, null, bitmapData, true);
+            return is.pos();
+        }
+        int[] pixels = bitmapData.bitmapPixels;
+        for (int ty = 0; ty < HEIGHT; ty += TILE_SIZE) {
+            int th = Math.min(HEIGHT - ty, TILE_SIZE);
+            for (int tx = 0; tx < WIDTH; tx += TILE_SIZE) {
+                int tw = Math.min(WIDTH - tx, TILE_SIZE);
+                int pix = serialDecoder.decodeTile(is, tw, th, false, 0);
+                if (pix != RleTileDecoder.EXPANDED) {
+                    bitmapData.fillRect(tx, ty, tw, th, 0xFF000000 | pix);
+                } else {
+                    int[] tile = serialDecoder.getPixels();
+                    for (int j = 0; j < th; j++)
+                        System.arraycopy(tile, j * tw, pixels, bitmapData.offset(tx, ty + j), tw);
+                }
+            }
+        }
+        return is.pos();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ZrleWorkersBenchmark.class.getSimpleName()).build()).run();
+    }
+}
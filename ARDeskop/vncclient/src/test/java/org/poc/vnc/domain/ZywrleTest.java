@@ -0,0 +1,180 @@
+package org.poc.vnc.domain;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link Zywrle#synthesize} undoes a server's analysis of a tile: the colour transform,
+ * the wavelet levels and the order the coefficients are sent in.  Only the colour
+ * transform loses anything, the low bit of U and V.
+ */
+public class ZywrleTest {
+
+    final Random random = new Random(17);
+
+    /**
+     * What a ZYWRLE server sends for a tile instead of its pixels, without quantising the
+     * coefficients: the tile of coefficients as it is decoded from the nested ZRLE tile
+     * @param pixels Tile of 0x00RRGGBB pixels, w per row
+     */
+    public static int[] analyse(int[] pixels, int w, int h, int level) {
+        int aw = w & ~((1 << level) - 1);
+        int ah = h & ~((1 << level) - 1);
+        int[] coefficients = new int[w * h];
+        if (aw == 0 || ah == 0) {
+            System.arraycopy(pixels, 0, coefficients, 0, w * h);
+            return coefficients;
+        }
+
+        int[] buf = new int[w * h];
+        for (int y = 0; y < ah; y++)
+            for (int x = 0; x < aw; x++)
+                buf[y * aw + x] = rgbToYuv(pixels[y * w + x]);
+        // The levels in the opposite order to Zywrle.invWavelet, rows before columns
+        for (int l = 0; l < level; l++) {
+            for (int row = 0; row < aw * ah; row += aw << l)
+                Zywrle.waveletLevel(buf, row, aw, l, 1);
+            for (int x = 0; x < aw; x += 1 << l)
+                Zywrle.waveletLevel(buf, x, ah, l, aw);
+        }
+
+        // Sub-bands in the order synthesize() reads them, then the strips as they are
+        int dst = 0;
+        for (int l = 0; l < level; l++) {
+            for (int r = 3; r >= (l == level - 1 ? 0 : 1); r--) {
+                int s = 2 << l;
+                int start = ((r & 1) != 0 ? s >> 1 : 0) + ((r & 2) != 0 ? (s >> 1) * aw : 0);
+                for (int row = start; row < aw * ah; row += s * aw)
+                    for (int i = row; i < row - row % aw + aw; i += s)
+                        coefficients[dst++] = buf[i];
+            }
+        }
+        for (int y = 0; y < ah; y++)
+            for (int x = aw; x < w; x++)
+                coefficients[dst++] = pixels[y * w + x];
+        for (int y = ah; y < h; y++)
+            for (int x = 0; x < aw; x++)
+                coefficients[dst++] = pixels[y * w + x];
+        for (int y = ah; y < h; y++)
+            for (int x = aw; x < w; x++)
+                coefficients[dst++] = pixels[y * w + x];
+        return coefficients;
+    }
+
+    // V, Y and U as signed bytes in the red, green and blue bytes, as libvncserver's RGBYUV.
+    // -128 is moved to -127: the wavelet step can't be undone for it.
+    static int rgbToYuv(int pixel) {
+        int r = pixel >> 16 & 0xFF, g = pixel >> 8 & 0xFF, b = pixel & 0xFF;
+        int y = Math.max(((r + (g << 1) + b) >> 2) - 128, -127);
+        int u = Math.max((b - g) >> 1, -127);
+        int v = Math.max((r - g) >> 1, -127);
+        return (v & 0xFF) << 16 | (y & 0xFF) << 8 | (u & 0xFF);
+    }
+
+    /**
+     * A pixel after the colour transform there and back, which is what synthesize() can
+     * give back for it at best
+     */
+    public static int yuvRoundTrip(int pixel) {
+        int c = rgbToYuv(pixel);
+        int v = (byte) (c >> 16) << 1;
+        int y = (byte) (c >> 8) + 128;
+        int u = (byte) c << 1;
+        int g = y - ((u + v) >> 2);
+        return clamp(v + g) << 16 | clamp(g) << 8 | clamp(u + g);
+    }
+
+    static int clamp(int x) {
+        return x < 0 ? 0 : (x > 255 ? 255 : x);
+    }
+
+    /**
+     * A tile of smooth shading with some noise, as in a photo
+     */
+    int[] photo(int w, int h) {
+        int[] pixels = new int[w * h];
+        int r0 = random.nextInt(256), g0 = random.nextInt(256), b0 = random.nextInt(256);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = clamp(r0 + 2 * x - y + random.nextInt(9) - 4);
+                int g = clamp(g0 + x + 3 * y + random.nextInt(9) - 4);
+                int b = clamp(b0 - x - 2 * y + random.nextInt(9) - 4);
+                pixels[y * w + x] = r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    void roundTrip(int[] pixels, int w, int h, int level) {
+        int aw = w & ~((1 << level) - 1);
+        int ah = h & ~((1 << level) - 1);
+        // Synthesised in the middle of a wider framebuffer, as the canvas would
+        int stride = w + 5;
+        int offset = 3 * stride + 2;
+        int[] framebuffer = new int[(h + 6) * stride];
+        int[] coefficients = analyse(pixels, w, h, level);
+        for (int y = 0; y < h; y++)
+            System.arraycopy(coefficients, y * w, framebuffer, offset + y * stride, w);
+        Zywrle.synthesize(framebuffer, offset, stride, w, h, level, new int[w * h]);
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int pixel = pixels[y * w + x];
+                int expected = aw > 0 && ah > 0 && x < aw && y < ah ? yuvRoundTrip(pixel) : pixel;
+                int actual = framebuffer[offset + y * stride + x];
+                if (actual != expected)
+                    assertEquals(w + "x" + h + " level " + level + " at " + x + "," + y,
+                            Integer.toHexString(expected), Integer.toHexString(actual));
+            }
+        }
+    }
+
+    /**
+     * For every pair a server can give it: its colour transform leaves out -128, and so does
+     * the step itself
+     */
+    @Test
+    public void harrUndoesItself() {
+        for (int x0 = -127; x0 < 128; x0++) {
+            for (int x1 = -127; x1 < 128; x1++) {
+                int once = Zywrle.harr(x0, x1);
+                assertTrue(x0 + "," + x1 + " gave -128", (byte) once != -128 && (byte) (once >> 8) != -128);
+                int twice = Zywrle.harr((byte) once, (byte) (once >> 8));
+                assertEquals(x0 + "," + x1, (x0 & 0xFF) | (x1 & 0xFF) << 8, twice);
+            }
+        }
+    }
+
+    @Test
+    public void wholeTiles() {
+        for (int level = 1; level <= Zywrle.MAX_LEVEL; level++) {
+            roundTrip(photo(64, 64), 64, 64, level);
+            roundTrip(photo(16, 16), 16, 16, level);
+        }
+    }
+
+    /**
+     * Tiles at the right and bottom edges, with strips left over at each level
+     */
+    @Test
+    public void edgeTiles() {
+        int[][] sizes = { { 63, 64 }, { 64, 37 }, { 13, 29 }, { 8, 8 }, { 9, 1 }, { 3, 5 } };
+        for (int[] size : sizes)
+            for (int level = 1; level <= Zywrle.MAX_LEVEL; level++)
+                roundTrip(photo(size[0], size[1]), size[0], size[1], level);
+    }
+
+    @Test
+    public void extremeColours() {
+        int[] pixels = new int[32 * 32];
+        int[] colours = { 0, 0xFFFFFF, 0xFF0000, 0x00FF00, 0x0000FF, 0xFF00FF, 0x00FFFF, 0x808080 };
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = colours[random.nextInt(colours.length)];
+        for (int level = 1; level <= Zywrle.MAX_LEVEL; level++)
+            roundTrip(pixels, 32, 32, level);
+    }
+}